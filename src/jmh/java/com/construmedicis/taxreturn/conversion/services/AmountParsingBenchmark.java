@@ -0,0 +1,82 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.Money;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lectura y suma de importes DIAN con la ruta anterior ({@code double}: texto
+ * del elemento a String y {@code Double.parseDouble}) y con {@link Money}
+ * (caracteres a diezmilésimas sin String intermedio).
+ *
+ * Los caracteres se copian a un StringBuilder reutilizado, como hace
+ * StaxInvoiceParser con getTextCharacters(). Correr con {@code -prof gc} para
+ * ver también los bytes asignados por importe.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AmountParsingBenchmark {
+
+    private static final int AMOUNTS = 1024;
+
+    @Param({ "double", "money" })
+    public String path;
+
+    /** Parte entera típica: retenciones pequeñas o totales de factura grandes. */
+    @Param({ "4", "10" })
+    public int digits;
+
+    private char[][] amounts;
+    private final StringBuilder buffer = new StringBuilder(32);
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        amounts = new char[AMOUNTS][];
+        long bound = (long) Math.pow(10, digits);
+        for (int i = 0; i < AMOUNTS; i++) {
+            long pesos = Math.floorMod(random.nextLong(), bound);
+            amounts[i] = String.format(Locale.ROOT, "%d.%02d", pesos, random.nextInt(100)).toCharArray();
+        }
+    }
+
+    /** Tiempo por importe: leerlo y sumarlo al total. */
+    @Benchmark
+    @OperationsPerInvocation(AMOUNTS)
+    public Object parseAndSum() {
+        if ("money".equals(path)) {
+            long total = 0;
+            for (char[] amount : amounts) {
+                buffer.setLength(0);
+                buffer.append(amount, 0, amount.length);
+                total = Math.addExact(total, Money.parseUnits(buffer));
+            }
+            return Money.ofUnits(total);
+        }
+        double total = 0;
+        for (char[] amount : amounts) {
+            buffer.setLength(0);
+            buffer.append(amount, 0, amount.length);
+            total += Double.parseDouble(buffer.toString());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,78 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Corrida completa de convertInvoices: carpeta de XML sintéticos a la plantilla
+ * de retenciones. Cada invocación parte de una copia limpia de la plantilla y
+ * sin manifiesto, así que siempre se insertan todas las facturas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConvertInvoicesBenchmark {
+
+    @Param({ "100", "1000", "10000", "50000" })
+    public int invoices;
+
+    @Param({ "xssf", "sxssf" })
+    public String outputMode;
+
+    private Path workDir;
+    private Path xmlDir;
+    private Path template;
+    private Path excel;
+    private ConversionService service;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        workDir = Files.createTempDirectory("convert-bench");
+        xmlDir = new DianInvoiceGenerator(2, 5).writeAll(workDir.resolve("xml"), invoices);
+        template = TemplateWorkbooks.create(workDir.resolve("template.xlsx"));
+        excel = workDir.resolve("salida.xlsx");
+        service = new ConversionService();
+        ReflectionTestUtils.setField(service, "outputMode", outputMode);
+        ReflectionTestUtils.setField(service, "manifestEnabled", false);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshWorkbook() throws IOException {
+        Files.copy(template, excel, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Benchmark
+    public void convertInvoices() throws Exception {
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.walk(workDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
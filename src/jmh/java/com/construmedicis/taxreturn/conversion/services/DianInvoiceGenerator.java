@@ -0,0 +1,110 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Genera AttachedDocument DIAN sintéticos para los benchmarks, con un número
+ * configurable de retenciones (cac:WithholdingTaxTotal) y de líneas
+ * (cac:InvoiceLine). El sobre lleva también la respuesta de validación de la
+ * DIAN después del CDATA, como los archivos reales, para que el costo de leer
+ * el sobre completo se note.
+ */
+final class DianInvoiceGenerator {
+
+    private static final String[] WITHHOLDING_NAMES = { "ReteRenta", "ReteICA", "ReteIVA" };
+
+    private final int withholdings;
+    private final int lines;
+
+    DianInvoiceGenerator(int withholdings, int lines) {
+        this.withholdings = withholdings;
+        this.lines = lines;
+    }
+
+    String attachedDocument(int i) {
+        String id = String.format("FE%06d", i);
+        String nit = String.valueOf(900000000 + (i % 500));
+        String issueDate = String.format("2025-%02d-%02d", 1 + (i % 12), 1 + (i % 28));
+        long base = 100_000L + i;
+
+        StringBuilder inv = new StringBuilder(2048 + lines * 700);
+        inv.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"")
+                .append(" xmlns:cac=\"urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2\"")
+                .append(" xmlns:cbc=\"urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2\">")
+                .append("<cbc:UBLVersionID>UBL 2.1</cbc:UBLVersionID>")
+                .append("<cbc:ID>").append(id).append("</cbc:ID>")
+                .append("<cbc:UUID schemeName=\"CUFE-SHA384\">").append(cufe(i)).append("</cbc:UUID>")
+                .append("<cbc:IssueDate>").append(issueDate).append("</cbc:IssueDate>")
+                .append("<cac:AccountingSupplierParty><cac:Party><cac:PartyTaxScheme>")
+                .append("<cbc:RegistrationName>PROVEEDOR ").append(i % 500).append(" S.A.S</cbc:RegistrationName>")
+                .append("<cbc:CompanyID schemeID=\"7\">").append(nit).append("</cbc:CompanyID>")
+                .append("</cac:PartyTaxScheme></cac:Party></cac:AccountingSupplierParty>");
+        for (int w = 0; w < withholdings; w++) {
+            String name = WITHHOLDING_NAMES[w % WITHHOLDING_NAMES.length];
+            String amount = (base * (w + 1) / 100) + ".00";
+            inv.append("<cac:WithholdingTaxTotal>")
+                    .append("<cbc:TaxAmount currencyID=\"COP\">").append(amount).append("</cbc:TaxAmount>")
+                    .append("<cac:TaxSubtotal><cbc:TaxAmount currencyID=\"COP\">").append(amount)
+                    .append("</cbc:TaxAmount><cac:TaxCategory><cac:TaxScheme><cbc:ID>0").append(6 + w % 3)
+                    .append("</cbc:ID><cbc:Name>").append(name).append("</cbc:Name></cac:TaxScheme>")
+                    .append("</cac:TaxCategory></cac:TaxSubtotal></cac:WithholdingTaxTotal>");
+        }
+        inv.append("<cac:LegalMonetaryTotal>")
+                .append("<cbc:LineExtensionAmount currencyID=\"COP\">").append(base).append(".00")
+                .append("</cbc:LineExtensionAmount>")
+                .append("<cbc:PayableAmount currencyID=\"COP\">").append(base * 119 / 100).append(".00")
+                .append("</cbc:PayableAmount></cac:LegalMonetaryTotal>");
+        for (int l = 1; l <= lines; l++) {
+            inv.append("<cac:InvoiceLine><cbc:ID>").append(l).append("</cbc:ID>")
+                    .append("<cbc:InvoicedQuantity unitCode=\"94\">1.00</cbc:InvoicedQuantity>")
+                    .append("<cbc:LineExtensionAmount currencyID=\"COP\">").append(base / Math.max(1, lines))
+                    .append(".00</cbc:LineExtensionAmount>")
+                    .append("<cac:TaxTotal><cbc:TaxAmount currencyID=\"COP\">0.00</cbc:TaxAmount></cac:TaxTotal>")
+                    .append("<cac:Item><cbc:Description>MATERIAL DE CONSTRUCCION REF ").append(l)
+                    .append("</cbc:Description><cac:StandardItemIdentification><cbc:ID schemeID=\"999\">")
+                    .append(10_000 + l).append("</cbc:ID></cac:StandardItemIdentification></cac:Item>")
+                    .append("<cac:Price><cbc:PriceAmount currencyID=\"COP\">").append(base / Math.max(1, lines))
+                    .append(".00</cbc:PriceAmount><cbc:BaseQuantity unitCode=\"94\">1.00</cbc:BaseQuantity>")
+                    .append("</cac:Price></cac:InvoiceLine>");
+        }
+        inv.append("</Invoice>");
+
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<AttachedDocument xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:AttachedDocument-2\""
+                + " xmlns:cac=\"urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2\""
+                + " xmlns:cbc=\"urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2\">"
+                + "<cbc:UBLVersionID>UBL 2.1</cbc:UBLVersionID>"
+                + "<cbc:ID>AD-" + id + "</cbc:ID>"
+                + "<cac:Attachment><cac:ExternalReference><cbc:MimeCode>text/xml</cbc:MimeCode>"
+                + "<cbc:Description><![CDATA[" + inv + "]]></cbc:Description>"
+                + "</cac:ExternalReference></cac:Attachment>"
+                + "<cac:ParentDocumentLineReference><cbc:LineID>1</cbc:LineID><cac:DocumentReference>"
+                + "<cbc:ID>" + id + "</cbc:ID><cbc:UUID schemeName=\"CUFE-SHA384\">" + cufe(i) + "</cbc:UUID>"
+                + "<cac:Attachment><cac:ExternalReference><cbc:Description><![CDATA[<ApplicationResponse>"
+                + "<cbc:ResponseCode>02</cbc:ResponseCode><cbc:Description>Documento validado por la DIAN"
+                + "</cbc:Description></ApplicationResponse>]]></cbc:Description></cac:ExternalReference>"
+                + "</cac:Attachment></cac:DocumentReference></cac:ParentDocumentLineReference>"
+                + "</AttachedDocument>";
+    }
+
+    byte[] bytes(int i) {
+        return attachedDocument(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Escribe {@code count} facturas en {@code dir} y devuelve la carpeta. */
+    Path writeAll(Path dir, int count) throws IOException {
+        Files.createDirectories(dir);
+        for (int i = 0; i < count; i++) {
+            Files.write(dir.resolve(String.format("FE%06d.xml", i)), bytes(i));
+        }
+        return dir;
+    }
+
+    private static String cufe(int i) {
+        return String.format("%096x", (long) i * 2_654_435_761L);
+    }
+}
@@ -0,0 +1,102 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFTable;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo de añadir una fila a la tabla de retenciones: {@code row} usa
+ * insertRowInTableOnly (totales y tabla se ajustan en cada fila) y
+ * {@code batch} el TableRowAppender abierto para toda la iteración. Cada
+ * iteración parte de la plantilla vacía, así que la tabla crece dentro de la
+ * iteración como en una corrida real.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RowInsertBenchmark {
+
+    @Param({ "row", "batch" })
+    public String mode;
+
+    private byte[] template;
+    private ConversionService service;
+
+    private XSSFWorkbook workbook;
+    private XSSFSheet sheet;
+    private XSSFTable table;
+    private CellStyleRegistry styles;
+    private CellStyle dateStyle;
+    private TableRowAppender appender;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void loadTemplate() throws Exception {
+        Path file = Files.createTempFile("row-bench", ".xlsx");
+        template = Files.readAllBytes(TemplateWorkbooks.create(file));
+        Files.delete(file);
+        service = new ConversionService();
+    }
+
+    @Setup(Level.Iteration)
+    public void openWorkbook() throws Exception {
+        workbook = new XSSFWorkbook(new ByteArrayInputStream(template));
+        sheet = workbook.getSheet("RETENCION 2025");
+        table = sheet.getTables().get(0);
+        styles = new CellStyleRegistry(workbook.getStylesSource());
+        dateStyle = styles.withFormat("d/MM/yyyy", null);
+        appender = "batch".equals(mode) ? new TableRowAppender(sheet, table, "TOTALES", styles) : null;
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWorkbook() throws Exception {
+        if (appender != null) {
+            appender.finish();
+        }
+        workbook.close();
+    }
+
+    @Benchmark
+    public Row insertRow() {
+        int i = next++;
+        if (appender != null) {
+            return appender.append(row -> fill(row, i));
+        }
+        return service.insertRowInTableOnly(sheet, table, styles, row -> fill(row, i));
+    }
+
+    private void fill(Row row, int i) {
+        row.createCell(1).setCellValue("PROVEEDOR " + (i % 500) + " S.A.S");
+        row.createCell(2).setCellValue(String.valueOf(900000000 + i % 500));
+        row.createCell(4).setCellValue(java.sql.Date.valueOf("2025-01-15"));
+        row.getCell(4).setCellStyle(dateStyle);
+        row.createCell(5).setCellValue("FE" + i);
+        row.createCell(6).setCellValue(1190.0 + i);
+        row.createCell(7).setCellValue(1000.0 + i);
+        row.createCell(8).setCellValue("Compras generales (declarantes)");
+    }
+}
@@ -0,0 +1,131 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Mide el pico de heap al añadir N filas a la tabla de retenciones en modo XSSF
+ * y en modo SXSSF. No es un test: se ejecuta a mano, por ejemplo
+ *
+ * <pre>
+ * mvn -q -Pjmh test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -Xmx4g -Dexisting=100000 -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     com.construmedicis.taxreturn.conversion.services.StreamingHeapBenchmark 10000 100000 500000
+ * </pre>
+ *
+ * {@code -Dexisting} son las filas que ya tiene el Excel antes de añadir (el
+ * libro anual que crece): XSSF las carga completas, el modo streaming sólo las
+ * recorre al abrir y al guardar. Cada tamaño se mide en ambos modos; si XSSF se
+ * queda sin memoria se reporta como OOM.
+ */
+public class StreamingHeapBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length == 0 ? new int[] { 10_000, 100_000, 500_000 }
+                : java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+        Path dir = Files.createTempDirectory("heap-bench");
+        Path template = TemplateWorkbooks.create(dir.resolve("template.xlsx"));
+        int existing = Integer.getInteger("existing", 0);
+        if (existing > 0) {
+            write(template, existing, false);
+        }
+
+        System.out.printf("%10s %10s %8s %12s %10s%n", "existentes", "filas", "modo", "pico heap MB",
+                "tiempo s");
+        for (int rows : sizes) {
+            for (String mode : new String[] { "sxssf", "xssf" }) {
+                Path out = Files.copy(template, dir.resolve(mode + "-" + rows + ".xlsx"));
+                resetPeaks();
+                long start = System.nanoTime();
+                String peak;
+                try {
+                    write(out, rows, mode.equals("sxssf"));
+                    peak = String.format("%.1f", peakHeapBytes() / (1024.0 * 1024.0));
+                } catch (OutOfMemoryError oom) {
+                    peak = "OOM";
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%10d %10d %8s %12s %10.2f%n", existing, rows, mode, peak, seconds);
+                Files.deleteIfExists(out);
+            }
+        }
+    }
+
+    private static void write(Path excel, int rows, boolean streaming) throws Exception {
+        if (streaming) {
+            Path tmp = excel.resolveSibling(excel.getFileName() + ".tmp");
+            try (StreamingTableAppender appender = new StreamingTableAppender(excel.toFile(), "RETENCION 2025",
+                    "TOTALES")) {
+                CellStyle dateStyle = appender.styles().withFormat("d/MM/yyyy", null);
+                for (int i = 0; i < rows; i++) {
+                    int n = i;
+                    appender.append(row -> fill(row, n, dateStyle));
+                }
+                appender.finish();
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    appender.write(out);
+                }
+            }
+            Files.move(tmp, excel, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(excel.toFile());
+                XSSFWorkbook workbook = new XSSFWorkbook(in)) {
+            XSSFSheet sheet = workbook.getSheet("RETENCION 2025");
+            CellStyleRegistry styles = new CellStyleRegistry(workbook.getStylesSource());
+            CellStyle dateStyle = styles.withFormat("d/MM/yyyy", null);
+            TableRowAppender appender = new TableRowAppender(sheet, sheet.getTables().get(0), "TOTALES", styles);
+            for (int i = 0; i < rows; i++) {
+                int n = i;
+                appender.append(row -> fill(row, n, dateStyle));
+            }
+            appender.finish();
+            try (OutputStream out = new FileOutputStream(excel.toFile())) {
+                workbook.write(out);
+            }
+        }
+    }
+
+    private static void fill(Row row, int i, CellStyle dateStyle) {
+        row.createCell(1).setCellValue("PROVEEDOR " + (i % 500) + " S.A.S");
+        row.createCell(2).setCellValue(String.valueOf(900000000 + i % 500));
+        row.createCell(4).setCellValue(java.sql.Date.valueOf("2025-01-15"));
+        row.getCell(4).setCellStyle(dateStyle);
+        row.createCell(5).setCellValue("FE" + i);
+        row.createCell(6).setCellValue(1190.0 + i);
+        row.createCell(7).setCellValue(1000.0 + i);
+        row.createCell(8).setCellValue("Compras generales (declarantes)");
+    }
+
+    private static void resetPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
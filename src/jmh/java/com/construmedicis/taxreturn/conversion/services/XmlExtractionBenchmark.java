@@ -0,0 +1,61 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracción de campos de un AttachedDocument ya en memoria, con el parser
+ * StAX y con la ruta DOM original.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlExtractionBenchmark {
+
+    @Param({ "stax", "dom" })
+    public String parser;
+
+    @Param({ "2", "8" })
+    public int withholdings;
+
+    @Param({ "1", "50" })
+    public int lines;
+
+    private ConversionService service;
+    private byte[][] documents;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        service = new ConversionService();
+        ReflectionTestUtils.setField(service, "parserMode", parser);
+        DianInvoiceGenerator generator = new DianInvoiceGenerator(withholdings, lines);
+        documents = new byte[64][];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = generator.bytes(i);
+        }
+    }
+
+    @Benchmark
+    public InvoiceRecord extractFields() throws Exception {
+        byte[] xml = documents[next++ & (documents.length - 1)];
+        return service.parseInvoice(new ByteArrayInputStream(xml), "bench.xml");
+    }
+}
@@ -0,0 +1,143 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import com.construmedicis.taxreturn.utils.auth.GmailAuthService;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.MessagePartBody;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compara el pico de heap y los bytes escritos/leídos en disco al descargar un
+ * ZIP de facturas de N MB con la ruta original (byte[] completo, ZIP a disco y
+ * vuelta a leer) y con la ruta en streaming. No es un test: se ejecuta a mano,
+ * por ejemplo
+ *
+ * <pre>
+ * mvn -q -Pjmh test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -Xmx2g -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     com.construmedicis.taxreturn.extraction.services.AttachmentStreamingBenchmark 10 25 50
+ * </pre>
+ */
+public class AttachmentStreamingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizesMb = args.length == 0 ? new int[] { 10, 25, 50 }
+                : java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+        System.out.printf("%6s %10s %12s %12s %12s%n", "MB", "modo", "pico heap MB", "disco esc MB", "disco leído MB");
+        for (int mb : sizesMb) {
+            byte[] bundle = bundle(mb);
+            try (FakeGmailServer server = new FakeGmailServer(100)) {
+                server.addMessage("m1", new FakeGmailServer.Attachment("paquete.zip", bundle));
+                Gmail gmail = server.gmail();
+
+                Path legacyDir = Files.createTempDirectory("legacy");
+                resetPeaks();
+                legacy(gmail, legacyDir);
+                report(mb, "original", peakHeapBytes(), dirBytes(legacyDir) + bundle.length, bundle.length);
+
+                Path streamDir = Files.createTempDirectory("stream");
+                ExtractionService service = service(gmail);
+                resetPeaks();
+                service.extractInvoices("me", "label:facturas", streamDir.toString());
+                report(mb, "streaming", peakHeapBytes(), dirBytes(streamDir), 0);
+            }
+        }
+    }
+
+    /** Ruta anterior: respuesta parseada, byte[] completo, ZIP a disco y ZipFile. */
+    private static void legacy(Gmail gmail, Path outputDir) throws Exception {
+        MessagePartBody body = gmail.users().messages().attachments().get("me", "m1", "att-m1-0").execute();
+        byte[] fileBytes = Base64.getUrlDecoder().decode(body.getData());
+        Path zipPath = outputDir.resolve("paquete.zip");
+        Files.write(zipPath, fileBytes);
+
+        Path extracted = Files.createDirectories(outputDir.resolve("extracted"));
+        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    Files.copy(in, extracted.resolve(entry.getName()));
+                }
+            }
+        }
+        Files.delete(zipPath); // ya contado como escritura y lectura
+    }
+
+    private static ExtractionService service(Gmail gmail) {
+        GmailAuthService auth = mock(GmailAuthService.class);
+        when(auth.getGmail()).thenReturn(gmail);
+        ExtractionService service = new ExtractionService(auth);
+        ReflectionTestUtils.setField(service, "parallelism", 1);
+        ReflectionTestUtils.setField(service, "streamThresholdBytes", 0L);
+        ReflectionTestUtils.setField(service, "quotaUnitsPerSecond", 0.0); // se mide el transporte, no la cuota
+        return service;
+    }
+
+    /** ZIP con un PDF incompresible de {@code mb} MB y unas cuantas facturas XML. */
+    private static byte[] bundle(int mb) throws Exception {
+        byte[] pdf = new byte[mb * 1024 * 1024];
+        new Random(42).nextBytes(pdf);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pdf.length + 64 * 1024);
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("soportes.pdf"));
+            zip.write(pdf);
+            zip.closeEntry();
+            for (int i = 0; i < 20; i++) {
+                zip.putNextEntry(new ZipEntry("fv" + i + ".xml"));
+                zip.write(("<AttachedDocument>" + "x".repeat(10_000) + "</AttachedDocument>").getBytes());
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void report(int mb, String mode, long peak, long written, long read) {
+        double m = 1024.0 * 1024.0;
+        System.out.printf("%6d %10s %12.1f %12.1f %12.1f%n", mb, mode, peak / m, written / m, read / m);
+    }
+
+    private static long dirBytes(Path dir) throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void resetPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,107 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import com.construmedicis.taxreturn.utils.auth.GmailAuthService;
+import com.construmedicis.taxreturn.utils.auth.PooledHttpTransports;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Cuenta los handshakes TLS de una extracción contra un Gmail falso en HTTPS,
+ * con el transporte anterior (NetHttpTransport / HttpsURLConnection) y con el
+ * transporte con pool compartido. No es un test: se ejecuta a mano, por ejemplo
+ *
+ * <pre>
+ * mvn -q -Pjmh test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     com.construmedicis.taxreturn.extraction.services.TlsHandshakeBenchmark 400
+ * </pre>
+ *
+ * Cada escenario se corre dos veces con el mismo transporte, como dos
+ * extracciones seguidas en la aplicación.
+ */
+public class TlsHandshakeBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length == 0 ? 400 : Integer.parseInt(args[0]);
+        SSLContext ssl = selfSignedContext();
+
+        System.out.printf("%10s %10s %12s %10s%n", "modo", "transporte", "handshakes", "tiempo s");
+        for (String mode : new String[] { "batch", "stream" }) {
+            HttpTransport net = new NetHttpTransport.Builder().setSslSocketFactory(ssl.getSocketFactory()).build();
+            run(mode, "net", net, ssl, messages);
+
+            Counter clientHandshakes = new SimpleMeterRegistry().counter("handshakes");
+            HttpTransport pooled = PooledHttpTransports.create(16, 30, clientHandshakes, ssl);
+            run(mode, "pool", pooled, ssl, messages);
+            pooled.shutdown();
+        }
+    }
+
+    private static void run(String mode, String name, HttpTransport transport, SSLContext ssl, int messages)
+            throws Exception {
+        try (FakeGmailServer server = new FakeGmailServer(100, ssl)) {
+            for (int i = 0; i < messages; i++) {
+                server.addMessage("m" + i, new FakeGmailServer.Attachment("fv" + i + ".pdf", new byte[2048]));
+            }
+            GmailAuthService auth = mock(GmailAuthService.class);
+            when(auth.getGmail()).thenReturn(server.gmail(transport));
+            ExtractionService service = new ExtractionService(auth);
+            ReflectionTestUtils.setField(service, "parallelism", 8);
+            ReflectionTestUtils.setField(service, "batchSize", 10);
+            ReflectionTestUtils.setField(service, "quotaUnitsPerSecond", 0.0); // se mide el transporte, no la cuota
+            // "stream": cada adjunto es una petición propia en lugar de ir en el batch
+            ReflectionTestUtils.setField(service, "streamThresholdBytes", "stream".equals(mode) ? 0L : -1L);
+
+            long start = System.nanoTime();
+            for (int pass = 0; pass < 2; pass++) {
+                Path out = Files.createTempDirectory("tls-bench");
+                service.extractInvoices("me", "label:facturas", out.toString());
+            }
+            System.out.printf("%10s %10s %12d %10.2f%n", mode, name, server.tlsConnections.get(),
+                    (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /** Certificado autofirmado para 127.0.0.1, generado con keytool. */
+    private static SSLContext selfSignedContext() throws Exception {
+        Path dir = Files.createTempDirectory("tls-bench-ks");
+        Path keystore = dir.resolve("server.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "fake-gmail", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=127.0.0.1", "-ext", "san=ip:127.0.0.1", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .inheritIO().start();
+        if (keytool.waitFor() != 0) {
+            throw new IllegalStateException("keytool terminó con código " + keytool.exitValue());
+        }
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            ks.load(in, PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, PASSWORD);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return ctx;
+    }
+}
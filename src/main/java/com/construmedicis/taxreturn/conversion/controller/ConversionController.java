@@ -2,6 +2,8 @@ package com.construmedicis.taxreturn.conversion.controller;
 
 
 import com.construmedicis.taxreturn.conversion.services.IConversionService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 @RestController
@@ -18,4 +20,42 @@ public class ConversionController {
     public void convertInvoices(@RequestParam final String xmlDirectoryPath, @RequestParam final String outputExcelPath) throws Exception {
         iConversionService.convertInvoices(xmlDirectoryPath, outputExcelPath);
     }
+
+    @GetMapping("/summary")
+    public ResponseEntity<?> summarize(@RequestParam final String outputExcelPath,
+            @RequestParam final String summaryPath) throws Exception {
+        try {
+            iConversionService.summarize(outputExcelPath, summaryPath);
+        } catch (IllegalStateException ex) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(ex.getMessage());
+        }
+        return ResponseEntity.ok("Resumen escrito en " + summaryPath);
+    }
+
+    @PostMapping("/watch")
+    public ResponseEntity<?> startWatching(@RequestParam final String xmlDirectoryPath,
+            @RequestParam final String outputExcelPath) throws Exception {
+        try {
+            iConversionService.startWatching(xmlDirectoryPath, outputExcelPath);
+        } catch (IllegalStateException ex) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().body(ex.getMessage());
+        }
+        return ResponseEntity.ok(iConversionService.watchStatus().orElse(null));
+    }
+
+    @GetMapping("/watch")
+    public ResponseEntity<?> watchStatus() {
+        return iConversionService.watchStatus().<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping("/watch")
+    public ResponseEntity<?> stopWatching() throws Exception {
+        if (!iConversionService.stopWatching()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.noContent().build();
+    }
 }
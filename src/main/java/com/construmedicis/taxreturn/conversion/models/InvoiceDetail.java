@@ -0,0 +1,14 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+import java.util.List;
+
+/**
+ * Factura completa: la fila que va a la hoja de retenciones más todas sus
+ * líneas y todos los subtotales de impuestos y retenciones, para el almacén de
+ * staging.
+ */
+public record InvoiceDetail(
+        InvoiceRecord invoice,
+        List<InvoiceLineItem> lines,
+        List<TaxEntry> taxes) {
+}
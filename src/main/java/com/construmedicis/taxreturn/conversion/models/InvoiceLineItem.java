@@ -0,0 +1,13 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+/**
+ * Una línea de la factura (cac:InvoiceLine, o CreditNoteLine / DebitNoteLine
+ * en las notas). {@code description} puede ser null si la línea no trae
+ * cac:Item/cbc:Description.
+ */
+public record InvoiceLineItem(
+        String id,
+        String description,
+        double quantity,
+        Money lineExtensionAmount) {
+}
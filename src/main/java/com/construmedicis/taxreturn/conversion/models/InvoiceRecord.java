@@ -0,0 +1,36 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+/**
+ * Datos mínimos de una factura electrónica DIAN que se escriben en la hoja de
+ * retenciones. Se construye una sola vez por XML y se descarta tras insertar la
+ * fila.
+ *
+ * {@code cufe} es el cbc:UUID de la factura; puede ser null en documentos que
+ * no lo traen. Los importes son exactos ({@link Money}); una retención que la
+ * factura no trae vale {@link Money#ZERO}. {@code industryCode} es el CIIU del
+ * proveedor (cbc:IndustryClasificationCode, puede listar varios separados por
+ * ';') o null.
+ */
+public record InvoiceRecord(
+        String supplierName,
+        String supplierNit,
+        String invoiceNumber,
+        String cufe,
+        String issueDate,
+        Money payableAmount,
+        Money lineExtensionAmount,
+        Money retFuente,
+        Money retIca,
+        String industryCode) {
+
+    /**
+     * Clave que identifica la factura aunque llegue en archivos distintos: el
+     * CUFE si existe, si no NIT del proveedor + número de factura.
+     */
+    public String invoiceKey() {
+        if (cufe != null && !cufe.isBlank()) {
+            return cufe.trim();
+        }
+        return supplierNit.trim() + "|" + invoiceNumber.trim();
+    }
+}
@@ -0,0 +1,217 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Importe exacto de una factura DIAN.
+ *
+ * Se guarda como un {@code long} en diezmilésimas ({@value #SCALE} decimales),
+ * lo que cubre todos los importes en pesos de las facturas (hasta unos 922
+ * billones) y se suma sin el error de redondeo que acumula {@code double}. Si un
+ * valor no cabe (más de cuatro decimales significativos o fuera de rango) se
+ * guarda como {@link BigDecimal}: es más lento pero sigue siendo exacto.
+ *
+ * {@link #parse(CharSequence)} lee el texto del XML directamente a
+ * diezmilésimas, sin crear objetos intermedios, y sólo recurre a
+ * {@code new BigDecimal(...)} cuando el texto no es un decimal simple
+ * (exponente, demasiados dígitos).
+ */
+public final class Money implements Comparable<Money> {
+
+    public static final int SCALE = 4;
+    private static final long ONE = 10_000L;
+    private static final long[] POW10 = { 1L, 10L, 100L, 1_000L, 10_000L };
+    private static final BigDecimal MIN_UNITS = BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal MAX_UNITS = BigDecimal.valueOf(Long.MAX_VALUE);
+    // la lectura rápida nunca llega a este valor: está fuera de su rango
+    private static final long SLOW = Long.MIN_VALUE;
+
+    public static final Money ZERO = new Money(0L, null);
+
+    private final long units;
+    private final BigDecimal big; // null si el valor cabe en units
+
+    private Money(long units, BigDecimal big) {
+        this.units = units;
+        this.big = big;
+    }
+
+    /** Importe de {@code units} diezmilésimas. */
+    public static Money ofUnits(long units) {
+        return units == 0 ? ZERO : new Money(units, null);
+    }
+
+    public static Money of(BigDecimal value) {
+        BigDecimal scaled = value.movePointRight(SCALE);
+        if (scaled.signum() == 0) {
+            return ZERO;
+        }
+        if (scaled.compareTo(MIN_UNITS) >= 0 && scaled.compareTo(MAX_UNITS) <= 0
+                && scaled.stripTrailingZeros().scale() <= 0) {
+            return new Money(scaled.longValueExact(), null);
+        }
+        return new Money(0L, value.stripTrailingZeros());
+    }
+
+    public static Money parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Lee {@code text[start, end)}: espacios alrededor, signo opcional, dígitos
+     * y un punto decimal opcional. Lanza {@link NumberFormatException} si no es
+     * un número, como {@code Double.parseDouble}.
+     */
+    public static Money parse(CharSequence text, int start, int end) {
+        long units = fastUnits(text, start, end);
+        return units != SLOW ? ofUnits(units) : slowParse(text, start, end);
+    }
+
+    /**
+     * Como {@code parse(text).units()} pero sin crear el {@code Money}: para
+     * quien sólo suma.
+     */
+    public static long parseUnits(CharSequence text) {
+        long units = fastUnits(text, 0, text.length());
+        return units != SLOW ? units : slowParse(text, 0, text.length()).units();
+    }
+
+    /** Diezmilésimas del texto, o {@link #SLOW} si hay que leerlo con BigDecimal. */
+    private static long fastUnits(CharSequence text, int start, int end) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long integer = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            int d = text.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            if (integer > (Long.MAX_VALUE / ONE - 10) / 10) {
+                return SLOW; // no cabe en diezmilésimas
+            }
+            integer = integer * 10 + d;
+            digits++;
+        }
+        long fraction = 0;
+        int decimals = 0;
+        if (i < end && text.charAt(i) == '.') {
+            for (i++; i < end; i++) {
+                int d = text.charAt(i) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                if (decimals < SCALE) {
+                    fraction = fraction * 10 + d;
+                } else if (d != 0) {
+                    return SLOW; // más de cuatro decimales significativos
+                }
+                decimals++;
+                digits++;
+            }
+        }
+        if (i != end || digits == 0) {
+            return SLOW; // exponente u otro formato: que decida BigDecimal
+        }
+        long units = integer * ONE + fraction * POW10[SCALE - Math.min(decimals, SCALE)];
+        return negative ? -units : units;
+    }
+
+    private static Money slowParse(CharSequence text, int start, int end) {
+        String value = text.subSequence(start, end).toString();
+        try {
+            return of(new BigDecimal(value));
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Importe inválido: \"" + value + "\"");
+        }
+    }
+
+    /** Si el valor está en diezmilésimas ({@link #units()} es exacto). */
+    public boolean fitsInUnits() {
+        return big == null;
+    }
+
+    /**
+     * Valor en diezmilésimas. Para un valor que no cabe se redondea a cuatro
+     * decimales (mitad al par) y, si aun así no cabe, lanza
+     * {@link ArithmeticException}.
+     */
+    public long units() {
+        if (big == null) {
+            return units;
+        }
+        return big.setScale(SCALE, RoundingMode.HALF_EVEN).movePointRight(SCALE).longValueExact();
+    }
+
+    public Money plus(Money other) {
+        if (big == null && other.big == null) {
+            long sum = units + other.units;
+            if (((units ^ sum) & (other.units ^ sum)) >= 0) {
+                return ofUnits(sum);
+            }
+        }
+        return of(toBigDecimal().add(other.toBigDecimal()));
+    }
+
+    public int signum() {
+        return big == null ? Long.signum(units) : big.signum();
+    }
+
+    public BigDecimal toBigDecimal() {
+        return big == null ? BigDecimal.valueOf(units, SCALE) : big;
+    }
+
+    /**
+     * El {@code double} más cercano al valor exacto: el mismo que daría
+     * {@code Double.parseDouble} sobre el texto original, así que las celdas
+     * del Excel no cambian.
+     */
+    public double doubleValue() {
+        if (big == null && Math.abs(units) <= 1L << 53) {
+            // ambos operandos son exactos en double y la división redondea una sola vez
+            return units / (double) ONE;
+        }
+        return toBigDecimal().doubleValue();
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        if (big == null && other.big == null) {
+            return Long.compare(units, other.units);
+        }
+        return toBigDecimal().compareTo(other.toBigDecimal());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        // of() normaliza: un mismo valor siempre queda en units o siempre en big
+        return o instanceof Money other && units == other.units
+                && (big == null ? other.big == null : big.equals(other.big));
+    }
+
+    @Override
+    public int hashCode() {
+        return big == null ? Long.hashCode(units) : big.hashCode();
+    }
+
+    /** Texto sin exponente ni ceros sobrantes, p. ej. {@code 1190.5}. */
+    @Override
+    public String toString() {
+        BigDecimal value = toBigDecimal().stripTrailingZeros();
+        return (value.scale() < 0 ? value.setScale(0) : value).toPlainString();
+    }
+}
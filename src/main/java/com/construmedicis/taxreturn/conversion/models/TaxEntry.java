@@ -0,0 +1,16 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+/**
+ * Un cac:TaxSubtotal de la factura: impuesto (cac:TaxTotal, p. ej. IVA 19 %) o
+ * retención (cac:WithholdingTaxTotal). {@code line} es el índice de la línea en
+ * {@link InvoiceDetail#lines()} o -1 si el subtotal es de la factura completa.
+ */
+public record TaxEntry(
+        int line,
+        boolean withholding,
+        String schemeId,
+        String schemeName,
+        Money taxableAmount,
+        double percent,
+        Money taxAmount) {
+}
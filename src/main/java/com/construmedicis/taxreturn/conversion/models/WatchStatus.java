@@ -0,0 +1,14 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+/**
+ * Estado de la vigilancia de una carpeta de XML: cuántos lotes se han
+ * convertido, cuántas facturas se insertaron en total y el error del último
+ * lote (null si terminó bien).
+ */
+public record WatchStatus(
+        String xmlDirectoryPath,
+        String outputExcelPath,
+        long batches,
+        long inserted,
+        String lastError) {
+}
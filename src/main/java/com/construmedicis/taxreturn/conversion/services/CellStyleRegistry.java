@@ -0,0 +1,123 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.xssf.model.StylesTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Caché de estilos de un libro de Excel.
+ *
+ * Cada combinación (formato, estilo origen) se resuelve una sola vez: primero
+ * se busca un estilo equivalente que ya exista en el libro (por ejemplo, el
+ * creado en una conversión anterior) y sólo si no hay ninguno se crea uno
+ * nuevo. Así una corrida de miles de facturas no añade un estilo por fila a
+ * styles.xml.
+ *
+ * Trabaja sobre la tabla de estilos y no sobre el libro, para que el modo
+ * streaming la use sin cargar las hojas.
+ */
+class CellStyleRegistry {
+
+    private record Key(String format, int sourceIndex) {
+    }
+
+    private final StylesTable stylesTable;
+    private final Map<Key, CellStyle> cache = new HashMap<>();
+
+    private long created = 0;
+    private long reused = 0;
+
+    CellStyleRegistry(StylesTable stylesTable) {
+        this.stylesTable = stylesTable;
+    }
+
+    /**
+     * Estilo igual a {@code source} (o al estilo por defecto si es null) pero
+     * con el formato de datos indicado.
+     */
+    CellStyle withFormat(String format, CellStyle source) {
+        Key key = new Key(format, source == null ? -1 : source.getIndex());
+        CellStyle style = cache.get(key);
+        if (style != null) {
+            reused++;
+            return style;
+        }
+
+        CellStyle base = source == null ? stylesTable.getStyleAt(0) : source;
+        short dataFormat = dataFormat(format);
+
+        style = findExisting(base, dataFormat);
+        if (style != null) {
+            reused++;
+        } else {
+            style = stylesTable.createCellStyle();
+            if (source != null) {
+                style.cloneStyleFrom(source);
+            }
+            style.setDataFormat(dataFormat);
+            created++;
+        }
+        cache.put(key, style);
+        return style;
+    }
+
+    /**
+     * Registra la reutilización de un estilo ya existente del libro (copia de
+     * estilo entre filas). No crea nada; sólo alimenta el reporte.
+     */
+    CellStyle reuse(CellStyle style) {
+        reused++;
+        return style;
+    }
+
+    String report() {
+        return "Estilos: " + reused + " reutilizados, " + created + " creados (total en libro: "
+                + stylesTable.getNumCellStyles() + ")";
+    }
+
+    // Igual que XSSFDataFormat.getFormat: primero los formatos incorporados de Excel
+    private short dataFormat(String format) {
+        int builtin = BuiltinFormats.getBuiltinFormat(format);
+        return (short) (builtin != -1 ? builtin : stylesTable.putNumberFormat(format));
+    }
+
+    private CellStyle findExisting(CellStyle base, short dataFormat) {
+        int count = stylesTable.getNumCellStyles();
+        for (int i = 0; i < count; i++) {
+            CellStyle candidate = stylesTable.getStyleAt(i);
+            if (candidate.getDataFormat() == dataFormat && sameLook(candidate, base)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // Compara todo salvo el formato de datos
+    private static boolean sameLook(CellStyle a, CellStyle b) {
+        return a.getFontIndex() == b.getFontIndex()
+                && a.getAlignment() == b.getAlignment()
+                && a.getVerticalAlignment() == b.getVerticalAlignment()
+                && a.getWrapText() == b.getWrapText()
+                && a.getIndention() == b.getIndention()
+                && a.getRotation() == b.getRotation()
+                && a.getBorderTop() == b.getBorderTop()
+                && a.getBorderBottom() == b.getBorderBottom()
+                && a.getBorderLeft() == b.getBorderLeft()
+                && a.getBorderRight() == b.getBorderRight()
+                && a.getTopBorderColor() == b.getTopBorderColor()
+                && a.getBottomBorderColor() == b.getBottomBorderColor()
+                && a.getLeftBorderColor() == b.getLeftBorderColor()
+                && a.getRightBorderColor() == b.getRightBorderColor()
+                && a.getFillPattern() == b.getFillPattern()
+                && Objects.equals(a.getFillForegroundColorColor(), b.getFillForegroundColorColor())
+                && Objects.equals(a.getFillBackgroundColorColor(), b.getFillBackgroundColorColor())
+                && a.getLocked() == b.getLocked()
+                && a.getHidden() == b.getHidden()
+                && a.getShrinkToFit() == b.getShrinkToFit()
+                && a.getQuotePrefixed() == b.getQuotePrefixed();
+    }
+}
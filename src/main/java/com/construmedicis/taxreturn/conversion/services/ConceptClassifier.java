@@ -0,0 +1,193 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Reglas que eligen el concepto de retención de cada factura. Se leen del
+ * archivo de mapeo:
+ *
+ * <pre>
+ * concept.default=Compras generales (declarantes)
+ * concept.1.nit=900123456-8, 800197268
+ * concept.1.ciiu=4752,4663
+ * concept.1.min-base=1300000
+ * concept.1.max-base=
+ * concept.1.value=Compras ferretería
+ * </pre>
+ *
+ * Las reglas se prueban en orden de número y gana la primera cuyas condiciones
+ * se cumplen todas; si ninguna, {@code concept.default}. La base es
+ * cbc:LineExtensionAmount ({@code min-base} inclusive, {@code max-base}
+ * exclusive).
+ *
+ * Al compilar, los NIT quedan como números base ordenados, los CIIU como
+ * enteros ordenados y los límites en diezmilésimas: clasificar una factura es
+ * una búsqueda binaria y dos comparaciones de {@code long}, sin comparar
+ * textos.
+ */
+final class ConceptClassifier {
+
+    private static final long NO_LIMIT = Long.MIN_VALUE;
+
+    private record Rule(long[] nits, int[] ciius, long minBase, long maxBase, String concept) {
+
+        boolean matches(long nit, String industryCode, long base) {
+            if (nits != null && Arrays.binarySearch(nits, nit) < 0) {
+                return false;
+            }
+            if (ciius != null && !anyCode(industryCode, ciius)) {
+                return false;
+            }
+            return (minBase == NO_LIMIT || base >= minBase) && (maxBase == NO_LIMIT || base < maxBase);
+        }
+    }
+
+    private final Rule[] rules;
+    private final String defaultConcept;
+    private final boolean usesNit;
+
+    private ConceptClassifier(Rule[] rules, String defaultConcept) {
+        this.rules = rules;
+        this.defaultConcept = defaultConcept;
+        this.usesNit = Arrays.stream(rules).anyMatch(rule -> rule.nits() != null);
+    }
+
+    static ConceptClassifier compile(Properties p, String source) {
+        String defaultConcept = p.getProperty("concept.default", "").trim();
+        if (defaultConcept.isEmpty()) {
+            throw new IllegalArgumentException("Falta concept.default en " + source);
+        }
+        TreeMap<Integer, Properties> byNumber = new TreeMap<>();
+        for (String key : p.stringPropertyNames()) {
+            if (!key.startsWith("concept.") || key.equals("concept.default")) {
+                continue;
+            }
+            String[] parts = key.split("\\.", 3);
+            Integer number = parts.length == 3 ? parseNumber(parts[1]) : null;
+            if (number == null) {
+                throw new IllegalArgumentException("Clave de regla inválida en " + source + ": " + key);
+            }
+            byNumber.computeIfAbsent(number, n -> new Properties()).setProperty(parts[2], p.getProperty(key));
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        for (var entry : byNumber.entrySet()) {
+            String name = source + ": concept." + entry.getKey();
+            Properties r = entry.getValue();
+            for (String attribute : r.stringPropertyNames()) {
+                if (!List.of("nit", "ciiu", "min-base", "max-base", "value").contains(attribute)) {
+                    throw new IllegalArgumentException("Condición desconocida en " + name + ": " + attribute);
+                }
+            }
+            String concept = r.getProperty("value", "").trim();
+            if (concept.isEmpty()) {
+                throw new IllegalArgumentException("Falta el valor (value) de " + name);
+            }
+            rules.add(new Rule(nits(r.getProperty("nit"), name), ciius(r.getProperty("ciiu"), name),
+                    limit(r.getProperty("min-base"), name), limit(r.getProperty("max-base"), name), concept));
+        }
+        return new ConceptClassifier(rules.toArray(new Rule[0]), defaultConcept);
+    }
+
+    String classify(InvoiceRecord factura) {
+        if (rules.length == 0) {
+            return defaultConcept;
+        }
+        long nit = usesNit && factura.supplierNit() != null ? SupplierRegistry.baseNit(factura.supplierNit()) : -1;
+        long base = factura.lineExtensionAmount().units();
+        for (Rule rule : rules) {
+            if (rule.matches(nit, factura.industryCode(), base)) {
+                return rule.concept();
+            }
+        }
+        return defaultConcept;
+    }
+
+    int rules() {
+        return rules.length;
+    }
+
+    /**
+     * Si alguno de los códigos de {@code industryCode} ("4752" o "4752;4663")
+     * está en {@code sorted}. Lee los dígitos sin partir el texto.
+     */
+    private static boolean anyCode(String industryCode, int[] sorted) {
+        if (industryCode == null) {
+            return false;
+        }
+        int code = 0;
+        int digits = 0;
+        for (int i = 0; i <= industryCode.length(); i++) {
+            char c = i < industryCode.length() ? industryCode.charAt(i) : ';';
+            if (c >= '0' && c <= '9') {
+                code = digits < 9 ? code * 10 + (c - '0') : code;
+                digits++;
+            } else if (digits > 0) {
+                if (Arrays.binarySearch(sorted, code) >= 0) {
+                    return true;
+                }
+                code = 0;
+                digits = 0;
+            }
+        }
+        return false;
+    }
+
+    private static long[] nits(String value, String name) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String[] items = value.split(",");
+        long[] nits = new long[items.length];
+        for (int i = 0; i < items.length; i++) {
+            nits[i] = SupplierRegistry.baseNit(items[i]);
+            if (nits[i] < 0) {
+                throw new IllegalArgumentException("NIT inválido en " + name + ": " + items[i].trim());
+            }
+        }
+        Arrays.sort(nits);
+        return nits;
+    }
+
+    private static int[] ciius(String value, String name) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String[] items = value.split("[,;]");
+        int[] codes = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            Integer code = parseNumber(items[i].trim());
+            if (code == null) {
+                throw new IllegalArgumentException("CIIU inválido en " + name + ": " + items[i].trim());
+            }
+            codes[i] = code;
+        }
+        Arrays.sort(codes);
+        return codes;
+    }
+
+    private static long limit(String value, String name) {
+        if (value == null || value.isBlank()) {
+            return NO_LIMIT;
+        }
+        try {
+            return Money.parse(value).units();
+        } catch (NumberFormatException | ArithmeticException ex) {
+            throw new IllegalArgumentException("Valor inválido en " + name + ": " + value.trim());
+        }
+    }
+
+    private static Integer parseNumber(String value) {
+        if (value.isEmpty() || value.length() > 9 || !value.chars().allMatch(Character::isDigit)) {
+            return null;
+        }
+        return Integer.parseInt(value);
+    }
+}
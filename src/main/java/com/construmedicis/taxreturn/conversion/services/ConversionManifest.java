@@ -0,0 +1,179 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro persistente de las facturas que ya se escribieron en un Excel.
+ *
+ * Se guarda junto al Excel de salida ({@code <excel>.manifest}) con una línea
+ * por XML procesado: nombre (ruta relativa a la carpeta convertida), tamaño, fecha de modificación, SHA-256 del
+ * contenido, CUFE, número de factura y NIT del proveedor. En una nueva
+ * corrida:
+ * <ul>
+ * <li>si nombre, tamaño y fecha coinciden, el archivo se salta sin leerlo;</li>
+ * <li>si el hash ya está registrado (copia o renombrado), se salta sin
+ * parsearlo;</li>
+ * <li>si la factura (CUFE o NIT + número) ya está en el libro, se parsea pero
+ * no se vuelve a insertar; como el contenido cambió (por ejemplo, una factura
+ * corregida que conserva el CUFE) se avisa con el archivo que la registró.</li>
+ * </ul>
+ * Las consultas son seguras desde los workers de parseo; las altas las hace el
+ * hilo escritor.
+ */
+class ConversionManifest {
+
+    record Entry(String fileName, long size, long lastModified, String sha256, String cufe,
+            String invoiceNumber, String supplierNit) {
+    }
+
+    private static final String SEPARATOR = "\t";
+
+    private final Path path;
+    // en orden de alta: al recargar, la primera línea de una factura sigue siendo la original
+    private final Map<String, Entry> byFileName = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Entry> byHash = new ConcurrentHashMap<>();
+    private final Map<String, String> fileByInvoiceKey = new ConcurrentHashMap<>();
+
+    private ConversionManifest(Path path) {
+        this.path = path;
+    }
+
+    static Path pathFor(File excelFile) {
+        return excelFile.toPath().resolveSibling(excelFile.getName() + ".manifest");
+    }
+
+    static ConversionManifest empty(Path path) {
+        return new ConversionManifest(path);
+    }
+
+    static ConversionManifest load(Path path) throws IOException {
+        ConversionManifest manifest = new ConversionManifest(path);
+        if (!Files.exists(path)) {
+            return manifest;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split(SEPARATOR, -1);
+                if (f.length < 7) {
+                    continue; // línea corrupta: se ignora y el archivo se reprocesa
+                }
+                manifest.add(new Entry(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), f[3],
+                        emptyToNull(f[4]), f[5], f[6]));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * true si el archivo está registrado con el mismo tamaño y fecha de
+     * modificación (no hace falta ni leerlo).
+     */
+    boolean isUnchanged(String sourceName, File xmlFile) {
+        Entry entry = byFileName.get(sourceName);
+        return entry != null && entry.size() == xmlFile.length() && entry.lastModified() == xmlFile.lastModified();
+    }
+
+    boolean containsHash(String sha256) {
+        return byHash.containsKey(sha256);
+    }
+
+    boolean containsInvoice(InvoiceRecord factura) {
+        return fileByInvoiceKey.containsKey(factura.invoiceKey());
+    }
+
+    /** Archivo con el que se registró la factura por primera vez, o null. */
+    String fileForInvoice(InvoiceRecord factura) {
+        return fileByInvoiceKey.get(factura.invoiceKey());
+    }
+
+    /**
+     * Registra un XML insertado. Si no viene de un archivo (por ejemplo, una
+     * entrada de un ZIP descargado), {@code lastModified} es 0 y solo cuentan
+     * hash y factura.
+     */
+    void record(String fileName, long size, long lastModified, String sha256, InvoiceRecord factura) {
+        add(new Entry(fileName, size, lastModified, sha256,
+                factura.cufe(), factura.invoiceNumber(), factura.supplierNit()));
+        fileByInvoiceKey.putIfAbsent(factura.invoiceKey(), fileName);
+    }
+
+    /**
+     * Registra un archivo cuyo contenido ya estaba en el manifiesto con otro
+     * nombre, copiando los datos de la factura original.
+     */
+    void recordCopy(String fileName, long size, long lastModified, String sha256) {
+        Entry original = byHash.get(sha256);
+        add(new Entry(fileName, size, lastModified, sha256,
+                original == null ? null : original.cufe(),
+                original == null ? "" : original.invoiceNumber(),
+                original == null ? "" : original.supplierNit()));
+    }
+
+    /**
+     * Escribe el manifiesto en un archivo temporal y lo mueve encima del anterior,
+     * para no dejarlo a medias si el proceso se interrumpe.
+     */
+    void save() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write("# archivo\ttamaño\tmodificado\tsha256\tcufe\tfactura\tnit");
+            writer.newLine();
+            synchronized (byFileName) {
+                for (Entry e : byFileName.values()) {
+                    writer.write(String.join(SEPARATOR, clean(e.fileName()), Long.toString(e.size()),
+                            Long.toString(e.lastModified()), e.sha256(), e.cufe() == null ? "" : clean(e.cufe()),
+                            clean(e.invoiceNumber()), clean(e.supplierNit())));
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    private void add(Entry entry) {
+        byFileName.put(entry.fileName(), entry);
+        byHash.putIfAbsent(entry.sha256(), entry);
+        if (entry.cufe() != null && !entry.cufe().isBlank()) {
+            fileByInvoiceKey.putIfAbsent(entry.cufe().trim(), entry.fileName());
+        } else if (!entry.supplierNit().isEmpty() || !entry.invoiceNumber().isEmpty()) {
+            fileByInvoiceKey.putIfAbsent(entry.supplierNit().trim() + "|" + entry.invoiceNumber().trim(),
+                    entry.fileName());
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -1,12 +1,22 @@
 package com.construmedicis.taxreturn.conversion.services;
 
+import com.construmedicis.taxreturn.conversion.models.InvoiceDetail;
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import com.construmedicis.taxreturn.conversion.models.WatchStatus;
+import com.construmedicis.taxreturn.utils.metrics.RunTimings;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.ss.util.AreaReference;
-import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFTable;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -19,364 +29,720 @@ import org.w3c.dom.NodeList;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.lang.reflect.Method;
-import java.math.BigInteger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Service
 public class ConversionService implements IConversionService {
 
     private static final String TEMPLATE_PATH = "calculadora_de_retenciones.xlsx"; // tu plantilla
-    private static final String SHEET_NAME = "RETENCION 2025";
     private static final String TOTALS_LABEL = "TOTALES"; // texto que identifica la fila de totales
 
-    @Override
-    public void convertInvoices(String xmlDirectoryPath, String outputExcelPath) throws Exception {
-        File dir = new File(xmlDirectoryPath);
-        if (!dir.exists() || !dir.isDirectory()) {
-            throw new IllegalArgumentException("La ruta no es un directorio válido: " + xmlDirectoryPath);
-        }
+    // "stax" (una sola pasada, por defecto) o "dom" (ruta original, para comparar)
+    @Value("${conversion.parser:stax}")
+    private String parserMode = "stax";
 
-        // Si no existe Excel de salida, copiar desde la plantilla
-        File excelFile = new File(outputExcelPath);
-        if (!excelFile.exists()) {
-            Files.copy(new File(TEMPLATE_PATH).toPath(), excelFile.toPath());
-        }
+    // Workers de parseo: 0 = núcleos disponibles, 1 = secuencial
+    @Value("${conversion.parallelism:0}")
+    private int parallelism = 0;
 
-        try (FileInputStream fis = new FileInputStream(excelFile);
-                Workbook workbook = new XSSFWorkbook(fis)) {
+    @Value("${conversion.virtual-threads:false}")
+    private boolean virtualThreads = false;
 
-            Sheet sheet = workbook.getSheet(SHEET_NAME);
-            if (sheet == null) {
-                throw new IllegalStateException("No existe la hoja: " + SHEET_NAME);
-            }
+    // Añadir todas las filas en un solo lote (totales y tabla se ajustan una vez)
+    @Value("${conversion.batch-append:true}")
+    private boolean batchAppend = true;
 
-            // Recorremos todos los XML del directorio
-            for (File xmlFile : dir.listFiles((d, name) -> name.toLowerCase().endsWith(".xml"))) {
-                processXmlAndInsert(xmlFile, sheet);
-            }
+    // "xssf" (todo el libro en memoria) o "sxssf" (la hoja se copia en streaming al guardar)
+    @Value("${conversion.output-mode:xssf}")
+    private String outputMode = "xssf";
 
-            // Guardar cambios en el Excel
-            try (FileOutputStream fos = new FileOutputStream(excelFile)) {
-                workbook.write(fos);
-            }
-        }
-    }
+    // Manifiesto junto al Excel para no volver a insertar facturas ya procesadas
+    @Value("${conversion.manifest.enabled:true}")
+    private boolean manifestEnabled = true;
 
-    private void processXmlAndInsert(File xmlFile, Sheet sheet) throws Exception {
-        // Parsear el XML
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(xmlFile);
+    // Almacén columnar (<excel>.staging) con líneas e impuestos de cada factura insertada
+    @Value("${conversion.staging.enabled:false}")
+    private boolean stagingEnabled = false;
 
-        // Extraer el CDATA de la factura
-        String facturaXml = doc.getElementsByTagName("cbc:Description").item(0).getTextContent();
+    // Vigilancia de carpeta: milisegundos sin eventos antes de convertir el lote
+    @Value("${conversion.watch.debounce-ms:2000}")
+    private long watchDebounceMs = 2000;
 
-        // Parsear el XML de la factura interna
-        Document facturaDoc = builder.parse(new ByteArrayInputStream(facturaXml.getBytes(StandardCharsets.UTF_8)));
+    // Espera máxima desde el primer archivo del lote aunque sigan llegando otros
+    @Value("${conversion.watch.max-delay-ms:30000}")
+    private long watchMaxDelayMs = 30000;
 
-        // --- Datos del proveedor ---
-        String nitProveedor = facturaDoc.getElementsByTagName("cbc:CompanyID").item(0).getTextContent();
-        String razonSocialProveedor = facturaDoc.getElementsByTagName("cbc:RegistrationName").item(0).getTextContent();
+    @Value("${conversion.watch.max-batch:500}")
+    private int watchMaxBatch = 500;
 
-        // --- Datos de la factura ---
-        String numeroFactura = facturaDoc.getElementsByTagName("cbc:ID").item(0).getTextContent();
-        String fecha = facturaDoc.getElementsByTagName("cbc:IssueDate").item(0).getTextContent();
+    // Registro de proveedores (NIT y nombre canónicos); vacío = se escriben como vienen en el XML
+    @Value("${conversion.suppliers.file:}")
+    private String suppliersFile = "";
 
-        // --- rete ica y rete fuente ---
-        NodeList retenciones = facturaDoc.getElementsByTagName("cac:WithholdingTaxTotal");
-        double retFuente = 0.0;
-        double retIca = 0.0;
+    // Textos de CompanyID recientes que se resuelven sin volver a normalizar
+    @Value("${conversion.suppliers.cache-size:4096}")
+    private int suppliersCacheSize = 4096;
 
-        for (int i = 0; i < retenciones.getLength(); i++) {
-            Element ret = (Element) retenciones.item(i);
-            String valor = ret.getElementsByTagName("cbc:TaxAmount").item(0).getTextContent();
+    // Hoja, columnas y reglas de concepto; vacío = conversion-mapping.properties incluido
+    @Value("${conversion.mapping.file:}")
+    private String mappingFile = "";
 
-            Element scheme = (Element) ret.getElementsByTagName("cac:TaxScheme").item(0);
-            String nombre = scheme.getElementsByTagName("cbc:Name").item(0).getTextContent();
+    private final StaxInvoiceParser staxParser = new StaxInvoiceParser();
 
-            if (nombre.toUpperCase().contains("RENTA")) {
-                retFuente = Double.parseDouble(valor);
-            } else if (nombre.toUpperCase().contains("ICA")) {
-                retIca = Double.parseDouble(valor);
-            }
-        }
+    private final Timer parseTimer;
+    private final Timer insertTimer;
+    private final Timer saveTimer;
+    private final Timer summaryTimer;
 
-        // --- Base imponible ---
-        double baseImponible = Double
-                .parseDouble(facturaDoc.getElementsByTagName("cbc:LineExtensionAmount").item(0).getTextContent());
+    // Un escritor a la vez por Excel: un lote de la vigilancia, una conversión manual y el
+    // pipeline abren, escriben y guardan el libro, el manifiesto y el staging de a uno
+    private final ConcurrentMap<Path, Semaphore> excelWriters = new ConcurrentHashMap<>();
 
-        // --- Valor total ---
-        String valorTotal = facturaDoc.getElementsByTagName("cbc:PayableAmount").item(0).getTextContent();
+    private ActiveWatch watch; // guardado por this
+    private final Object suppliersLock = new Object();
+    private volatile SupplierRegistry suppliers; // se carga al arrancar (o con la primera sesión)
+    private final Object mappingLock = new Object();
+    private volatile InvoiceMapping mapping; // se compila al arrancar (o con la primera sesión)
 
-        XSSFSheet xssfSheet = (XSSFSheet) sheet;
-        XSSFTable table = xssfSheet.getTables().get(0); // tu tabla principal
+    public ConversionService() {
+        this(Metrics.globalRegistry);
+    }
 
-        Workbook workbook = sheet.getWorkbook();
-        CellStyle dateStyle = getDateStyle(workbook);
+    @Autowired
+    public ConversionService(MeterRegistry meterRegistry) {
+        this.parseTimer = Timer.builder("taxreturn.conversion.parse")
+                .description("Lectura de un XML de factura")
+                .register(meterRegistry);
+        this.insertTimer = Timer.builder("taxreturn.conversion.insert")
+                .description("Inserción de una fila en la tabla de retenciones")
+                .register(meterRegistry);
+        this.saveTimer = Timer.builder("taxreturn.conversion.save")
+                .description("Cierre de la tabla y escritura del Excel")
+                .register(meterRegistry);
+        this.summaryTimer = Timer.builder("taxreturn.conversion.summary")
+                .description("Agregación del staging y escritura del resumen")
+                .register(meterRegistry);
+    }
 
-        insertRowInTableOnly(xssfSheet, table, newRow -> {
-            writeCellWithStyle(newRow, 1, razonSocialProveedor, null);
-            writeCellWithStyle(newRow, 2, nitProveedor, null);
-            writeDateCell(newRow, 4, fecha, dateStyle);
-            writeCellWithStyle(newRow, 5, numeroFactura, null);
-            writeCellWithStyle(newRow, 6, Double.parseDouble(valorTotal), null);
-            writeCellWithStyle(newRow, 7, baseImponible, null);
-            writeCellWithStyle(newRow, 8, "Compras generales (declarantes)", null);
-        });
+    @Override
+    public void convertInvoices(String xmlDirectoryPath, String outputExcelPath, ProgressListener progress)
+            throws Exception {
+        File dir = new File(xmlDirectoryPath);
+        if (!dir.exists() || !dir.isDirectory()) {
+            throw new IllegalArgumentException("La ruta no es un directorio válido: " + xmlDirectoryPath);
+        }
+
+        File excelFile = new File(outputExcelPath);
+        // Recorremos todos los XML del directorio y sus subcarpetas (la extracción
+        // deja cada mensaje en extracted/<messageId>), ordenados por ruta para que
+        // el resultado sea el mismo en modo secuencial y paralelo
+        exclusive(excelFile, () -> convertFiles(dir, excelFile, prepareWorkbook(excelFile), listXmlFiles(dir),
+                false, progress));
     }
 
-    private void writeCellWithStyle(Row row, int colIndex, String value, Row styleSource) {
-        Cell cell = row.createCell(colIndex);
-        cell.setCellValue(value);
-        if (styleSource != null) {
-            Cell src = styleSource.getCell(colIndex);
-            if (src != null && src.getCellStyle() != null) {
-                cell.setCellStyle(src.getCellStyle());
-            }
+    /** Ejecuta {@code work} como único escritor de {@code excelFile}; espera si hay otro. */
+    private <T> T exclusive(File excelFile, Callable<T> work) throws Exception {
+        Semaphore slot = acquireWriter(excelFile);
+        try {
+            return work.call();
+        } finally {
+            slot.release();
         }
     }
 
-    private void writeCellWithStyle(Row row, int colIndex, double value, Row styleSource) {
-        Cell cell = row.createCell(colIndex);
-        cell.setCellValue(value);
-        if (styleSource != null) {
-            Cell src = styleSource.getCell(colIndex);
-            if (src != null && src.getCellStyle() != null) {
-                cell.setCellStyle(src.getCellStyle());
-            }
+    private Semaphore acquireWriter(File excelFile) throws InterruptedException {
+        Semaphore slot = excelWriters.computeIfAbsent(excelFile.toPath().toAbsolutePath().normalize(),
+                path -> new Semaphore(1));
+        if (!slot.tryAcquire()) {
+            System.out.println("Conversión: esperando a que termine otra escritura de " + excelFile.getName());
+            slot.acquire();
         }
+        return slot;
     }
 
-    private void insertRowInTableOnly(
-            XSSFSheet sheet,
-            XSSFTable table,
-            Consumer<Row> rowFiller) {
+    /**
+     * Parsea e inserta {@code xmlFiles} en el Excel con una sola apertura y un
+     * solo guardado. Con {@code skipFailures} un XML que no se puede leer se
+     * informa y se salta en lugar de abortar el lote (la vigilancia puede ver un
+     * archivo que otro proceso aún no termina de escribir).
+     */
+    private int convertFiles(File dir, File excelFile, PreparedWorkbook prepared, List<File> xmlFiles,
+            boolean skipFailures, ProgressListener progress) throws Exception {
+        ConversionManifest manifest = prepared.manifest();
+        int found = xmlFiles.size();
+        if (manifest != null) {
+            ConversionManifest known = manifest;
+            xmlFiles.removeIf(xmlFile -> known.isUnchanged(sourceName(dir, xmlFile), xmlFile));
+        }
+        progress.filesDiscovered(xmlFiles.size());
+        if (xmlFiles.isEmpty() && !prepared.fresh()) {
+            System.out.println("Conversión: " + found + " XML sin cambios, no hay nada que insertar");
+            return 0;
+        }
+
+        int workers = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        ParallelParseStage<InvoiceWriter.Parsed> stage = new ParallelParseStage<>(workers, virtualThreads);
+
+        progress.stage("Leyendo " + xmlFiles.size() + " XML");
+        long startNanos = System.nanoTime();
+        try (WorkbookSession session = new WorkbookSession(excelFile, manifest, xmlFiles.isEmpty())) {
+            stage.run(xmlFiles, xmlFile -> {
+                try {
+                    return parseReporting(session, dir, xmlFile, progress);
+                } catch (Exception ex) {
+                    if (!skipFailures) {
+                        throw ex;
+                    }
+                    System.out.println("Conversión: no se pudo leer " + xmlFile + ": " + ex.getMessage());
+                    return null;
+                }
+            }, (xmlFile, parsed) -> {
+                if (parsed != null && session.write(parsed)) {
+                    progress.filesWritten(1);
+                }
+            });
+            logThroughput(xmlFiles.size(), workers, System.nanoTime() - startNanos);
+            session.logCounts(found - xmlFiles.size());
 
-        CellReference start = table.getStartCellReference();
-        CellReference end = table.getEndCellReference();
-        int lastTableCol = end.getCol();
+            // Guardar cambios en el Excel
+            progress.stage("Guardando " + excelFile.getName());
+            session.commit();
+            return session.inserted;
+        }
+    }
 
-        // Encontrar la fila de TOTALES en la hoja
-        int totalsRowIndex = findTotalsRow(sheet);
-        if (totalsRowIndex == -1) {
-            throw new IllegalStateException("No se encontró la fila de TOTALES");
+    @Override
+    public void summarize(String outputExcelPath, String summaryPath) throws Exception {
+        Path stagingDir = StagingStore.pathFor(new File(outputExcelPath));
+        if (!StagingStore.exists(stagingDir)) {
+            throw new IllegalStateException("No hay almacén de staging para " + outputExcelPath
+                    + ": active conversion.staging.enabled y convierta las facturas");
+        }
+        long start = System.nanoTime();
+        int workers = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        // sólo lectura: puede correr mientras la vigilancia sigue añadiendo facturas
+        try (StagingStore store = StagingStore.openReadOnly(stagingDir)) {
+            RetentionSummary summary = RetentionSummary.compute(store, workers);
+            summary.write(Path.of(summaryPath));
+            System.out.println("Resumen: " + summary.supplierRows() + " filas por NIT y mes, "
+                    + summary.conceptRows() + " por concepto y mes, en " + summaryPath);
         }
+        summaryTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
 
-        // Insertar SIEMPRE una fila ANTES de la fila de totales
-        int newRowIndex = totalsRowIndex;
+    @Override
+    public synchronized void startWatching(String xmlDirectoryPath, String outputExcelPath) throws Exception {
+        if (watch != null) {
+            throw new IllegalStateException("Ya se está vigilando la carpeta: " + watch.xmlDirectoryPath());
+        }
+        File dir = new File(xmlDirectoryPath);
+        if (!dir.exists() || !dir.isDirectory()) {
+            throw new IllegalArgumentException("La ruta no es un directorio válido: " + xmlDirectoryPath);
+        }
+        File excelFile = new File(outputExcelPath);
+        // La plantilla se copia ya, para que un error de ruta llegue a quien llama
+        exclusive(excelFile, () -> {
+            PreparedWorkbook prepared = prepareWorkbook(excelFile);
+            if (prepared.fresh() && prepared.manifest() != null) {
+                // Cada lote vuelve a cargar el manifiesto: el de un Excel anterior no debe aplicar
+                prepared.manifest().save();
+            }
+            return null;
+        });
 
-        // 1. Copiar fila de totales a la fila siguiente (manual, sin shiftRows)
-        Row totalsRow = sheet.getRow(totalsRowIndex);
-        Row newTotalsRow = sheet.createRow(totalsRowIndex + 1);
+        InvoiceFolderWatcher watcher = new InvoiceFolderWatcher(dir.toPath(), watchDebounceMs, watchMaxDelayMs,
+                watchMaxBatch, xmlFiles -> exclusive(excelFile, () -> convertFiles(dir, excelFile,
+                        prepareWorkbook(excelFile), new ArrayList<>(xmlFiles), true, ProgressListener.NONE)));
+        // Sin manifiesto no se sabe qué XML ya están en el Excel: sólo se convierte lo que llegue
+        watcher.start(manifestEnabled);
+        watch = new ActiveWatch(xmlDirectoryPath, outputExcelPath, watcher);
+    }
 
-        copyRow(sheet, totalsRow, newTotalsRow);
+    @Override
+    public boolean stopWatching() throws IOException {
+        ActiveWatch stopping;
+        synchronized (this) {
+            if (watch == null) {
+                return false;
+            }
+            stopping = watch;
+            watch = null;
+        }
+        // Fuera del lock: close() espera el último lote, que abre una sesión en el hilo del watcher
+        stopping.watcher().close();
+        return true;
+    }
 
-        // 2. Limpiar la fila de totales (queda vacía la original)
-        clearRow(totalsRow);
+    // Al apagar la aplicación se convierte lo que estaba esperando su lote
+    @PreDestroy
+    void shutdownWatch() {
+        try {
+            stopWatching();
+        } catch (IOException ex) {
+            System.out.println("Vigilancia: error al detenerla: " + ex.getMessage());
+        }
+    }
 
-        // 3. Usar la fila original de totales como nueva fila de datos
-        Row newRow = totalsRow;
+    @Override
+    public synchronized Optional<WatchStatus> watchStatus() {
+        if (watch == null) {
+            return Optional.empty();
+        }
+        InvoiceFolderWatcher watcher = watch.watcher();
+        return Optional.of(new WatchStatus(watch.xmlDirectoryPath(), watch.outputExcelPath(), watcher.batches(),
+                watcher.inserted(), watcher.lastError()));
+    }
 
-        // Fila anterior a la fila nueva (para copiar estilo)
-        Row styleSource = sheet.getRow(newRowIndex - 1);
+    private record ActiveWatch(String xmlDirectoryPath, String outputExcelPath, InvoiceFolderWatcher watcher) {
+    }
 
-        // Llenar la fila con los datos
-        rowFiller.accept(newRow);
+    @Override
+    public InvoiceWriter openWriter(String outputExcelPath) throws Exception {
+        File excelFile = new File(outputExcelPath);
+        // el pipeline escribe mientras descarga: el Excel queda reservado hasta cerrar el writer
+        Semaphore slot = acquireWriter(excelFile);
+        try {
+            WorkbookSession session = new WorkbookSession(excelFile, prepareWorkbook(excelFile).manifest(), false);
+            session.writerSlot = slot;
+            return session;
+        } catch (Exception ex) {
+            slot.release();
+            throw ex;
+        }
+    }
 
-        // Copiar estilos
-        if (styleSource != null) {
-            for (int c = 0; c <= lastTableCol; c++) {
-                Cell src = styleSource.getCell(c);
-                Cell dst = newRow.getCell(c);
-                if (src != null && dst != null) {
-                    dst.setCellStyle(src.getCellStyle());
+    /**
+     * Compila el mapeo y carga el registro de proveedores al arrancar: un archivo
+     * con errores se reporta antes de la primera conversión.
+     */
+    @PostConstruct
+    void loadConfiguration() throws IOException {
+        mapping();
+        supplierRegistry();
+    }
+
+    /** Mapeo compilado; como el registro, no usa el lock del servicio. */
+    private InvoiceMapping mapping() throws IOException {
+        InvoiceMapping compiled = mapping;
+        if (compiled == null) {
+            synchronized (mappingLock) {
+                if (mapping == null) {
+                    mapping = InvoiceMapping.load(mappingFile);
                 }
+                compiled = mapping;
             }
         }
+        return compiled;
+    }
 
-        // Expandir la tabla evitando incluir la fila de totales
-        AreaReference newArea = new AreaReference(
-                start,
-                new CellReference(newRowIndex, lastTableCol),
-                sheet.getWorkbook().getSpreadsheetVersion());
-
-        // ⬅️ OBLIGATORIO: actualizar área de la tabla
-        table.setArea(newArea);
+    /**
+     * Registro compartido por todas las sesiones, o null si está desactivado. Usa
+     * su propio lock: las sesiones se abren también en el hilo de la vigilancia.
+     */
+    private SupplierRegistry supplierRegistry() throws IOException {
+        if (suppliersFile == null || suppliersFile.isBlank()) {
+            return null;
+        }
+        SupplierRegistry registry = suppliers;
+        if (registry == null) {
+            synchronized (suppliersLock) {
+                if (suppliers == null) {
+                    suppliers = SupplierRegistry.load(Path.of(suppliersFile), suppliersCacheSize);
+                }
+                registry = suppliers;
+            }
+        }
+        return registry;
+    }
 
-        // --- asegurar AutoFilter dentro de CTTable ---
-        org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTable ctTable = table.getCTTable();
-        String ref = newArea.formatAsString();
+    // manifest es null si está desactivado
+    private record PreparedWorkbook(boolean fresh, ConversionManifest manifest) {
+    }
 
-        if (ctTable.getAutoFilter() == null) {
-            ctTable.addNewAutoFilter();
+    /**
+     * Copia la plantilla si el Excel de salida no existe y carga el manifiesto de
+     * facturas ya escritas en él (si el Excel es nuevo, el manifiesto anterior ya
+     * no aplica).
+     */
+    private PreparedWorkbook prepareWorkbook(File excelFile) throws IOException {
+        boolean freshWorkbook = !excelFile.exists();
+        if (freshWorkbook) {
+            Files.copy(new File(TEMPLATE_PATH).toPath(), excelFile.toPath());
+            // las filas del staging anterior ya no están en este Excel
+            StagingStore.delete(StagingStore.pathFor(excelFile));
         }
+        if (!manifestEnabled) {
+            return new PreparedWorkbook(freshWorkbook, null);
+        }
+        Path manifestPath = ConversionManifest.pathFor(excelFile);
+        return new PreparedWorkbook(freshWorkbook,
+                freshWorkbook ? ConversionManifest.empty(manifestPath) : ConversionManifest.load(manifestPath));
+    }
 
-        ctTable.getAutoFilter().setRef(ref);
-        ctTable.setHeaderRowCount(1);
-
-        // --- actualizar de forma segura el área de la tabla (evitar que Excel quite la
-        // tabla) ---
+    /**
+     * Elige cómo se añaden las filas al libro cargado: lote XSSF o fila por fila.
+     */
+    private TableAppender openAppender(XSSFWorkbook workbook, XSSFSheet sheet, CellStyleRegistry styles,
+            boolean empty) {
+        XSSFTable table = sheet.getTables().get(0); // tu tabla principal
+        if (batchAppend && !empty) {
+            // Totales y geometría de la tabla se resuelven una vez para todo el lote
+            return new TableRowAppender(sheet, table, TOTALS_LABEL, styles);
+        }
+        return new TableAppender() {
+            @Override
+            public Row append(Consumer<Row> rowFiller) {
+                return insertRowInTableOnly(sheet, table, styles, rowFiller);
+            }
 
-        // newArea: AreaReference ya calculada (desde start hasta newEndRow,newEndCol)
-        String newRef = newArea.formatAsString();
+            @Override
+            public void finish() {
+            }
 
-        // 1) actualizar la referencia principal del CTTable
-        ctTable.setRef(newRef);
+            @Override
+            public void write(OutputStream out) throws IOException {
+                workbook.write(out);
+            }
+        };
+    }
 
-        // 2) actualizar AutoFilter dentro del CTTable si existe
+    private InvoiceWriter.Parsed parseReporting(WorkbookSession session, File dir, File xmlFile,
+            ProgressListener progress) throws Exception {
         try {
-            if (ctTable.getAutoFilter() != null) {
-                ctTable.getAutoFilter().setRef(newRef);
+            InvoiceWriter.Parsed parsed = session.parseFile(xmlFile, sourceName(dir, xmlFile));
+            progress.fileParsed();
+            return parsed;
+        } catch (Exception ex) {
+            progress.fileFailed();
+            throw ex;
+        }
+    }
+
+    /**
+     * Libro abierto con su appender, estilos y manifiesto. Lo usan tanto la
+     * conversión de una carpeta como el pipeline que inserta facturas mientras
+     * se descargan.
+     */
+    private final class WorkbookSession implements InvoiceWriter {
+
+        private final File excelFile;
+        private final ConversionManifest manifest;
+        private final XSSFWorkbook workbook; // null en modo streaming
+        private final CellStyleRegistry styles;
+        private final CellStyle dateStyle;
+        private final InvoiceMapping mapping;
+        private final TableAppender appender;
+        private final StagingStore staging; // null si está desactivado
+        private final SupplierRegistry suppliers; // null si está desactivado
+
+        private final RunTimings timings = new RunTimings("Conversión tiempos");
+
+        private int inserted;
+        private int duplicates;
+        private int changed; // factura ya insertada que llegó con otro contenido
+        private Semaphore writerSlot; // reserva del Excel que se libera al cerrar (sesiones de openWriter)
+
+        WorkbookSession(File excelFile, ConversionManifest manifest, boolean empty) throws IOException {
+            this.excelFile = excelFile;
+            this.manifest = manifest;
+            this.mapping = mapping();
+            XSSFWorkbook loaded = null;
+            TableAppender opened = null;
+            try {
+                if ("sxssf".equalsIgnoreCase(outputMode)) {
+                    // La hoja se copia en streaming al guardar: el libro no se carga en memoria
+                    StreamingTableAppender streaming = new StreamingTableAppender(excelFile, mapping.sheetName(),
+                            TOTALS_LABEL);
+                    opened = streaming;
+                    this.styles = streaming.styles();
+                } else {
+                    try (FileInputStream fis = new FileInputStream(excelFile)) {
+                        loaded = new XSSFWorkbook(fis);
+                    }
+                    XSSFSheet sheet = loaded.getSheet(mapping.sheetName());
+                    if (sheet == null) {
+                        throw new IllegalStateException("No existe la hoja: " + mapping.sheetName());
+                    }
+                    // Un único registro de estilos por libro: el estilo de fecha se crea una vez
+                    this.styles = new CellStyleRegistry(loaded.getStylesSource());
+                    opened = openAppender(loaded, sheet, styles, empty);
+                }
+                this.dateStyle = styles.withFormat(mapping.dateFormat(), null);
+                this.suppliers = supplierRegistry();
+                this.staging = stagingEnabled ? StagingStore.open(StagingStore.pathFor(excelFile)) : null;
+            } catch (RuntimeException | IOException ex) {
+                if (opened != null) {
+                    opened.close();
+                }
+                if (loaded != null) {
+                    loaded.close();
+                }
+                throw ex;
             }
-        } catch (Exception ignore) {
-            /* defensivo */ }
+            this.workbook = loaded;
+            this.appender = opened;
+        }
 
-        // 3) garantizar que tableColumns tenga la cuenta y columnas correctas
-        // startCol y colCount ya definidos antes
-        int startCol = start.getCol();
-        int endCol = newArea.getLastCell().getCol();
-        int colCount = endCol - startCol + 1;
+        InvoiceWriter.Parsed parseFile(File xmlFile, String sourceName) throws Exception {
+            if (manifest == null && staging == null) {
+                long start = System.nanoTime();
+                InvoiceRecord factura = parseInvoice(xmlFile);
+                timings.record("parse", parseTimer, System.nanoTime() - start);
+                return new Parsed(sourceName, xmlFile.length(), xmlFile.lastModified(), null, factura);
+            }
+            byte[] content = Files.readAllBytes(xmlFile.toPath());
+            return parse(sourceName, xmlFile.length(), xmlFile.lastModified(), content);
+        }
 
-        // obtener (o crear) el nodo tableColumns de forma compatible
-        org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTableColumns ctCols = ctTable.getTableColumns();
-        if (ctCols == null) {
-            ctCols = ctTable.addNewTableColumns();
+        @Override
+        public Parsed parse(String sourceName, byte[] content) throws Exception {
+            return parse(sourceName, content.length, 0L, content);
         }
 
-        // --- setCount: intentar con long, si no existe, con BigInteger ---
-        try {
-            // intentar método setCount(long)
-            Method setCountLong = ctCols.getClass().getMethod("setCount", long.class);
-            setCountLong.invoke(ctCols, (long) colCount);
-        } catch (NoSuchMethodException nsme) {
-            try {
-                // intentar método setCount(BigInteger)
-                Method setCountBI = ctCols.getClass().getMethod("setCount", BigInteger.class);
-                setCountBI.invoke(ctCols, BigInteger.valueOf(colCount));
-            } catch (Exception e) {
-                throw new RuntimeException("No se pudo invocar setCount en CTTableColumns", e);
+        private Parsed parse(String sourceName, long size, long lastModified, byte[] content) throws Exception {
+            String sha256 = manifest == null ? null : ConversionManifest.sha256(content);
+            if (manifest != null && manifest.containsHash(sha256)) {
+                return new Parsed(sourceName, size, lastModified, sha256, null);
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Error invocando setCount(long) en CTTableColumns", e);
+            long start = System.nanoTime();
+            // con staging se lee la factura completa; la fila sale de la misma pasada
+            InvoiceDetail detail = staging == null ? null
+                    : staxParser.parseDetail(new ByteArrayInputStream(content), sourceName);
+            InvoiceRecord factura = detail != null ? detail.invoice()
+                    : parseInvoice(new ByteArrayInputStream(content), sourceName);
+            timings.record("parse", parseTimer, System.nanoTime() - start);
+            return new Parsed(sourceName, size, lastModified, sha256, factura, detail);
         }
 
-        // eliminar entradas existentes y recrearlas (más seguro que intentar editarlas)
-        while (ctCols.sizeOfTableColumnArray() > 0) {
-            ctCols.removeTableColumn(0);
+        @Override
+        public boolean write(Parsed parsed) throws IOException {
+            // NIT y nombre canónicos antes del manifiesto: la clave NIT + número también se normaliza
+            InvoiceRecord factura = parsed.factura() == null || suppliers == null ? parsed.factura()
+                    : suppliers.canonical(parsed.factura());
+            if (manifest != null) {
+                if (factura == null) {
+                    // Mismo contenido que un XML ya procesado con otro nombre
+                    manifest.recordCopy(parsed.sourceName(), parsed.size(), parsed.lastModified(), parsed.sha256());
+                    duplicates++;
+                    return false;
+                }
+                String knownFile = manifest.fileForInvoice(factura);
+                manifest.record(parsed.sourceName(), parsed.size(), parsed.lastModified(), parsed.sha256(), factura);
+                if (knownFile != null) {
+                    // El hash no estaba registrado: mismo CUFE (o NIT + número) con otro contenido
+                    System.out.println("Factura " + factura.invoiceNumber() + " (" + factura.invoiceKey()
+                            + ") ya está en el libro desde " + knownFile + "; " + parsed.sourceName()
+                            + " trae otro contenido y no se insertó: revise si es una corrección");
+                    changed++;
+                    return false;
+                }
+            }
+            long start = System.nanoTime();
+            appender.append(newRow -> mapping.fill(newRow, factura, dateStyle));
+            if (staging != null && parsed.detail() != null) {
+                InvoiceDetail detail = parsed.detail();
+                if (detail.invoice() != factura) {
+                    detail = new InvoiceDetail(factura, detail.lines(), detail.taxes());
+                }
+                staging.append(detail, parsed.sourceName());
+            }
+            timings.record("insert", insertTimer, System.nanoTime() - start);
+            inserted++;
+            return true;
         }
 
-        // fila de encabezado (asumo que start.getRow() es la fila de headers)
-        Row headerRow = sheet.getRow(start.getRow());
-        for (int i = 0; i < colCount; i++) {
-            org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTableColumn newCol = ctCols.addNewTableColumn();
+        void logCounts(int unchanged) {
+            System.out.println("Conversión: " + inserted + " insertadas, " + duplicates + " duplicadas, "
+                    + changed + " ya insertadas con otro contenido, " + unchanged + " sin cambios");
+        }
 
-            // setId: intentar con long, si no existe, con BigInteger
+        @Override
+        public void commit() throws IOException {
+            long start = System.nanoTime();
+            appender.finish();
+            System.out.println(styles.report());
+            // A un temporal y luego encima del Excel: el modo streaming lee el original
+            // mientras escribe, y un fallo a medias no deja el libro truncado
+            Path target = excelFile.toPath();
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
             try {
-                Method setIdLong = newCol.getClass().getMethod("setId", long.class);
-                setIdLong.invoke(newCol, (long) (i + 1));
-            } catch (NoSuchMethodException nsme) {
-                try {
-                    Method setIdBI = newCol.getClass().getMethod("setId", BigInteger.class);
-                    setIdBI.invoke(newCol, BigInteger.valueOf(i + 1));
-                } catch (Exception e) {
-                    throw new RuntimeException("No se pudo invocar setId en CTTableColumn", e);
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    appender.write(out);
                 }
-            } catch (Exception e) {
-                throw new RuntimeException("Error invocando setId(long) en CTTableColumn", e);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            timings.record("save", saveTimer, System.nanoTime() - start);
+            // El staging sigue al Excel, y el manifiesto se guarda al final: si algo falla
+            // antes, la próxima corrida vuelve a convertir esos XML en lugar de saltarlos
+            if (staging != null) {
+                staging.commit();
+            }
+            if (manifest != null) {
+                manifest.save();
             }
+            if (suppliers != null) {
+                suppliers.save();
+                System.out.println(suppliers.cacheReport());
+            }
+            System.out.println(timings.summary());
+        }
 
-            String headerName = null;
-            if (headerRow != null) {
-                Cell h = headerRow.getCell(startCol + i);
-                if (h != null) {
-                    if (h.getCellType() == CellType.STRING) {
-                        headerName = h.getStringCellValue();
-                    } else {
-                        headerName = h.toString();
+        @Override
+        public void close() throws IOException {
+            try {
+                appender.close();
+            } catch (Exception ex) {
+                throw ex instanceof IOException io ? io : new IOException(ex);
+            } finally {
+                try {
+                    if (staging != null) {
+                        staging.close(); // descarta lo que no llegó a commit
+                    }
+                } finally {
+                    try {
+                        if (workbook != null) {
+                            workbook.close();
+                        }
+                    } finally {
+                        if (writerSlot != null) {
+                            writerSlot.release();
+                            writerSlot = null;
+                        }
                     }
                 }
             }
-            if (headerName == null || headerName.isBlank()) {
-                headerName = "Column" + (i + 1);
-            }
-            newCol.setName(headerName);
         }
-
     }
 
-    private void clearRow(Row row) {
-        for (Cell cell : row) {
-            cell.setBlank();
+    private List<File> listXmlFiles(File dir) throws IOException {
+        List<File> xmlFiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.filter(p -> p.getFileName().toString().toLowerCase().endsWith(".xml") && Files.isRegularFile(p))
+                    .forEach(p -> xmlFiles.add(p.toFile()));
         }
+        xmlFiles.sort(Comparator.comparing(xmlFile -> sourceName(dir, xmlFile)));
+        return xmlFiles;
     }
 
-    private void copyRow(Sheet sheet, Row src, Row dest) {
-        for (int i = 0; i < src.getLastCellNum(); i++) {
-            Cell oldCell = src.getCell(i);
-            if (oldCell != null) {
-                Cell newCell = dest.createCell(i);
-                newCell.setCellStyle(oldCell.getCellStyle());
-
-                switch (oldCell.getCellType()) {
-                    case STRING:
-                        newCell.setCellValue(oldCell.getStringCellValue());
-                        break;
-                    case NUMERIC:
-                        newCell.setCellValue(oldCell.getNumericCellValue());
-                        break;
-                    case BOOLEAN:
-                        newCell.setCellValue(oldCell.getBooleanCellValue());
-                        break;
-                    case FORMULA:
-                        newCell.setCellFormula(oldCell.getCellFormula());
-                        break;
-                    default:
-                        break;
-                }
-            }
-        }
+    /**
+     * Nombre del XML en el manifiesto: su ruta relativa a la carpeta convertida
+     * con '/'. Para los XML sueltos en la raíz es el nombre de siempre.
+     */
+    static String sourceName(File dir, File xmlFile) {
+        return dir.toPath().relativize(xmlFile.toPath()).toString().replace(File.separatorChar, '/');
     }
 
-    private int findTotalsRow(Sheet sheet) {
-        for (Row row : sheet) {
-            for (Cell cell : row) {
-                if (cell.getCellType() == CellType.STRING &&
-                        cell.getStringCellValue().trim().equalsIgnoreCase(TOTALS_LABEL)) {
-                    return row.getRowNum();
-                }
+    private void logThroughput(int invoices, int workers, long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        double rate = seconds > 0 ? invoices / seconds : 0.0;
+        System.out.printf("Conversión: %d facturas en %.2f s (%.1f facturas/s, %d workers%s)%n",
+                invoices, seconds, rate, workers, virtualThreads ? ", hilos virtuales" : "");
+    }
+
+    InvoiceRecord parseInvoice(File xmlFile) throws Exception {
+        if ("dom".equalsIgnoreCase(parserMode)) {
+            try (InputStream in = new FileInputStream(xmlFile)) {
+                return parseWithDom(in);
             }
         }
-        return -1;
+        return staxParser.parse(xmlFile);
     }
 
-    private CellStyle getDateStyle(Workbook workbook) {
-        CreationHelper creationHelper = workbook.getCreationHelper();
-        CellStyle dateStyle = workbook.createCellStyle();
-        dateStyle.setDataFormat(creationHelper.createDataFormat().getFormat("d/MM/yyyy"));
-        return dateStyle;
+    InvoiceRecord parseInvoice(InputStream xml, String sourceName) throws Exception {
+        if ("dom".equalsIgnoreCase(parserMode)) {
+            return parseWithDom(xml);
+        }
+        return staxParser.parse(xml, sourceName);
     }
 
-    private void writeDateCell(Row row, int colIndex, String dateStr, CellStyle style) {
-        try {
-            // convertir yyyy-MM-dd → java.util.Date
-            java.util.Date date = java.sql.Date.valueOf(dateStr);
+    private InvoiceRecord parseWithDom(InputStream xml) throws Exception {
+        // Parsear el XML
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(xml);
+
+        // Extraer el CDATA de la factura
+        String facturaXml = doc.getElementsByTagName("cbc:Description").item(0).getTextContent();
+
+        // Parsear el XML de la factura interna
+        Document facturaDoc = builder.parse(new ByteArrayInputStream(facturaXml.getBytes(StandardCharsets.UTF_8)));
+
+        // --- Datos del proveedor ---
+        String nitProveedor = facturaDoc.getElementsByTagName("cbc:CompanyID").item(0).getTextContent();
+        String razonSocialProveedor = facturaDoc.getElementsByTagName("cbc:RegistrationName").item(0).getTextContent();
+
+        // --- Datos de la factura ---
+        String numeroFactura = facturaDoc.getElementsByTagName("cbc:ID").item(0).getTextContent();
+        NodeList uuids = facturaDoc.getElementsByTagName("cbc:UUID");
+        String cufe = uuids.getLength() > 0 ? uuids.item(0).getTextContent() : null;
+        String fecha = facturaDoc.getElementsByTagName("cbc:IssueDate").item(0).getTextContent();
+        NodeList ciius = facturaDoc.getElementsByTagName("cbc:IndustryClasificationCode");
+        String ciiu = ciius.getLength() > 0 ? ciius.item(0).getTextContent() : null;
 
-            Cell cell = row.createCell(colIndex);
-            cell.setCellValue(date);
+        // --- rete ica y rete fuente ---
+        NodeList retenciones = facturaDoc.getElementsByTagName("cac:WithholdingTaxTotal");
+        Money retFuente = Money.ZERO;
+        Money retIca = Money.ZERO;
 
-            if (style != null) {
-                cell.setCellStyle(style);
+        for (int i = 0; i < retenciones.getLength(); i++) {
+            Element ret = (Element) retenciones.item(i);
+            if (ret.getParentNode() != facturaDoc.getDocumentElement()) {
+                continue; // retención de una línea: la fila lleva las de la factura, como la ruta StAX
             }
+            String valor = ret.getElementsByTagName("cbc:TaxAmount").item(0).getTextContent();
+
+            Element scheme = (Element) ret.getElementsByTagName("cac:TaxScheme").item(0);
+            String nombre = scheme.getElementsByTagName("cbc:Name").item(0).getTextContent();
 
-        } catch (Exception e) {
-            // Si ocurre algo, escribe como texto
-            Cell cell = row.createCell(colIndex);
-            cell.setCellValue(dateStr);
+            if (nombre.toUpperCase().contains("RENTA")) {
+                retFuente = Money.parse(valor);
+            } else if (nombre.toUpperCase().contains("ICA")) {
+                retIca = Money.parse(valor);
+            }
         }
+
+        // --- Base imponible ---
+        Money baseImponible = Money
+                .parse(facturaDoc.getElementsByTagName("cbc:LineExtensionAmount").item(0).getTextContent());
+
+        // --- Valor total ---
+        String valorTotal = facturaDoc.getElementsByTagName("cbc:PayableAmount").item(0).getTextContent();
+
+        return new InvoiceRecord(razonSocialProveedor, nitProveedor, numeroFactura, cufe, fecha,
+                Money.parse(valorTotal), baseImponible, retFuente, retIca, ciiu);
+    }
+
+    /**
+     * Inserta una sola fila antes de TOTALES. Equivale a un lote de una fila.
+     */
+    Row insertRowInTableOnly(
+            XSSFSheet sheet,
+            XSSFTable table,
+            CellStyleRegistry styles,
+            Consumer<Row> rowFiller) {
+        TableRowAppender appender = new TableRowAppender(sheet, table, TOTALS_LABEL, styles);
+        Row newRow = appender.append(rowFiller);
+        appender.finish();
+        return newRow;
     }
 
 }
\ No newline at end of file
@@ -1,5 +1,41 @@
 package com.construmedicis.taxreturn.conversion.services;
 
+import com.construmedicis.taxreturn.conversion.models.WatchStatus;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+
+import java.io.IOException;
+import java.util.Optional;
+
 public interface IConversionService {
-    void convertInvoices(String xmlDirectoryPath, String outputExcelPath) throws Exception;
+    default void convertInvoices(String xmlDirectoryPath, String outputExcelPath) throws Exception {
+        convertInvoices(xmlDirectoryPath, outputExcelPath, ProgressListener.NONE);
+    }
+
+    void convertInvoices(String xmlDirectoryPath, String outputExcelPath, ProgressListener progress)
+            throws Exception;
+
+    /**
+     * Abre el Excel de salida (copiando la plantilla si no existe) para insertar
+     * facturas a medida que llegan.
+     */
+    InvoiceWriter openWriter(String outputExcelPath) throws Exception;
+
+    /**
+     * Totales por NIT y mes y por concepto de retención y mes, calculados sobre
+     * el almacén de staging del Excel (sin abrir el Excel ni releer XML). Se
+     * escriben en {@code summaryPath}: un .xlsx aparte o CSV.
+     */
+    void summarize(String outputExcelPath, String summaryPath) throws Exception;
+
+    /**
+     * Vigila la carpeta de XML y va insertando en el Excel, por lotes, los que
+     * lleguen o cambien. Primero convierte lo que ya está en la carpeta y no
+     * figura en el manifiesto. Sólo puede haber una carpeta vigilada a la vez.
+     */
+    void startWatching(String xmlDirectoryPath, String outputExcelPath) throws Exception;
+
+    /** Detiene la vigilancia; devuelve false si no había ninguna activa. */
+    boolean stopWatching() throws IOException;
+
+    Optional<WatchStatus> watchStatus();
 }
@@ -0,0 +1,247 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Vigila una carpeta de XML (y sus subcarpetas, donde la extracción deja cada
+ * mensaje) y entrega los archivos nuevos o modificados en lotes.
+ *
+ * Una descarga deja caer decenas de XML en pocos segundos y cada uno genera
+ * varios eventos mientras se escribe; por eso el lote sale cuando la carpeta
+ * lleva {@code debounceMs} sin eventos, y no por cada archivo. Si los eventos
+ * no paran, sale igual al cumplir {@code maxDelayMs} desde el primero o al
+ * juntar {@code maxBatch} archivos. Cada lote es una sola apertura y un solo
+ * guardado del Excel.
+ *
+ * Si un lote falla (por ejemplo, el Excel está abierto y no se puede guardar)
+ * sus archivos siguen pendientes y se reintentan con una espera que se duplica
+ * en cada fallo seguido, hasta {@code maxDelayMs}.
+ *
+ * Todo corre en un único hilo: los lotes nunca se solapan.
+ */
+class InvoiceFolderWatcher implements Closeable {
+
+    @FunctionalInterface
+    interface BatchHandler {
+        /** Convierte el lote y devuelve cuántas facturas se insertaron. */
+        int convert(List<File> xmlFiles) throws Exception;
+    }
+
+    private final Path dir;
+    private final long debounceNanos;
+    private final long maxDelayNanos;
+    private final int maxBatch;
+    private final BatchHandler handler;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    // sólo los toca el hilo del watcher
+    private final Set<Path> pending = new LinkedHashSet<>();
+    private long firstEventNanos;
+    private long lastEventNanos;
+    private long retryAtNanos; // tras un lote fallido, no se reintenta antes
+    private long retryDelayNanos;
+
+    private volatile boolean running = true;
+    private volatile long batches;
+    private volatile long inserted;
+    private volatile String lastError;
+
+    InvoiceFolderWatcher(Path dir, long debounceMs, long maxDelayMs, int maxBatch, BatchHandler handler)
+            throws IOException {
+        this.dir = dir.toAbsolutePath().normalize();
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMs);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMs, maxDelayMs));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.handler = handler;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::run, "xml-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Registra la carpeta y empieza a vigilar. Con {@code catchUp} los XML que
+     * ya están en la carpeta forman el primer lote.
+     */
+    void start(boolean catchUp) throws IOException {
+        try {
+            registerTree(dir, catchUp);
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        thread.start();
+    }
+
+    long batches() {
+        return batches;
+    }
+
+    long inserted() {
+        return inserted;
+    }
+
+    String lastError() {
+        return lastError;
+    }
+
+    /**
+     * Deja de vigilar. Los archivos que estaban esperando su lote se convierten
+     * antes de volver, para que no queden fuera del Excel.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        watchService.close();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        System.out.println("Vigilancia: observando " + dir);
+        try {
+            while (running) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long wait = flushAtNanos() - System.nanoTime();
+                    key = wait > 0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : watchService.poll();
+                }
+                if (key != null) {
+                    handle(key);
+                }
+                long now = System.nanoTime();
+                if (!pending.isEmpty() && (retryDelayNanos == 0 || now - retryAtNanos >= 0)
+                        && (pending.size() >= maxBatch || now >= flushAtNanos())) {
+                    flush();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            // close(): se sale del bucle
+        } catch (IOException | RuntimeException ex) {
+            lastError = ex.getMessage();
+            System.out.println("Vigilancia: se detuvo por un error: " + ex.getMessage());
+        } finally {
+            flush();
+            if (!pending.isEmpty()) {
+                System.out.println("Vigilancia: " + pending.size()
+                        + " XML quedaron sin convertir; entran al volver a vigilar la carpeta");
+            }
+            System.out.println("Vigilancia: detenida (" + batches + " lotes, " + inserted + " facturas)");
+        }
+    }
+
+    private long flushAtNanos() {
+        long due = Math.min(lastEventNanos + debounceNanos, firstEventNanos + maxDelayNanos);
+        return retryDelayNanos == 0 ? due : Math.max(due, retryAtNanos);
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        Path parent = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // se perdieron eventos: se vuelve a mirar todo (el manifiesto descarta lo ya convertido)
+                registerTree(dir, true);
+                continue;
+            }
+            Path path = parent.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(path);
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // carpeta nueva de un mensaje: sus XML pudieron llegar antes de registrarla
+                    try {
+                        registerTree(path, true);
+                    } catch (IOException ex) {
+                        System.out.println("Vigilancia: no se pudo registrar " + path + ": " + ex.getMessage());
+                    }
+                }
+            } else if (isXml(path)) {
+                enqueue(path);
+            }
+        }
+        key.reset();
+    }
+
+    private void registerTree(Path root, boolean enqueueExisting) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                } else if (enqueueExisting && isXml(path)) {
+                    enqueue(path);
+                }
+            }
+        }
+    }
+
+    private void enqueue(Path path) {
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstEventNanos = now;
+        }
+        lastEventNanos = now;
+        pending.add(path);
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<File> batch = new ArrayList<>();
+        for (Path path : pending) {
+            if (Files.isRegularFile(path)) {
+                batch.add(path.toFile());
+            }
+        }
+        List<Path> attempted = new ArrayList<>(pending);
+        pending.clear();
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch.sort(null);
+        try {
+            int added = handler.convert(batch);
+            inserted += added;
+            lastError = null;
+            retryDelayNanos = 0;
+            System.out.println("Vigilancia: lote de " + batch.size() + " XML, " + added + " facturas insertadas");
+        } catch (Exception ex) {
+            // el Excel no se guardó: los XML quedan pendientes para el próximo intento
+            lastError = ex.getMessage();
+            retryDelayNanos = Math.min(maxDelayNanos, retryDelayNanos == 0 ? debounceNanos : retryDelayNanos * 2);
+            retryAtNanos = System.nanoTime() + retryDelayNanos;
+            for (Path path : attempted) {
+                enqueue(path);
+            }
+            System.out.println("Vigilancia: falló el lote de " + batch.size() + " XML, se reintenta en "
+                    + TimeUnit.NANOSECONDS.toMillis(retryDelayNanos) + " ms: " + ex.getMessage());
+        }
+        batches++;
+    }
+
+    private static boolean isXml(Path path) {
+        return path.getFileName().toString().toLowerCase().endsWith(".xml");
+    }
+}
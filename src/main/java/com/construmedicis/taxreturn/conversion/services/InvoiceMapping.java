@@ -0,0 +1,182 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Qué dato de la factura va en cada columna de la hoja de retenciones, en qué
+ * hoja y con qué concepto. Se lee de un archivo .properties (UTF-8) y se
+ * compila una vez: cada columna queda como un {@link CellWriter} que lee su
+ * campo directamente, y el concepto como un {@link ConceptClassifier}. Llenar
+ * una fila no busca nombres ni compara textos.
+ *
+ * <pre>
+ * sheet=RETENCION 2025
+ * date-format=d/MM/yyyy
+ * column.1=cbc:RegistrationName
+ * column.8=concepto
+ * column.9=texto:valor fijo
+ * </pre>
+ *
+ * Las columnas se numeran desde 0 (A). Los datos disponibles son los que lee
+ * el parser: ver {@link #writer}.
+ */
+final class InvoiceMapping {
+
+    /** Mapeo por defecto, el de la plantilla incluida. */
+    static final String DEFAULT_RESOURCE = "/conversion-mapping.properties";
+
+    @FunctionalInterface
+    interface CellWriter {
+        void write(Row row, InvoiceRecord factura, String concept, CellStyle dateStyle);
+    }
+
+    private final String sheetName;
+    private final String dateFormat;
+    private final CellWriter[] writers;
+    private final ConceptClassifier classifier;
+    private final boolean writesConcept;
+
+    private InvoiceMapping(String sheetName, String dateFormat, CellWriter[] writers, ConceptClassifier classifier,
+            boolean writesConcept) {
+        this.sheetName = sheetName;
+        this.dateFormat = dateFormat;
+        this.writers = writers;
+        this.classifier = classifier;
+        this.writesConcept = writesConcept;
+    }
+
+    /** Carga y compila {@code file}, o el mapeo por defecto si está vacío. */
+    static InvoiceMapping load(String file) throws IOException {
+        Properties p = new Properties();
+        if (file == null || file.isBlank()) {
+            try (InputStream in = InvoiceMapping.class.getResourceAsStream(DEFAULT_RESOURCE)) {
+                if (in == null) {
+                    throw new IllegalStateException("No se encontró el mapeo por defecto " + DEFAULT_RESOURCE);
+                }
+                p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+            return compile(p, DEFAULT_RESOURCE);
+        }
+        try (Reader reader = Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+            p.load(reader);
+        }
+        return compile(p, file);
+    }
+
+    static InvoiceMapping compile(Properties p, String source) {
+        String sheet = p.getProperty("sheet", "").trim();
+        if (sheet.isEmpty()) {
+            throw new IllegalArgumentException("Falta sheet (nombre de la hoja) en " + source);
+        }
+        TreeMap<Integer, String> columns = new TreeMap<>();
+        for (String key : p.stringPropertyNames()) {
+            if (key.startsWith("column.")) {
+                String index = key.substring("column.".length());
+                if (index.isEmpty() || index.length() > 4 || !index.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                    throw new IllegalArgumentException("Columna inválida en " + source + ": " + key);
+                }
+                columns.put(Integer.parseInt(index), p.getProperty(key).trim());
+            } else if (!key.equals("sheet") && !key.equals("date-format") && !key.startsWith("concept.")) {
+                throw new IllegalArgumentException("Clave desconocida en " + source + ": " + key);
+            }
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("El mapeo " + source + " no tiene columnas (column.N)");
+        }
+        List<CellWriter> writers = new ArrayList<>();
+        boolean writesConcept = false;
+        for (var column : columns.entrySet()) {
+            writers.add(writer(column.getKey(), column.getValue(), source));
+            writesConcept |= column.getValue().equals("concepto");
+        }
+        return new InvoiceMapping(sheet, p.getProperty("date-format", "d/MM/yyyy").trim(),
+                writers.toArray(new CellWriter[0]), ConceptClassifier.compile(p, source), writesConcept);
+    }
+
+    String sheetName() {
+        return sheetName;
+    }
+
+    String dateFormat() {
+        return dateFormat;
+    }
+
+    String concept(InvoiceRecord factura) {
+        return classifier.classify(factura);
+    }
+
+    void fill(Row row, InvoiceRecord factura, CellStyle dateStyle) {
+        String concept = writesConcept ? classifier.classify(factura) : null;
+        for (CellWriter writer : writers) {
+            writer.write(row, factura, concept, dateStyle);
+        }
+    }
+
+    /**
+     * Escritor de una columna. Los datos se nombran por el elemento del XML de
+     * donde salen; las retenciones por el nombre de su esquema (como en el
+     * parser: RENTA e ICA).
+     */
+    private static CellWriter writer(int col, String source, String origin) {
+        if (source.startsWith("texto:")) {
+            String value = source.substring("texto:".length());
+            return (row, f, concept, dateStyle) -> row.createCell(col).setCellValue(value);
+        }
+        return switch (source) {
+            case "cbc:RegistrationName" -> (row, f, concept, dateStyle) -> text(row, col, f.supplierName());
+            case "cbc:CompanyID" -> (row, f, concept, dateStyle) -> text(row, col, f.supplierNit());
+            case "cbc:IndustryClasificationCode" -> (row, f, concept, dateStyle) -> text(row, col, f.industryCode());
+            case "cbc:ID" -> (row, f, concept, dateStyle) -> text(row, col, f.invoiceNumber());
+            case "cbc:UUID" -> (row, f, concept, dateStyle) -> text(row, col, f.cufe());
+            case "cbc:IssueDate" -> (row, f, concept, dateStyle) -> date(row, col, f.issueDate(), dateStyle);
+            case "cbc:PayableAmount" -> (row, f, concept, dateStyle) -> money(row, col, f.payableAmount());
+            case "cbc:LineExtensionAmount" -> (row, f, concept, dateStyle) -> money(row, col, f.lineExtensionAmount());
+            case "cac:WithholdingTaxTotal/RENTA" -> (row, f, concept, dateStyle) -> money(row, col, f.retFuente());
+            case "cac:WithholdingTaxTotal/ICA" -> (row, f, concept, dateStyle) -> money(row, col, f.retIca());
+            case "concepto" -> (row, f, concept, dateStyle) -> text(row, col, concept);
+            default -> throw new IllegalArgumentException("Dato desconocido en " + origin + ": column." + col + "="
+                    + source + " (use cbc:RegistrationName, cbc:CompanyID, cbc:IndustryClasificationCode, cbc:ID,"
+                    + " cbc:UUID, cbc:IssueDate, cbc:PayableAmount, cbc:LineExtensionAmount,"
+                    + " cac:WithholdingTaxTotal/RENTA, cac:WithholdingTaxTotal/ICA, concepto o texto:<valor>)");
+        };
+    }
+
+    private static void text(Row row, int col, String value) {
+        row.createCell(col).setCellValue(value);
+    }
+
+    private static void money(Row row, int col, Money value) {
+        // Excel guarda doubles: el más cercano al valor exacto, igual que leerlo con Double.parseDouble
+        row.createCell(col).setCellValue(value.doubleValue());
+    }
+
+    private static void date(Row row, int col, String dateStr, CellStyle style) {
+        Cell cell = row.createCell(col);
+        try {
+            // convertir yyyy-MM-dd → java.util.Date
+            cell.setCellValue(java.sql.Date.valueOf(dateStr));
+            if (style != null) {
+                cell.setCellStyle(style);
+            }
+        } catch (Exception e) {
+            // Si ocurre algo, escribe como texto
+            cell.setCellValue(dateStr);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceDetail;
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+
+import java.io.IOException;
+
+/**
+ * Excel de retenciones abierto para ir insertando facturas a medida que llegan,
+ * por ejemplo mientras todavía se descargan adjuntos de Gmail.
+ *
+ * {@link #parse} se puede llamar desde varios hilos a la vez; {@link #write} y
+ * {@link #commit} solo desde el hilo escritor. Si se cierra sin
+ * {@link #commit}, el Excel y el manifiesto quedan como estaban.
+ */
+public interface InvoiceWriter extends AutoCloseable {
+
+    /**
+     * Factura leída de un XML. {@code factura} es null si el mismo contenido ya
+     * estaba registrado en el manifiesto; {@code detail} (líneas e impuestos)
+     * sólo se lee si el almacén de staging está activo.
+     */
+    record Parsed(String sourceName, long size, long lastModified, String sha256, InvoiceRecord factura,
+            InvoiceDetail detail) {
+
+        public Parsed(String sourceName, long size, long lastModified, String sha256, InvoiceRecord factura) {
+            this(sourceName, size, lastModified, sha256, factura, null);
+        }
+    }
+
+    Parsed parse(String sourceName, byte[] content) throws Exception;
+
+    /** Inserta la factura si no estaba ya en el libro; true si se insertó. */
+    boolean write(Parsed parsed) throws IOException;
+
+    /** Ajusta totales y tabla, guarda el Excel y después el manifiesto y el staging. */
+    void commit() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,151 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import java.util.Arrays;
+
+/**
+ * Tabla hash de direccionamiento abierto con clave {@code long} (sin signo:
+ * las claves deben ser mayores o iguales a cero) y {@code width} acumuladores
+ * {@code long} por clave, guardados en arreglos primitivos: sumar un valor
+ * no crea objetos, a diferencia de un {@code Map<String, Double>}. Los
+ * importes se suman en diezmilésimas ({@code Money#units()}), así que las
+ * sumas son exactas; un desbordamiento lanza {@link ArithmeticException} en
+ * lugar de dar la vuelta.
+ *
+ * No es thread-safe: cada hilo suma en su propia tabla y al final se unen con
+ * {@link #merge}.
+ */
+final class LongKeyedSums {
+
+    private static final long EMPTY = -1L;
+
+    private final int width;
+    private long[] keys;
+    private long[] sums;
+    private int mask;
+    private int size;
+
+    LongKeyedSums(int width, int expectedKeys) {
+        this.width = width;
+        int capacity = Integer.highestOneBit(Math.max(16, expectedKeys * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Suma {@code value} en el acumulador {@code column} de la clave. */
+    void add(long key, int column, long value) {
+        int i = slot(key) * width + column; // slot puede reemplazar sums al crecer
+        sums[i] = Math.addExact(sums[i], value);
+    }
+
+    /**
+     * Posición de los acumuladores de la clave (la crea si no existe), para
+     * sumar varias columnas con {@link #addAt} sin buscarla cada vez. Deja de
+     * valer al insertar otra clave.
+     */
+    int row(long key) {
+        return slot(key) * width;
+    }
+
+    void addAt(int row, int column, long value) {
+        sums[row + column] = Math.addExact(sums[row + column], value);
+    }
+
+    long get(long key, int column) {
+        int i = find(key);
+        return i < 0 ? 0L : sums[i * width + column];
+    }
+
+    void merge(LongKeyedSums other) {
+        if (other.width != width) {
+            throw new IllegalArgumentException("No se pueden unir tablas de distinto ancho");
+        }
+        for (int i = 0; i < other.keys.length; i++) {
+            long key = other.keys[i];
+            if (key != EMPTY) {
+                int base = slot(key) * width;
+                for (int c = 0; c < width; c++) {
+                    sums[base + c] = Math.addExact(sums[base + c], other.sums[i * width + c]);
+                }
+            }
+        }
+    }
+
+    /** Claves presentes, ordenadas de menor a mayor. */
+    long[] sortedKeys() {
+        long[] present = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != EMPTY) {
+                present[n++] = key;
+            }
+        }
+        Arrays.sort(present);
+        return present;
+    }
+
+    private int slot(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Clave negativa: " + key);
+        }
+        int i = index(key);
+        while (true) {
+            long current = keys[i];
+            if (current == key) {
+                return i;
+            }
+            if (current == EMPTY) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    return slot(key);
+                }
+                keys[i] = key;
+                size++;
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private int find(long key) {
+        int i = index(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int index(long key) {
+        // mezcla de bits (finalizador de MurmurHash3): las claves empaquetadas se parecen mucho
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldSums = sums;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int base = slot(oldKeys[i]) * width;
+                System.arraycopy(oldSums, i * width, sums, base, width);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        sums = new long[capacity * width];
+        mask = capacity - 1;
+        size = 0;
+    }
+}
@@ -0,0 +1,105 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Etapa de parseo en paralelo con un único escritor.
+ *
+ * Los workers parsean los XML en paralelo, pero el hilo que llama a
+ * {@link #run} es el único que entrega resultados al escritor, y lo hace en el
+ * mismo orden de la lista de archivos. Así el libro de Excel nunca se toca
+ * desde otro hilo y la salida es idéntica a la del modo secuencial. Se
+ * mantiene una ventana acotada de tareas en vuelo para que la memoria no crezca
+ * con el número de archivos.
+ */
+class ParallelParseStage<T> {
+
+    @FunctionalInterface
+    interface Parser<T> {
+        T parse(File file) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface Writer<T> {
+        void write(File file, T parsed) throws Exception;
+    }
+
+    private static final int WINDOW_PER_WORKER = 4;
+
+    private final int parallelism;
+    private final boolean virtualThreads;
+
+    ParallelParseStage(int parallelism, boolean virtualThreads) {
+        this.parallelism = parallelism;
+        this.virtualThreads = virtualThreads;
+    }
+
+    void run(List<File> files, Parser<T> parser, Writer<T> writer) throws Exception {
+        if (parallelism <= 1 || files.size() <= 1) {
+            for (File file : files) {
+                writer.write(file, parser.parse(file));
+            }
+            return;
+        }
+
+        ExecutorService executor = newExecutor();
+        Deque<Future<T>> inFlight = new ArrayDeque<>();
+        int window = parallelism * WINDOW_PER_WORKER;
+        int next = 0;
+        int written = 0;
+
+        try {
+            while (written < files.size()) {
+                // Rellenar la ventana de tareas en vuelo
+                while (next < files.size() && inFlight.size() < window) {
+                    File file = files.get(next++);
+                    inFlight.addLast(executor.submit(() -> parser.parse(file)));
+                }
+
+                // Entregar al escritor el siguiente resultado en orden
+                T parsed = await(inFlight.removeFirst());
+                writer.write(files.get(written), parsed);
+                written++;
+            }
+        } finally {
+            for (Future<T> pending : inFlight) {
+                pending.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        if (virtualThreads) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "xml-parser-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newFixedThreadPool(parallelism, factory);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception ex) {
+                throw ex;
+            }
+            throw ee;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.Money;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Totales de retenciones que los contadores armaban a mano con tablas
+ * dinámicas sobre la hoja de detalle:
+ *
+ * <ul>
+ * <li>por NIT del proveedor y mes: facturas, base imponible, retefuente y
+ * reteICA (de la tabla de facturas del staging);</li>
+ * <li>por concepto de retención (cac:WithholdingTaxTotal, p. ej. ReteRenta,
+ * ReteIVA) y mes: base y valor retenido (de la tabla de impuestos).</li>
+ * </ul>
+ *
+ * Las claves se empaquetan en un {@code long} (índice de diccionario del NIT
+ * o del concepto en los 32 bits altos, mes en los bajos) y se suman en
+ * {@link LongKeyedSums}. Los importes se suman en diezmilésimas exactas, así
+ * que el total no depende del orden ni del número de workers. Cada worker
+ * recorre un tramo de las columnas mapeadas y suma en sus propias tablas; al
+ * final se unen.
+ */
+final class RetentionSummary {
+
+    // acumuladores por NIT y mes
+    static final int INVOICES = 0;
+    static final int BASE = 1;
+    static final int RET_FUENTE = 2;
+    static final int RET_ICA = 3;
+    // acumuladores por concepto y mes
+    static final int ENTRIES = 0;
+    static final int TAXABLE = 1;
+    static final int AMOUNT = 2;
+
+    private static final int MIN_ROWS_PER_WORKER = 50_000;
+    private static final String NUMBER_FORMAT = "#,##0.00";
+
+    private final StagingStore store;
+    private final LongKeyedSums bySupplier;
+    private final LongKeyedSums byConcept;
+    private final int[] supplierNames; // índice del NIT -> índice de la razón social
+
+    private RetentionSummary(StagingStore store, LongKeyedSums bySupplier, LongKeyedSums byConcept,
+            int[] supplierNames) {
+        this.store = store;
+        this.bySupplier = bySupplier;
+        this.byConcept = byConcept;
+        this.supplierNames = supplierNames;
+    }
+
+    static RetentionSummary compute(StagingStore store, int parallelism) throws Exception {
+        return compute(store, parallelism, MIN_ROWS_PER_WORKER);
+    }
+
+    static RetentionSummary compute(StagingStore store, int parallelism, int minRowsPerWorker) throws Exception {
+        StagingStore.Scan invoices = store.scan(StagingStore.Table.INVOICES);
+        StagingStore.Scan taxes = store.scan(StagingStore.Table.TAXES);
+        Columns columns = new Columns(invoices, taxes);
+        int dictionary = store.stringCount();
+
+        int rows = Math.max(invoices.rows(), taxes.rows());
+        int workers = Math.max(1, Math.min(parallelism, rows / minRowsPerWorker));
+        if (workers == 1) {
+            Partial all = new Partial(dictionary);
+            all.scan(columns, 0, invoices.rows(), 0, taxes.rows());
+            return new RetentionSummary(store, all.bySupplier, all.byConcept, all.supplierNames);
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "summary-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Partial>> tasks = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                int part = w;
+                tasks.add(executor.submit(() -> {
+                    Partial partial = new Partial(dictionary);
+                    partial.scan(columns,
+                            split(invoices.rows(), part, workers), split(invoices.rows(), part + 1, workers),
+                            split(taxes.rows(), part, workers), split(taxes.rows(), part + 1, workers));
+                    return partial;
+                }));
+            }
+            Partial merged = await(tasks.get(0));
+            for (int w = 1; w < workers; w++) {
+                merged.merge(await(tasks.get(w)));
+            }
+            return new RetentionSummary(store, merged.bySupplier, merged.byConcept, merged.supplierNames);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    int supplierRows() {
+        return bySupplier.size();
+    }
+
+    int conceptRows() {
+        return byConcept.size();
+    }
+
+    /** Clave por NIT (índice de diccionario, NULL_STRING incluido) y mes. */
+    static long key(int stringId, long month) {
+        return ((long) (stringId + 1) << 32) | month;
+    }
+
+    /**
+     * Acumulador de un NIT y mes: número de facturas para {@link #INVOICES},
+     * diezmilésimas ({@link Money#ofUnits}) para los importes.
+     */
+    long supplierTotal(String nit, long month, int column) {
+        return bySupplier.get(key(store.stringId(nit), month), column);
+    }
+
+    /** Como {@link #supplierTotal}, para {@link #ENTRIES} y los importes por concepto. */
+    long conceptTotal(String concept, long month, int column) {
+        return byConcept.get(key(store.stringId(concept), month), column);
+    }
+
+    /** Mes como {@code año * 12 + mes} (1..12), o 0 si la factura no tenía fecha válida. */
+    static long month(long epochDay) {
+        if (epochDay == StagingStore.NO_DATE) {
+            return 0;
+        }
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return date.getYear() * 12L + date.getMonthValue();
+    }
+
+    static String monthLabel(long month) {
+        if (month == 0) {
+            return "SIN FECHA";
+        }
+        long year = (month - 1) / 12;
+        long monthOfYear = month - year * 12;
+        return String.format("%d-%02d", year, monthOfYear);
+    }
+
+    /**
+     * Escribe el resumen: un .xlsx con las hojas "RESUMEN NIT" y "RESUMEN
+     * CONCEPTO", o, con cualquier otra extensión, dos CSV ({@code path} y
+     * {@code <nombre>-conceptos.csv} junto a él).
+     */
+    void write(Path path) throws IOException {
+        if (path.getFileName().toString().toLowerCase().endsWith(".xlsx")) {
+            writeExcel(path);
+        } else {
+            writeCsv(path, conceptsPath(path));
+        }
+    }
+
+    static Path conceptsPath(Path csv) {
+        String name = csv.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return csv.resolveSibling(base + "-conceptos" + (dot > 0 ? name.substring(dot) : ".csv"));
+    }
+
+    private void writeExcel(Path path) throws IOException {
+        try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+            CellStyle header = workbook.createCellStyle();
+            Font bold = workbook.createFont();
+            bold.setBold(true);
+            header.setFont(bold);
+            CellStyle number = workbook.createCellStyle();
+            number.setDataFormat(workbook.createDataFormat().getFormat(NUMBER_FORMAT));
+
+            Sheet suppliers = workbook.createSheet("RESUMEN NIT");
+            headerRow(suppliers, header, "NIT", "RAZON SOCIAL", "MES", "FACTURAS", "BASE IMPONIBLE", "RETEFUENTE",
+                    "RETEICA");
+            long[] totals = new long[4];
+            int r = 1;
+            for (long key : supplierKeys()) {
+                Row row = suppliers.createRow(r++);
+                int nit = stringId(key);
+                row.createCell(0).setCellValue(text(nit));
+                row.createCell(1).setCellValue(text(nit < 0 ? StagingStore.NULL_STRING : supplierNames[nit]));
+                row.createCell(2).setCellValue(monthLabel(keyMonth(key)));
+                for (int c = INVOICES; c <= RET_ICA; c++) {
+                    long value = bySupplier.get(key, c);
+                    totals[c] = Math.addExact(totals[c], value);
+                    numberCell(row, 3 + c, value, c == INVOICES ? null : number);
+                }
+            }
+            Row totalRow = suppliers.createRow(r);
+            totalRow.createCell(0).setCellValue("TOTALES");
+            for (int c = INVOICES; c <= RET_ICA; c++) {
+                numberCell(totalRow, 3 + c, totals[c], c == INVOICES ? null : number);
+            }
+
+            Sheet concepts = workbook.createSheet("RESUMEN CONCEPTO");
+            headerRow(concepts, header, "CONCEPTO", "MES", "REGISTROS", "BASE", "VALOR RETENIDO");
+            r = 1;
+            for (long key : conceptKeys()) {
+                Row row = concepts.createRow(r++);
+                row.createCell(0).setCellValue(text(stringId(key)));
+                row.createCell(1).setCellValue(monthLabel(keyMonth(key)));
+                for (int c = ENTRIES; c <= AMOUNT; c++) {
+                    numberCell(row, 2 + c, byConcept.get(key, c), c == ENTRIES ? null : number);
+                }
+            }
+
+            for (int c = 0; c < 7; c++) {
+                suppliers.setColumnWidth(c, c == 1 ? 40 * 256 : 16 * 256);
+            }
+            for (int c = 0; c < 5; c++) {
+                concepts.setColumnWidth(c, c == 0 ? 30 * 256 : 16 * 256);
+            }
+            try (OutputStream out = Files.newOutputStream(path)) {
+                workbook.write(out);
+            }
+        }
+    }
+
+    private void writeCsv(Path suppliersPath, Path conceptsPath) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(suppliersPath, StandardCharsets.UTF_8)) {
+            out.write("nit,razon_social,mes,facturas,base_imponible,retefuente,reteica");
+            out.newLine();
+            for (long key : supplierKeys()) {
+                int nit = stringId(key);
+                out.write(csv(text(nit)) + "," + csv(text(nit < 0 ? StagingStore.NULL_STRING : supplierNames[nit]))
+                        + "," + monthLabel(keyMonth(key)) + "," + bySupplier.get(key, INVOICES)
+                        + "," + amount(bySupplier.get(key, BASE)) + "," + amount(bySupplier.get(key, RET_FUENTE))
+                        + "," + amount(bySupplier.get(key, RET_ICA)));
+                out.newLine();
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(conceptsPath, StandardCharsets.UTF_8)) {
+            out.write("concepto,mes,registros,base,valor_retenido");
+            out.newLine();
+            for (long key : conceptKeys()) {
+                out.write(csv(text(stringId(key))) + "," + monthLabel(keyMonth(key)) + ","
+                        + byConcept.get(key, ENTRIES) + "," + amount(byConcept.get(key, TAXABLE)) + ","
+                        + amount(byConcept.get(key, AMOUNT)));
+                out.newLine();
+            }
+        }
+    }
+
+    /** Claves por NIT en orden alfabético de NIT y luego por mes. */
+    private long[] supplierKeys() {
+        return sortedByText(bySupplier.sortedKeys());
+    }
+
+    private long[] conceptKeys() {
+        return sortedByText(byConcept.sortedKeys());
+    }
+
+    /**
+     * Reordena claves (ya ordenadas por índice de diccionario y mes) según el
+     * texto del índice. Sólo se ordenan los textos distintos, no las filas.
+     */
+    private long[] sortedByText(long[] keys) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+                ids.add(stringId(keys[i]));
+            }
+        }
+        ids.sort(Comparator.comparing(id -> text(id), Comparator.nullsFirst(Comparator.naturalOrder())));
+        int[] rank = new int[store.stringCount() + 1];
+        for (int i = 0; i < ids.size(); i++) {
+            rank[ids.get(i) + 1] = i;
+        }
+        long[] ranked = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ranked[i] = ((long) rank[stringId(keys[i]) + 1] << 32) | keyMonth(keys[i]);
+        }
+        Arrays.sort(ranked);
+        for (int i = 0; i < ranked.length; i++) {
+            ranked[i] = key(ids.get((int) (ranked[i] >>> 32)), keyMonth(ranked[i]));
+        }
+        return ranked;
+    }
+
+    private String text(int stringId) {
+        return stringId < 0 ? "" : store.string(stringId);
+    }
+
+    private static int stringId(long key) {
+        return (int) (key >>> 32) - 1;
+    }
+
+    private static long keyMonth(long key) {
+        return key & 0xFFFF_FFFFL;
+    }
+
+    private static void headerRow(Sheet sheet, CellStyle style, String... titles) {
+        Row row = sheet.createRow(0);
+        for (int c = 0; c < titles.length; c++) {
+            Cell cell = row.createCell(c);
+            cell.setCellValue(titles[c]);
+            cell.setCellStyle(style);
+        }
+    }
+
+    /** Sin estilo es un conteo; con estilo, un importe en diezmilésimas. */
+    private static void numberCell(Row row, int column, long value, CellStyle style) {
+        Cell cell = row.createCell(column);
+        if (style != null) {
+            cell.setCellValue(Money.ofUnits(value).doubleValue());
+            cell.setCellStyle(style);
+        } else {
+            cell.setCellValue(value);
+        }
+    }
+
+    /** Importe exacto con al menos dos decimales, p. ej. {@code 1234.50} o {@code 9.6625}. */
+    private static String amount(long units) {
+        BigDecimal value = Money.ofUnits(units).toBigDecimal().stripTrailingZeros();
+        return value.setScale(Math.max(2, value.scale())).toPlainString();
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static int split(int rows, int part, int parts) {
+        return (int) ((long) rows * part / parts);
+    }
+
+    private static Partial await(Future<Partial> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception ex) {
+                throw ex;
+            }
+            throw ee;
+        }
+    }
+
+    /** Columnas mapeadas que leen todos los workers (sólo lecturas absolutas). */
+    private static final class Columns {
+        final StagingStore.LongColumn nit;
+        final StagingStore.LongColumn name;
+        final StagingStore.LongColumn issueDate;
+        final StagingStore.LongColumn base;
+        final StagingStore.LongColumn retFuente;
+        final StagingStore.LongColumn retIca;
+        final StagingStore.LongColumn taxInvoice;
+        final StagingStore.LongColumn withholding;
+        final StagingStore.LongColumn schemeId;
+        final StagingStore.LongColumn schemeName;
+        final StagingStore.LongColumn taxable;
+        final StagingStore.LongColumn amount;
+
+        Columns(StagingStore.Scan invoices, StagingStore.Scan taxes) throws IOException {
+            nit = invoices.strings("supplierNit");
+            name = invoices.strings("supplierName");
+            issueDate = invoices.longs("issueDate");
+            base = invoices.money("lineExtension");
+            retFuente = invoices.money("retFuente");
+            retIca = invoices.money("retIca");
+            taxInvoice = taxes.longs("invoice");
+            withholding = taxes.longs("withholding");
+            schemeId = taxes.strings("schemeId");
+            schemeName = taxes.strings("schemeName");
+            taxable = taxes.money("taxable");
+            amount = taxes.money("amount");
+        }
+    }
+
+    /** Sumas de un tramo de filas. */
+    private static final class Partial {
+        final LongKeyedSums bySupplier = new LongKeyedSums(4, 1024);
+        final LongKeyedSums byConcept = new LongKeyedSums(3, 64);
+        final int[] supplierNames;
+
+        Partial(int dictionary) {
+            supplierNames = new int[dictionary];
+            Arrays.fill(supplierNames, StagingStore.NULL_STRING);
+        }
+
+        void scan(Columns c, int invoiceFrom, int invoiceTo, int taxFrom, int taxTo) {
+            for (int row = invoiceFrom; row < invoiceTo; row++) {
+                int nit = (int) c.nit.get(row);
+                if (nit >= 0) {
+                    supplierNames[nit] = (int) c.name.get(row);
+                }
+                int slot = bySupplier.row(key(nit, month(c.issueDate.get(row))));
+                bySupplier.addAt(slot, INVOICES, 1);
+                bySupplier.addAt(slot, BASE, c.base.get(row));
+                bySupplier.addAt(slot, RET_FUENTE, c.retFuente.get(row));
+                bySupplier.addAt(slot, RET_ICA, c.retIca.get(row));
+            }
+            for (int row = taxFrom; row < taxTo; row++) {
+                if (c.withholding.get(row) == 0) {
+                    continue;
+                }
+                int concept = (int) c.schemeName.get(row);
+                if (concept < 0) {
+                    concept = (int) c.schemeId.get(row);
+                }
+                long month = month(c.issueDate.get((int) c.taxInvoice.get(row)));
+                int slot = byConcept.row(key(concept, month));
+                byConcept.addAt(slot, ENTRIES, 1);
+                byConcept.addAt(slot, TAXABLE, c.taxable.get(row));
+                byConcept.addAt(slot, AMOUNT, c.amount.get(row));
+            }
+        }
+
+        void merge(Partial other) {
+            bySupplier.merge(other.bySupplier);
+            byConcept.merge(other.byConcept);
+            for (int i = 0; i < supplierNames.length; i++) {
+                if (supplierNames[i] == StagingStore.NULL_STRING) {
+                    supplierNames[i] = other.supplierNames[i];
+                }
+            }
+        }
+    }
+}
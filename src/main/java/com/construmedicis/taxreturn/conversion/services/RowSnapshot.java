@@ -0,0 +1,94 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+
+/**
+ * Copia en memoria de una fila (estilo, tipo y valor por columna) para poder
+ * volver a escribirla en otra posición, incluso en otra vista del libro como
+ * SXSSF.
+ */
+class RowSnapshot {
+
+    private final int rowIndex;
+    private final CellStyle[] styles;
+    private final CellType[] types;
+    private final Object[] values;
+
+    RowSnapshot(Row row) {
+        this.rowIndex = row.getRowNum();
+        int width = Math.max(row.getLastCellNum(), 0);
+        this.styles = new CellStyle[width];
+        this.types = new CellType[width];
+        this.values = new Object[width];
+
+        for (int i = 0; i < width; i++) {
+            Cell cell = row.getCell(i);
+            if (cell == null) {
+                continue;
+            }
+            styles[i] = cell.getCellStyle();
+            types[i] = cell.getCellType();
+            switch (cell.getCellType()) {
+                case STRING:
+                    values[i] = cell.getStringCellValue();
+                    break;
+                case NUMERIC:
+                    values[i] = cell.getNumericCellValue();
+                    break;
+                case BOOLEAN:
+                    values[i] = cell.getBooleanCellValue();
+                    break;
+                case FORMULA:
+                    values[i] = cell.getCellFormula();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    int getRowIndex() {
+        return rowIndex;
+    }
+
+    /**
+     * Crea en {@code dest} las mismas celdas, vacías, conservando sólo el estilo.
+     */
+    void writeBlankTo(Row dest) {
+        for (int c = 0; c < styles.length; c++) {
+            if (types[c] != null) {
+                dest.createCell(c).setCellStyle(styles[c]);
+            }
+        }
+    }
+
+    void writeTo(Row dest) {
+        for (int i = 0; i < styles.length; i++) {
+            if (types[i] == null) {
+                continue;
+            }
+            Cell newCell = dest.createCell(i);
+            newCell.setCellStyle(styles[i]);
+
+            switch (types[i]) {
+                case STRING:
+                    newCell.setCellValue((String) values[i]);
+                    break;
+                case NUMERIC:
+                    newCell.setCellValue((Double) values[i]);
+                    break;
+                case BOOLEAN:
+                    newCell.setCellValue((Boolean) values[i]);
+                    break;
+                case FORMULA:
+                    newCell.setCellFormula((String) values[i]);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
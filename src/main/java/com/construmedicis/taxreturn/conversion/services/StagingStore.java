@@ -0,0 +1,584 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceDetail;
+import com.construmedicis.taxreturn.conversion.models.InvoiceLineItem;
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import com.construmedicis.taxreturn.conversion.models.TaxEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Almacén columnar de solo-añadir con el detalle de las facturas convertidas
+ * (cabecera, líneas y subtotales de impuestos y retenciones), para volver a
+ * exportar o agregar sin parsear otra vez los XML.
+ *
+ * Cada columna es un archivo de enteros de 8 bytes ({@code <tabla>.<columna>.bin}):
+ * los importes se guardan en diezmilésimas exactas ({@link Money#units()}), las
+ * cantidades y porcentajes como bits de double y los textos como el índice de
+ * un diccionario ({@code strings.txt}), así que NIT, proveedor o impuesto se
+ * guardan una vez y se comparan como números. Las lecturas mapean los archivos
+ * en memoria ({@link Scan}).
+ *
+ * Las filas se acumulan en arreglos primitivos y se vuelcan al disco cada
+ * {@value #SPILL_ROWS} filas, pero sólo cuentan cuando {@link #commit} escribe
+ * {@code store.properties} con el número de filas de cada tabla. Lo escrito
+ * después (una conversión que falló antes de guardar el Excel) se descarta al
+ * cerrar o al volver a abrir.
+ */
+class StagingStore implements Closeable {
+
+    enum Kind {
+        LONG, DOUBLE, STRING,
+        /** Importe en diezmilésimas ({@link Money#ofUnits}); más decimales se redondean a cuatro. */
+        MONEY
+    }
+
+    record ColumnSpec(String name, Kind kind) {
+    }
+
+    enum Table {
+        INVOICES("invoices",
+                new ColumnSpec("supplierNit", Kind.STRING),
+                new ColumnSpec("supplierName", Kind.STRING),
+                new ColumnSpec("invoiceNumber", Kind.STRING),
+                new ColumnSpec("cufe", Kind.STRING),
+                new ColumnSpec("issueDate", Kind.LONG), // día desde 1970-01-01, NO_DATE si no se pudo leer
+                new ColumnSpec("payable", Kind.MONEY),
+                new ColumnSpec("lineExtension", Kind.MONEY),
+                new ColumnSpec("retFuente", Kind.MONEY),
+                new ColumnSpec("retIca", Kind.MONEY),
+                new ColumnSpec("source", Kind.STRING)),
+        LINES("lines",
+                new ColumnSpec("invoice", Kind.LONG), // fila en INVOICES
+                new ColumnSpec("id", Kind.STRING),
+                new ColumnSpec("description", Kind.STRING),
+                new ColumnSpec("quantity", Kind.DOUBLE),
+                new ColumnSpec("lineExtension", Kind.MONEY)),
+        TAXES("taxes",
+                new ColumnSpec("invoice", Kind.LONG),
+                new ColumnSpec("line", Kind.LONG), // fila en LINES, -1 si es de la factura
+                new ColumnSpec("withholding", Kind.LONG), // 1 retención, 0 impuesto
+                new ColumnSpec("schemeId", Kind.STRING),
+                new ColumnSpec("schemeName", Kind.STRING),
+                new ColumnSpec("taxable", Kind.MONEY),
+                new ColumnSpec("percent", Kind.DOUBLE),
+                new ColumnSpec("amount", Kind.MONEY));
+
+        final String fileName;
+        final List<ColumnSpec> columns;
+
+        Table(String fileName, ColumnSpec... columns) {
+            this.fileName = fileName;
+            this.columns = List.of(columns);
+        }
+
+        int column(String name, Kind kind) {
+            for (int i = 0; i < columns.size(); i++) {
+                ColumnSpec spec = columns.get(i);
+                if (spec.name().equals(name)) {
+                    if (spec.kind() != kind) {
+                        throw new IllegalArgumentException("La columna " + fileName + "." + name + " es "
+                                + spec.kind() + ", no " + kind);
+                    }
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No existe la columna " + fileName + "." + name);
+        }
+    }
+
+    /** Valor de issueDate cuando la fecha de la factura no se pudo interpretar. */
+    static final long NO_DATE = Long.MIN_VALUE;
+    /** Índice de diccionario de un texto ausente (cufe o descripción null). */
+    static final int NULL_STRING = -1;
+
+    static final int SPILL_ROWS = 65_536;
+    private static final int BYTES = Long.BYTES;
+    // 2: importes en diezmilésimas (antes bits de double)
+    private static final String FORMAT = "2";
+    private static final String META = "store.properties";
+    private static final String STRINGS = "strings.txt";
+
+    private final Path dir;
+    private final boolean readOnly;
+    private final Map<Table, TableData> tables = new EnumMap<>(Table.class);
+
+    // diccionario de textos: las entradas desde committedStrings aún no están en disco
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private int committedStrings;
+    private long committedStringBytes;
+
+    private StagingStore(Path dir, boolean readOnly) {
+        this.dir = dir;
+        this.readOnly = readOnly;
+        for (Table table : Table.values()) {
+            tables.put(table, new TableData(table));
+        }
+    }
+
+    /** Carpeta del almacén junto al Excel, como el manifiesto. */
+    static Path pathFor(java.io.File excelFile) {
+        return excelFile.toPath().resolveSibling(excelFile.getName() + ".staging");
+    }
+
+    static StagingStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        StagingStore store = new StagingStore(dir, false);
+        store.load();
+        return store;
+    }
+
+    /**
+     * Abre el almacén sólo para leer las filas confirmadas. No toca los
+     * archivos, así que se puede usar mientras una conversión sigue añadiendo.
+     */
+    static StagingStore openReadOnly(Path dir) throws IOException {
+        if (!exists(dir)) {
+            throw new IllegalStateException("No hay almacén de staging en " + dir);
+        }
+        StagingStore store = new StagingStore(dir, true);
+        store.load();
+        return store;
+    }
+
+    static boolean exists(Path dir) {
+        return Files.exists(dir.resolve(META));
+    }
+
+    /** Borra el almacén (el Excel se creó de nuevo desde la plantilla). */
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /** Añade la factura con sus líneas e impuestos; devuelve su fila en INVOICES. */
+    synchronized long append(InvoiceDetail detail, String sourceName) throws IOException {
+        requireWritable();
+        InvoiceRecord factura = detail.invoice();
+        TableData invoices = tables.get(Table.INVOICES);
+        long invoiceRow = invoices.totalRows();
+        invoices.append(
+                intern(factura.supplierNit()),
+                intern(factura.supplierName()),
+                intern(factura.invoiceNumber()),
+                intern(factura.cufe()),
+                epochDay(factura.issueDate()),
+                factura.payableAmount().units(),
+                factura.lineExtensionAmount().units(),
+                factura.retFuente().units(),
+                factura.retIca().units(),
+                intern(sourceName));
+
+        TableData lines = tables.get(Table.LINES);
+        long firstLine = lines.totalRows();
+        for (InvoiceLineItem line : detail.lines()) {
+            lines.append(
+                    invoiceRow,
+                    intern(line.id()),
+                    intern(line.description()),
+                    Double.doubleToRawLongBits(line.quantity()),
+                    line.lineExtensionAmount().units());
+        }
+
+        TableData taxes = tables.get(Table.TAXES);
+        for (TaxEntry tax : detail.taxes()) {
+            taxes.append(
+                    invoiceRow,
+                    tax.line() < 0 ? -1 : firstLine + tax.line(),
+                    tax.withholding() ? 1 : 0,
+                    intern(tax.schemeId()),
+                    intern(tax.schemeName()),
+                    tax.taxableAmount().units(),
+                    Double.doubleToRawLongBits(tax.percent()),
+                    tax.taxAmount().units());
+        }
+        return invoiceRow;
+    }
+
+    /**
+     * Escribe lo pendiente y confirma las filas: primero columnas y diccionario
+     * (con fsync), después {@code store.properties}.
+     */
+    synchronized void commit() throws IOException {
+        requireWritable();
+        for (TableData table : tables.values()) {
+            table.spill();
+        }
+        long stringBytes = committedStringBytes;
+        if (strings.size() > committedStrings) {
+            try (FileChannel channel = FileChannel.open(dir.resolve(STRINGS), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                channel.position(committedStringBytes);
+                BufferedWriter writer = new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+                for (int i = committedStrings; i < strings.size(); i++) {
+                    writer.write(escape(strings.get(i)));
+                    writer.write('\n');
+                }
+                writer.flush();
+                channel.force(false);
+                stringBytes = channel.position();
+            }
+        }
+        for (TableData table : tables.values()) {
+            table.force();
+        }
+
+        Properties meta = new Properties();
+        meta.setProperty("format", FORMAT);
+        for (TableData table : tables.values()) {
+            meta.setProperty(table.table.fileName + ".rows", Long.toString(table.writtenRows));
+        }
+        meta.setProperty("strings.count", Integer.toString(strings.size()));
+        meta.setProperty("strings.bytes", Long.toString(stringBytes));
+        Path tmp = dir.resolve(META + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            meta.store(writer, "Filas confirmadas del almacén de staging");
+        }
+        Files.move(tmp, dir.resolve(META), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (TableData table : tables.values()) {
+            table.committedRows = table.writtenRows;
+        }
+        committedStrings = strings.size();
+        committedStringBytes = stringBytes;
+    }
+
+    /** Descarta lo añadido desde el último {@link #commit}. */
+    synchronized void rollback() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        for (TableData table : tables.values()) {
+            table.truncate();
+        }
+        while (strings.size() > committedStrings) {
+            stringIds.remove(strings.remove(strings.size() - 1));
+        }
+    }
+
+    synchronized long rows(Table table) {
+        return tables.get(table).committedRows;
+    }
+
+    /** Textos en el diccionario (confirmados o no). */
+    synchronized int stringCount() {
+        return strings.size();
+    }
+
+    synchronized String string(int id) {
+        return id == NULL_STRING ? null : strings.get(id);
+    }
+
+    /** Índice del texto en el diccionario, o {@link #NULL_STRING} si nunca se guardó. */
+    synchronized int stringId(String value) {
+        Integer id = value == null ? null : stringIds.get(value);
+        return id == null ? NULL_STRING : id;
+    }
+
+    /**
+     * Vista de las filas confirmadas de una tabla. Las columnas se mapean en
+     * memoria de solo lectura; filas añadidas después no aparecen en ella.
+     */
+    synchronized Scan scan(Table table) {
+        return new Scan(table, tables.get(table).committedRows);
+    }
+
+    /** Descarta lo que no se confirmó con {@link #commit}. */
+    @Override
+    public void close() throws IOException {
+        rollback();
+    }
+
+    private void requireWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("El almacén de staging se abrió sólo para lectura: " + dir);
+        }
+    }
+
+    private int intern(String value) {
+        if (value == null) {
+            return NULL_STRING;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            stringIds.put(value, id);
+        }
+        return id;
+    }
+
+    private static long epochDay(String isoDate) {
+        try {
+            return LocalDate.parse(isoDate.trim()).toEpochDay();
+        } catch (DateTimeParseException ex) {
+            return NO_DATE;
+        }
+    }
+
+    private void load() throws IOException {
+        Path metaFile = dir.resolve(META);
+        Properties meta = new Properties();
+        if (Files.exists(metaFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(metaFile, StandardCharsets.UTF_8)) {
+                meta.load(reader);
+            }
+            if (!FORMAT.equals(meta.getProperty("format"))) {
+                throw new IllegalStateException("El almacén de staging en " + dir
+                        + " es de otra versión; bórrelo y vuelva a convertir los XML");
+            }
+        }
+        for (TableData table : tables.values()) {
+            table.committedRows = Long.parseLong(meta.getProperty(table.table.fileName + ".rows", "0"));
+            table.writtenRows = table.committedRows;
+            if (!readOnly) {
+                table.truncate(); // lo escrito por una corrida que no llegó a confirmar
+            }
+        }
+
+        int count = Integer.parseInt(meta.getProperty("strings.count", "0"));
+        committedStringBytes = Long.parseLong(meta.getProperty("strings.bytes", "0"));
+        Path stringsFile = dir.resolve(STRINGS);
+        if (Files.exists(stringsFile)) {
+            if (!readOnly) {
+                try (FileChannel channel = FileChannel.open(stringsFile, StandardOpenOption.WRITE)) {
+                    if (channel.size() > committedStringBytes) {
+                        channel.truncate(committedStringBytes);
+                    }
+                }
+            }
+            try (InputStream in = Files.newInputStream(stringsFile);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while (strings.size() < count && (line = reader.readLine()) != null) {
+                    String value = unescape(line);
+                    stringIds.put(value, strings.size());
+                    strings.add(value);
+                }
+            }
+        }
+        if (strings.size() != count) {
+            throw new IllegalStateException("Almacén de staging dañado en " + dir + ": se esperaban " + count
+                    + " textos y hay " + strings.size());
+        }
+        committedStrings = count;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String line) {
+        if (line.indexOf('\\') < 0) {
+            return line;
+        }
+        StringBuilder out = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                out.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /** Filas de una tabla: las confirmadas, las volcadas sin confirmar y las que están en memoria. */
+    private final class TableData {
+
+        final Table table;
+        long[][] pending;
+        int pendingRows;
+        long committedRows;
+        long writtenRows; // en disco, confirmadas o no
+
+        TableData(Table table) {
+            this.table = table;
+            this.pending = new long[table.columns.size()][1024];
+        }
+
+        long totalRows() {
+            return writtenRows + pendingRows;
+        }
+
+        void append(long... values) throws IOException {
+            if (pendingRows == pending[0].length) {
+                // crece hasta SPILL_ROWS; a partir de ahí se vuelca al disco
+                for (int c = 0; c < pending.length; c++) {
+                    pending[c] = Arrays.copyOf(pending[c], Math.min(SPILL_ROWS, pendingRows * 2));
+                }
+            }
+            for (int c = 0; c < values.length; c++) {
+                pending[c][pendingRows] = values[c];
+            }
+            pendingRows++;
+            if (pendingRows == SPILL_ROWS) {
+                spill();
+            }
+        }
+
+        /** Añade las filas en memoria al final de cada archivo de columna. */
+        void spill() throws IOException {
+            if (pendingRows == 0) {
+                return;
+            }
+            if ((writtenRows + pendingRows) * BYTES > Integer.MAX_VALUE) {
+                throw new IllegalStateException("La tabla " + table.fileName + " del almacén de staging está llena");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(pendingRows * BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 0; c < pending.length; c++) {
+                buffer.clear();
+                buffer.asLongBuffer().put(pending[c], 0, pendingRows);
+                try (FileChannel channel = FileChannel.open(file(c), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    channel.position(writtenRows * BYTES);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+            writtenRows += pendingRows;
+            pendingRows = 0;
+        }
+
+        void force() throws IOException {
+            for (int c = 0; c < pending.length; c++) {
+                Path file = file(c);
+                if (Files.exists(file)) {
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.force(false);
+                    }
+                }
+            }
+        }
+
+        void truncate() throws IOException {
+            pendingRows = 0;
+            writtenRows = committedRows;
+            for (int c = 0; c < pending.length; c++) {
+                Path file = file(c);
+                if (!Files.exists(file)) {
+                    if (committedRows > 0) {
+                        throw new IllegalStateException("Almacén de staging dañado: falta " + file);
+                    }
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    if (channel.size() > committedRows * BYTES) {
+                        channel.truncate(committedRows * BYTES);
+                    }
+                }
+            }
+        }
+
+        Path file(int column) {
+            return dir.resolve(table.fileName + "." + table.columns.get(column).name() + ".bin");
+        }
+    }
+
+    /** Columnas de una tabla mapeadas en memoria para recorrerlas. */
+    final class Scan {
+
+        private final Table table;
+        private final int rows;
+
+        private Scan(Table table, long rows) {
+            this.table = table;
+            this.rows = (int) rows;
+        }
+
+        int rows() {
+            return rows;
+        }
+
+        LongColumn longs(String column) throws IOException {
+            return new LongColumn(map(table.column(column, Kind.LONG)));
+        }
+
+        DoubleColumn doubles(String column) throws IOException {
+            return new DoubleColumn(map(table.column(column, Kind.DOUBLE)));
+        }
+
+        /** Importes en diezmilésimas. */
+        LongColumn money(String column) throws IOException {
+            return new LongColumn(map(table.column(column, Kind.MONEY)));
+        }
+
+        /** Índices de diccionario; {@link StagingStore#string(int)} los traduce. */
+        LongColumn strings(String column) throws IOException {
+            return new LongColumn(map(table.column(column, Kind.STRING)));
+        }
+
+        private ByteBuffer map(int column) throws IOException {
+            if (rows == 0) {
+                return ByteBuffer.allocate(0);
+            }
+            try (FileChannel channel = FileChannel.open(tables.get(table).file(column), StandardOpenOption.READ)) {
+                // el mapeo sigue siendo válido después de cerrar el canal
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) rows * BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    static final class LongColumn {
+        private final ByteBuffer buffer;
+
+        private LongColumn(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        long get(int row) {
+            return buffer.getLong(row * BYTES);
+        }
+    }
+
+    static final class DoubleColumn {
+        private final ByteBuffer buffer;
+
+        private DoubleColumn(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        double get(int row) {
+            return buffer.getDouble(row * BYTES);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceDetail;
+import com.construmedicis.taxreturn.conversion.models.InvoiceLineItem;
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import com.construmedicis.taxreturn.conversion.models.TaxEntry;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extractor StAX para los AttachedDocument de la DIAN.
+ *
+ * Recorre el sobre exterior hasta el primer cbc:Description, toma su CDATA y
+ * lee la factura embebida en una sola pasada hacia adelante. Cada campo es el
+ * primer elemento en orden de documento; las retenciones son las
+ * cac:WithholdingTaxTotal de la factura (la última RENTA y la última ICA), no
+ * las de cada cac:InvoiceLine. Deja de leer en cuanto tiene todos los campos:
+ * según el esquema UBL 2.1, las cac:WithholdingTaxTotal de la factura van
+ * antes de cac:LegalMonetaryTotal, y las líneas después, así que al ver
+ * cbc:PayableAmount ya no queda nada por capturar. La ruta DOM
+ * ({@code conversion.parser=dom}) aplica la misma regla.
+ *
+ * {@link #parseDetail} lee en cambio la factura completa: además de la misma
+ * fila, todas las líneas y todos los cac:TaxSubtotal de impuestos y
+ * retenciones (de la factura y de cada línea).
+ *
+ * Los importes se leen con {@link Money#parse(CharSequence)} desde los
+ * caracteres del reader, copiados a un buffer que se reutiliza en toda la
+ * factura: no se crea un String por cada valor.
+ */
+public class StaxInvoiceParser {
+
+    private static final String CBC = "cbc";
+    private static final String CAC = "cac";
+    private static final Set<String> LINE_ELEMENTS = Set.of("InvoiceLine", "CreditNoteLine", "DebitNoteLine");
+    private static final Set<String> QUANTITY_ELEMENTS = Set.of("InvoicedQuantity", "CreditedQuantity",
+            "DebitedQuantity");
+    private static final Set<String> AMOUNT_ELEMENTS = Set.of("TaxAmount", "TaxableAmount", "LineExtensionAmount",
+            "PayableAmount");
+
+    // XMLInputFactory no garantiza ser thread-safe al crear readers
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    });
+
+    public InvoiceRecord parse(File xmlFile) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(xmlFile))) {
+            return parse(in, xmlFile.getName());
+        }
+    }
+
+    public InvoiceRecord parse(InputStream in, String sourceName) throws Exception {
+        String facturaXml = readEmbeddedInvoice(in, sourceName);
+        return parseInvoice(facturaXml, sourceName);
+    }
+
+    public InvoiceDetail parseDetail(InputStream in, String sourceName) throws Exception {
+        String facturaXml = readEmbeddedInvoice(in, sourceName);
+        return parseInvoiceDetail(facturaXml, sourceName);
+    }
+
+    /**
+     * Avanza por el AttachedDocument hasta el primer cbc:Description y devuelve su
+     * contenido sin seguir leyendo el resto del sobre.
+     */
+    private String readEmbeddedInvoice(InputStream in, String sourceName) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.get().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && is(reader, CBC, "Description")) {
+                    return reader.getElementText();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IllegalStateException("No se encontró cbc:Description en " + sourceName);
+    }
+
+    private InvoiceRecord parseInvoice(String facturaXml, String sourceName) throws XMLStreamException {
+        String nitProveedor = null;
+        String razonSocialProveedor = null;
+        String numeroFactura = null;
+        String cufe = null;
+        String fecha = null;
+        String ciiu = null;
+        Money baseImponible = null;
+        Money valorTotal = null;
+
+        Money retFuente = Money.ZERO;
+        Money retIca = Money.ZERO;
+
+        // Estado dentro de cac:WithholdingTaxTotal
+        boolean inWithholding = false;
+        boolean inScheme = false;
+        boolean schemeSeen = false;
+        Money retValor = null;
+        String retNombre = null;
+
+        StringBuilder buffer = new StringBuilder(32);
+
+        XMLStreamReader reader = FACTORY.get().createXMLStreamReader(new StringReader(facturaXml));
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (inScheme && is(reader, CAC, "TaxScheme")) {
+                        inScheme = false;
+                    } else if (inWithholding && is(reader, CAC, "WithholdingTaxTotal")) {
+                        inWithholding = false;
+                        if (retValor == null || retNombre == null) {
+                            throw new IllegalStateException(
+                                    "cac:WithholdingTaxTotal incompleto en " + sourceName);
+                        }
+                        String nombre = retNombre.toUpperCase();
+                        if (nombre.contains("RENTA")) {
+                            retFuente = retValor;
+                        } else if (nombre.contains("ICA")) {
+                            retIca = retValor;
+                        }
+                    }
+                    continue;
+                }
+
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                String prefix = reader.getPrefix();
+                String local = reader.getLocalName();
+
+                if (CAC.equals(prefix)) {
+                    if ("WithholdingTaxTotal".equals(local)) {
+                        inWithholding = true;
+                        inScheme = false;
+                        schemeSeen = false;
+                        retValor = null;
+                        retNombre = null;
+                    } else if (inWithholding && !schemeSeen && "TaxScheme".equals(local)) {
+                        inScheme = true;
+                        schemeSeen = true;
+                    }
+                    continue;
+                }
+
+                if (!CBC.equals(prefix)) {
+                    continue;
+                }
+
+                // getElementText() y readAmount() consumen el END_ELEMENT, por eso
+                // los campos de retención se evalúan antes que los simples
+                if (inWithholding && retValor == null && "TaxAmount".equals(local)) {
+                    retValor = readAmount(reader, buffer);
+                } else if (inScheme && retNombre == null && "Name".equals(local)) {
+                    retNombre = reader.getElementText();
+                } else if (nitProveedor == null && "CompanyID".equals(local)) {
+                    nitProveedor = reader.getElementText();
+                } else if (razonSocialProveedor == null && "RegistrationName".equals(local)) {
+                    razonSocialProveedor = reader.getElementText();
+                } else if (numeroFactura == null && "ID".equals(local)) {
+                    numeroFactura = reader.getElementText();
+                } else if (cufe == null && "UUID".equals(local)) {
+                    cufe = reader.getElementText();
+                } else if (fecha == null && "IssueDate".equals(local)) {
+                    fecha = reader.getElementText();
+                } else if (ciiu == null && "IndustryClasificationCode".equals(local)) {
+                    ciiu = reader.getElementText();
+                } else if (baseImponible == null && "LineExtensionAmount".equals(local)) {
+                    baseImponible = readAmount(reader, buffer);
+                } else if (valorTotal == null && "PayableAmount".equals(local)) {
+                    valorTotal = readAmount(reader, buffer);
+                }
+
+                if (nitProveedor != null && razonSocialProveedor != null && numeroFactura != null
+                        && fecha != null && baseImponible != null && valorTotal != null) {
+                    break; // todo capturado: no seguimos leyendo las líneas de la factura
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new InvoiceRecord(
+                require(razonSocialProveedor, "cbc:RegistrationName", sourceName),
+                require(nitProveedor, "cbc:CompanyID", sourceName),
+                require(numeroFactura, "cbc:ID", sourceName),
+                cufe,
+                require(fecha, "cbc:IssueDate", sourceName),
+                require(valorTotal, "cbc:PayableAmount", sourceName),
+                require(baseImponible, "cbc:LineExtensionAmount", sourceName),
+                retFuente,
+                retIca,
+                ciiu);
+    }
+
+    /**
+     * Recorre la factura entera. Los campos de la fila se toman con la misma
+     * regla que {@link #parseInvoice} (primer elemento en orden de documento,
+     * retenciones por nombre RENTA / ICA), así que {@code detail.invoice()} es
+     * igual a lo que devuelve {@link #parse}.
+     */
+    private InvoiceDetail parseInvoiceDetail(String facturaXml, String sourceName) throws XMLStreamException {
+        String nitProveedor = null;
+        String razonSocialProveedor = null;
+        String numeroFactura = null;
+        String cufe = null;
+        String fecha = null;
+        String ciiu = null;
+        Money baseImponible = null;
+        Money valorTotal = null;
+        Money retFuente = Money.ZERO;
+        Money retIca = Money.ZERO;
+        // parseInvoice deja de leer aquí: lo que venga después no cambia la fila
+        boolean recordDone = false;
+
+        List<InvoiceLineItem> lines = new ArrayList<>();
+        List<TaxEntry> taxes = new ArrayList<>();
+
+        // Elementos abiertos (salvo los cbc, que se leen enteros con getElementText)
+        Deque<String> open = new ArrayDeque<>();
+
+        // Línea en curso
+        String lineElement = null;
+        String lineId = null;
+        String lineDescription = null;
+        String lineQuantity = null;
+        Money lineAmount = null;
+
+        // cac:TaxTotal / cac:WithholdingTaxTotal en curso
+        String totalElement = null;
+        int totalLine = -1;
+        int totalSubtotals = 0;
+        int totalSchemes = 0;
+        Money totalAmount = null;
+        String totalSchemeName = null;
+
+        // cac:TaxSubtotal en curso
+        boolean inSubtotal = false;
+        Money taxable = null;
+        Money taxAmount = null;
+        String percent = null;
+        String schemeId = null;
+        String schemeName = null;
+
+        StringBuilder buffer = new StringBuilder(32);
+        XMLStreamReader reader = FACTORY.get().createXMLStreamReader(new StringReader(facturaXml));
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    String local = open.pop();
+                    if (inSubtotal && "TaxSubtotal".equals(local)) {
+                        inSubtotal = false;
+                        totalSubtotals++;
+                        taxes.add(new TaxEntry(totalLine, "WithholdingTaxTotal".equals(totalElement), schemeId,
+                                schemeName, money(taxable), number(percent), money(taxAmount)));
+                    } else if (local.equals(totalElement)) {
+                        boolean withholding = "WithholdingTaxTotal".equals(totalElement);
+                        if (totalSubtotals == 0 && totalAmount != null) {
+                            // total sin desglose: se guarda como un único subtotal
+                            taxes.add(new TaxEntry(totalLine, withholding, null, totalSchemeName, Money.ZERO,
+                                    0.0, totalAmount));
+                        }
+                        if (withholding && !recordDone) {
+                            if (totalAmount == null || totalSchemeName == null) {
+                                throw new IllegalStateException(
+                                        "cac:WithholdingTaxTotal incompleto en " + sourceName);
+                            }
+                            String nombre = totalSchemeName.toUpperCase();
+                            if (nombre.contains("RENTA")) {
+                                retFuente = totalAmount;
+                            } else if (nombre.contains("ICA")) {
+                                retIca = totalAmount;
+                            }
+                        }
+                        totalElement = null;
+                    } else if (local.equals(lineElement) && open.size() == 1) {
+                        lines.add(new InvoiceLineItem(lineId, lineDescription, number(lineQuantity),
+                                money(lineAmount)));
+                        lineElement = null;
+                    }
+                    continue;
+                }
+
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                String local = reader.getLocalName();
+                if (!CBC.equals(reader.getPrefix())) {
+                    if (LINE_ELEMENTS.contains(local) && open.size() == 1) {
+                        lineElement = local;
+                        lineId = null;
+                        lineDescription = null;
+                        lineQuantity = null;
+                        lineAmount = null;
+                    } else if (totalElement == null
+                            && ("TaxTotal".equals(local) || "WithholdingTaxTotal".equals(local))) {
+                        totalElement = local;
+                        totalLine = lineElement != null ? lines.size() : -1;
+                        totalSubtotals = 0;
+                        totalSchemes = 0;
+                        totalAmount = null;
+                        totalSchemeName = null;
+                    } else if (totalElement != null && "TaxSubtotal".equals(local)) {
+                        inSubtotal = true;
+                        taxable = null;
+                        taxAmount = null;
+                        percent = null;
+                        schemeId = null;
+                        schemeName = null;
+                    } else if (totalElement != null && "TaxScheme".equals(local)) {
+                        totalSchemes++;
+                    }
+                    open.push(local);
+                    continue;
+                }
+
+                String parent = open.peek();
+                // los importes no pasan por String; el resto de campos sí
+                boolean isAmount = AMOUNT_ELEMENTS.contains(local);
+                Money value = isAmount ? readAmount(reader, buffer) : null;
+                String text = isAmount ? null : reader.getElementText();
+
+                if (totalElement != null) {
+                    if (totalAmount == null && "TaxAmount".equals(local)) {
+                        totalAmount = value;
+                    } else if (totalSchemes == 1 && totalSchemeName == null && "Name".equals(local)
+                            && "TaxScheme".equals(parent)) {
+                        totalSchemeName = text;
+                    }
+                    if (inSubtotal) {
+                        if ("TaxSubtotal".equals(parent)) {
+                            if ("TaxableAmount".equals(local)) {
+                                taxable = value;
+                            } else if ("TaxAmount".equals(local)) {
+                                taxAmount = value;
+                            } else if ("Percent".equals(local)) {
+                                percent = text;
+                            }
+                        } else if ("TaxCategory".equals(parent) && percent == null && "Percent".equals(local)) {
+                            percent = text;
+                        } else if ("TaxScheme".equals(parent)) {
+                            if ("ID".equals(local)) {
+                                schemeId = text;
+                            } else if ("Name".equals(local)) {
+                                schemeName = text;
+                            }
+                        }
+                    }
+                } else if (lineElement != null) {
+                    if (lineElement.equals(parent)) {
+                        if ("ID".equals(local)) {
+                            lineId = text;
+                        } else if (QUANTITY_ELEMENTS.contains(local)) {
+                            lineQuantity = text;
+                        } else if ("LineExtensionAmount".equals(local)) {
+                            lineAmount = value;
+                        }
+                    } else if ("Item".equals(parent) && lineDescription == null && "Description".equals(local)) {
+                        lineDescription = text;
+                    }
+                }
+
+                if (recordDone) {
+                    continue;
+                }
+                if (nitProveedor == null && "CompanyID".equals(local)) {
+                    nitProveedor = text;
+                } else if (razonSocialProveedor == null && "RegistrationName".equals(local)) {
+                    razonSocialProveedor = text;
+                } else if (numeroFactura == null && "ID".equals(local)) {
+                    numeroFactura = text;
+                } else if (cufe == null && "UUID".equals(local)) {
+                    cufe = text;
+                } else if (fecha == null && "IssueDate".equals(local)) {
+                    fecha = text;
+                } else if (ciiu == null && "IndustryClasificationCode".equals(local)) {
+                    ciiu = text;
+                } else if (baseImponible == null && "LineExtensionAmount".equals(local)) {
+                    baseImponible = value;
+                } else if (valorTotal == null && "PayableAmount".equals(local)) {
+                    valorTotal = value;
+                }
+                recordDone = nitProveedor != null && razonSocialProveedor != null && numeroFactura != null
+                        && fecha != null && baseImponible != null && valorTotal != null;
+            }
+        } finally {
+            reader.close();
+        }
+
+        InvoiceRecord invoice = new InvoiceRecord(
+                require(razonSocialProveedor, "cbc:RegistrationName", sourceName),
+                require(nitProveedor, "cbc:CompanyID", sourceName),
+                require(numeroFactura, "cbc:ID", sourceName),
+                cufe,
+                require(fecha, "cbc:IssueDate", sourceName),
+                require(valorTotal, "cbc:PayableAmount", sourceName),
+                require(baseImponible, "cbc:LineExtensionAmount", sourceName),
+                retFuente,
+                retIca,
+                ciiu);
+        return new InvoiceDetail(invoice, List.copyOf(lines), List.copyOf(taxes));
+    }
+
+    /**
+     * Lee el texto del elemento actual como importe y consume su END_ELEMENT,
+     * como getElementText(). Los caracteres se copian del reader a
+     * {@code buffer} en lugar de crear un String.
+     */
+    private static Money readAmount(XMLStreamReader reader, StringBuilder buffer) throws XMLStreamException {
+        buffer.setLength(0);
+        for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader.next()) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                buffer.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                throw new XMLStreamException("Se esperaba un importe y hay un elemento anidado",
+                        reader.getLocation());
+            }
+        }
+        return Money.parse(buffer);
+    }
+
+    private static Money money(Money value) {
+        return value == null ? Money.ZERO : value;
+    }
+
+    private static double number(String value) {
+        return value == null ? 0.0 : Double.parseDouble(value);
+    }
+
+    private static boolean is(XMLStreamReader reader, String prefix, String localName) {
+        return localName.equals(reader.getLocalName()) && prefix.equals(reader.getPrefix());
+    }
+
+    private static <T> T require(T value, String field, String sourceName) {
+        if (value == null) {
+            throw new IllegalStateException("No se encontró " + field + " en " + sourceName);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,633 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.poi.ooxml.POIXMLTypeLoader;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationship;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.streaming.SheetDataWriter;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.xmlbeans.XmlException;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCalcPr;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTable;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.TableDocument;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.WorkbookDocument;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Añade filas a la tabla de retenciones sin cargar el libro en memoria.
+ *
+ * Al abrir se recorre en streaming (StAX) el XML de la hoja hasta la fila de
+ * TOTALES, para conocer su posición y los estilos de la fila anterior; del
+ * resto del paquete sólo se leen styles.xml y la definición de la tabla. Cada
+ * fila nueva se serializa a un archivo temporal en cuanto se llena. Al guardar
+ * se vuelve a recorrer la hoja copiándola: las filas nuevas se escriben antes
+ * de TOTALES, TOTALES y lo que haya debajo bajan, los rangos de las fórmulas de
+ * totales se extienden y se ajustan el área de la tabla (ref y AutoFilter), la
+ * dimensión de la hoja y las celdas combinadas. Las demás partes del paquete se
+ * copian sin descomprimirlas.
+ *
+ * La memoria no depende de las filas que ya tiene el Excel ni de las que se
+ * añaden (ver StreamingHeapBenchmark con {@code -Dexisting}). No se ajustan las
+ * fórmulas de otras hojas ni los nombres definidos que apunten debajo de
+ * TOTALES.
+ */
+class StreamingTableAppender implements TableAppender {
+
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+    private final File excelFile;
+    private final String sheetEntry;
+    private final String tableEntry;
+    private final String stylesEntry;
+    private final String workbookEntry;
+
+    private final StylesTable stylesTable;
+    private final CellStyleRegistry styles;
+    private final int stylesAtOpen;
+    private final int formatsAtOpen;
+
+    private final CellReference tableStart;
+    private final int lastTableCol;
+    private final int totalsRowIndex;
+    // Celdas de la fila de TOTALES (columna y estilo): las filas nuevas nacen con ese formato vacío
+    private final int[] totalsCols;
+    private final int[] totalsStyles;
+
+    // Estilos por columna de la última fila escrita (fuente de la copia de estilo)
+    private final CellStyle[] previousStyles;
+
+    // Las filas nuevas se crean en un libro SXSSF vacío sólo para que el mapeo las llene
+    private final SXSSFWorkbook scratch;
+    private final SXSSFSheet scratchSheet;
+    private final Path rowsFile;
+    private final Writer rowsOut;
+    private final SheetDataWriter rows;
+
+    private int appended = 0;
+
+    StreamingTableAppender(File excelFile, String sheetName, String totalsLabel) throws IOException {
+        this.excelFile = excelFile;
+        OPCPackage pkg;
+        try {
+            pkg = OPCPackage.open(excelFile, PackageAccess.READ);
+        } catch (InvalidFormatException ex) {
+            throw new IOException("No es un Excel válido: " + excelFile, ex);
+        }
+        ScanResult scan;
+        boolean date1904;
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            PackagePart workbookPart = pkg.getPart(
+                    pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT).getRelationship(0));
+            this.workbookEntry = entryName(workbookPart);
+            try (InputStream in = workbookPart.getInputStream()) {
+                CTWorkbook workbook = WorkbookDocument.Factory.parse(in, POIXMLTypeLoader.DEFAULT_XML_OPTIONS)
+                        .getWorkbook();
+                date1904 = workbook.isSetWorkbookPr() && workbook.getWorkbookPr().getDate1904();
+            }
+
+            PackagePart sheetPart = sheetPart(reader, sheetName);
+            this.sheetEntry = entryName(sheetPart);
+            PackagePart tablePart = firstTable(pkg, sheetPart);
+            this.tableEntry = entryName(tablePart);
+            AreaReference area;
+            try (InputStream in = tablePart.getInputStream()) {
+                CTTable table = TableDocument.Factory.parse(in, POIXMLTypeLoader.DEFAULT_XML_OPTIONS).getTable();
+                area = new AreaReference(table.getRef(), SpreadsheetVersion.EXCEL2007);
+            }
+            this.tableStart = area.getFirstCell();
+            this.lastTableCol = area.getLastCell().getCol();
+
+            this.stylesTable = reader.getStylesTable();
+            if (stylesTable == null) {
+                throw new IllegalStateException("El Excel no tiene styles.xml: " + excelFile);
+            }
+            this.stylesEntry = entryName(pkg.getPartsByContentType(XSSFRelation.STYLES.getContentType()).get(0));
+
+            Set<Integer> labelStrings = new HashSet<>();
+            for (PackagePart part : pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType())) {
+                try (InputStream in = part.getInputStream()) {
+                    labelStrings = sharedStringsEqualTo(in, totalsLabel);
+                }
+            }
+            try (InputStream in = sheetPart.getInputStream()) {
+                scan = scanTotals(in, totalsLabel, labelStrings);
+            }
+        } catch (OpenXML4JException | XmlException | XMLStreamException ex) {
+            throw new IOException("No se pudo leer " + excelFile, ex);
+        } finally {
+            pkg.revert();
+        }
+        if (scan == null) {
+            throw new IllegalStateException("No se encontró la fila de TOTALES");
+        }
+
+        this.totalsRowIndex = scan.totalsRow();
+        this.totalsCols = scan.totalsCols();
+        this.totalsStyles = scan.totalsStyles();
+        this.styles = new CellStyleRegistry(stylesTable);
+        this.stylesAtOpen = stylesTable.getNumCellStyles();
+        this.formatsAtOpen = stylesTable.getNumDataFormats();
+        this.previousStyles = new CellStyle[lastTableCol + 1];
+        for (int i = 0; i < scan.aboveCols().length; i++) {
+            if (scan.aboveCols()[i] <= lastTableCol) {
+                previousStyles[scan.aboveCols()[i]] = stylesTable.getStyleAt(scan.aboveStyles()[i]);
+            }
+        }
+
+        this.scratch = new SXSSFWorkbook();
+        if (date1904) {
+            // las fechas se convierten a número con la misma época que el libro
+            scratch.getXSSFWorkbook().getCTWorkbook().addNewWorkbookPr().setDate1904(true);
+        }
+        this.scratchSheet = scratch.createSheet();
+        this.rowsFile = Files.createTempFile("retenciones-", ".rows.xml");
+        this.rowsOut = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(rowsFile),
+                StandardCharsets.UTF_8));
+        this.rows = new SheetDataWriter(rowsOut);
+    }
+
+    /** Registro de estilos sobre styles.xml del libro; lo usa el mapeo para el estilo de fecha. */
+    CellStyleRegistry styles() {
+        return styles;
+    }
+
+    @Override
+    public Row append(Consumer<Row> rowFiller) throws IOException {
+        int rowIndex = totalsRowIndex + appended;
+        SXSSFRow newRow = scratchSheet.createRow(rowIndex);
+        for (int i = 0; i < totalsCols.length; i++) {
+            newRow.createCell(totalsCols[i]).setCellStyle(stylesTable.getStyleAt(totalsStyles[i]));
+        }
+
+        rowFiller.accept(newRow);
+
+        // Copiar estilos de la fila anterior (ya escrita en el temporal, por eso se
+        // guardan aparte)
+        for (int c = 0; c <= lastTableCol; c++) {
+            Cell dst = newRow.getCell(c);
+            if (dst != null && previousStyles[c] != null) {
+                dst.setCellStyle(styles.reuse(previousStyles[c]));
+            }
+        }
+        for (int c = 0; c <= lastTableCol; c++) {
+            Cell cell = newRow.getCell(c);
+            previousStyles[c] = cell == null ? null : cell.getCellStyle();
+        }
+
+        rows.writeRow(rowIndex, newRow);
+        scratchSheet.removeRow(newRow);
+        appended++;
+        return newRow;
+    }
+
+    /**
+     * No hay nada que mover en memoria: la hoja se reescribe en {@link #write}.
+     */
+    @Override
+    public void finish() {
+    }
+
+    /**
+     * Escribe el libro con las filas añadidas. Lee el Excel original mientras
+     * escribe, así que {@code out} no puede ser ese mismo archivo.
+     */
+    @Override
+    public void write(OutputStream out) throws IOException {
+        rowsOut.flush();
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+        try (ZipFile source = ZipFile.builder().setFile(excelFile).get()) {
+            Enumeration<ZipArchiveEntry> entries = source.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.equals(sheetEntry)) {
+                    zip.putArchiveEntry(new ZipArchiveEntry(name));
+                    try (InputStream in = source.getInputStream(entry)) {
+                        copySheet(in, zip);
+                    }
+                    zip.closeArchiveEntry();
+                } else if (appended > 0 && name.equals(tableEntry)) {
+                    zip.putArchiveEntry(new ZipArchiveEntry(name));
+                    try (InputStream in = source.getInputStream(entry)) {
+                        writeTable(in, zip);
+                    }
+                    zip.closeArchiveEntry();
+                } else if (name.equals(stylesEntry) && stylesChanged()) {
+                    zip.putArchiveEntry(new ZipArchiveEntry(name));
+                    stylesTable.writeTo(zip);
+                    zip.closeArchiveEntry();
+                } else if (appended > 0 && name.equals(workbookEntry)) {
+                    zip.putArchiveEntry(new ZipArchiveEntry(name));
+                    try (InputStream in = source.getInputStream(entry)) {
+                        writeWorkbook(in, zip);
+                    }
+                    zip.closeArchiveEntry();
+                } else {
+                    zip.addRawArchiveEntry(entry, source.getRawInputStream(entry));
+                }
+            }
+        } catch (XMLStreamException | XmlException ex) {
+            throw new IOException("No se pudo reescribir " + excelFile, ex);
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            rowsOut.close();
+            scratch.close();
+        } finally {
+            Files.deleteIfExists(rowsFile);
+        }
+    }
+
+    private boolean stylesChanged() {
+        return stylesTable.getNumCellStyles() != stylesAtOpen || stylesTable.getNumDataFormats() != formatsAtOpen;
+    }
+
+    /**
+     * Copia el XML de la hoja evento por evento insertando las filas nuevas antes
+     * de TOTALES y bajando todo lo que estaba desde ahí.
+     */
+    private void copySheet(InputStream in, OutputStream out) throws XMLStreamException, IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        XMLEventReader reader = inputFactory().createXMLEventReader(in);
+        XMLEventWriter xml = XMLOutputFactory.newInstance().createXMLEventWriter(writer);
+
+        boolean inserted = false;
+        int currentRow = -1;
+        boolean inFormula = false;
+        boolean formulaChanged = false;
+        boolean skipValue = false;
+        StringBuilder formula = new StringBuilder();
+
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (skipValue) {
+                // valor en caché de una fórmula que cambió: Excel la recalcula al abrir
+                skipValue = !(event.isEndElement() && event.asEndElement().getName().getLocalPart().equals("v"));
+                continue;
+            }
+            if (event.isStartElement()) {
+                StartElement start = event.asStartElement();
+                switch (start.getName().getLocalPart()) {
+                    case "dimension", "mergeCell", "hyperlink" -> event = shiftAttribute(start, "ref");
+                    case "conditionalFormatting", "dataValidation" -> event = shiftAttribute(start, "sqref");
+                    case "row" -> {
+                        String r = attribute(start, "r");
+                        currentRow = r == null ? currentRow + 1 : Integer.parseInt(r) - 1;
+                        if (!inserted && currentRow >= totalsRowIndex) {
+                            insertRows(xml, writer);
+                            inserted = true;
+                        }
+                        if (currentRow >= totalsRowIndex && appended > 0) {
+                            event = withAttribute(start, "r", Integer.toString(currentRow + appended + 1));
+                        }
+                    }
+                    case "c" -> {
+                        formulaChanged = false;
+                        if (currentRow >= totalsRowIndex) {
+                            event = shiftAttribute(start, "r");
+                        }
+                    }
+                    case "f" -> {
+                        inFormula = true;
+                        formula.setLength(0);
+                        event = shiftAttribute(start, "ref");
+                    }
+                    case "v" -> {
+                        if (formulaChanged) {
+                            skipValue = true;
+                            continue;
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            } else if (event.isCharacters() && inFormula) {
+                formula.append(event.asCharacters().getData());
+                continue;
+            } else if (event.isEndElement()) {
+                switch (event.asEndElement().getName().getLocalPart()) {
+                    case "f" -> {
+                        inFormula = false;
+                        String text = formula.toString();
+                        String shifted = TableRowAppender.shiftRows(text, totalsRowIndex, appended,
+                                currentRow == totalsRowIndex);
+                        formulaChanged = !shifted.equals(text);
+                        if (!text.isEmpty()) {
+                            xml.add(EVENTS.createCharacters(shifted));
+                        }
+                    }
+                    case "sheetData" -> {
+                        if (!inserted) {
+                            insertRows(xml, writer);
+                            inserted = true;
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+            xml.add(event);
+        }
+        xml.flush();
+        writer.flush();
+    }
+
+    private void insertRows(XMLEventWriter xml, Writer writer) throws XMLStreamException, IOException {
+        if (appended == 0) {
+            return;
+        }
+        xml.add(EVENTS.createCharacters("")); // cierra la etiqueta abierta antes de escribir texto crudo
+        xml.flush();
+        try (Reader in = Files.newBufferedReader(rowsFile, StandardCharsets.UTF_8)) {
+            in.transferTo(writer);
+        }
+    }
+
+    private void writeTable(InputStream in, OutputStream out) throws IOException, XmlException {
+        TableDocument doc = TableDocument.Factory.parse(in, POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+        CTTable table = doc.getTable();
+        String ref = new AreaReference(tableStart,
+                new CellReference(totalsRowIndex + appended - 1, lastTableCol),
+                SpreadsheetVersion.EXCEL2007).formatAsString();
+        table.setRef(ref);
+        if (table.getAutoFilter() == null) {
+            table.addNewAutoFilter();
+        }
+        table.getAutoFilter().setRef(ref);
+        table.setHeaderRowCount(1);
+        doc.save(out, POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+    }
+
+    private static void writeWorkbook(InputStream in, OutputStream out) throws IOException, XmlException {
+        WorkbookDocument doc = WorkbookDocument.Factory.parse(in, POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+        CTWorkbook workbook = doc.getWorkbook();
+        CTCalcPr calc = workbook.isSetCalcPr() ? workbook.getCalcPr() : workbook.addNewCalcPr();
+        calc.setFullCalcOnLoad(true);
+        doc.save(out, POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+    }
+
+    private StartElement shiftAttribute(StartElement start, String name) {
+        String value = attribute(start, name);
+        if (value == null || appended == 0) {
+            return start;
+        }
+        return withAttribute(start, name, TableRowAppender.shiftRows(value, totalsRowIndex, appended, false));
+    }
+
+    private static String attribute(StartElement start, String name) {
+        Attribute attribute = start.getAttributeByName(new QName(name));
+        return attribute == null ? null : attribute.getValue();
+    }
+
+    private static StartElement withAttribute(StartElement start, String name, String value) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<Attribute> it = start.getAttributes(); it.hasNext();) {
+            Attribute attribute = it.next();
+            attributes.add(attribute.getName().getPrefix().isEmpty() && attribute.getName().getLocalPart().equals(name)
+                    ? EVENTS.createAttribute(name, value)
+                    : attribute);
+        }
+        return EVENTS.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+    }
+
+    /** Fila de TOTALES (base 0) con sus celdas, y las celdas de la fila justo encima. */
+    private record ScanResult(int totalsRow, int[] totalsCols, int[] totalsStyles, int[] aboveCols,
+            int[] aboveStyles) {
+    }
+
+    /**
+     * Recorre la hoja hasta terminar la primera fila con una celda de texto
+     * igual a {@code label}, como {@link TableRowAppender#findTotalsRow}. Sólo
+     * guarda las celdas de esa fila y de la anterior.
+     */
+    private static ScanResult scanTotals(InputStream in, String label, Set<Integer> labelStrings)
+            throws XMLStreamException {
+        XMLStreamReader xml = inputFactory().createXMLStreamReader(in);
+        try {
+            int row = -1;
+            int col = -1;
+            String type = null;
+            boolean found = false;
+            IntPairs current = new IntPairs();
+            IntPairs previous = new IntPairs();
+            int previousRow = -2;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "row" -> {
+                            IntPairs swap = previous;
+                            previous = current;
+                            current = swap;
+                            current.clear();
+                            previousRow = row;
+                            String r = xml.getAttributeValue(null, "r");
+                            row = r == null ? row + 1 : Integer.parseInt(r) - 1;
+                            col = -1;
+                        }
+                        case "c" -> {
+                            String r = xml.getAttributeValue(null, "r");
+                            col = r == null ? col + 1 : new CellReference(r).getCol();
+                            String s = xml.getAttributeValue(null, "s");
+                            type = xml.getAttributeValue(null, "t");
+                            current.add(col, s == null ? 0 : Integer.parseInt(s));
+                        }
+                        case "v" -> {
+                            if (!found && "s".equals(type)) {
+                                found = labelStrings.contains(Integer.parseInt(xml.getElementText().trim()));
+                            }
+                        }
+                        case "is" -> {
+                            if (!found && "inlineStr".equals(type)) {
+                                found = richText(xml, "is").trim().equalsIgnoreCase(label);
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("row") && found) {
+                    boolean adjacent = previousRow == row - 1;
+                    return new ScanResult(row, current.firsts(), current.seconds(),
+                            adjacent ? previous.firsts() : new int[0], adjacent ? previous.seconds() : new int[0]);
+                }
+            }
+            return null;
+        } finally {
+            xml.close();
+        }
+    }
+
+    /** Índices de sharedStrings.xml cuyo texto es {@code label} (sin distinguir mayúsculas). */
+    private static Set<Integer> sharedStringsEqualTo(InputStream in, String label) throws XMLStreamException {
+        Set<Integer> matches = new HashSet<>();
+        XMLStreamReader xml = inputFactory().createXMLStreamReader(in);
+        try {
+            int index = 0;
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("si")) {
+                    if (richText(xml, "si").trim().equalsIgnoreCase(label)) {
+                        matches.add(index);
+                    }
+                    index++;
+                }
+            }
+        } finally {
+            xml.close();
+        }
+        return matches;
+    }
+
+    /** Texto de un {@code <si>} o {@code <is>}: sus {@code <t>}, sin la guía fonética. */
+    private static String richText(XMLStreamReader xml, String element) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int phonetic = 0;
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (xml.getLocalName().equals("rPh")) {
+                    phonetic++;
+                } else if (xml.getLocalName().equals("t") && phonetic == 0) {
+                    text.append(xml.getElementText());
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (xml.getLocalName().equals("rPh")) {
+                    phonetic--;
+                } else if (xml.getLocalName().equals(element)) {
+                    break;
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private static PackagePart sheetPart(XSSFReader reader, String sheetName)
+            throws IOException, InvalidFormatException {
+        XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+        while (sheets.hasNext()) {
+            sheets.next().close();
+            if (sheets.getSheetName().equalsIgnoreCase(sheetName)) {
+                return sheets.getSheetPart();
+            }
+        }
+        throw new IllegalStateException("No existe la hoja: " + sheetName);
+    }
+
+    // La primera tabla por id de relación, el mismo orden de XSSFSheet.getTables()
+    private static PackagePart firstTable(OPCPackage pkg, PackagePart sheetPart) throws InvalidFormatException {
+        PackageRelationship first = null;
+        for (PackageRelationship rel : sheetPart.getRelationshipsByType(XSSFRelation.TABLE.getRelation())) {
+            if (first == null || rel.getId().compareTo(first.getId()) < 0) {
+                first = rel;
+            }
+        }
+        if (first == null) {
+            throw new IllegalStateException("La hoja no tiene una tabla de retenciones");
+        }
+        return pkg.getPart(PackagingURIHelper.createPartName(
+                PackagingURIHelper.resolvePartUri(sheetPart.getPartName().getURI(), first.getTargetURI())));
+    }
+
+    private static String entryName(PackagePart part) {
+        return part.getPartName().getName().substring(1);
+    }
+
+    private static XMLInputFactory inputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /** Pares (columna, estilo) de una fila, sin cajas. */
+    private static final class IntPairs {
+        private int[] values = new int[32];
+        private int size;
+
+        void add(int first, int second) {
+            if (size * 2 + 2 > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size * 2] = first;
+            values[size * 2 + 1] = second;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] firsts() {
+            int[] out = new int[size];
+            for (int i = 0; i < size; i++) {
+                out[i] = values[i * 2];
+            }
+            return out;
+        }
+
+        int[] seconds() {
+            int[] out = new int[size];
+            for (int i = 0; i < size; i++) {
+                out[i] = values[i * 2 + 1];
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Registro de proveedores: un NIT, un nombre.
+ *
+ * Las facturas de un mismo proveedor traen el cbc:CompanyID y el
+ * cbc:RegistrationName escritos de formas distintas ("900.123.456-8",
+ * "900123456", "900123456 - 8"; mayúsculas, espacios dobles), y en la hoja o
+ * en el resumen quedan como proveedores distintos. El registro reduce el NIT
+ * a su número base (sin puntos ni dígito de verificación) guardado como
+ * {@code long}, calcula el dígito de verificación de la DIAN y asigna a cada
+ * NIT un nombre canónico: el primero que se vio, o el que se escriba a mano en
+ * el archivo. Todas las filas de un proveedor comparten la misma instancia de
+ * {@link Supplier} y sus textos.
+ *
+ * Se guarda como TSV ({@code nit, dv, nombre}). Delante del mapa por NIT hay
+ * una caché LRU acotada por el texto crudo del CompanyID: con cientos de miles
+ * de facturas casi todas las consultas son un acierto en ella y no vuelven a
+ * normalizar.
+ */
+class SupplierRegistry {
+
+    record Supplier(long nit, int checkDigit, String nitText, String name) {
+    }
+
+    // Pesos del dígito de verificación de la DIAN, desde el dígito de la derecha
+    private static final int[] DV_WEIGHTS = { 3, 7, 13, 17, 19, 23, 29, 37, 41, 43, 47, 53, 59, 67, 71 };
+    private static final String SEPARATOR = "\t";
+    private static final Supplier UNPARSEABLE = new Supplier(-1, -1, null, null);
+
+    private final Path path;
+    private final Map<Long, Supplier> byNit = new HashMap<>();
+    private final Map<String, Supplier> recent;
+    private boolean dirty;
+    private long hits;
+    private long misses;
+
+    private SupplierRegistry(Path path, int cacheSize) {
+        this.path = path;
+        int capacity = Math.max(16, cacheSize);
+        this.recent = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Supplier> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    static SupplierRegistry load(Path path, int cacheSize) throws IOException {
+        SupplierRegistry registry = new SupplierRegistry(path, cacheSize);
+        if (!Files.exists(path)) {
+            return registry;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split(SEPARATOR, -1);
+                long nit = f.length >= 3 ? baseNit(f[0]) : -1;
+                if (nit >= 0 && declaredCheckDigit(f[0]) < 0) {
+                    nit = withoutGluedCheckDigit(nit);
+                }
+                if (nit < 0 || normalizeName(f[2]).isEmpty()) {
+                    continue; // línea corrupta: el proveedor se vuelve a registrar al verlo
+                }
+                registry.byNit.putIfAbsent(nit, newSupplier(nit, normalizeName(f[2])));
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * La factura con el NIT y el nombre canónicos de su proveedor (la misma
+     * instancia si ya lo eran). Si el CompanyID no es un NIT, se deja como
+     * viene.
+     */
+    synchronized InvoiceRecord canonical(InvoiceRecord factura) {
+        Supplier supplier = resolve(factura.supplierNit(), factura.supplierName());
+        if (supplier == UNPARSEABLE || (supplier.nitText().equals(factura.supplierNit())
+                && supplier.name().equals(factura.supplierName()))) {
+            return factura;
+        }
+        return new InvoiceRecord(supplier.name(), supplier.nitText(), factura.invoiceNumber(), factura.cufe(),
+                factura.issueDate(), factura.payableAmount(), factura.lineExtensionAmount(), factura.retFuente(),
+                factura.retIca(), factura.industryCode());
+    }
+
+    /** Proveedor registrado para el NIT (en cualquier formato), o null. */
+    synchronized Supplier find(String rawNit) {
+        long nit = baseNit(rawNit);
+        return nit < 0 ? null : byNit.get(nit);
+    }
+
+    synchronized int size() {
+        return byNit.size();
+    }
+
+    synchronized String cacheReport() {
+        return "Proveedores: " + byNit.size() + " registrados, caché " + hits + " aciertos / " + misses
+                + " fallos";
+    }
+
+    /** Escribe el archivo si hubo proveedores nuevos (archivo temporal y move atómico). */
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        List<Supplier> suppliers = new ArrayList<>(byNit.values());
+        suppliers.sort((a, b) -> Long.compare(a.nit(), b.nit()));
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write("# nit" + SEPARATOR + "dv" + SEPARATOR + "nombre (se puede corregir a mano)");
+            writer.newLine();
+            for (Supplier s : suppliers) {
+                writer.write(s.nitText() + SEPARATOR + s.checkDigit() + SEPARATOR + s.name());
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private Supplier resolve(String rawNit, String rawName) {
+        if (rawNit == null) {
+            return UNPARSEABLE;
+        }
+        Supplier cached = recent.get(rawNit);
+        if (cached != null) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        Supplier supplier = register(rawNit, rawName);
+        recent.put(rawNit, supplier);
+        return supplier;
+    }
+
+    private Supplier register(String rawNit, String rawName) {
+        long nit = baseNit(rawNit);
+        if (nit < 0) {
+            return UNPARSEABLE;
+        }
+        int dv = declaredCheckDigit(rawNit);
+        if (dv < 0) {
+            nit = withoutGluedCheckDigit(nit);
+        } else if (dv != checkDigit(nit)) {
+            System.out.println("Proveedores: el dígito de verificación de " + rawNit.trim()
+                    + " no corresponde; se usa " + checkDigit(nit));
+        }
+        Supplier supplier = byNit.get(nit);
+        if (supplier == null) {
+            String name = normalizeName(rawName);
+            supplier = newSupplier(nit, name.isEmpty() ? Long.toString(nit) : name);
+            byNit.put(nit, supplier);
+            dirty = true;
+        }
+        return supplier;
+    }
+
+    private static Supplier newSupplier(long nit, String name) {
+        return new Supplier(nit, checkDigit(nit), Long.toString(nit), name);
+    }
+
+    /**
+     * Número base del NIT: los dígitos antes del guion del dígito de
+     * verificación, sin puntos ni espacios. -1 si no es un NIT (sin dígitos,
+     * otros caracteres o más de 15 dígitos).
+     */
+    static long baseNit(String raw) {
+        int end = checkDigitSeparator(raw);
+        if (end < 0) {
+            end = raw.length();
+        }
+        long nit = 0;
+        int digits = 0;
+        for (int i = 0; i < end; i++) {
+            char c = raw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > DV_WEIGHTS.length) {
+                    return -1;
+                }
+                nit = nit * 10 + (c - '0');
+            } else if (c != '.' && c != ',' && !Character.isWhitespace(c)) {
+                return -1;
+            }
+        }
+        return digits == 0 ? -1 : nit;
+    }
+
+    /**
+     * "9001234568" → 900123456: NIT de persona jurídica (nueve dígitos, 8xx o
+     * 9xx) con el dígito de verificación pegado sin guion. Se decide sólo con el
+     * número, sin importar qué forma llegó primero; una cédula de diez dígitos
+     * empieza por 1 y queda igual.
+     */
+    static long withoutGluedCheckDigit(long nit) {
+        long base = nit / 10;
+        return base >= 800_000_000L && base <= 999_999_999L && checkDigit(base) == nit % 10 ? base : nit;
+    }
+
+    /** Dígito de verificación de la DIAN (módulo 11 con los pesos oficiales). */
+    static int checkDigit(long nit) {
+        int sum = 0;
+        for (int i = 0; nit > 0; i++, nit /= 10) {
+            sum += (int) (nit % 10) * DV_WEIGHTS[i];
+        }
+        int r = sum % 11;
+        return r >= 2 ? 11 - r : r;
+    }
+
+    /** Dígito escrito después del guion, o -1 si el texto no lo trae. */
+    private static int declaredCheckDigit(String raw) {
+        int dash = checkDigitSeparator(raw);
+        return dash < 0 ? -1 : raw.charAt(raw.length() - 1 - trailingSpaces(raw)) - '0';
+    }
+
+    /** Posición del guion que separa el dígito de verificación ("...456-8", "...456 - 8"), o -1. */
+    private static int checkDigitSeparator(String raw) {
+        int i = raw.length() - 1 - trailingSpaces(raw);
+        if (i < 1 || raw.charAt(i) < '0' || raw.charAt(i) > '9') {
+            return -1;
+        }
+        i--;
+        while (i >= 0 && Character.isWhitespace(raw.charAt(i))) {
+            i--;
+        }
+        return i >= 0 && raw.charAt(i) == '-' ? i : -1;
+    }
+
+    private static int trailingSpaces(String raw) {
+        int n = 0;
+        while (n < raw.length() && Character.isWhitespace(raw.charAt(raw.length() - 1 - n))) {
+            n++;
+        }
+        return n;
+    }
+
+    /** Mayúsculas, sin espacios al inicio ni al final y con los espacios internos reducidos a uno. */
+    static String normalizeName(String raw) {
+        if (raw == null) {
+            return "";
+        }
+        return String.join(" ", raw.trim().split("\\s+")).toUpperCase(Locale.ROOT);
+    }
+}
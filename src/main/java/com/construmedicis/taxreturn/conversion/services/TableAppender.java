@@ -0,0 +1,29 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.usermodel.Row;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * Destino de las filas de facturas dentro de la tabla de retenciones.
+ */
+interface TableAppender extends AutoCloseable {
+
+    Row append(Consumer<Row> rowFiller) throws IOException;
+
+    /**
+     * Deja la fila de TOTALES debajo de los datos y ajusta la tabla.
+     */
+    void finish();
+
+    /**
+     * Guarda el libro completo (con las filas añadidas) en {@code out}.
+     */
+    void write(OutputStream out) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,270 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFTable;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTable;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTableColumn;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTTableColumns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inserta filas en la tabla de retenciones justo encima de la fila de TOTALES.
+ *
+ * La fila de totales y la geometría de la tabla se calculan una sola vez al
+ * crear el appender. Cada {@link #append} escribe una fila de datos en O(1) y
+ * {@link #finish} mueve los totales a su posición final y actualiza el área de
+ * la tabla, el AutoFilter y las columnas una única vez para todo el lote. El
+ * resultado es el mismo que insertar fila por fila moviendo los totales en
+ * cada paso. Los rangos de las fórmulas de totales que terminaban en la última
+ * fila de datos se extienden hasta la nueva última fila.
+ */
+class TableRowAppender implements TableAppender {
+
+    // Celda o área A1 de la misma hoja: lo que va después de '!' es de otra hoja y no se toca
+    private static final Pattern CELL_REF = Pattern.compile(
+            "(?<![A-Za-z0-9_.!$])(\\$?[A-Z]{1,3}\\$?)(\\d+)(?::(\\$?[A-Z]{1,3}\\$?)(\\d+))?(?![A-Za-z0-9_(!])");
+
+    private final XSSFSheet sheet;
+    private final XSSFTable table;
+    private final CellReference start;
+    private final int lastTableCol;
+    private final int totalsRowIndex;
+    private final CellStyleRegistry styles;
+
+    // Copia de la fila de TOTALES original (estilo + valor por columna)
+    private final RowSnapshot totals;
+
+    private int appended = 0;
+
+    TableRowAppender(XSSFSheet sheet, XSSFTable table, String totalsLabel, CellStyleRegistry styles) {
+        this.sheet = sheet;
+        this.styles = styles;
+        this.table = table;
+        this.start = table.getStartCellReference();
+        this.lastTableCol = table.getEndCellReference().getCol();
+
+        // Encontrar la fila de TOTALES en la hoja (una sola vez por lote)
+        this.totalsRowIndex = findTotalsRow(sheet, totalsLabel);
+        if (totalsRowIndex == -1) {
+            throw new IllegalStateException("No se encontró la fila de TOTALES");
+        }
+
+        this.totals = new RowSnapshot(sheet.getRow(totalsRowIndex));
+    }
+
+    /**
+     * Escribe una fila de datos en la posición que ocupaba la fila de totales
+     * (desplazada por las filas ya añadidas) y copia el estilo de la fila
+     * anterior.
+     */
+    @Override
+    public Row append(Consumer<Row> rowFiller) {
+        int newRowIndex = totalsRowIndex + appended;
+
+        Row newRow;
+        if (appended == 0) {
+            // La fila original de totales se reutiliza como primera fila de datos
+            newRow = sheet.getRow(newRowIndex);
+            clearRow(newRow);
+        } else {
+            // Fila nueva con el formato (vacío) de la fila de totales
+            newRow = sheet.createRow(newRowIndex);
+            totals.writeBlankTo(newRow);
+        }
+
+        // Fila anterior a la fila nueva (para copiar estilo)
+        Row styleSource = sheet.getRow(newRowIndex - 1);
+
+        // Llenar la fila con los datos
+        rowFiller.accept(newRow);
+
+        // Copiar estilos
+        if (styleSource != null) {
+            for (int c = 0; c <= lastTableCol; c++) {
+                Cell src = styleSource.getCell(c);
+                Cell dst = newRow.getCell(c);
+                if (src != null && dst != null) {
+                    dst.setCellStyle(styles.reuse(src.getCellStyle()));
+                }
+            }
+        }
+
+        appended++;
+        return newRow;
+    }
+
+    /**
+     * Escribe la fila de totales debajo de la última fila añadida y ajusta la
+     * tabla para que cubra todas las filas de datos.
+     */
+    @Override
+    public void finish() {
+        if (appended == 0) {
+            return;
+        }
+
+        Row newTotalsRow = sheet.createRow(totalsRowIndex + appended);
+        totals.writeTo(newTotalsRow);
+        for (Cell cell : newTotalsRow) {
+            if (cell.getCellType() == CellType.FORMULA) {
+                cell.setCellFormula(shiftRows(cell.getCellFormula(), totalsRowIndex, appended, true));
+            }
+        }
+
+        // Expandir la tabla evitando incluir la fila de totales
+        int lastDataRow = totalsRowIndex + appended - 1;
+        AreaReference newArea = new AreaReference(
+                start,
+                new CellReference(lastDataRow, lastTableCol),
+                sheet.getWorkbook().getSpreadsheetVersion());
+        updateTableArea(sheet, table, newArea);
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        sheet.getWorkbook().write(out);
+    }
+
+    /**
+     * Ajusta el área de la tabla, su AutoFilter y la lista de columnas. La fila de
+     * encabezado se lee de {@code sheet}, que debe ser la hoja XSSF original.
+     */
+    static void updateTableArea(XSSFSheet sheet, XSSFTable table, AreaReference newArea) {
+        CellReference start = table.getStartCellReference();
+
+        // ⬅️ OBLIGATORIO: actualizar área de la tabla
+        table.setArea(newArea);
+
+        // --- actualizar de forma segura el área de la tabla (evitar que Excel quite la
+        // tabla) ---
+        CTTable ctTable = table.getCTTable();
+        String newRef = newArea.formatAsString();
+
+        // 1) actualizar la referencia principal del CTTable
+        ctTable.setRef(newRef);
+
+        // 2) asegurar AutoFilter dentro de CTTable
+        if (ctTable.getAutoFilter() == null) {
+            ctTable.addNewAutoFilter();
+        }
+        ctTable.getAutoFilter().setRef(newRef);
+        ctTable.setHeaderRowCount(1);
+
+        // 3) garantizar que tableColumns tenga la cuenta y columnas correctas
+        int startCol = start.getCol();
+        int endCol = newArea.getLastCell().getCol();
+        int colCount = endCol - startCol + 1;
+
+        CTTableColumns ctCols = ctTable.getTableColumns();
+        if (ctCols == null) {
+            ctCols = ctTable.addNewTableColumns();
+        }
+        ctCols.setCount(colCount);
+
+        // eliminar entradas existentes y recrearlas (más seguro que intentar editarlas)
+        while (ctCols.sizeOfTableColumnArray() > 0) {
+            ctCols.removeTableColumn(0);
+        }
+
+        // fila de encabezado (asumo que start.getRow() es la fila de headers)
+        Row headerRow = sheet.getRow(start.getRow());
+        for (int i = 0; i < colCount; i++) {
+            CTTableColumn newCol = ctCols.addNewTableColumn();
+            newCol.setId(i + 1);
+
+            String headerName = null;
+            if (headerRow != null) {
+                Cell h = headerRow.getCell(startCol + i);
+                if (h != null) {
+                    if (h.getCellType() == CellType.STRING) {
+                        headerName = h.getStringCellValue();
+                    } else {
+                        headerName = h.toString();
+                    }
+                }
+            }
+            if (headerName == null || headerName.isBlank()) {
+                headerName = "Column" + (i + 1);
+            }
+            newCol.setName(headerName);
+        }
+    }
+
+    /**
+     * Ajusta las referencias de {@code text} (una fórmula o un rango como
+     * {@code A1:L5}) a {@code count} filas insertadas en {@code insertRow} (base
+     * 0): las filas desde la inserción bajan. Con {@code extendRangesAbove}, los
+     * rangos que terminaban justo encima (la última fila de datos) se extienden
+     * hasta la nueva última fila, como necesitan las fórmulas de totales. Lo que
+     * va entre comillas (textos y nombres de hoja) no se toca.
+     */
+    static String shiftRows(String text, int insertRow, int count, boolean extendRangesAbove) {
+        if (count == 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length() + 8);
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\'') {
+                int close = text.indexOf(c, i + 1);
+                int end = close < 0 ? text.length() : close + 1;
+                out.append(text, i, end);
+                i = end;
+                continue;
+            }
+            int next = i;
+            while (next < text.length() && text.charAt(next) != '"' && text.charAt(next) != '\'') {
+                next++;
+            }
+            Matcher m = CELL_REF.matcher(text.substring(i, next));
+            while (m.find()) {
+                int first = Integer.parseInt(m.group(2)) - 1;
+                StringBuilder ref = new StringBuilder(m.group(1)).append(shift(first, insertRow, count) + 1);
+                if (m.group(3) != null) {
+                    int last = Integer.parseInt(m.group(4)) - 1;
+                    int shifted = extendRangesAbove && last == insertRow - 1 && first <= last ? last + count
+                            : shift(last, insertRow, count);
+                    ref.append(':').append(m.group(3)).append(shifted + 1);
+                }
+                m.appendReplacement(out, Matcher.quoteReplacement(ref.toString()));
+            }
+            m.appendTail(out);
+            i = next;
+        }
+        return out.toString();
+    }
+
+    private static int shift(int row, int insertRow, int count) {
+        return row >= insertRow ? row + count : row;
+    }
+
+    private static void clearRow(Row row) {
+        for (Cell cell : row) {
+            cell.setBlank();
+        }
+    }
+
+    static int findTotalsRow(Sheet sheet, String totalsLabel) {
+        for (Row row : sheet) {
+            for (Cell cell : row) {
+                if (cell.getCellType() == CellType.STRING &&
+                        cell.getStringCellValue().trim().equalsIgnoreCase(totalsLabel)) {
+                    return row.getRowNum();
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -1,12 +1,17 @@
 package com.construmedicis.taxreturn.extraction.controller;
 
+import com.construmedicis.taxreturn.extraction.models.MailboxResult;
 import com.construmedicis.taxreturn.extraction.services.IExctractionService;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+
 @RestController
 @RequestMapping("/extraction")
 @CrossOrigin(origins = "*", allowedHeaders = "*")
@@ -21,7 +26,7 @@ public class ExtractionController {
     public ResponseEntity<?> extractInvoices(String query, String outputDir) {
         try {
             iExctractionService.extractInvoices("me", query, outputDir);
-            return ResponseEntity.ok("Extraction started");
+            return ResponseEntity.ok("Extraction finished");
         } catch (IllegalStateException ise) {
             // Not authenticated or user-facing issue
             return ResponseEntity.status(503).body(ise.getMessage());
@@ -30,4 +35,39 @@ public class ExtractionController {
             return ResponseEntity.status(500).body(ex.getMessage());
         }
     }
+
+    @GetMapping("/syncInvoices")
+    public ResponseEntity<?> syncInvoices(String label, String outputDir) {
+        try {
+            int downloaded = iExctractionService.syncInvoices("me", label, outputDir);
+            return ResponseEntity.ok("Synced " + downloaded + " messages");
+        } catch (IllegalStateException ise) {
+            return ResponseEntity.status(503).body(ise.getMessage());
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return ResponseEntity.status(500).body(ex.getMessage());
+        }
+    }
+
+    /**
+     * Descarga varios buzones a la vez, cada uno en la carpeta de su empresa.
+     * {@code accounts} (separadas por coma) es opcional: sin él se descargan todas
+     * las cuentas registradas.
+     */
+    @GetMapping("/extractMailboxes")
+    public ResponseEntity<?> extractMailboxes(String query, String outputDir,
+            @RequestParam(required = false) List<String> accounts) {
+        try {
+            List<MailboxResult> results = iExctractionService.extractMailboxes(accounts, query, outputDir,
+                    ProgressListener.NONE);
+            return ResponseEntity.ok(results);
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return ResponseEntity.status(500).body(ex.getMessage());
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package com.construmedicis.taxreturn.extraction.models;
+
+/**
+ * Resultado de un buzón dentro de una extracción de varias cuentas:
+ * {@code folder} es la carpeta de la empresa donde quedaron sus adjuntos y
+ * {@code error} es null si la cuenta terminó bien.
+ */
+public record MailboxResult(
+        String accountId,
+        String company,
+        String folder,
+        int messages,
+        String error) {
+
+    public boolean succeeded() {
+        return error == null;
+    }
+}
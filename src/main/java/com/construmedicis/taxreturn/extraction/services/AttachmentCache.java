@@ -0,0 +1,329 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caché en disco de los adjuntos ya descargados de Gmail, direccionada por
+ * contenido.
+ *
+ * Cada adjunto se guarda una sola vez en {@code blobs/<sha256>}; el índice
+ * ({@code index.tsv}) relaciona la clave {@code <messageId>/<partId>/<tamaño>}
+ * con su hash. Así, volver a correr un rango de fechas que se solapa con uno
+ * anterior no vuelve a pedir esos adjuntos a Gmail, y el mismo ZIP enviado a
+ * varios destinatarios ocupa espacio una sola vez.
+ *
+ * Se usa el partId y no el attachmentId porque Gmail cambia el attachmentId en
+ * cada consulta del mensaje; los mensajes son inmutables, así que el partId
+ * identifica el mismo contenido. El tamaño sirve de verificación adicional.
+ *
+ * Cuando el total supera {@code maxBytes} se borran los contenidos usados hace
+ * más tiempo (LRU) junto con las claves que apuntaban a ellos.
+ */
+class AttachmentCache {
+
+    private static final String INDEX = "index.tsv";
+    private static final String BLOBS = "blobs";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+    private final Path blobsDir;
+    private final long maxBytes;
+    // hash -> tamaño, en orden de uso (el primero es el que lleva más tiempo sin usarse)
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, String> keys = new HashMap<>();
+    private long totalBytes;
+    private boolean dirty;
+
+    private AttachmentCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.blobsDir = dir.resolve(BLOBS);
+        this.maxBytes = maxBytes;
+    }
+
+    static AttachmentCache open(Path dir, long maxBytes) throws IOException {
+        AttachmentCache cache = new AttachmentCache(dir, maxBytes);
+        Files.createDirectories(cache.blobsDir);
+        cache.load();
+        return cache;
+    }
+
+    static String key(String messageId, String partId, long size) {
+        return messageId + "/" + partId + "/" + size;
+    }
+
+    /**
+     * Abre el contenido guardado para la clave, o null si no está (o si el
+     * archivo ya no coincide con el tamaño esperado).
+     */
+    synchronized InputStream open(String key, long expectedSize) {
+        String sha = keys.get(key);
+        if (sha == null) {
+            return null;
+        }
+        Long size = blobs.get(sha); // marca el contenido como recién usado
+        Path blob = blobsDir.resolve(sha);
+        try {
+            if (size == null || size != expectedSize || Files.size(blob) != expectedSize) {
+                forget(sha);
+                return null;
+            }
+            // se abre dentro del lock para que una evicción no lo borre antes
+            return Files.newInputStream(blob);
+        } catch (IOException ex) {
+            forget(sha);
+            return null;
+        }
+    }
+
+    /** Guarda un adjunto ya descargado por completo. */
+    void put(String key, byte[] content) throws IOException {
+        if (content.length > maxBytes) {
+            return;
+        }
+        try (Pending pending = begin(key)) {
+            try (InputStream in = pending.capture(new ByteArrayInputStream(content))) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            pending.commit();
+        }
+    }
+
+    /**
+     * Empieza a guardar un adjunto que se está leyendo en streaming: los bytes
+     * que pasan por {@link Pending#capture} se copian a un temporal y
+     * {@link Pending#commit} lo registra. Si no se llama a commit, close borra el
+     * temporal.
+     */
+    Pending begin(String key) throws IOException {
+        return new Pending(key, Files.createTempFile(blobsDir, "att-", TMP_SUFFIX));
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Escribe el índice en un temporal y lo mueve encima del anterior, en orden
+     * de uso para conservar el LRU entre corridas.
+     */
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path index = dir.resolve(INDEX);
+        Path tmp = dir.resolve(INDEX + TMP_SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> blob : blobs.entrySet()) {
+                writer.write("blob\t" + blob.getKey() + "\t" + blob.getValue());
+                writer.newLine();
+            }
+            for (Map.Entry<String, String> entry : keys.entrySet()) {
+                writer.write("key\t" + entry.getKey() + "\t" + entry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private synchronized void register(String key, String sha, long size, Path tmp) throws IOException {
+        if (!blobs.containsKey(sha)) {
+            try {
+                Files.move(tmp, blobsDir.resolve(sha), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ex) {
+                // quedó de una corrida anterior sin registrar: el contenido es el mismo
+                Files.deleteIfExists(tmp);
+            }
+            blobs.put(sha, size);
+            totalBytes += size;
+        } else {
+            Files.deleteIfExists(tmp); // contenido duplicado (mismo ZIP en otro mensaje)
+            blobs.get(sha);
+        }
+        keys.put(key, sha);
+        dirty = true;
+        evict(sha);
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> eldest = blobs.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> blob = eldest.next();
+            if (blob.getKey().equals(keep)) {
+                continue;
+            }
+            eldest.remove();
+            totalBytes -= blob.getValue();
+            keys.values().removeIf(blob.getKey()::equals);
+            delete(blobsDir.resolve(blob.getKey()));
+            dirty = true;
+        }
+    }
+
+    private void forget(String sha) {
+        Long size = blobs.remove(sha);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        keys.values().removeIf(sha::equals);
+        delete(blobsDir.resolve(sha));
+        dirty = true;
+    }
+
+    private void load() throws IOException {
+        Path index = dir.resolve(INDEX);
+        if (Files.exists(index)) {
+            try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length != 3) {
+                        continue; // línea corrupta: ese adjunto se vuelve a descargar
+                    }
+                    if (f[0].equals("blob") && f[2].matches("\\d+") && Files.exists(blobsDir.resolve(f[1]))) {
+                        long size = Long.parseLong(f[2]);
+                        blobs.put(f[1], size);
+                        totalBytes += size;
+                    } else if (f[0].equals("key") && blobs.containsKey(f[2])) {
+                        keys.put(f[1], f[2]);
+                    }
+                }
+            }
+        }
+        // contenidos sin registrar (corrida interrumpida) y temporales a medias
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(blobsDir)) {
+            for (Path file : files) {
+                if (!blobs.containsKey(file.getFileName().toString())) {
+                    delete(file);
+                }
+            }
+        }
+        evict(null);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // en Windows no se puede borrar mientras otro hilo lo lee; se limpia al abrir
+            System.out.println("Caché de adjuntos: no se pudo borrar " + file + " (" + ex.getMessage() + ")");
+        }
+    }
+
+    /** Adjunto que se está guardando mientras se descarga. */
+    final class Pending implements Closeable {
+
+        private final String key;
+        private final Path tmp;
+        private final MessageDigest digest;
+        private final OutputStream out;
+        private InputStream captured;
+        private long size;
+        private boolean committed;
+
+        private Pending(String key, Path tmp) throws IOException {
+            this.key = key;
+            this.tmp = tmp;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 no disponible", e);
+            }
+            this.out = new DigestOutputStream(Files.newOutputStream(tmp), digest);
+        }
+
+        /**
+         * Envuelve el stream del adjunto: todo lo que se lea de él queda en la
+         * caché. Cerrar el envoltorio no cierra {@code in}, para que commit pueda
+         * leer lo que el consumidor dejó sin leer (por ejemplo, el directorio
+         * central de un ZIP).
+         */
+        InputStream capture(InputStream in) {
+            captured = new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        out.write(b);
+                        size++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        out.write(b, off, n);
+                        size += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // lo saltado también tiene que quedar en la copia
+                    byte[] buffer = new byte[(int) Math.min(8192, Math.max(1, n))];
+                    long skipped = 0;
+                    while (skipped < n) {
+                        int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                        if (r < 0) {
+                            break;
+                        }
+                        skipped += r;
+                    }
+                    return skipped;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            return captured;
+        }
+
+        /** Termina de leer el adjunto y lo registra en la caché. */
+        void commit() throws IOException {
+            captured.transferTo(OutputStream.nullOutputStream());
+            out.close();
+            if (size > maxBytes) {
+                return;
+            }
+            register(key, HexFormat.of().formatHex(digest.digest()), size, tmp);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
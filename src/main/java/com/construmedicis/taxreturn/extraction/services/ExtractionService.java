@@ -1,112 +1,831 @@
 package com.construmedicis.taxreturn.extraction.services;
 
 import com.google.api.services.gmail.Gmail;
+import com.construmedicis.taxreturn.extraction.models.MailboxResult;
+import com.construmedicis.taxreturn.utils.auth.GmailAccount;
 import com.construmedicis.taxreturn.utils.auth.GmailAuthService;
+import com.construmedicis.taxreturn.utils.metrics.RunTimings;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryLabelAdded;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.api.services.gmail.model.ListLabelsResponse;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
 import com.google.api.services.gmail.model.MessagePartBody;
-import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
-import org.apache.commons.compress.archivers.zip.ZipFile;
+import com.google.api.client.http.HttpResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class ExtractionService implements IExctractionService {
 
     private final GmailAuthService gmailAuthService;
 
+    // Mensajes que se descargan a la vez (cada uno con sus adjuntos)
+    @Value("${extraction.parallelism:8}")
+    private int parallelism = 8;
+
+    // Reintentos ante cuota excedida / errores transitorios de Gmail
+    @Value("${extraction.max-retries:5}")
+    private int maxRetries = 5;
+
+    @Value("${extraction.initial-backoff-ms:500}")
+    private long initialBackoffMs = 500;
+
+    // Llamadas agrupadas en cada petición batch a Gmail (máximo 100)
+    @Value("${extraction.batch-size:50}")
+    private int batchSize = 50;
+
+    // Adjuntos de este tamaño o mayores se descargan fuera del batch y se
+    // decodifican en streaming (-1 = nunca)
+    @Value("${extraction.stream-threshold-bytes:1048576}")
+    private long streamThresholdBytes = 1_048_576;
+
+    // Archivo con el último historyId sincronizado por etiqueta
+    @Value("${extraction.checkpoint-file:tokens/gmail-sync.properties}")
+    private String checkpointFile = "tokens/gmail-sync.properties";
+
+    // Buzones que se descargan a la vez en una extracción de varias cuentas
+    @Value("${extraction.account-parallelism:4}")
+    private int accountParallelism = 4;
+
+    // Unidades de cuota de Gmail por segundo y por cuenta (Gmail corta en 250;
+    // 0 = sin límite)
+    @Value("${extraction.account.quota-units-per-second:200}")
+    private double quotaUnitsPerSecond = 200;
+
+    // Entradas de los ZIP que se extraen: "xml" o "xml-pdf"
+    @Value("${extraction.zip.entries:xml-pdf}")
+    private String zipEntries = "xml-pdf";
+
+    // Hilos que descomprimen a la vez las entradas de un mismo ZIP (1 = secuencial)
+    @Value("${extraction.zip.parallelism:4}")
+    private int zipParallelism = 4;
+
+    // Caché en disco de adjuntos ya descargados (vacío = sin caché) y su tope
+    @Value("${extraction.cache.dir:}")
+    private String cacheDir = "";
+
+    @Value("${extraction.cache.max-mb:2048}")
+    private long cacheMaxMb = 2048;
+
+    // Solo se piden los datos de los adjuntos, no el mensaje completo
+    static final String MESSAGE_FIELDS = "id,payload(parts(partId,filename,body(attachmentId,size)))";
+    static final String ATTACHMENT_FIELDS = "data";
+
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary batchAttachmentBytes;
+    private final DistributionSummary streamedAttachmentBytes;
+    private final Counter xmlEntries;
+    private final Counter pdfEntries;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private AttachmentCache attachmentCache;
+    private ZipEntryExtractor zipExtractor;
+    private final Counter unsafeEntries;
+    private final Map<String, QuotaRateLimiter> quotas = new ConcurrentHashMap<>();
+
     // Inyecta el gestor de autenticación para poder trabajar aun cuando no hay
     // credenciales
     public ExtractionService(GmailAuthService gmailAuthService) {
+        this(gmailAuthService, Metrics.globalRegistry);
+    }
+
+    @Autowired
+    public ExtractionService(GmailAuthService gmailAuthService, MeterRegistry meterRegistry) {
         this.gmailAuthService = gmailAuthService;
+        this.meterRegistry = meterRegistry;
+        this.batchAttachmentBytes = attachmentBytes(meterRegistry, "batch");
+        this.streamedAttachmentBytes = attachmentBytes(meterRegistry, "stream");
+        this.xmlEntries = zipEntries(meterRegistry, "xml");
+        this.pdfEntries = zipEntries(meterRegistry, "pdf");
+        this.unsafeEntries = zipEntries(meterRegistry, "unsafe");
+        this.cacheHits = cacheLookups(meterRegistry, "hit");
+        this.cacheMisses = cacheLookups(meterRegistry, "miss");
+    }
+
+    private static DistributionSummary attachmentBytes(MeterRegistry registry, String transfer) {
+        return DistributionSummary.builder("taxreturn.gmail.attachment.bytes")
+                .description("Tamaño de los adjuntos descargados")
+                .baseUnit("bytes")
+                .tag("transfer", transfer)
+                .register(registry);
+    }
+
+    private static Counter zipEntries(MeterRegistry registry, String type) {
+        return Counter.builder("taxreturn.zip.entries")
+                .description("Entradas extraídas de los ZIP de facturas")
+                .tag("type", type)
+                .register(registry);
+    }
+
+    private static Counter cacheLookups(MeterRegistry registry, String result) {
+        return Counter.builder("taxreturn.gmail.attachment.cache")
+                .description("Adjuntos buscados en la caché local antes de pedirlos a Gmail")
+                .tag("result", result)
+                .register(registry);
+    }
+
+    /**
+     * Caché compartida por todas las corridas (una sola instancia para que dos
+     * trabajos a la vez no se pisen el índice); null si está desactivada.
+     */
+    private synchronized AttachmentCache attachmentCache() throws IOException {
+        if (cacheDir == null || cacheDir.isBlank() || cacheMaxMb <= 0) {
+            return null;
+        }
+        if (attachmentCache == null) {
+            attachmentCache = AttachmentCache.open(Path.of(cacheDir), cacheMaxMb * 1024 * 1024);
+            System.out.println("Caché de adjuntos: " + attachmentCache.size() + " adjuntos, "
+                    + attachmentCache.totalBytes() / (1024 * 1024) + " MB en " + cacheDir);
+        }
+        return attachmentCache;
+    }
+
+    /** Limitador de cuota de la cuenta, compartido por todas sus corridas. */
+    private QuotaRateLimiter quota(String accountId) {
+        if (quotaUnitsPerSecond <= 0) {
+            return null;
+        }
+        return quotas.computeIfAbsent(accountId, id -> new QuotaRateLimiter(quotaUnitsPerSecond));
     }
 
     @Override
-    public void extractInvoices(String userId, String query, String outputDir) throws Exception {
+    public void extractInvoices(String userId, String query, String outputDir, ProgressListener progress,
+            InvoiceXmlSink xmlSink) throws Exception {
+        download(requireGmail(), quota(GmailAuthService.DEFAULT_ACCOUNT), userId, query, outputDir, progress,
+                xmlSink, "Extracción tiempos");
+    }
+
+    private int download(Gmail gmail, QuotaRateLimiter quota, String userId, String query, String outputDir,
+            ProgressListener progress, InvoiceXmlSink xmlSink, String timingsTitle) throws Exception {
         // Buscar mensajes con la query (ej: "label:facturas after:2025/08/01
         // before:2025/08/31")
-        Gmail gmail = gmailAuthService.getGmail();
+        RunTimings timings = new RunTimings(timingsTitle);
+        GmailRetrier retrier = new GmailRetrier(maxRetries, initialBackoffMs, meterRegistry, timings, quota);
+        int messages;
+
+        try (DownloadRun run = new DownloadRun(gmail, retrier, userId, outputDir, progress, xmlSink)) {
+            progress.stage("Buscando mensajes");
+            listByQuery(gmail, retrier, userId, query, run);
+            progress.stage("Descargando adjuntos");
+            messages = run.await();
+        }
+        System.out.println(timings.summary());
+        return messages;
+    }
 
+    @Override
+    public List<MailboxResult> extractMailboxes(List<String> accountIds, String query, String outputDir,
+            ProgressListener progress) throws Exception {
+        List<GmailAccount> accounts = resolveAccounts(accountIds);
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(accounts.size(), Math.max(1, accountParallelism)),
+                r -> {
+                    Thread t = new Thread(r, "gmail-account-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        try {
+            List<Future<MailboxResult>> tasks = new ArrayList<>();
+            for (GmailAccount account : accounts) {
+                tasks.add(pool.submit(() -> extractMailbox(account, query, outputDir, progress)));
+            }
+            List<MailboxResult> results = new ArrayList<>();
+            for (Future<MailboxResult> task : tasks) {
+                results.add(task.get());
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private List<GmailAccount> resolveAccounts(List<String> accountIds) throws IOException {
+        if (accountIds == null || accountIds.isEmpty()) {
+            List<GmailAccount> registered = gmailAuthService.listAccounts();
+            if (registered.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "No hay cuentas de Gmail registradas. Registre las cuentas en /auth/accounts.");
+            }
+            return registered;
+        }
+        List<GmailAccount> accounts = new ArrayList<>();
+        for (String accountId : new LinkedHashSet<>(accountIds)) {
+            GmailAccount account = gmailAuthService.getAccount(accountId);
+            if (account == null) {
+                throw new IllegalArgumentException("Cuenta de Gmail no registrada: " + accountId);
+            }
+            accounts.add(account);
+        }
+        return accounts;
+    }
+
+    /**
+     * Descarga un buzón en la carpeta de su empresa. Varias cuentas de la misma
+     * empresa comparten carpeta.
+     */
+    private MailboxResult extractMailbox(GmailAccount account, String query, String outputDir,
+            ProgressListener progress) {
+        Path folder = Path.of(outputDir, companyFolder(account));
+        try {
+            Gmail gmail = gmailAuthService.getGmail(account.accountId());
+            if (gmail == null) {
+                throw new IllegalStateException("La cuenta " + account.accountId()
+                        + " no está autenticada. Inicie su autenticación y vuelva a intentarlo.");
+            }
+            Files.createDirectories(folder);
+            int messages = download(gmail, quota(account.accountId()), "me", query, folder.toString(),
+                    companyProgress(account, progress), null, "Extracción " + account.accountId() + " tiempos");
+            return new MailboxResult(account.accountId(), account.company(), folder.toString(), messages, null);
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Extracción de " + account.accountId() + " fallida: " + ex.getMessage());
+            return new MailboxResult(account.accountId(), account.company(), folder.toString(), 0,
+                    ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage());
+        }
+    }
+
+    /** Nombre de carpeta válido en Windows a partir del nombre de la empresa. */
+    static String companyFolder(GmailAccount account) {
+        String name = account.company().replaceAll("[\\\\/:*?\"<>|]", "_").trim().replaceAll("[. ]+$", "");
+        return name.isEmpty() ? account.accountId() : name;
+    }
+
+    /** Mismo avance, con la empresa delante de la etapa para distinguir los buzones. */
+    private static ProgressListener companyProgress(GmailAccount account, ProgressListener progress) {
+        return new ProgressListener() {
+            @Override
+            public void filesDiscovered(int count) {
+                progress.filesDiscovered(count);
+            }
+
+            @Override
+            public void fileParsed() {
+                progress.fileParsed();
+            }
+
+            @Override
+            public void filesWritten(int count) {
+                progress.filesWritten(count);
+            }
+
+            @Override
+            public void fileFailed() {
+                progress.fileFailed();
+            }
+
+            @Override
+            public void bytesDownloaded(long bytes) {
+                progress.bytesDownloaded(bytes);
+            }
+
+            @Override
+            public void stage(String description) {
+                progress.stage(account.company() + ": " + description);
+            }
+        };
+    }
+
+    @Override
+    public int syncInvoices(String userId, String label, String outputDir, ProgressListener progress)
+            throws Exception {
+        Gmail gmail = requireGmail();
+        RunTimings timings = new RunTimings("Sincronización tiempos");
+        GmailRetrier retrier = new GmailRetrier(maxRetries, initialBackoffMs, meterRegistry, timings,
+                quota(GmailAuthService.DEFAULT_ACCOUNT));
+        SyncCheckpointStore checkpoints = SyncCheckpointStore.at(Path.of(checkpointFile));
+
+        String labelId = resolveLabelId(gmail, retrier, userId, label);
+        BigInteger since = checkpoints.get(userId, labelId);
+        BigInteger latest;
+        int downloaded;
+
+        try (DownloadRun run = new DownloadRun(gmail, retrier, userId, outputDir, progress, null)) {
+            progress.stage("Buscando mensajes nuevos");
+            latest = since == null ? null : listHistorySince(gmail, retrier, userId, labelId, since, run);
+            if (latest == null) {
+                // Sin checkpoint o vencido: el historyId se toma antes de listar para no
+                // perder mensajes que lleguen durante la descarga completa
+                latest = retrier.execute("profile.get", () -> gmail.users().getProfile(userId).execute()).getHistoryId();
+                System.out.println("Sincronización completa de la etiqueta " + label
+                        + (since == null ? " (sin checkpoint)" : " (checkpoint " + since + " vencido)"));
+                listByQuery(gmail, retrier, userId, "label:" + queryLabel(label), run);
+            }
+            progress.stage("Descargando adjuntos");
+            downloaded = run.await();
+        }
+
+        // Solo se avanza el checkpoint cuando todo se descargó bien
+        checkpoints.put(userId, labelId, latest);
+        System.out.println("Sincronización: " + downloaded + " mensajes nuevos, historyId " + latest);
+        System.out.println(timings.summary());
+        return downloaded;
+    }
+
+    private Gmail requireGmail() {
+        Gmail gmail = gmailAuthService.getGmail();
         if (gmail == null) {
             throw new IllegalStateException(
                     "No autenticado con Gmail. Inicie el proceso de autenticación y vuelva a intentarlo.");
         }
+        return gmail;
+    }
 
-        ListMessagesResponse response = gmail.users().messages().list(userId)
-                .setQ(query)
-                .execute();
+    private static void listByQuery(Gmail gmail, GmailRetrier retrier, String userId, String query,
+            DownloadRun run) throws Exception {
+        // Recorrer todas las páginas; cada bloque se descarga en el pool mientras se
+        // sigue paginando
+        String pageToken = null;
+        do {
+            String token = pageToken;
+            ListMessagesResponse response = retrier.execute("messages.list", () -> gmail.users().messages().list(userId)
+                    .setQ(query)
+                    .setPageToken(token)
+                    .execute());
 
-        if (response.getMessages() == null) {
-            System.out.println("No se encontraron mensajes.");
-            return;
+            if (response.getMessages() != null) {
+                List<String> ids = new ArrayList<>();
+                for (Message ref : response.getMessages()) {
+                    ids.add(ref.getId());
+                }
+                run.submit(ids);
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null && !pageToken.isEmpty());
+    }
+
+    /**
+     * Recorre users.history.list desde el checkpoint y encola los mensajes que
+     * llegaron con la etiqueta o a los que se les puso después. Devuelve el
+     * nuevo historyId, o null si Gmail ya no tiene historial desde ese punto
+     * (404) y hay que hacer sincronización completa.
+     */
+    private static BigInteger listHistorySince(Gmail gmail, GmailRetrier retrier, String userId, String labelId,
+            BigInteger since, DownloadRun run) throws Exception {
+        BigInteger latest = since;
+        String pageToken = null;
+        do {
+            String token = pageToken;
+            ListHistoryResponse response;
+            try {
+                response = retrier.execute("history.list", () -> gmail.users().history().list(userId)
+                        .setStartHistoryId(since)
+                        .setLabelId(labelId)
+                        .setHistoryTypes(List.of("messageAdded", "labelAdded"))
+                        .setPageToken(token)
+                        .execute());
+            } catch (GoogleJsonResponseException ex) {
+                if (ex.getStatusCode() == 404) {
+                    return null;
+                }
+                throw ex;
+            }
+
+            List<String> ids = new ArrayList<>();
+            if (response.getHistory() != null) {
+                for (History history : response.getHistory()) {
+                    if (history.getMessagesAdded() != null) {
+                        for (HistoryMessageAdded added : history.getMessagesAdded()) {
+                            ids.add(added.getMessage().getId());
+                        }
+                    }
+                    if (history.getLabelsAdded() != null) {
+                        for (HistoryLabelAdded added : history.getLabelsAdded()) {
+                            if (added.getLabelIds() != null && added.getLabelIds().contains(labelId)) {
+                                ids.add(added.getMessage().getId());
+                            }
+                        }
+                    }
+                }
+            }
+            run.submit(ids);
+            if (response.getHistoryId() != null) {
+                latest = response.getHistoryId();
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null && !pageToken.isEmpty());
+        return latest;
+    }
+
+    /**
+     * Busca el id de la etiqueta por nombre. En las búsquedas Gmail acepta el
+     * nombre con guiones en lugar de espacios, así que se aceptan ambas formas.
+     */
+    private static String resolveLabelId(Gmail gmail, GmailRetrier retrier, String userId, String label)
+            throws Exception {
+        ListLabelsResponse response = retrier.execute("labels.list",
+                () -> gmail.users().labels().list(userId).execute());
+        if (response.getLabels() != null) {
+            for (Label candidate : response.getLabels()) {
+                if (candidate.getId().equalsIgnoreCase(label)
+                        || queryLabel(candidate.getName()).equalsIgnoreCase(queryLabel(label))) {
+                    return candidate.getId();
+                }
+            }
         }
+        throw new IllegalArgumentException("No existe la etiqueta de Gmail: " + label);
+    }
+
+    private static String queryLabel(String label) {
+        return label.trim().replace(' ', '-');
+    }
 
-        for (Message msgRef : response.getMessages()) {
-            Message message = gmail.users().messages().get(userId, msgRef.getId()).execute();
+    /**
+     * Descarga en el pool los bloques de mensajes que se le van entregando y
+     * evita pedir dos veces el mismo mensaje dentro de una corrida.
+     */
+    private final class DownloadRun implements AutoCloseable {
 
-            if (message.getPayload().getParts() != null) {
+        private final Gmail gmail;
+        private final GmailRetrier retrier;
+        private final GmailBatcher batcher;
+        private final String userId;
+        private final String outputDir;
+        private final ExecutorService executor = newExecutor();
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final Set<String> seen = new HashSet<>();
+        private final ProgressListener progress;
+        private final InvoiceXmlSink xmlSink;
+        private final AttachmentCache cache;
+
+        DownloadRun(Gmail gmail, GmailRetrier retrier, String userId, String outputDir,
+                ProgressListener progress, InvoiceXmlSink xmlSink) throws IOException {
+            this.cache = attachmentCache();
+            this.progress = progress;
+            this.xmlSink = xmlSink;
+            this.gmail = gmail;
+            this.retrier = retrier;
+            this.batcher = new GmailBatcher(gmail, retrier, batchSize, maxRetries);
+            this.userId = userId;
+            this.outputDir = outputDir;
+        }
+
+        void submit(List<String> messageIds) {
+            List<String> fresh = new ArrayList<>();
+            for (String id : messageIds) {
+                if (seen.add(id)) {
+                    fresh.add(id);
+                }
+            }
+            // cada bloque de ids se resuelve con un batch de mensajes y otro de adjuntos
+            for (int from = 0; from < fresh.size(); from += batcher.batchSize()) {
+                List<String> ids = fresh.subList(from, Math.min(fresh.size(), from + batcher.batchSize()));
+                tasks.add(executor.submit(() -> {
+                    try {
+                        processMessages(gmail, retrier, batcher, cache, userId, ids, outputDir, progress, xmlSink);
+                    } catch (Exception ex) {
+                        progress.fileFailed();
+                        throw ex;
+                    }
+                    return null;
+                }));
+            }
+        }
+
+        int await() throws Exception {
+            if (tasks.isEmpty()) {
+                System.out.println("No se encontraron mensajes.");
+                return 0;
+            }
+            for (Future<?> task : tasks) {
+                ExtractionService.await(task);
+            }
+            System.out.println("Extracción: " + seen.size() + " mensajes procesados en " + tasks.size()
+                    + " bloques");
+            return seen.size();
+        }
+
+        @Override
+        public void close() {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+            executor.shutdownNow();
+            if (cache != null) {
+                try {
+                    cache.save();
+                } catch (IOException ex) {
+                    // sin índice la próxima corrida vuelve a descargar: no se aborta por eso
+                    System.out.println("Caché de adjuntos: no se pudo guardar el índice (" + ex.getMessage() + ")");
+                }
+            }
+        }
+    }
+
+    private void processMessages(Gmail gmail, GmailRetrier retrier, GmailBatcher batcher, AttachmentCache cache,
+            String userId, List<String> messageIds, String outputDir, ProgressListener progress,
+            InvoiceXmlSink xmlSink) throws Exception {
+        Map<String, Message> messages = batcher.execute("messages.get", messageIds,
+                id -> gmail.users().messages().get(userId, id).setFields(MESSAGE_FIELDS));
+
+        // Adjuntos de todos los mensajes del bloque, en el orden en que llegaron
+        List<AttachmentRef> found = new ArrayList<>();
+        for (Message message : messages.values()) {
+            if (message.getPayload() != null && message.getPayload().getParts() != null) {
                 for (MessagePart part : message.getPayload().getParts()) {
                     if (part.getFilename() != null && !part.getFilename().isEmpty()) {
-                        // Procesar el adjunto
-                        saveAttachment(userId, message.getId(), part, outputDir);
+                        found.add(new AttachmentRef(message.getId(), part));
                     }
                 }
             }
         }
+
+        progress.filesDiscovered(found.size());
+
+        // Los que ya están en la caché no se piden; de los demás, los grandes se
+        // descargan aparte en streaming y el resto va en batch
+        List<AttachmentRef> attachments = new ArrayList<>();
+        List<AttachmentRef> large = new ArrayList<>();
+        for (AttachmentRef ref : found) {
+            if (!readFromCache(cache, ref, outputDir, progress, xmlSink)) {
+                (isLarge(ref.part()) ? large : attachments).add(ref);
+            }
+        }
+
+        for (AttachmentRef ref : large) {
+            streamAttachment(gmail, retrier, cache, userId, ref, outputDir, progress, xmlSink);
+        }
+        if (attachments.isEmpty()) {
+            return;
+        }
+
+        Map<AttachmentRef, MessagePartBody> bodies = batcher.execute("attachments.get", attachments,
+                ref -> gmail.users().messages().attachments()
+                        .get(userId, ref.messageId(), ref.part().getBody().getAttachmentId())
+                        .setFields(ATTACHMENT_FIELDS));
+
+        for (Map.Entry<AttachmentRef, MessagePartBody> entry : bodies.entrySet()) {
+            AttachmentRef ref = entry.getKey();
+            byte[] fileBytes = Base64.getUrlDecoder().decode(entry.getValue().getData());
+            progress.bytesDownloaded(fileBytes.length);
+            batchAttachmentBytes.record(fileBytes.length);
+            saveAttachment(ref, fileBytes, outputDir, progress, xmlSink);
+            String key = cacheKey(cache, ref);
+            if (key != null) {
+                cache.put(key, fileBytes);
+            }
+        }
     }
 
-    private void saveAttachment(String userId, String messageId, MessagePart part, String outputDir) throws Exception {
-        Gmail gmail = gmailAuthService.getGmail();
-        if (gmail == null) {
-            throw new IllegalStateException(
-                    "No autenticado con Gmail. Inicie el proceso de autenticación y vuelva a intentarlo.");
+    /**
+     * Si el adjunto está en la caché lo procesa igual que si acabara de
+     * descargarse (mismos archivos de salida) y devuelve true.
+     */
+    private boolean readFromCache(AttachmentCache cache, AttachmentRef ref, String outputDir,
+            ProgressListener progress, InvoiceXmlSink xmlSink) throws Exception {
+        String key = cacheKey(cache, ref);
+        if (key == null) {
+            return false;
+        }
+        InputStream cached = cache.open(key, ref.part().getBody().getSize());
+        if (cached == null) {
+            cacheMisses.increment();
+            return false;
+        }
+        cacheHits.increment();
+        System.out.println("Desde caché: " + ref);
+        try (InputStream in = cached) {
+            if (isLarge(ref.part())) {
+                writeStreamed(ref, in, outputDir, progress, xmlSink);
+            } else {
+                saveAttachment(ref, in.readAllBytes(), outputDir, progress, xmlSink);
+            }
         }
-        String filename = part.getFilename();
-        String attId = part.getBody().getAttachmentId();
-        MessagePartBody attachPart = gmail.users().messages().attachments()
-                .get(userId, messageId, attId)
-                .execute();
+        return true;
+    }
+
+    private static String cacheKey(AttachmentCache cache, AttachmentRef ref) {
+        MessagePart part = ref.part();
+        if (cache == null || part.getPartId() == null || part.getBody() == null || part.getBody().getSize() == null) {
+            return null;
+        }
+        return AttachmentCache.key(ref.messageId(), part.getPartId(), part.getBody().getSize());
+    }
+
+    private record AttachmentRef(String messageId, MessagePart part) {
+        @Override
+        public String toString() {
+            return messageId + "/" + part.getFilename();
+        }
+    }
+
+    private boolean isLarge(MessagePart part) {
+        Integer size = part.getBody() == null ? null : part.getBody().getSize();
+        return streamThresholdBytes >= 0 && size != null && size >= streamThresholdBytes;
+    }
+
+    /**
+     * Descarga un adjunto sin armar el byte[] completo: el JSON de la respuesta se
+     * lee como stream y el base64url se decodifica al vuelo a un archivo
+     * temporal. Solo cuando el adjunto llegó entero se procesa desde ese archivo
+     * (si es un ZIP, se recorre con ZipArchiveInputStream escribiendo solo las
+     * entradas de factura): si la red se corta a mitad de la respuesta, el
+     * reintento vuelve a descargar sin haber entregado nada al sink.
+     */
+    private void streamAttachment(Gmail gmail, GmailRetrier retrier, AttachmentCache cache, String userId,
+            AttachmentRef ref, String outputDir, ProgressListener progress, InvoiceXmlSink xmlSink)
+            throws Exception {
+        String key = cacheKey(cache, ref);
+        Path spool = Files.createTempFile("adjunto-", ".tmp");
+        try {
+            retrier.execute("attachments.get", () -> {
+                HttpResponse response = gmail.users().messages().attachments()
+                        .get(userId, ref.messageId(), ref.part().getBody().getAttachmentId())
+                        .setFields(ATTACHMENT_FIELDS)
+                        .executeUnparsed();
+                try (InputStream decoded = Base64.getUrlDecoder()
+                        .wrap(new JsonStringFieldInputStream(response.getContent(), "data"));
+                        AttachmentCache.Pending pending = key == null ? null : cache.begin(key)) {
+                    Files.copy(pending == null ? decoded : pending.capture(decoded), spool,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    if (pending != null) {
+                        pending.commit();
+                    }
+                } finally {
+                    response.disconnect();
+                }
+                return null;
+            });
+            progress.bytesDownloaded(ref.part().getBody().getSize());
+            streamedAttachmentBytes.record(ref.part().getBody().getSize());
+            try (InputStream in = Files.newInputStream(spool)) {
+                writeStreamed(ref, in, outputDir, progress, xmlSink);
+            }
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    private void writeStreamed(AttachmentRef ref, InputStream decoded, String outputDir, ProgressListener progress,
+            InvoiceXmlSink xmlSink) throws Exception {
+        String filename = ref.part().getFilename();
+        if (filename.toLowerCase().endsWith(".zip")) {
+            progress.filesWritten(extractInvoiceEntries(decoded, Path.of(outputDir, "extracted"), ref.messageId(),
+                    xmlSink));
+        } else if (xmlSink != null && filename.toLowerCase().endsWith(".xml")) {
+            xmlSink.accept(ref.messageId() + "/" + filename, decoded.readAllBytes());
+        } else {
+            Path filePath = attachmentPath(outputDir, ref);
+            if (filePath == null) {
+                return;
+            }
+            Files.copy(decoded, filePath, StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Guardado: " + filePath);
+            progress.filesWritten(1);
+        }
+    }
+
+    /**
+     * Extrae de un ZIP en stream las entradas que pide extraction.zip.entries en
+     * {@code extracted/<messageId>/}; devuelve cuántas escribió en disco. Con
+     * {@code xmlSink}, los XML se le entregan a él en vez de escribirse.
+     */
+    int extractInvoiceEntries(InputStream zipStream, Path extractedDir, String messageId,
+            InvoiceXmlSink xmlSink) throws Exception {
+        ZipEntryExtractor.Result result = zipExtractor().extract(zipStream, messageDir(extractedDir, messageId),
+                messageId, xmlSink);
+        count(result);
+        return result.written();
+    }
+
+    private void saveAttachment(AttachmentRef ref, byte[] fileBytes, String outputDir, ProgressListener progress,
+            InvoiceXmlSink xmlSink) throws Exception {
+        String filename = ref.part().getFilename();
 
-        byte[] fileBytes = Base64.getUrlDecoder().decode(attachPart.getData());
-        Path filePath = Path.of(outputDir, filename);
+        if (xmlSink != null) {
+            // Modo pipeline: los XML van al conversor y el ZIP no se guarda
+            if (filename.toLowerCase().endsWith(".zip")) {
+                progress.filesWritten(extractInvoiceEntries(new ByteArrayInputStream(fileBytes),
+                        Path.of(outputDir, "extracted"), ref.messageId(), xmlSink));
+                return;
+            }
+            if (filename.toLowerCase().endsWith(".xml")) {
+                xmlSink.accept(ref.messageId() + "/" + filename, fileBytes);
+                return;
+            }
+        }
+
+        Path filePath = attachmentPath(outputDir, ref);
+        if (filePath == null) {
+            return;
+        }
         Files.write(filePath, fileBytes);
+        progress.filesWritten(1);
 
         System.out.println("Guardado: " + filePath);
 
-        // Si es un ZIP, lo descomprimimos en una subcarpeta llamada "extracted"
+        // Si es un ZIP, lo descomprimimos en extracted/<messageId>
         if (filename.toLowerCase().endsWith(".zip")) {
-            Path extractedDir = Path.of(outputDir, "extracted");
-            Files.createDirectories(extractedDir); // crea la carpeta si no existe
-            unzipFile(filePath, extractedDir);
+            count(zipExtractor().extract(filePath, messageDir(Path.of(outputDir, "extracted"), ref.messageId())));
         }
     }
 
-    private void unzipFile(Path zipPath, Path extractedDir) throws IOException {
-        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
-            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
-            while (entries.hasMoreElements()) {
-                ZipArchiveEntry entry = entries.nextElement();
-                File outFile = extractedDir.resolve(entry.getName()).toFile();
+    /**
+     * Ruta del adjunto dentro de {@code outputDir}, o null si el nombre que puso
+     * el remitente intenta escribir fuera de ella (se ignora, como las entradas
+     * inseguras de un ZIP).
+     */
+    private static Path attachmentPath(String outputDir, AttachmentRef ref) throws IOException {
+        String filename = ref.part().getFilename();
+        Path filePath = ZipEntryExtractor.safeResolve(Path.of(outputDir), filename);
+        if (filePath == null) {
+            System.out.println("Mensaje " + ref.messageId() + ": adjunto con ruta insegura ignorado: " + filename);
+            return null;
+        }
+        Files.createDirectories(filePath.getParent());
+        return filePath;
+    }
 
-                if (entry.isDirectory()) {
-                    outFile.mkdirs();
-                    continue;
-                }
+    /**
+     * Carpeta del mensaje dentro de extracted: dos proveedores que mandan un
+     * ZIP con el mismo nombre de XML ya no se pisan.
+     */
+    private static Path messageDir(Path extractedDir, String messageId) throws IOException {
+        Path dir = ZipEntryExtractor.safeResolve(extractedDir, messageId);
+        if (dir == null) {
+            throw new IOException("Id de mensaje de Gmail inválido: " + messageId);
+        }
+        return dir;
+    }
 
-                // Crear carpetas intermedias si es necesario
-                outFile.getParentFile().mkdirs();
+    private void count(ZipEntryExtractor.Result result) {
+        for (String entry : result.entries()) {
+            String name = entry.toLowerCase();
+            if (name.endsWith(".xml")) {
+                xmlEntries.increment();
+            } else if (name.endsWith(".pdf")) {
+                pdfEntries.increment();
+            }
+        }
+        if (result.unsafe() > 0) {
+            unsafeEntries.increment(result.unsafe());
+        }
+    }
 
-                try (InputStream in = zipFile.getInputStream(entry);
-                        OutputStream out = new FileOutputStream(outFile)) {
-                    in.transferTo(out);
-                }
-                System.out.println("Extraído: " + outFile.getAbsolutePath());
+    /**
+     * Extractor compartido por todas las corridas; su pool descomprime en
+     * paralelo las entradas de cada ZIP guardado en disco.
+     */
+    private synchronized ZipEntryExtractor zipExtractor() {
+        if (zipExtractor == null) {
+            ExecutorService pool = null;
+            if (zipParallelism > 1) {
+                AtomicInteger counter = new AtomicInteger();
+                pool = Executors.newFixedThreadPool(zipParallelism, r -> {
+                    Thread t = new Thread(r, "zip-extract-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            zipExtractor = new ZipEntryExtractor(ZipEntryExtractor.EntryFilter.parse(zipEntries), pool);
+        }
+        return zipExtractor;
+    }
+
+    private ExecutorService newExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread t = new Thread(r, "gmail-fetch-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static void await(Future<?> task) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception ex) {
+                throw ex;
             }
+            throw ee;
         }
     }
 }
@@ -0,0 +1,122 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.GmailRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Agrupa llamadas a Gmail en peticiones batch (multipart/mixed contra
+ * {@code /batch}) para pagar un solo viaje de red por cada {@code batchSize}
+ * llamadas.
+ *
+ * Gmail responde cada sub-petición por separado: las que fallan por cuota o 5xx
+ * se vuelven a enviar en otro batch tras el backoff; cualquier otro error
+ * aborta. Si falla el batch completo (red, 429 global) lo reintenta
+ * {@link GmailRetrier}.
+ */
+class GmailBatcher {
+
+    // Gmail acepta hasta 100 llamadas por batch, pero limita por encima de 50
+    static final int MAX_BATCH_SIZE = 100;
+
+    interface RequestFactory<K, T> {
+        GmailRequest<T> create(K key) throws IOException;
+    }
+
+    private final Gmail gmail;
+    private final GmailRetrier retrier;
+    private final int batchSize;
+    private final int maxRetries;
+
+    GmailBatcher(Gmail gmail, GmailRetrier retrier, int batchSize, int maxRetries) {
+        this.gmail = gmail;
+        this.retrier = retrier;
+        this.batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, batchSize));
+        this.maxRetries = maxRetries;
+    }
+
+    int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Ejecuta una petición por clave y devuelve las respuestas en el mismo orden
+     * de las claves.
+     */
+    <K, T> Map<K, T> execute(String operation, List<K> keys, RequestFactory<K, T> factory) throws Exception {
+        Map<K, T> results = new LinkedHashMap<>();
+        List<K> pending = keys;
+        int attempt = 0;
+
+        while (!pending.isEmpty()) {
+            Set<K> throttled = new LinkedHashSet<>();
+            for (int from = 0; from < pending.size(); from += batchSize) {
+                List<K> chunk = pending.subList(from, Math.min(pending.size(), from + batchSize));
+                // el batch se arma dentro del reintento: BatchRequest no se puede reenviar
+                // cada llamada del batch cuenta para la cuota como si fuera suelta
+                retrier.execute("batch " + operation, chunk.size() * GmailRetrier.quotaUnits(operation), () -> {
+                    // las limitadas cuentan sólo si el batch terminó: si falla a mitad,
+                    // el reintento vuelve a enviar el chunk entero y las vuelve a reportar
+                    Set<K> chunkThrottled = new LinkedHashSet<>();
+                    BatchRequest batch = gmail.batch();
+                    for (K key : chunk) {
+                        factory.create(key).queue(batch, callback(key, results, chunkThrottled));
+                    }
+                    batch.execute();
+                    throttled.addAll(chunkThrottled);
+                    return null;
+                });
+            }
+
+            if (throttled.isEmpty()) {
+                break;
+            }
+            if (attempt >= maxRetries) {
+                throw new IOException("Gmail siguió limitando " + throttled.size()
+                        + " llamadas del batch tras " + maxRetries + " reintentos");
+            }
+            long waitMs = retrier.backoffMs(attempt++);
+            System.out.println("Gmail: " + throttled.size() + " llamadas del batch limitadas, reintento "
+                    + attempt + "/" + maxRetries + " en " + waitMs + " ms");
+            Thread.sleep(waitMs);
+            pending = new ArrayList<>(throttled);
+        }
+
+        Map<K, T> ordered = new LinkedHashMap<>();
+        for (K key : keys) {
+            ordered.put(key, results.get(key));
+        }
+        return ordered;
+    }
+
+    private static <K, T> JsonBatchCallback<T> callback(K key, Map<K, T> results, Set<K> throttled) {
+        return new JsonBatchCallback<>() {
+            @Override
+            public void onSuccess(T response, HttpHeaders headers) {
+                results.put(key, response);
+                throttled.remove(key);
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error, HttpHeaders headers) throws IOException {
+                if (GmailRetrier.isRetryable(error.getCode(), error)) {
+                    throttled.add(key);
+                    return;
+                }
+                throw new IOException("Gmail respondió " + error.getCode() + " para " + key + ": "
+                        + error.getMessage());
+            }
+        };
+    }
+}
@@ -0,0 +1,160 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.construmedicis.taxreturn.utils.metrics.RunTimings;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reintenta llamadas a la API de Gmail con backoff exponencial y jitter.
+ *
+ * Se reintentan los errores de cuota (429, 403 rateLimitExceeded /
+ * userRateLimitExceeded), los 5xx transitorios y los timeouts de red. Si Gmail
+ * envía Retry-After se respeta ese tiempo en lugar del backoff calculado.
+ *
+ * Cada intento se mide en {@code taxreturn.gmail.requests} con la operación y
+ * el resultado (ok, throttled, error). Con un {@link QuotaRateLimiter}, cada
+ * intento espera antes a que la cuenta tenga cuota.
+ */
+class GmailRetrier {
+
+    private static final long MAX_BACKOFF_MS = 32_000;
+
+    private final int maxRetries;
+    private final long initialBackoffMs;
+    private final MeterRegistry meterRegistry;
+    private final RunTimings timings;
+    private final QuotaRateLimiter quota;
+
+    GmailRetrier(int maxRetries, long initialBackoffMs, MeterRegistry meterRegistry, RunTimings timings) {
+        this(maxRetries, initialBackoffMs, meterRegistry, timings, null);
+    }
+
+    GmailRetrier(int maxRetries, long initialBackoffMs, MeterRegistry meterRegistry, RunTimings timings,
+            QuotaRateLimiter quota) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMs = initialBackoffMs;
+        this.meterRegistry = meterRegistry;
+        this.timings = timings;
+        this.quota = quota;
+    }
+
+    <T> T execute(String operation, Callable<T> call) throws Exception {
+        return execute(operation, quotaUnits(operation), call);
+    }
+
+    <T> T execute(String operation, int quotaUnits, Callable<T> call) throws Exception {
+        int attempt = 0;
+        while (true) {
+            if (quota != null) {
+                quota.acquire(quotaUnits);
+            }
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                record(operation, "ok", start);
+                return result;
+            } catch (IOException ex) {
+                boolean retryable = isRetryable(ex);
+                record(operation, retryable ? "throttled" : "error", start);
+                if (attempt >= maxRetries || !retryable) {
+                    throw ex;
+                }
+                long waitMs = retryAfterMs(ex);
+                if (waitMs < 0) {
+                    waitMs = backoffMs(attempt);
+                }
+                System.out.println("Gmail: reintento " + (attempt + 1) + "/" + maxRetries + " en " + waitMs
+                        + " ms (" + describe(ex) + ")");
+                Thread.sleep(waitMs);
+                attempt++;
+            }
+        }
+    }
+
+    private void record(String operation, String outcome, long startNanos) {
+        Timer timer = Timer.builder("taxreturn.gmail.requests")
+                .description("Llamadas HTTP a la API de Gmail (cada intento)")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+        timings.record("gmail " + operation, timer, System.nanoTime() - startNanos);
+    }
+
+    /** Unidades de cuota de Gmail que cuesta cada llamada. */
+    static int quotaUnits(String operation) {
+        return switch (operation) {
+            case "labels.list", "profile.get" -> 1;
+            case "history.list" -> 2;
+            default -> 5; // messages.list, messages.get, attachments.get
+        };
+    }
+
+    long backoffMs(int attempt) {
+        long base = Math.min(MAX_BACKOFF_MS, initialBackoffMs << Math.min(attempt, 16));
+        // jitter completo: evita que todos los workers reintenten a la vez
+        return base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+    }
+
+    static boolean isRetryable(IOException ex) {
+        if (ex instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (!(ex instanceof HttpResponseException hre)) {
+            return false;
+        }
+        GoogleJsonError details = ex instanceof GoogleJsonResponseException gjre ? gjre.getDetails() : null;
+        return isRetryable(hre.getStatusCode(), details);
+    }
+
+    /**
+     * Misma regla aplicada a un código y detalle de error sueltos, como los que
+     * devuelve cada sub-respuesta de un batch.
+     */
+    static boolean isRetryable(int status, GoogleJsonError details) {
+        if (status == 429 || status == 500 || status == 502 || status == 503 || status == 504) {
+            return true;
+        }
+        if (status == 403 && details != null && details.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo info : details.getErrors()) {
+                String reason = info.getReason();
+                if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long retryAfterMs(IOException ex) {
+        if (!(ex instanceof HttpResponseException hre) || hre.getHeaders() == null) {
+            return -1;
+        }
+        Object retryAfter = hre.getHeaders().get("retry-after");
+        if (retryAfter instanceof java.util.List<?> list && !list.isEmpty()) {
+            retryAfter = list.get(0);
+        }
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.min(MAX_BACKOFF_MS, Long.parseLong(retryAfter.toString().trim()) * 1000);
+        } catch (NumberFormatException ignore) {
+            return -1;
+        }
+    }
+
+    private static String describe(IOException ex) {
+        if (ex instanceof HttpResponseException hre) {
+            return "HTTP " + hre.getStatusCode();
+        }
+        return ex.getClass().getSimpleName();
+    }
+}
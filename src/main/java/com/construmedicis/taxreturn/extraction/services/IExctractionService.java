@@ -1,5 +1,44 @@
 package com.construmedicis.taxreturn.extraction.services;
 
+import com.construmedicis.taxreturn.extraction.models.MailboxResult;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+
+import java.util.List;
+
 public interface IExctractionService {
-    void extractInvoices(String userId, String query, String outputDir) throws Exception;
+    default void extractInvoices(String userId, String query, String outputDir) throws Exception {
+        extractInvoices(userId, query, outputDir, ProgressListener.NONE);
+    }
+
+    default void extractInvoices(String userId, String query, String outputDir, ProgressListener progress)
+            throws Exception {
+        extractInvoices(userId, query, outputDir, progress, null);
+    }
+
+    /**
+     * Igual que {@link #extractInvoices(String, String, String, ProgressListener)},
+     * pero los XML de factura se entregan a {@code xmlSink} en vez de escribirse
+     * en disco (los PDF y demás adjuntos sí se guardan en {@code outputDir}).
+     */
+    void extractInvoices(String userId, String query, String outputDir, ProgressListener progress,
+            InvoiceXmlSink xmlSink) throws Exception;
+
+    /**
+     * Descarga solo los mensajes de la etiqueta que llegaron desde la última
+     * sincronización; devuelve cuántos mensajes se descargaron.
+     */
+    default int syncInvoices(String userId, String label, String outputDir) throws Exception {
+        return syncInvoices(userId, label, outputDir, ProgressListener.NONE);
+    }
+
+    int syncInvoices(String userId, String label, String outputDir, ProgressListener progress) throws Exception;
+
+    /**
+     * Descarga con la misma consulta los buzones de varias cuentas a la vez, en
+     * {@code outputDir/<empresa>}. Sin {@code accountIds} se usan todas las
+     * cuentas registradas. Una cuenta que falla no detiene a las demás: su error
+     * queda en el resultado.
+     */
+    List<MailboxResult> extractMailboxes(List<String> accountIds, String query, String outputDir,
+            ProgressListener progress) throws Exception;
 }
@@ -0,0 +1,15 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+/**
+ * Recibe los XML de factura a medida que se descargan o se extraen de un ZIP,
+ * en lugar de escribirlos en la carpeta de salida. Se llama desde los workers
+ * de descarga, así que puede bloquear para aplicar backpressure.
+ */
+@FunctionalInterface
+public interface InvoiceXmlSink {
+
+    /**
+     * @param sourceName id del mensaje y nombre del archivo ({@code <id>/<nombre>.xml})
+     */
+    void accept(String sourceName, byte[] content) throws Exception;
+}
@@ -0,0 +1,148 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Expone como stream el valor de un campo de texto de una respuesta JSON, sin
+ * cargar la respuesta completa en memoria.
+ *
+ * Pensado para el {@code data} (base64url) de messages.attachments.get: ese
+ * alfabeto no necesita escapes en JSON, así que cualquier '\' dentro del valor
+ * se trata como error en lugar de decodificarlo.
+ */
+class JsonStringFieldInputStream extends InputStream {
+
+    private final InputStream in;
+    private final byte[] field;
+    private final byte[] buf = new byte[16 * 1024];
+    private int pos;
+    private int limit;
+    private boolean started;
+    private boolean finished;
+
+    JsonStringFieldInputStream(InputStream in, String field) {
+        this.in = in;
+        this.field = field.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!started) {
+            seekValue();
+            started = true;
+        }
+        if (finished || len == 0) {
+            return finished ? -1 : 0;
+        }
+        if (pos == limit && !fill()) {
+            throw new IOException("JSON truncado dentro del campo " + new String(field, StandardCharsets.UTF_8));
+        }
+
+        int n = 0;
+        while (n < len && pos < limit) {
+            byte c = buf[pos];
+            if (c == '"') {
+                pos++;
+                finished = true;
+                break;
+            }
+            if (c == '\\') {
+                throw new IOException("Secuencia de escape inesperada en el campo "
+                        + new String(field, StandardCharsets.UTF_8));
+            }
+            b[off + n++] = c;
+            pos++;
+        }
+        return n == 0 && finished ? -1 : n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Avanza hasta justo después de las comillas que abren el valor del campo.
+     * Recorre los tokens de texto del JSON y se detiene en el primero que sea la
+     * clave buscada seguida de ':'.
+     */
+    private void seekValue() throws IOException {
+        int c = next();
+        while (c >= 0) {
+            if (c != '"') {
+                c = next();
+                continue;
+            }
+            boolean matches = readTokenMatching();
+            c = skipWhitespace();
+            if (matches && c == ':') {
+                c = skipWhitespace();
+                if (c != '"') {
+                    throw new IOException("El campo " + new String(field, StandardCharsets.UTF_8)
+                            + " no es un texto");
+                }
+                return;
+            }
+            // c ya es el siguiente carácter significativo (puede abrir otro token)
+        }
+        throw new IOException("No se encontró el campo " + new String(field, StandardCharsets.UTF_8));
+    }
+
+    /** Consume un texto JSON ya abierto y dice si era exactamente la clave buscada. */
+    private boolean readTokenMatching() throws IOException {
+        int i = 0;
+        boolean matches = true;
+        while (true) {
+            int c = next();
+            if (c < 0) {
+                throw new IOException("JSON truncado");
+            }
+            if (c == '\\') {
+                next(); // escape: no puede ser la clave buscada, solo se salta
+                matches = false;
+                continue;
+            }
+            if (c == '"') {
+                return matches && i == field.length;
+            }
+            if (matches && (i >= field.length || field[i] != c)) {
+                matches = false;
+            }
+            i++;
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c = next();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = next();
+        }
+        return c;
+    }
+
+    private int next() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            pos = limit = 0;
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
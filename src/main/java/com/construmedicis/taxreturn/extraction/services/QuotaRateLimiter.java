@@ -0,0 +1,46 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limita las unidades de cuota de Gmail que consume una cuenta por segundo
+ * (Gmail corta por encima de 250 por usuario). Es un balde de tokens con
+ * capacidad de un segundo: una petición más grande que el balde (un batch de
+ * 100 adjuntos son 500 unidades) pasa igual, pero deja la deuda para las
+ * siguientes.
+ *
+ * Todas las corridas de la misma cuenta comparten el limitador; las de cuentas
+ * distintas no se frenan entre sí.
+ */
+class QuotaRateLimiter {
+
+    private final double unitsPerSecond;
+    private double available;
+    private long lastNanos;
+
+    QuotaRateLimiter(double unitsPerSecond) {
+        if (unitsPerSecond <= 0) {
+            throw new IllegalArgumentException("La cuota por segundo debe ser mayor que cero");
+        }
+        this.unitsPerSecond = unitsPerSecond;
+        this.available = unitsPerSecond;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /** Espera hasta que la cuenta tenga cuota para {@code units}. */
+    void acquire(int units) throws InterruptedException {
+        long waitNanos = reserve(units);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /** Descuenta las unidades y devuelve cuánto hay que esperar para usarlas. */
+    synchronized long reserve(int units) {
+        long now = System.nanoTime();
+        available = Math.min(unitsPerSecond, available + (now - lastNanos) * unitsPerSecond / 1e9);
+        lastNanos = now;
+        available -= units;
+        return available >= 0 ? 0 : (long) (-available / unitsPerSecond * 1e9);
+    }
+}
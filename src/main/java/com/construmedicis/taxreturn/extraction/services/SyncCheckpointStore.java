@@ -0,0 +1,89 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Guarda el último historyId de Gmail sincronizado por usuario y etiqueta, en
+ * un archivo .properties ({@code <usuario>|<id de etiqueta>=<historyId>}). Se
+ * usa el id y no el nombre para que renombrar la etiqueta no reinicie la
+ * sincronización.
+ *
+ * Se escribe en un temporal y se mueve encima del anterior, para que una
+ * corrida interrumpida no deje un checkpoint a medias.
+ *
+ * Hay una sola instancia por archivo ({@link #at}): dos sincronizaciones
+ * concurrentes leen, modifican y escriben el archivo bajo el mismo lock y no
+ * se pisan el temporal ni el checkpoint de la otra.
+ */
+class SyncCheckpointStore {
+
+    private static final ConcurrentMap<Path, SyncCheckpointStore> STORES = new ConcurrentHashMap<>();
+
+    private final Path path;
+
+    private SyncCheckpointStore(Path path) {
+        this.path = path;
+    }
+
+    static SyncCheckpointStore at(Path path) {
+        return STORES.computeIfAbsent(path.toAbsolutePath().normalize(), SyncCheckpointStore::new);
+    }
+
+    synchronized BigInteger get(String userId, String labelId) throws IOException {
+        return parse(load().getProperty(key(userId, labelId)));
+    }
+
+    synchronized void put(String userId, String labelId, BigInteger historyId) throws IOException {
+        Properties props = load();
+        BigInteger previous = parse(props.getProperty(key(userId, labelId)));
+        if (previous != null && previous.compareTo(historyId) > 0) {
+            return; // otra sincronización ya avanzó más: los historyId de Gmail sólo crecen
+        }
+        props.setProperty(key(userId, labelId), historyId.toString());
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(writer, "Último historyId de Gmail sincronizado por usuario|etiqueta");
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties load() throws IOException {
+        Properties props = new Properties();
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+        }
+        return props;
+    }
+
+    private static BigInteger parse(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return new BigInteger(value.trim());
+        } catch (NumberFormatException ex) {
+            return null; // checkpoint corrupto: se hace sincronización completa
+        }
+    }
+
+    private static String key(String userId, String labelId) {
+        return userId + "|" + labelId;
+    }
+}
@@ -0,0 +1,209 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Extrae de los ZIP de facturas solo las entradas que usa la conversión (XML,
+ * o XML y PDF) en la carpeta del mensaje ({@code extracted/<messageId>/}), para
+ * que dos proveedores que mandan un {@code factura.xml} no se pisen.
+ *
+ * Las entradas cuyo nombre sale de la carpeta destino (rutas absolutas,
+ * {@code ..}: "zip slip") se ignoran. Desde un {@link ZipFile} en disco las
+ * entradas se descomprimen en paralelo en {@code pool}: commons-compress lee
+ * cada entrada con lecturas posicionales sobre el FileChannel, sin compartir
+ * el cursor. Si dos entradas van al mismo archivo (nombres repetidos, o que
+ * sólo difieren en segmentos {@code ./}) se extrae únicamente la última, como
+ * en la extracción secuencial, para no escribir el archivo desde dos hilos.
+ */
+class ZipEntryExtractor {
+
+    /** Qué entradas del ZIP se extraen. */
+    enum EntryFilter {
+        XML, XML_PDF;
+
+        static EntryFilter parse(String value) {
+            return switch (value.trim().toLowerCase()) {
+                case "xml" -> XML;
+                case "xml-pdf" -> XML_PDF;
+                default -> throw new IllegalArgumentException(
+                        "extraction.zip.entries debe ser 'xml' o 'xml-pdf': " + value);
+            };
+        }
+
+        boolean accepts(String entryName) {
+            String name = entryName.toLowerCase();
+            return name.endsWith(".xml") || (this == XML_PDF && name.endsWith(".pdf"));
+        }
+    }
+
+    /**
+     * Entradas extraídas (nombre dentro del ZIP), cuántas de ellas se escribieron
+     * en disco (las demás fueron al {@link InvoiceXmlSink}) y cuántas se
+     * rechazaron por inseguras.
+     */
+    record Result(List<String> entries, int written, int unsafe) {
+    }
+
+    private final EntryFilter filter;
+    private final ExecutorService pool;
+
+    /** Con {@code pool} null las entradas se extraen una tras otra. */
+    ZipEntryExtractor(EntryFilter filter, ExecutorService pool) {
+        this.filter = filter;
+        this.pool = pool;
+    }
+
+    /**
+     * Ruta de la entrada dentro de {@code targetDir}, o null si el nombre
+     * intenta escribir fuera de ella.
+     */
+    static Path safeResolve(Path targetDir, String entryName) {
+        if (entryName == null || entryName.isEmpty() || entryName.indexOf('\0') >= 0) {
+            return null;
+        }
+        Path root = targetDir.toAbsolutePath().normalize();
+        Path resolved;
+        try {
+            // los ZIP hechos en Windows pueden traer '\' como separador
+            resolved = root.resolve(entryName.replace('\\', '/')).normalize();
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+        return resolved.startsWith(root) && !resolved.equals(root) ? resolved : null;
+    }
+
+    /** Extrae desde un ZIP ya guardado en disco. */
+    Result extract(Path zipPath, Path targetDir) throws IOException {
+        try (ZipFile zipFile = ZipFile.builder().setPath(zipPath).get()) {
+            Map<Path, ZipArchiveEntry> selected = new LinkedHashMap<>();
+            int unsafe = 0;
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !filter.accepts(entry.getName())) {
+                    continue;
+                }
+                Path target = safeResolve(targetDir, entry.getName());
+                if (target == null) {
+                    unsafe++;
+                    logUnsafe(zipPath.getFileName().toString(), entry.getName());
+                    continue;
+                }
+                ZipArchiveEntry previous = selected.remove(target);
+                if (previous != null) {
+                    System.out.println("ZIP " + zipPath.getFileName() + ": " + previous.getName()
+                            + " se reemplaza por la entrada posterior " + entry.getName());
+                }
+                selected.put(target, entry);
+            }
+
+            if (pool == null || selected.size() < 2) {
+                for (Map.Entry<Path, ZipArchiveEntry> e : selected.entrySet()) {
+                    write(zipFile, e.getValue(), e.getKey());
+                }
+            } else {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (Map.Entry<Path, ZipArchiveEntry> e : selected.entrySet()) {
+                    ZipArchiveEntry entry = e.getValue();
+                    Path target = e.getKey();
+                    tasks.add(pool.submit(() -> {
+                        write(zipFile, entry, target);
+                        return null;
+                    }));
+                }
+                awaitAll(tasks);
+            }
+
+            List<String> names = new ArrayList<>();
+            for (ZipArchiveEntry entry : selected.values()) {
+                names.add(entry.getName());
+            }
+            return new Result(Collections.unmodifiableList(names), names.size(), unsafe);
+        }
+    }
+
+    /**
+     * Extrae desde un ZIP que llega en stream (se lee una sola vez, en orden).
+     * Con {@code xmlSink}, los XML se le entregan a él en vez de escribirse.
+     */
+    Result extract(InputStream zipStream, Path targetDir, String messageId, InvoiceXmlSink xmlSink)
+            throws Exception {
+        List<String> names = new ArrayList<>();
+        int written = 0;
+        int unsafe = 0;
+        try (ZipArchiveInputStream zip = new ZipArchiveInputStream(zipStream, "UTF-8", true, true)) {
+            ZipArchiveEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory() || !filter.accepts(entry.getName())) {
+                    continue;
+                }
+                if (xmlSink != null && entry.getName().toLowerCase().endsWith(".xml")) {
+                    xmlSink.accept(messageId + "/" + entry.getName(), zip.readAllBytes());
+                    names.add(entry.getName());
+                    continue;
+                }
+                Path target = safeResolve(targetDir, entry.getName());
+                if (target == null) {
+                    unsafe++;
+                    logUnsafe(messageId, entry.getName());
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                Files.copy(zip, target, StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Extraído: " + target);
+                names.add(entry.getName());
+                written++;
+            }
+        }
+        return new Result(names, written, unsafe);
+    }
+
+    private static void write(ZipFile zipFile, ZipArchiveEntry entry, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        System.out.println("Extraído: " + target);
+    }
+
+    private static void logUnsafe(String source, String entryName) {
+        System.out.println("ZIP " + source + ": entrada con ruta insegura ignorada: " + entryName);
+    }
+
+    private static void awaitAll(List<Future<?>> tasks) throws IOException {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            tasks.forEach(t -> t.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Extracción del ZIP interrumpida", ex);
+        } catch (ExecutionException ex) {
+            tasks.forEach(t -> t.cancel(true));
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -12,6 +12,8 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import com.construmedicis.taxreturn.utils.auth.GmailAuthService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.context.ConfigurableApplicationContext;
 
 import java.io.BufferedReader;
@@ -290,15 +292,41 @@ public class MainUI extends Application {
             }
         });
 
+        // Opcional: si se indica, cada XML se inserta en el Excel mientras sigue la descarga
+        TextField txtPlantillaDescarga = new TextField();
+        Button btnExplorarPlantillaDescarga = new Button("Seleccionar archivo");
+
+        btnExplorarPlantillaDescarga.setOnAction(e -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Seleccionar plantilla Excel");
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Archivos Excel", "*.xlsx"));
+            java.io.File file = fileChooser.showOpenDialog(stage);
+            if (file != null) {
+                txtPlantillaDescarga.setText(file.getAbsolutePath());
+            }
+        });
+
         Button btnDescargar = new Button("🚀 Descargar Facturas");
         btnDescargar.getStyleClass().add("primary-button");
-        btnDescargar.setOnAction(e -> handleDownload(fechaInicio, fechaFin, txtEtiqueta, txtRutaDescarga, stage));
+        CheckBox chkIncremental = new CheckBox("Solo correos nuevos desde la última descarga");
+        chkIncremental.selectedProperty().addListener((obs, old, incremental) -> {
+            fechaInicio.setDisable(incremental);
+            fechaFin.setDisable(incremental);
+            txtPlantillaDescarga.setDisable(incremental);
+            btnExplorarPlantillaDescarga.setDisable(incremental);
+        });
+
+        btnDescargar.setOnAction(e -> handleDownload(fechaInicio, fechaFin, txtEtiqueta, txtRutaDescarga,
+                txtPlantillaDescarga, chkIncremental.isSelected(), stage));
 
         VBox form = new VBox(10,
                 createLabeledField("Fecha inicio:", fechaInicio),
                 createLabeledField("Fecha fin:", fechaFin),
                 createLabeledField("Etiqueta de correos:", txtEtiqueta),
                 createLabeledField("Ruta de salida:", new HBox(10, txtRutaDescarga, btnExplorarDescarga)),
+                createLabeledField("Convertir a Excel durante la descarga (opcional):",
+                        new HBox(10, txtPlantillaDescarga, btnExplorarPlantillaDescarga)),
+                chkIncremental,
                 btnDescargar);
 
         downloadPane.getChildren().addAll(lblTitulo, new Separator(), form);
@@ -309,8 +337,20 @@ public class MainUI extends Application {
     }
 
     private void handleDownload(DatePicker fechaInicio, DatePicker fechaFin, TextField txtEtiqueta,
-            TextField txtRutaDescarga, Stage stage) {
+            TextField txtRutaDescarga, TextField txtPlantilla, boolean incremental, Stage stage) {
         try {
+            if (incremental) {
+                if (txtEtiqueta.getText().isEmpty() || txtRutaDescarga.getText().isEmpty()) {
+                    showAlert("Error", "Debe indicar la etiqueta y la ruta de salida.");
+                    return;
+                }
+                String urlStr = "http://localhost:8080/jobs/sync?label="
+                        + URLEncoder.encode(txtEtiqueta.getText(), StandardCharsets.UTF_8)
+                        + "&outputDir=" + URLEncoder.encode(txtRutaDescarga.getText(), StandardCharsets.UTF_8);
+                runJobAsync(urlStr, "Correos nuevos descargados correctamente");
+                return;
+            }
+
             if (fechaInicio.getValue() == null || fechaFin.getValue() == null ||
                     txtEtiqueta.getText().isEmpty() || txtRutaDescarga.getText().isEmpty()) {
                 showAlert("Error", "Debe completar todos los campos antes de descargar.");
@@ -327,10 +367,18 @@ public class MainUI extends Application {
             String queryEncoded = URLEncoder.encode(query, StandardCharsets.UTF_8);
             String outputDirEncoded = URLEncoder.encode(rutaSalida, StandardCharsets.UTF_8);
 
-            String urlStr = "http://localhost:8080/extraction/extractInvoices?query="
+            if (!txtPlantilla.getText().isEmpty()) {
+                String urlStr = "http://localhost:8080/jobs/pipeline?query="
+                        + queryEncoded + "&outputDir=" + outputDirEncoded
+                        + "&outputExcelPath=" + URLEncoder.encode(txtPlantilla.getText(), StandardCharsets.UTF_8);
+                runJobAsync(urlStr, "Facturas descargadas y convertidas correctamente");
+                return;
+            }
+
+            String urlStr = "http://localhost:8080/jobs/extraction?query="
                     + queryEncoded + "&outputDir=" + outputDirEncoded;
 
-            sendGetRequestAsync(stage, urlStr, "Facturas descargadas correctamente");
+            runJobAsync(urlStr, "Facturas descargadas correctamente");
         } catch (Exception ex) {
             ex.printStackTrace();
             showAlert("Error", "Ocurrió un problema: " + ex.getMessage());
@@ -376,10 +424,14 @@ public class MainUI extends Application {
         btnConvertir.getStyleClass().add("primary-button");
         btnConvertir.setOnAction(e -> handleConversion(txtRutaXML, txtPlantilla, stage));
 
+        // Vigilancia: el Excel se actualiza solo a medida que llegan XML a la carpeta
+        Button btnVigilar = new Button("👁 Vigilar carpeta");
+        btnVigilar.setOnAction(e -> handleWatch(txtRutaXML, txtPlantilla, btnVigilar));
+
         VBox form = new VBox(10,
                 createLabeledField("Ruta XMLs:", new HBox(10, txtRutaXML, btnExplorarXML)),
                 createLabeledField("Plantilla Excel:", new HBox(10, txtPlantilla, btnExplorarPlantilla)),
-                btnConvertir);
+                new HBox(10, btnConvertir, btnVigilar));
 
         conversionPane.getChildren().addAll(lblTitulo, new Separator(), form);
 
@@ -401,17 +453,58 @@ public class MainUI extends Application {
             String xmlDirEncoded = URLEncoder.encode(xmlDir, StandardCharsets.UTF_8);
             String plantillaEncoded = URLEncoder.encode(plantilla, StandardCharsets.UTF_8);
 
-            String urlStr = "http://localhost:8080/conversion/convertInvoices"
+            String urlStr = "http://localhost:8080/jobs/conversion"
                     + "?xmlDirectoryPath=" + xmlDirEncoded
                     + "&outputExcelPath=" + plantillaEncoded;
 
-            sendGetRequestAsync(stage, urlStr, "Conversión realizada correctamente");
+            runJobAsync(urlStr, "Conversión realizada correctamente");
         } catch (Exception ex) {
             ex.printStackTrace();
             showAlert("Error", "Ocurrió un problema: " + ex.getMessage());
         }
     }
 
+    private void handleWatch(TextField txtRutaXML, TextField txtPlantilla, Button btnVigilar) {
+        boolean watching = watchingFolder;
+        if (!watching && (txtRutaXML.getText().isEmpty() || txtPlantilla.getText().isEmpty())) {
+            showAlert("Error", "Debe seleccionar la carpeta de XMLs y la plantilla Excel.");
+            return;
+        }
+        String urlStr = "http://localhost:8080/conversion/watch";
+        if (!watching) {
+            urlStr += "?xmlDirectoryPath=" + URLEncoder.encode(txtRutaXML.getText(), StandardCharsets.UTF_8)
+                    + "&outputExcelPath=" + URLEncoder.encode(txtPlantilla.getText(), StandardCharsets.UTF_8);
+        }
+        String request = urlStr;
+        btnVigilar.setDisable(true);
+        java.util.concurrent.CompletableFuture.runAsync(() -> {
+            try {
+                HttpURLConnection con = (HttpURLConnection) new URL(request).openConnection();
+                con.setRequestMethod(watching ? "DELETE" : "POST");
+                int responseCode = con.getResponseCode();
+                // 404 al detener: la vigilancia ya no estaba activa en el backend
+                boolean ok = responseCode < 300 || (watching && responseCode == 404);
+                String error = ok ? "" : readBody(con.getErrorStream());
+                javafx.application.Platform.runLater(() -> {
+                    btnVigilar.setDisable(false);
+                    if (!ok) {
+                        showAlert("Error", "No se pudo " + (watching ? "detener" : "iniciar")
+                                + " la vigilancia (HTTP " + responseCode + ")" + (error.isEmpty() ? "" : ":\n" + error));
+                        return;
+                    }
+                    watchingFolder = !watching;
+                    btnVigilar.setText(watchingFolder ? "⏹ Detener vigilancia" : "👁 Vigilar carpeta");
+                });
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                javafx.application.Platform.runLater(() -> {
+                    btnVigilar.setDisable(false);
+                    showAlert("Error", "Ocurrió un problema: " + ex.getMessage());
+                });
+            }
+        });
+    }
+
     // ========================
     // UTILIDADES
     // ========================
@@ -447,38 +540,31 @@ public class MainUI extends Application {
         }
     }
 
-    private void sendGetRequestAsync(Stage stage, String urlStr, String successMessage) {
-        // Mostrar overlay
+    /**
+     * Crea un trabajo en el backend (POST /jobs/...) y sigue su avance por SSE,
+     * mostrando los contadores en el overlay hasta que llega el evento "done".
+     */
+    private void runJobAsync(String postUrl, String successMessage) {
         showLoading();
+        updateLoading("Enviando trabajo...");
 
         java.util.concurrent.CompletableFuture.runAsync(() -> {
             try {
-                URL url = new URL(urlStr);
-                HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                con.setRequestMethod("GET");
-
+                HttpURLConnection con = (HttpURLConnection) new URL(postUrl).openConnection();
+                con.setRequestMethod("POST");
                 int responseCode = con.getResponseCode();
-                if (responseCode == 200) {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-                    StringBuilder response = new StringBuilder();
-                    String inputLine;
-
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                    }
-                    in.close();
-
-                    String resp = response.toString();
-                    javafx.application.Platform.runLater(() -> {
-                        hideLoading();
-                        showAlert("Éxito", successMessage + ":\n" + resp);
-                    });
-                } else {
+                if (responseCode != 202) {
+                    String error = readBody(con.getErrorStream());
                     javafx.application.Platform.runLater(() -> {
                         hideLoading();
-                        showAlert("Error", "Error en la petición. Código HTTP: " + responseCode);
+                        showAlert("Error", "No se pudo iniciar el trabajo (HTTP " + responseCode + ")"
+                                + (error.isEmpty() ? "" : ":\n" + error));
                     });
+                    return;
                 }
+                JsonNode job = JSON.readTree(readBody(con.getInputStream()));
+                currentJobId = job.get("id").asText();
+                followJob(currentJobId, successMessage);
             } catch (Exception ex) {
                 ex.printStackTrace();
                 javafx.application.Platform.runLater(() -> {
@@ -489,6 +575,98 @@ public class MainUI extends Application {
         });
     }
 
+    private void followJob(String jobId, String successMessage) throws Exception {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8080/jobs/" + jobId + "/events")
+                .openConnection();
+        con.setRequestProperty("Accept", "text/event-stream");
+
+        JsonNode last = null;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
+            String event = "message";
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                } else if (line.startsWith("data:")) {
+                    last = JSON.readTree(line.substring(5).trim());
+                    if ("done".equals(event)) {
+                        break;
+                    }
+                    String text = describeProgress(last);
+                    javafx.application.Platform.runLater(() -> updateLoading(text));
+                } else if (line.isEmpty()) {
+                    event = "message";
+                }
+            }
+        }
+
+        JsonNode result = last;
+        currentJobId = null;
+        javafx.application.Platform.runLater(() -> {
+            hideLoading();
+            if (result == null) {
+                showAlert("Error", "Se perdió la conexión con el trabajo " + jobId);
+                return;
+            }
+            String status = result.path("status").asText();
+            String message = result.path("message").asText("");
+            switch (status) {
+                case "SUCCEEDED" -> showAlert("Éxito", successMessage + ":\n" + message + "\n" + describeProgress(result));
+                case "CANCELLED" -> showAlert("Cancelado", "El trabajo fue cancelado.");
+                default -> showAlert("Error", "El trabajo falló: " + message);
+            }
+        });
+    }
+
+    private static String describeProgress(JsonNode job) {
+        StringBuilder text = new StringBuilder(job.path("stage").asText(""));
+        text.append("\nEncontrados: ").append(job.path("filesDiscovered").asLong())
+                .append("  Leídos: ").append(job.path("filesParsed").asLong())
+                .append("  Escritos: ").append(job.path("filesWritten").asLong());
+        long failed = job.path("filesFailed").asLong();
+        if (failed > 0) {
+            text.append("  Fallidos: ").append(failed);
+        }
+        long bytes = job.path("bytesDownloaded").asLong();
+        if (bytes > 0) {
+            text.append(String.format("  Descargado: %.1f MB", bytes / (1024.0 * 1024.0)));
+        }
+        return text.toString();
+    }
+
+    private void cancelCurrentJob() {
+        String jobId = currentJobId;
+        if (jobId == null) {
+            return;
+        }
+        updateLoading("Cancelando...");
+        java.util.concurrent.CompletableFuture.runAsync(() -> {
+            try {
+                HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:8080/jobs/" + jobId)
+                        .openConnection();
+                con.setRequestMethod("DELETE");
+                con.getResponseCode(); // el evento "done" del SSE cierra el overlay
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    private static String readBody(java.io.InputStream stream) throws java.io.IOException {
+        if (stream == null) {
+            return "";
+        }
+        try (stream) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private volatile String currentJobId;
+    private boolean watchingFolder; // sólo desde el hilo de JavaFX
+    private Label loadingLabel;
+
     private VBox loadingOverlay;
 
     private VBox createLoadingOverlay() {
@@ -499,8 +677,12 @@ public class MainUI extends Application {
         ProgressIndicator pi = new ProgressIndicator();
         Label lbl = new Label("Procesando, por favor espere...");
         lbl.setStyle("-fx-text-fill: white; -fx-font-weight: bold;");
+        loadingLabel = lbl;
 
-        overlay.getChildren().addAll(pi, lbl);
+        Button btnCancelar = new Button("Cancelar");
+        btnCancelar.setOnAction(e -> cancelCurrentJob());
+
+        overlay.getChildren().addAll(pi, lbl, btnCancelar);
         overlay.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
 
         return overlay;
@@ -513,6 +695,12 @@ public class MainUI extends Application {
         }
     }
 
+    private void updateLoading(String text) {
+        if (loadingLabel != null) {
+            loadingLabel.setText(text);
+        }
+    }
+
     private void hideLoading() {
         if (loadingOverlay != null) {
             loadingOverlay.setVisible(false);
@@ -0,0 +1,128 @@
+package com.construmedicis.taxreturn.jobs.controller;
+
+import com.construmedicis.taxreturn.conversion.services.IConversionService;
+import com.construmedicis.taxreturn.extraction.models.MailboxResult;
+import com.construmedicis.taxreturn.extraction.services.IExctractionService;
+import com.construmedicis.taxreturn.jobs.models.JobSnapshot;
+import com.construmedicis.taxreturn.jobs.models.JobType;
+import com.construmedicis.taxreturn.jobs.services.IJobService;
+import com.construmedicis.taxreturn.pipeline.services.IPipelineService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+@RestController
+@RequestMapping("/jobs")
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+public class JobController {
+
+    private final IJobService iJobService;
+    private final IExctractionService iExctractionService;
+    private final IConversionService iConversionService;
+    private final IPipelineService iPipelineService;
+
+    public JobController(IJobService iJobService, IExctractionService iExctractionService,
+            IConversionService iConversionService, IPipelineService iPipelineService) {
+        this.iPipelineService = iPipelineService;
+        this.iJobService = iJobService;
+        this.iExctractionService = iExctractionService;
+        this.iConversionService = iConversionService;
+    }
+
+    @PostMapping("/extraction")
+    public ResponseEntity<?> extraction(@RequestParam String query, @RequestParam String outputDir) {
+        return submit(JobType.EXTRACTION, "Descarga: " + query, progress -> {
+            iExctractionService.extractInvoices("me", query, outputDir, progress);
+            return "Facturas descargadas en " + outputDir;
+        });
+    }
+
+    @PostMapping("/sync")
+    public ResponseEntity<?> sync(@RequestParam String label, @RequestParam String outputDir) {
+        return submit(JobType.SYNC, "Sincronización: " + label, progress -> {
+            int downloaded = iExctractionService.syncInvoices("me", label, outputDir, progress);
+            return downloaded + " mensajes nuevos descargados en " + outputDir;
+        });
+    }
+
+    @PostMapping("/mailboxes")
+    public ResponseEntity<?> mailboxes(@RequestParam String query, @RequestParam String outputDir,
+            @RequestParam(required = false) List<String> accounts) {
+        return submit(JobType.MAILBOXES, "Descarga de buzones: " + query, progress -> {
+            List<MailboxResult> results = iExctractionService.extractMailboxes(accounts, query, outputDir, progress);
+            StringBuilder summary = new StringBuilder();
+            for (MailboxResult result : results) {
+                summary.append(summary.length() == 0 ? "" : "; ").append(result.company()).append(": ")
+                        .append(result.succeeded() ? result.messages() + " mensajes" : "error (" + result.error() + ")");
+            }
+            return summary.toString();
+        });
+    }
+
+    @PostMapping("/conversion")
+    public ResponseEntity<?> conversion(@RequestParam String xmlDirectoryPath, @RequestParam String outputExcelPath) {
+        return submit(JobType.CONVERSION, "Conversión: " + xmlDirectoryPath, progress -> {
+            iConversionService.convertInvoices(xmlDirectoryPath, outputExcelPath, progress);
+            return "Excel actualizado: " + outputExcelPath;
+        });
+    }
+
+    @PostMapping("/summary")
+    public ResponseEntity<?> summary(@RequestParam String outputExcelPath, @RequestParam String summaryPath) {
+        return submit(JobType.SUMMARY, "Resumen: " + outputExcelPath, progress -> {
+            iConversionService.summarize(outputExcelPath, summaryPath);
+            return "Resumen escrito en " + summaryPath;
+        });
+    }
+
+    @PostMapping("/pipeline")
+    public ResponseEntity<?> pipeline(@RequestParam String query, @RequestParam String outputDir,
+            @RequestParam String outputExcelPath) {
+        return submit(JobType.PIPELINE, "Descarga y conversión: " + query, progress -> {
+            int inserted = iPipelineService.downloadAndConvert("me", query, outputDir, outputExcelPath, progress);
+            return inserted + " facturas insertadas en " + outputExcelPath;
+        });
+    }
+
+    @GetMapping
+    public ResponseEntity<?> list() {
+        return ResponseEntity.ok(iJobService.list());
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<?> get(@PathVariable String id) {
+        return iJobService.get(id).<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> cancel(@PathVariable String id) {
+        if (iJobService.get(id).isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!iJobService.cancel(id)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("El trabajo ya terminó");
+        }
+        return ResponseEntity.accepted().body(iJobService.get(id).orElse(null));
+    }
+
+    @GetMapping(path = "/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> events(@PathVariable String id) {
+        return iJobService.subscribe(id).<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    private ResponseEntity<?> submit(JobType type, String description, IJobService.JobTask task) {
+        try {
+            JobSnapshot job = iJobService.submit(type, description, task);
+            return ResponseEntity.accepted().body(job);
+        } catch (RejectedExecutionException ex) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .body("Hay demasiados trabajos en cola, intente más tarde");
+        }
+    }
+}
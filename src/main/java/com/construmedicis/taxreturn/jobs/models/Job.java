@@ -0,0 +1,154 @@
+package com.construmedicis.taxreturn.jobs.models;
+
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estado de un trabajo en segundo plano. Los servicios le reportan el avance a
+ * través de {@link ProgressListener}; los contadores son atómicos porque se
+ * actualizan desde los workers de descarga y de parseo.
+ */
+public class Job implements ProgressListener {
+
+    private final String id = UUID.randomUUID().toString();
+    private final JobType type;
+    private final String description;
+    private final Instant createdAt = Instant.now();
+
+    private final AtomicLong discovered = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    // Cambia con cada actualización; sirve para no reenviar por SSE lo mismo
+    private final AtomicLong version = new AtomicLong();
+
+    private volatile JobStatus status = JobStatus.QUEUED;
+    private volatile String stage = "En cola";
+    private volatile String message;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile Future<?> future;
+    private volatile boolean cancelRequested;
+
+    public Job(JobType type, String description) {
+        this.type = type;
+        this.description = description;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public JobStatus getStatus() {
+        return status;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    public Future<?> getFuture() {
+        return future;
+    }
+
+    /** Pasa a RUNNING si seguía en cola; false si ya fue cancelado. */
+    public synchronized boolean start() {
+        if (status != JobStatus.QUEUED) {
+            return false;
+        }
+        status = JobStatus.RUNNING;
+        startedAt = Instant.now();
+        stage = "Iniciando";
+        version.incrementAndGet();
+        return true;
+    }
+
+    /** Marca el fin del trabajo; no cambia un estado final ya asignado. */
+    public synchronized boolean finish(JobStatus finalStatus, String finalMessage) {
+        if (status.isFinished()) {
+            return false;
+        }
+        status = finalStatus;
+        message = finalMessage;
+        stage = switch (finalStatus) {
+            case SUCCEEDED -> "Terminado";
+            case CANCELLED -> "Cancelado";
+            default -> "Error";
+        };
+        finishedAt = Instant.now();
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Pide cancelar el trabajo y devuelve el estado que tenía antes. Uno en cola
+     * queda CANCELLED de inmediato; uno en curso sigue RUNNING hasta que su hilo
+     * se detenga y asigne el estado final (puede terminar bien si ya estaba
+     * guardando su resultado).
+     */
+    public synchronized JobStatus cancel() {
+        JobStatus before = status;
+        if (before == JobStatus.QUEUED) {
+            finish(JobStatus.CANCELLED, "Cancelado por el usuario");
+        } else if (!before.isFinished() && !cancelRequested) {
+            cancelRequested = true;
+            stage = "Cancelando";
+            version.incrementAndGet();
+        }
+        return before;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    public JobSnapshot snapshot() {
+        return new JobSnapshot(id, type, description, status, stage, discovered.get(), parsed.get(),
+                written.get(), failed.get(), bytes.get(), message, createdAt, startedAt, finishedAt);
+    }
+
+    @Override
+    public void filesDiscovered(int count) {
+        discovered.addAndGet(count);
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void fileParsed() {
+        parsed.incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void filesWritten(int count) {
+        written.addAndGet(count);
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void fileFailed() {
+        failed.incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void bytesDownloaded(long count) {
+        bytes.addAndGet(count);
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void stage(String description) {
+        stage = description;
+        version.incrementAndGet();
+    }
+}
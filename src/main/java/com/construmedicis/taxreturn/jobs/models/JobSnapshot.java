@@ -0,0 +1,23 @@
+package com.construmedicis.taxreturn.jobs.models;
+
+import java.time.Instant;
+
+/**
+ * Foto inmutable de un trabajo, es lo que se devuelve por REST y por SSE.
+ */
+public record JobSnapshot(
+        String id,
+        JobType type,
+        String description,
+        JobStatus status,
+        String stage,
+        long filesDiscovered,
+        long filesParsed,
+        long filesWritten,
+        long filesFailed,
+        long bytesDownloaded,
+        String message,
+        Instant createdAt,
+        Instant startedAt,
+        Instant finishedAt) {
+}
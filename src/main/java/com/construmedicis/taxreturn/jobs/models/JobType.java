@@ -0,0 +1,5 @@
+package com.construmedicis.taxreturn.jobs.models;
+
+public enum JobType {
+    EXTRACTION, SYNC, CONVERSION, PIPELINE, MAILBOXES, SUMMARY
+}
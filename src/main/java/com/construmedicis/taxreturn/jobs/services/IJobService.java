@@ -0,0 +1,37 @@
+package com.construmedicis.taxreturn.jobs.services;
+
+import com.construmedicis.taxreturn.jobs.models.JobSnapshot;
+import com.construmedicis.taxreturn.jobs.models.JobType;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface IJobService {
+
+    /** Trabajo a ejecutar; devuelve el mensaje final para el usuario. */
+    @FunctionalInterface
+    interface JobTask {
+        String run(ProgressListener progress) throws Exception;
+    }
+
+    /**
+     * Encola un trabajo. Lanza RejectedExecutionException si la cola está
+     * llena.
+     */
+    JobSnapshot submit(JobType type, String description, JobTask task);
+
+    Optional<JobSnapshot> get(String id);
+
+    List<JobSnapshot> list();
+
+    /**
+     * Cancela un trabajo en cola, o pide detener uno en ejecución (su estado final
+     * lo asigna el trabajo al detenerse); false si no existe o ya terminó.
+     */
+    boolean cancel(String id);
+
+    /** Suscribe un cliente SSE al avance del trabajo; vacío si no existe. */
+    Optional<SseEmitter> subscribe(String id);
+}
@@ -0,0 +1,245 @@
+package com.construmedicis.taxreturn.jobs.services;
+
+import com.construmedicis.taxreturn.jobs.models.Job;
+import com.construmedicis.taxreturn.jobs.models.JobSnapshot;
+import com.construmedicis.taxreturn.jobs.models.JobStatus;
+import com.construmedicis.taxreturn.jobs.models.JobType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ejecuta extracciones y conversiones en un pool acotado, fuera de los hilos de
+ * Tomcat, y publica su avance por SSE.
+ *
+ * Los suscriptores reciben un evento "progress" cada vez que cambian los
+ * contadores (revisados cada {@code jobs.progress-interval-ms}) y un evento
+ * "done" con el estado final, tras el cual se cierra la conexión.
+ */
+@Service
+public class JobService implements IJobService {
+
+    // Trabajos que corren a la vez; el resto espera en cola
+    @Value("${jobs.max-concurrent:2}")
+    private int maxConcurrent = 2;
+
+    @Value("${jobs.queue-capacity:10}")
+    private int queueCapacity = 10;
+
+    // Trabajos terminados que se conservan para consultar su resultado
+    @Value("${jobs.history-size:100}")
+    private int historySize = 100;
+
+    @Value("${jobs.progress-interval-ms:500}")
+    private long progressIntervalMs = 500;
+
+    @Value("${jobs.sse-timeout-ms:3600000}")
+    private long sseTimeoutMs = 3_600_000;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService publisher;
+
+    // Cliente SSE y la última versión del trabajo que se le envió
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        long sentVersion = -1;
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    @PostConstruct
+    void start() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+                    Thread t = new Thread(r, "job-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "job-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        publisher.scheduleWithFixedDelay(this::publishProgress, progressIntervalMs, progressIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        publisher.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public JobSnapshot submit(JobType type, String description, JobTask task) {
+        Job job = new Job(type, description);
+        jobs.put(job.getId(), job);
+        try {
+            job.setFuture(executor.submit(() -> run(job, task)));
+        } catch (RejectedExecutionException ex) {
+            jobs.remove(job.getId());
+            throw ex;
+        }
+        System.out.println("Trabajo " + job.getId() + " en cola: " + description);
+        return job.snapshot();
+    }
+
+    private void run(Job job, JobTask task) {
+        if (!job.start()) {
+            return; // cancelado mientras esperaba en cola
+        }
+        try {
+            // aunque se haya pedido cancelar, si la tarea terminó su resultado ya quedó escrito
+            String result = task.run(job);
+            job.finish(JobStatus.SUCCEEDED, result);
+        } catch (InterruptedException ex) {
+            job.finish(JobStatus.CANCELLED, "Cancelado por el usuario");
+        } catch (Exception ex) {
+            if (Thread.currentThread().isInterrupted() || job.isCancelRequested()) {
+                job.finish(JobStatus.CANCELLED, "Cancelado por el usuario");
+            } else {
+                ex.printStackTrace();
+                job.finish(JobStatus.FAILED, ex.getMessage() == null ? ex.toString() : ex.getMessage());
+            }
+        } finally {
+            System.out.println("Trabajo " + job.getId() + ": " + job.getStatus());
+            completeSubscribers(job);
+            pruneHistory();
+        }
+    }
+
+    @Override
+    public Optional<JobSnapshot> get(String id) {
+        return Optional.ofNullable(jobs.get(id)).map(Job::snapshot);
+    }
+
+    @Override
+    public List<JobSnapshot> list() {
+        List<JobSnapshot> all = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            all.add(job.snapshot());
+        }
+        all.sort(Comparator.comparing(JobSnapshot::createdAt).reversed());
+        return all;
+    }
+
+    @Override
+    public boolean cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null || job.getStatus().isFinished()) {
+            return false;
+        }
+        JobStatus before = job.cancel();
+        if (before.isFinished()) {
+            return false;
+        }
+        // interrumpe al hilo del trabajo; los servicios cancelan sus propios workers
+        job.getFuture().cancel(true);
+        if (before == JobStatus.QUEUED) {
+            completeSubscribers(job); // nunca va a correr, así que nadie más cierra el SSE
+        }
+        return true;
+    }
+
+    @Override
+    public Optional<SseEmitter> subscribe(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+        SseEmitter emitter = new SseEmitter(sseTimeoutMs);
+        Subscriber subscriber = new Subscriber(emitter);
+        List<Subscriber> list = subscribers.computeIfAbsent(id, k -> new CopyOnWriteArrayList<>());
+        list.add(subscriber);
+        emitter.onCompletion(() -> list.remove(subscriber));
+        emitter.onTimeout(() -> list.remove(subscriber));
+        emitter.onError(e -> list.remove(subscriber));
+
+        if (job.getStatus().isFinished()) {
+            completeSubscribers(job);
+        } else {
+            send(job, subscriber);
+        }
+        return Optional.of(emitter);
+    }
+
+    private void publishProgress() {
+        for (Map.Entry<String, List<Subscriber>> entry : subscribers.entrySet()) {
+            Job job = jobs.get(entry.getKey());
+            if (job == null || job.getStatus().isFinished()) {
+                continue; // el evento final lo envía el hilo del trabajo
+            }
+            for (Subscriber subscriber : entry.getValue()) {
+                if (subscriber.sentVersion != job.getVersion()) {
+                    send(job, subscriber);
+                }
+            }
+        }
+    }
+
+    private void send(Job job, Subscriber subscriber) {
+        long version = job.getVersion();
+        try {
+            subscriber.emitter.send(SseEmitter.event().name("progress").data(job.snapshot()));
+            subscriber.sentVersion = version;
+        } catch (IOException | IllegalStateException ex) {
+            // el cliente se desconectó
+            subscribers.getOrDefault(job.getId(), List.of()).remove(subscriber);
+        }
+    }
+
+    private void completeSubscribers(Job job) {
+        List<Subscriber> list = subscribers.remove(job.getId());
+        if (list == null) {
+            return;
+        }
+        for (Subscriber subscriber : list) {
+            try {
+                subscriber.emitter.send(SseEmitter.event().name("done").data(job.snapshot()));
+                subscriber.emitter.complete();
+            } catch (IOException | IllegalStateException ex) {
+                subscriber.emitter.completeWithError(ex);
+            }
+        }
+    }
+
+    private void pruneHistory() {
+        List<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.getStatus().isFinished()) {
+                finished.add(job);
+            }
+        }
+        if (finished.size() <= historySize) {
+            return;
+        }
+        finished.sort(Comparator.comparing(j -> j.snapshot().finishedAt()));
+        for (Job job : finished.subList(0, finished.size() - historySize)) {
+            jobs.remove(job.getId());
+        }
+    }
+}
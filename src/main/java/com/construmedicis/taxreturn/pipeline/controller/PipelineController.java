@@ -0,0 +1,36 @@
+package com.construmedicis.taxreturn.pipeline.controller;
+
+import com.construmedicis.taxreturn.pipeline.services.IPipelineService;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/pipeline")
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+public class PipelineController {
+    private final IPipelineService iPipelineService;
+
+    public PipelineController(IPipelineService iPipelineService) {
+        this.iPipelineService = iPipelineService;
+    }
+
+    @GetMapping("/downloadAndConvert")
+    public ResponseEntity<?> downloadAndConvert(@RequestParam String query, @RequestParam String outputDir,
+            @RequestParam String outputExcelPath) {
+        try {
+            int inserted = iPipelineService.downloadAndConvert("me", query, outputDir, outputExcelPath,
+                    ProgressListener.NONE);
+            return ResponseEntity.ok(inserted + " invoices inserted");
+        } catch (IllegalStateException ise) {
+            return ResponseEntity.status(503).body(ise.getMessage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return ResponseEntity.status(500).body(ex.getMessage());
+        }
+    }
+}
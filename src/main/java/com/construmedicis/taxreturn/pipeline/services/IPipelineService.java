@@ -0,0 +1,14 @@
+package com.construmedicis.taxreturn.pipeline.services;
+
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+
+public interface IPipelineService {
+
+    /**
+     * Descarga las facturas de la query e inserta cada XML en el Excel a medida
+     * que llega, sin pasar por la carpeta de XML. Devuelve cuántas facturas se
+     * insertaron.
+     */
+    int downloadAndConvert(String userId, String query, String outputDir, String outputExcelPath,
+            ProgressListener progress) throws Exception;
+}
@@ -0,0 +1,139 @@
+package com.construmedicis.taxreturn.pipeline.services;
+
+import com.construmedicis.taxreturn.conversion.services.IConversionService;
+import com.construmedicis.taxreturn.conversion.services.InvoiceWriter;
+import com.construmedicis.taxreturn.extraction.services.IExctractionService;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Une descarga y conversión en una sola corrida.
+ *
+ * Los workers de descarga parsean cada XML en cuanto sale del ZIP y lo dejan en
+ * una cola acotada; el hilo que llama es el único escritor del Excel y va
+ * insertando filas mientras siguen llegando adjuntos. Si el escritor se
+ * atrasa, la cola se llena y los workers esperan (backpressure), así la
+ * memoria no crece con el tamaño del mes. El Excel y su manifiesto solo se
+ * guardan si la descarga terminó sin errores.
+ */
+@Service
+public class PipelineService implements IPipelineService {
+
+    private final IExctractionService iExctractionService;
+    private final IConversionService iConversionService;
+
+    // Facturas parseadas que pueden esperar al escritor
+    @Value("${pipeline.queue-capacity:256}")
+    private int queueCapacity = 256;
+
+    public PipelineService(IExctractionService iExctractionService, IConversionService iConversionService) {
+        this.iExctractionService = iExctractionService;
+        this.iConversionService = iConversionService;
+    }
+
+    @Override
+    public int downloadAndConvert(String userId, String query, String outputDir, String outputExcelPath,
+            ProgressListener progress) throws Exception {
+        BlockingQueue<InvoiceWriter.Parsed> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        // Marca de fin: la descarga terminó (bien o mal)
+        InvoiceWriter.Parsed end = new InvoiceWriter.Parsed("", 0, 0, null, null);
+
+        ExecutorService downloader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "pipeline-download");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long startNanos = System.nanoTime();
+        try (InvoiceWriter writer = iConversionService.openWriter(outputExcelPath)) {
+            Future<?> download = downloader.submit(() -> {
+                try {
+                    iExctractionService.extractInvoices(userId, query, outputDir, downloadProgress(progress),
+                            (name, xml) -> {
+                                InvoiceWriter.Parsed parsed;
+                                try {
+                                    parsed = writer.parse(name, xml);
+                                } catch (Exception ex) {
+                                    progress.fileFailed();
+                                    throw ex;
+                                }
+                                progress.fileParsed();
+                                queue.put(parsed); // bloquea si el escritor va atrasado
+                            });
+                } finally {
+                    queue.put(end);
+                }
+                return null;
+            });
+
+            try {
+                int inserted = 0;
+                for (InvoiceWriter.Parsed parsed = queue.take(); parsed != end; parsed = queue.take()) {
+                    if (writer.write(parsed)) {
+                        inserted++;
+                        progress.filesWritten(1);
+                    }
+                }
+                await(download);
+
+                progress.stage("Guardando Excel");
+                writer.commit();
+                System.out.printf("Pipeline: %d facturas insertadas en %.2f s%n", inserted,
+                        (System.nanoTime() - startNanos) / 1e9);
+                return inserted;
+            } finally {
+                download.cancel(true);
+            }
+        } finally {
+            downloader.shutdownNow();
+        }
+    }
+
+    /**
+     * En esta corrida "escritos" son las filas del Excel; los PDF que guarda la
+     * descarga no se cuentan.
+     */
+    private static ProgressListener downloadProgress(ProgressListener progress) {
+        return new ProgressListener() {
+            @Override
+            public void filesDiscovered(int count) {
+                progress.filesDiscovered(count);
+            }
+
+            @Override
+            public void fileFailed() {
+                progress.fileFailed();
+            }
+
+            @Override
+            public void bytesDownloaded(long bytes) {
+                progress.bytesDownloaded(bytes);
+            }
+
+            @Override
+            public void stage(String description) {
+                progress.stage(description);
+            }
+        };
+    }
+
+    private static void await(Future<?> task) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception ex) {
+                throw ex;
+            }
+            throw ee;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.construmedicis.taxreturn.utils.auth;
+
+import com.google.api.client.auth.oauth2.RefreshTokenRequest;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Access token de Gmail compartido por todos los workers, renovado antes de
+ * que venza.
+ *
+ * El token vigente vive en un {@link AtomicReference}: cada petición lo lee sin
+ * tomar locks, así que una renovación nunca detiene las peticiones en curso
+ * (siguen con el token anterior, que aún es válido). Un hilo programado lo
+ * renueva cuando le quedan menos de {@code refreshBeforeMillis}. Si aun así
+ * Gmail responde 401, la petición se une a la renovación en curso o la inicia;
+ * nunca hay dos renovaciones a la vez y un 401 con un token ya reemplazado
+ * solo reintenta con el nuevo.
+ */
+public class AccessTokenRefresher
+        implements HttpRequestInitializer, HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler, AutoCloseable {
+
+    /** Token vigente; {@code expiresAtMillis} es null si no se conoce el vencimiento. */
+    public record Token(String accessToken, Long expiresAtMillis) {
+    }
+
+    /** Lo necesario para pedir un token nuevo al servidor OAuth. */
+    public record RefreshGrant(String tokenServerUrl, HttpExecuteInterceptor clientAuthentication,
+            String refreshToken) {
+    }
+
+    public interface RefreshListener {
+        default void refreshed(Token token, String refreshToken) {
+        }
+
+        default void failed(Exception ex) {
+        }
+    }
+
+    private final HttpTransport transport;
+    private final JsonFactory jsonFactory;
+    private final long refreshBeforeMillis;
+    private final RefreshListener listener;
+
+    private final AtomicReference<Token> current = new AtomicReference<>();
+    private final AtomicReference<RefreshGrant> grant = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<Token>> inFlight = new AtomicReference<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "gmail-token-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public AccessTokenRefresher(HttpTransport transport, JsonFactory jsonFactory, long refreshBeforeMillis,
+            long checkIntervalMillis, RefreshListener listener) {
+        this.transport = transport;
+        this.jsonFactory = jsonFactory;
+        this.refreshBeforeMillis = refreshBeforeMillis;
+        this.listener = listener;
+        scheduler.scheduleWithFixedDelay(this::refreshIfDue, checkIntervalMillis, checkIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publica un token recién obtenido (login o restauración). Con {@code grant}
+     * null el token no se puede renovar y se usa hasta que venza.
+     */
+    public void install(Token token, RefreshGrant refreshGrant) {
+        grant.set(refreshGrant);
+        current.set(token);
+    }
+
+    public Token currentToken() {
+        return current.get();
+    }
+
+    @Override
+    public void initialize(HttpRequest request) {
+        request.setInterceptor(this);
+        request.setUnsuccessfulResponseHandler(this);
+    }
+
+    @Override
+    public void intercept(HttpRequest request) {
+        Token token = current.get();
+        if (token != null) {
+            request.getHeaders().setAuthorization("Bearer " + token.accessToken());
+        }
+    }
+
+    @Override
+    public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+            throws IOException {
+        if (response.getStatusCode() != 401 || !supportsRetry) {
+            return false;
+        }
+        Token token = current.get();
+        if (token == null) {
+            return false;
+        }
+        if (!("Bearer " + token.accessToken()).equals(request.getHeaders().getAuthorization())) {
+            return true; // otro hilo ya renovó: basta reintentar con el token nuevo
+        }
+        if (grant.get() == null) {
+            return false;
+        }
+        try {
+            return refresh(token).join() != null;
+        } catch (CompletionException ex) {
+            return false; // el 401 original llega al llamador
+        }
+    }
+
+    /**
+     * Renueva el token si {@code seen} sigue siendo el vigente. Si ya hay una
+     * renovación en curso devuelve esa misma.
+     */
+    CompletableFuture<Token> refresh(Token seen) {
+        if (current.get() != seen) {
+            return CompletableFuture.completedFuture(current.get());
+        }
+        CompletableFuture<Token> mine = new CompletableFuture<>();
+        CompletableFuture<Token> running = inFlight.compareAndExchange(null, mine);
+        if (running != null) {
+            return running;
+        }
+        try {
+            // Quien terminó antes publica el token antes de soltar inFlight
+            Token now = current.get();
+            mine.complete(now != seen ? now : requestNewToken(seen));
+        } catch (Exception ex) {
+            listener.failed(ex);
+            mine.completeExceptionally(ex);
+        } finally {
+            inFlight.set(null);
+        }
+        return mine;
+    }
+
+    private Token requestNewToken(Token seen) throws IOException {
+        RefreshGrant refreshGrant = grant.get();
+        TokenResponse response = new RefreshTokenRequest(transport, jsonFactory,
+                new GenericUrl(refreshGrant.tokenServerUrl()), refreshGrant.refreshToken())
+                .setClientAuthentication(refreshGrant.clientAuthentication())
+                .execute();
+
+        Long expiresIn = response.getExpiresInSeconds();
+        Token token = new Token(response.getAccessToken(),
+                expiresIn == null ? null : System.currentTimeMillis() + expiresIn * 1000);
+        // Google puede rotar el refresh token
+        String refreshToken = response.getRefreshToken() != null ? response.getRefreshToken()
+                : refreshGrant.refreshToken();
+        if (!refreshToken.equals(refreshGrant.refreshToken())) {
+            grant.compareAndSet(refreshGrant,
+                    new RefreshGrant(refreshGrant.tokenServerUrl(), refreshGrant.clientAuthentication(), refreshToken));
+        }
+        current.compareAndSet(seen, token);
+        listener.refreshed(token, refreshToken);
+        return token;
+    }
+
+    private void refreshIfDue() {
+        Token token = current.get();
+        if (token == null || token.expiresAtMillis() == null || grant.get() == null) {
+            return;
+        }
+        if (token.expiresAtMillis() - System.currentTimeMillis() > refreshBeforeMillis) {
+            return;
+        }
+        try {
+            refresh(token).join();
+            System.out.println("GmailAuthService: token renovado antes de vencer");
+        } catch (CompletionException ex) {
+            // se reintenta en la próxima revisión
+            System.out.println("GmailAuthService: no se pudo renovar el token: " + ex.getCause().getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -5,6 +5,11 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @RestController
 @RequestMapping("/auth")
 @CrossOrigin(origins = "*", allowedHeaders = "*")
@@ -35,6 +40,42 @@ public class AuthController {
         return ResponseEntity.accepted().build();
     }
 
+    /** Cuentas registradas para la extracción de varios buzones y si tienen credencial. */
+    @GetMapping("/accounts")
+    public ResponseEntity<?> accounts() {
+        try {
+            List<Map<String, Object>> accounts = new ArrayList<>();
+            for (GmailAccount account : gmailAuthService.listAccounts()) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("accountId", account.accountId());
+                item.put("company", account.company());
+                item.put("authenticated", gmailAuthService.getGmail(account.accountId()) != null);
+                accounts.add(item);
+            }
+            return ResponseEntity.ok(accounts);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(ex.getMessage());
+        }
+    }
+
+    /**
+     * Registra la cuenta de una empresa cliente e inicia su login (la URL queda
+     * en /auth/url).
+     */
+    @PostMapping("/accounts")
+    public ResponseEntity<?> registerAccount(@RequestParam String accountId, @RequestParam String company) {
+        try {
+            gmailAuthService.registerAccount(accountId, company);
+            return ResponseEntity.accepted().build();
+        } catch (IllegalArgumentException iae) {
+            return ResponseEntity.badRequest().body(iae.getMessage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(ex.getMessage());
+        }
+    }
+
     @PostMapping("/uploadCredentials")
     public ResponseEntity<?> uploadCredentials(@RequestParam("file") MultipartFile file) {
         try {
@@ -63,7 +104,8 @@ public class AuthController {
      */
     @GetMapping("/callback")
     public ResponseEntity<String> callback(@RequestParam(value = "code", required = false) String code,
-            @RequestParam(value = "error", required = false) String error) {
+            @RequestParam(value = "error", required = false) String error,
+            @RequestParam(value = "state", required = false) String state) {
         if (error != null) {
             return ResponseEntity.badRequest().body("Autenticación fallida: " + error);
         }
@@ -73,7 +115,7 @@ public class AuthController {
         }
 
         try {
-            gmailAuthService.handleCallback(code);
+            gmailAuthService.handleCallback(code, state);
             String html = "<html><body><h3>Autenticación completada. Puedes cerrar esta ventana y volver a la aplicación.</h3></body></html>";
             return ResponseEntity.ok().header("Content-Type", "text/html").body(html);
         } catch (Exception ex) {
@@ -0,0 +1,9 @@
+package com.construmedicis.taxreturn.utils.auth;
+
+/**
+ * Buzón de Gmail autorizado: {@code accountId} es la clave con la que se guarda
+ * su credencial y {@code company} la empresa cliente a la que pertenecen sus
+ * facturas (nombre de la carpeta de salida).
+ */
+public record GmailAccount(String accountId, String company) {
+}
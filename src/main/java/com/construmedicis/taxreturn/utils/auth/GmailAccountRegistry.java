@@ -0,0 +1,69 @@
+package com.construmedicis.taxreturn.utils.auth;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Cuentas de Gmail registradas y la empresa de cada una, en un archivo
+ * .properties junto a los tokens ({@code <cuenta>=<empresa>}). Las
+ * credenciales en sí siguen en el StoredCredential de la librería de Google,
+ * con la cuenta como clave.
+ *
+ * Se escribe en un temporal y se mueve encima del anterior.
+ */
+class GmailAccountRegistry {
+
+    private final Path path;
+
+    GmailAccountRegistry(Path path) {
+        this.path = path;
+    }
+
+    synchronized List<GmailAccount> list() throws IOException {
+        Properties props = load();
+        List<GmailAccount> accounts = new ArrayList<>();
+        for (String accountId : new TreeSet<>(props.stringPropertyNames())) {
+            accounts.add(new GmailAccount(accountId, props.getProperty(accountId)));
+        }
+        return accounts;
+    }
+
+    synchronized GmailAccount get(String accountId) throws IOException {
+        String company = load().getProperty(accountId);
+        return company == null ? null : new GmailAccount(accountId, company);
+    }
+
+    synchronized void put(GmailAccount account) throws IOException {
+        Properties props = load();
+        props.setProperty(account.accountId(), account.company());
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(writer, "Cuentas de Gmail: cuenta=empresa");
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties load() throws IOException {
+        Properties props = new Properties();
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+        }
+        return props;
+    }
+}
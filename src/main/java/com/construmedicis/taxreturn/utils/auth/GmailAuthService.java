@@ -1,15 +1,21 @@
 package com.construmedicis.taxreturn.utils.auth;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.services.gmail.GmailScopes;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
@@ -19,9 +25,10 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.GeneralSecurityException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
@@ -33,6 +40,9 @@ public class GmailAuthService {
         NOT_CONFIGURED, PENDING, AUTHENTICATED, ERROR
     }
 
+    /** Cuenta con la que se guardó siempre la credencial de un solo buzón. */
+    public static final String DEFAULT_ACCOUNT = "user";
+
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
     private static final List<String> SCOPES = Collections.singletonList(GmailScopes.GMAIL_READONLY);
 
@@ -46,7 +56,10 @@ public class GmailAuthService {
     private String applicationName;
 
     private final AtomicReference<AuthStatus> status = new AtomicReference<>(AuthStatus.NOT_CONFIGURED);
-    private final AtomicReference<Gmail> gmailRef = new AtomicReference<>(null);
+    // Cliente de Gmail de cada cuenta autorizada; cada uno lee su propio token
+    private final Map<String, AccountClient> clients = new ConcurrentHashMap<>();
+    // Cuenta del login interactivo en curso (viaja como 'state' en la URL de Google)
+    private final AtomicReference<String> pendingAccount = new AtomicReference<>(null);
     // Guarda la última URL de autorización que se generó (útil para UI o fallback
     // manual)
     private final java.util.concurrent.atomic.AtomicReference<String> lastAuthUrl = new java.util.concurrent.atomic.AtomicReference<>(
@@ -56,6 +69,61 @@ public class GmailAuthService {
 
     private ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "gmail-auth-thread"));
 
+    // Cuenta los refrescos del access token (los explícitos y los que hace el
+    // cliente al recibir un 401 o al ver el token vencido)
+    private final CredentialRefreshListener refreshMetrics;
+
+    // Transporte con pool compartido por el flujo OAuth y el cliente de Gmail
+    private final HttpTransport httpTransport;
+
+    // Renovación en segundo plano del token de cada cuenta
+    private final long refreshBeforeMillis;
+    private final long checkIntervalMillis;
+    private final Counter refreshed;
+    private final Counter failed;
+
+    private FileDataStoreFactory dataStoreFactory;
+    private GmailAccountRegistry accountRegistry;
+
+    private record AccountClient(AccessTokenRefresher tokens, Gmail gmail) {
+    }
+
+    public GmailAuthService(MeterRegistry meterRegistry, HttpTransport gmailHttpTransport,
+            @Value("${gmail.token.refresh-before-seconds:300}") long refreshBeforeSeconds,
+            @Value("${gmail.token.check-interval-seconds:30}") long checkIntervalSeconds) {
+        this.httpTransport = gmailHttpTransport;
+        this.refreshBeforeMillis = refreshBeforeSeconds * 1000;
+        this.checkIntervalMillis = checkIntervalSeconds * 1000;
+        Counter refreshed = Counter.builder("taxreturn.auth.token.refresh")
+                .description("Refrescos del token de Gmail")
+                .tag("outcome", "success")
+                .register(meterRegistry);
+        Counter failed = Counter.builder("taxreturn.auth.token.refresh")
+                .description("Refrescos del token de Gmail")
+                .tag("outcome", "failure")
+                .register(meterRegistry);
+        this.refreshMetrics = new CredentialRefreshListener() {
+            @Override
+            public void onTokenResponse(Credential credential, TokenResponse tokenResponse) {
+                refreshed.increment();
+            }
+
+            @Override
+            public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) {
+                failed.increment();
+            }
+        };
+        this.refreshed = refreshed;
+        this.failed = failed;
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (AccountClient client : clients.values()) {
+            client.tokens().close();
+        }
+    }
+
     @EventListener(ApplicationReadyEvent.class)
     public void init() {
         // If credentials file is present, try to start a non-blocking auth attempt
@@ -64,7 +132,7 @@ public class GmailAuthService {
             // If we already have stored tokens and they are still valid/refreshable,
             // restore the saved credential and skip the interactive flow.
             try {
-                boolean restored = tryRestoreStoredCredential();
+                boolean restored = tryRestoreStoredCredential(DEFAULT_ACCOUNT);
                 if (restored) {
                     System.out
                             .println("GmailAuthService: restored credential from tokens, skipping authentication flow");
@@ -85,7 +153,7 @@ public class GmailAuthService {
      * Attempt to restore a stored credential from the tokens directory.
      * Returns true when a usable credential is loaded and gmail client is created.
      */
-    private boolean tryRestoreStoredCredential() throws Exception {
+    private boolean tryRestoreStoredCredential(String accountId) throws Exception {
         // We try two approaches:
         // 1) If credentials.json exists, create a flow and load the stored credential
         // using the FileDataStoreFactory (preferred — allows refreshing the token).
@@ -95,19 +163,18 @@ public class GmailAuthService {
         // Gmail client (won't be able to refresh without client secrets).
         Path credPath = Paths.get(credentialsFilePath);
 
-        var httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-
         try (Reader reader = new FileReader(credentialsFilePath)) {
             GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, reader);
 
             GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
                     httpTransport, JSON_FACTORY, clientSecrets, SCOPES)
-                    .setDataStoreFactory(new FileDataStoreFactory(Paths.get(tokensDirectoryPath).toFile()))
+                    .setDataStoreFactory(dataStoreFactory())
                     .setAccessType("offline")
+                    .addRefreshListener(refreshMetrics)
                     .build();
 
-            // Try to load a previously stored credential for the default "user"
-            Credential credential = flow.loadCredential("user");
+            // Try to load a previously stored credential for the account
+            Credential credential = flow.loadCredential(accountId);
             if (credential == null) {
                 // Continue: maybe tokens were saved under file system layout but for
                 // some reason flow.loadCredential returned null — fall through to token
@@ -152,15 +219,8 @@ public class GmailAuthService {
                 }
 
                 if (usable) {
-                    Gmail gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, credential)
-                            .setApplicationName(applicationName)
-                            .build();
-
-                    gmailRef.set(gmail);
-                    status.set(AuthStatus.AUTHENTICATED);
-                    // cleanup any pending flow or URL reference
-                    lastFlowRef.set(null);
-                    lastAuthUrl.set(null);
+                    install(accountId, credential, flow);
+                    restored(accountId);
                     return true;
                 }
             }
@@ -168,33 +228,14 @@ public class GmailAuthService {
 
         // If we couldn't build/load a credential via Client Secrets (or the
         // credentials file is missing), try a lightweight restore directly from
-        // the tokens directory (tokens/StoredCredential/user). This allows skipping
+        // the tokens data store (tokens/StoredCredential). This allows skipping
         // auth when an access token is still valid even without the credentials
         // file present.
         try {
-            Path tokenFile = Paths.get(tokensDirectoryPath, "StoredCredential", "user");
-            if (Files.exists(tokenFile)) {
-                String content = Files.readString(tokenFile);
-
-                // naive extraction of access_token and expiration_time_millis
-                String accessToken = null;
-                Long expirationMillis = null;
-
-                java.util.regex.Matcher mTok = java.util.regex.Pattern.compile("\"access_token\"\s*:\s*\"([^\"]+)\"")
-                        .matcher(content);
-                if (mTok.find()) {
-                    accessToken = mTok.group(1);
-                }
-
-                java.util.regex.Matcher mExp = java.util.regex.Pattern
-                        .compile("\"expiration_time_millis\"\s*:\s*(\\d+)")
-                        .matcher(content);
-                if (mExp.find()) {
-                    try {
-                        expirationMillis = Long.parseLong(mExp.group(1));
-                    } catch (NumberFormatException ignore) {
-                    }
-                }
+            StoredCredential stored = StoredCredential.getDefaultDataStore(dataStoreFactory()).get(accountId);
+            if (stored != null) {
+                String accessToken = stored.getAccessToken();
+                Long expirationMillis = stored.getExpirationTimeMilliseconds();
 
                 boolean valid = false;
                 if (accessToken != null) {
@@ -210,19 +251,10 @@ public class GmailAuthService {
                 }
 
                 if (valid) {
-                    Credential credential = new Credential(
-                            com.google.api.client.auth.oauth2.BearerToken.authorizationHeaderAccessMethod())
-                            .setAccessToken(accessToken);
-
-                    httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-                    Gmail gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, credential)
-                            .setApplicationName(applicationName)
-                            .build();
-
-                    gmailRef.set(gmail);
-                    status.set(AuthStatus.AUTHENTICATED);
-                    lastFlowRef.set(null);
-                    lastAuthUrl.set(null);
+                    // Sin client secrets no se puede renovar: se usa hasta que venza
+                    client(accountId).tokens().install(new AccessTokenRefresher.Token(accessToken, expirationMillis),
+                            null);
+                    restored(accountId);
                     return true;
                 }
             }
@@ -234,21 +266,157 @@ public class GmailAuthService {
         return false;
     }
 
+    /**
+     * El estado y la URL pendiente son los del login interactivo: restaurar otra
+     * cuenta en segundo plano no los toca.
+     */
+    private void restored(String accountId) {
+        String pending = pendingAccount.get();
+        if (accountId.equals(pending) || (pending == null && DEFAULT_ACCOUNT.equals(accountId))) {
+            status.set(AuthStatus.AUTHENTICATED);
+            lastFlowRef.set(null);
+            lastAuthUrl.set(null);
+            pendingAccount.set(null);
+        }
+    }
+
+    /**
+     * Publica el token de una credencial recién cargada u obtenida. El cliente de
+     * Gmail de cada cuenta se crea una sola vez: lee el token vigente en cada
+     * petición, así que las extracciones en curso ven los tokens renovados sin
+     * cambiar de cliente.
+     */
+    private void install(String accountId, Credential credential, GoogleAuthorizationCodeFlow flow) {
+        AccessTokenRefresher.RefreshGrant grant = credential.getRefreshToken() == null ? null
+                : new AccessTokenRefresher.RefreshGrant(flow.getTokenServerEncodedUrl(),
+                        flow.getClientAuthentication(), credential.getRefreshToken());
+        client(accountId).tokens().install(new AccessTokenRefresher.Token(credential.getAccessToken(),
+                credential.getExpirationTimeMilliseconds()), grant);
+    }
+
+    private AccountClient client(String accountId) {
+        return clients.computeIfAbsent(accountId, id -> {
+            AccessTokenRefresher tokens = new AccessTokenRefresher(httpTransport, JSON_FACTORY, refreshBeforeMillis,
+                    checkIntervalMillis, new AccessTokenRefresher.RefreshListener() {
+                        @Override
+                        public void refreshed(AccessTokenRefresher.Token token, String refreshToken) {
+                            refreshed.increment();
+                            storeToken(id, token, refreshToken);
+                        }
+
+                        @Override
+                        public void failed(Exception ex) {
+                            failed.increment();
+                        }
+                    });
+            Gmail gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, tokens)
+                    .setApplicationName(applicationName)
+                    .build();
+            return new AccountClient(tokens, gmail);
+        });
+    }
+
+    /** Guarda el token renovado donde lo busca flow.loadCredential al reiniciar. */
+    private void storeToken(String accountId, AccessTokenRefresher.Token token, String refreshToken) {
+        try {
+            StoredCredential.getDefaultDataStore(dataStoreFactory()).set(accountId, new StoredCredential()
+                    .setAccessToken(token.accessToken())
+                    .setRefreshToken(refreshToken)
+                    .setExpirationTimeMilliseconds(token.expiresAtMillis()));
+        } catch (IOException ex) {
+            System.out.println("GmailAuthService: no se pudo guardar el token renovado: " + ex.getMessage());
+        }
+    }
+
+    private synchronized FileDataStoreFactory dataStoreFactory() throws IOException {
+        if (dataStoreFactory == null) {
+            dataStoreFactory = new FileDataStoreFactory(Paths.get(tokensDirectoryPath).toFile());
+        }
+        return dataStoreFactory;
+    }
+
+    private synchronized GmailAccountRegistry accountRegistry() {
+        if (accountRegistry == null) {
+            accountRegistry = new GmailAccountRegistry(Paths.get(tokensDirectoryPath, "accounts.properties"));
+        }
+        return accountRegistry;
+    }
+
     public AuthStatus getStatus() {
         return status.get();
     }
 
     public boolean isAuthenticated() {
-        return getStatus() == AuthStatus.AUTHENTICATED && gmailRef.get() != null;
+        return getStatus() == AuthStatus.AUTHENTICATED && clients.containsKey(DEFAULT_ACCOUNT);
     }
 
     public Gmail getGmail() {
-        return gmailRef.get();
+        AccountClient client = clients.get(DEFAULT_ACCOUNT);
+        return client == null ? null : client.gmail();
+    }
+
+    /**
+     * Cliente de Gmail de una cuenta registrada. Si todavía no se usó en esta
+     * ejecución, se restaura su credencial guardada; devuelve null si la cuenta
+     * no tiene una credencial utilizable.
+     */
+    public Gmail getGmail(String accountId) {
+        AccountClient client = clients.get(accountId);
+        if (client == null) {
+            synchronized (this) {
+                try {
+                    if (!clients.containsKey(accountId)) {
+                        tryRestoreStoredCredential(accountId);
+                    }
+                } catch (Exception ex) {
+                    System.out.println("GmailAuthService: no se pudo restaurar la cuenta " + accountId + ": "
+                            + ex.getMessage());
+                }
+            }
+            client = clients.get(accountId);
+        }
+        return client == null ? null : client.gmail();
+    }
+
+    public boolean isAuthenticated(String accountId) {
+        return clients.containsKey(accountId);
+    }
+
+    /** Cuentas registradas para extracción de varios buzones. */
+    public List<GmailAccount> listAccounts() throws IOException {
+        return accountRegistry().list();
+    }
+
+    public GmailAccount getAccount(String accountId) throws IOException {
+        return accountRegistry().get(accountId);
+    }
+
+    /**
+     * Registra (o actualiza) una cuenta con la empresa a la que pertenece y
+     * arranca su login si aún no tiene credencial guardada.
+     */
+    public void registerAccount(String accountId, String company) throws IOException {
+        if (accountId == null || !accountId.matches("[A-Za-z0-9._@+-]+")) {
+            throw new IllegalArgumentException("Identificador de cuenta inválido: " + accountId);
+        }
+        if (company == null || company.isBlank()) {
+            throw new IllegalArgumentException("Falta la empresa de la cuenta " + accountId);
+        }
+        accountRegistry().put(new GmailAccount(accountId, company.trim()));
+        startAuthentication(accountId);
     }
 
     public void startAuthentication() {
+        startAuthentication(DEFAULT_ACCOUNT);
+    }
+
+    /**
+     * Inicia el login de una cuenta. Hay un solo login interactivo a la vez: la
+     * cuenta viaja como 'state' y el callback guarda la credencial con esa clave.
+     */
+    public void startAuthentication(String accountId) {
         // avoid starting twice
-        if (status.get() == AuthStatus.PENDING)
+        if (status.get() == AuthStatus.PENDING && accountId.equals(pendingAccount.get()))
             return;
 
         // Si no existe el archivo de credenciales, no intentamos iniciar el flujo
@@ -263,7 +431,7 @@ public class GmailAuthService {
         // If we already have stored credentials, try to restore them before
         // starting a new interactive flow (avoid opening browser unnecessarily)
         try {
-            boolean restored = tryRestoreStoredCredential();
+            boolean restored = tryRestoreStoredCredential(accountId);
             if (restored) {
                 System.out.println(
                         "GmailAuthService: restored credential from tokens in startAuthentication, skipping interactive flow");
@@ -276,17 +444,17 @@ public class GmailAuthService {
         }
 
         status.set(AuthStatus.PENDING);
+        pendingAccount.set(accountId);
         executor.submit(() -> {
             try {
-                var httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-
                 try (Reader reader = new FileReader(credentialsFilePath)) {
                     GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, reader);
 
                     GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
                             httpTransport, JSON_FACTORY, clientSecrets, SCOPES)
-                            .setDataStoreFactory(new FileDataStoreFactory(Paths.get(tokensDirectoryPath).toFile()))
+                            .setDataStoreFactory(dataStoreFactory())
                             .setAccessType("offline")
+                            .addRefreshListener(refreshMetrics)
                             .build();
 
                     // Usaremos el servidor embebido (Tomcat en el puerto 8080) como receptor de
@@ -298,7 +466,8 @@ public class GmailAuthService {
                     // Guardar flow para que el callback pueda completar la autorización
                     lastFlowRef.set(flow);
 
-                    String authorizationUrl = flow.newAuthorizationUrl().setRedirectUri(redirectUri).build();
+                    String authorizationUrl = flow.newAuthorizationUrl().setRedirectUri(redirectUri)
+                            .setState(accountId).build();
                     lastAuthUrl.set(authorizationUrl);
 
                     System.out.println("GmailAuthService: usando redirectUri -> " + redirectUri);
@@ -323,7 +492,7 @@ public class GmailAuthService {
             } catch (FileNotFoundException fnf) {
                 // No credentials file yet
                 status.set(AuthStatus.NOT_CONFIGURED);
-            } catch (GeneralSecurityException | IOException ex) {
+            } catch (IOException ex) {
                 ex.printStackTrace();
                 status.set(AuthStatus.ERROR);
             } catch (Exception ex) {
@@ -360,54 +529,59 @@ public class GmailAuthService {
                     "No hay flujo de autorización disponible. Inicie la autenticación primero.");
         }
 
-        var httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-
         TokenResponse tokenResponse = flow.newTokenRequest(code)
                 .setRedirectUri("urn:ietf:wg:oauth:2.0:oob")
                 .execute();
 
-        Credential credential = flow.createAndStoreCredential(tokenResponse, "user");
-
-        Gmail gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, credential)
-                .setApplicationName(applicationName)
-                .build();
-
-        gmailRef.set(gmail);
-        status.set(AuthStatus.AUTHENTICATED);
-
-        // limpieza
-        lastFlowRef.set(null);
-        lastAuthUrl.set(null);
+        complete(flow, tokenResponse, pendingAccountId());
     }
 
     /**
      * Completa el flujo cuando Google redirige a /auth/callback con el code.
      */
     public void handleCallback(String code) throws Exception {
+        handleCallback(code, null);
+    }
+
+    /**
+     * Igual que {@link #handleCallback(String)}, validando que el 'state' que
+     * devuelve Google sea la cuenta cuyo login está en curso.
+     */
+    public void handleCallback(String code, String state) throws Exception {
         GoogleAuthorizationCodeFlow flow = lastFlowRef.get();
         if (flow == null) {
             throw new IllegalStateException(
                     "No hay flujo de autorización disponible. Inicie la autenticación primero.");
         }
-
-        var httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        String accountId = pendingAccountId();
+        if (state != null && !state.isBlank() && !state.equals(accountId)) {
+            throw new IllegalStateException("La autorización recibida es de la cuenta " + state
+                    + " pero el login en curso es de " + accountId + ". Inicie la autenticación de nuevo.");
+        }
 
         TokenResponse tokenResponse = flow.newTokenRequest(code)
                 .setRedirectUri("http://localhost:8080/auth/callback")
                 .execute();
 
-        Credential credential = flow.createAndStoreCredential(tokenResponse, "user");
+        complete(flow, tokenResponse, accountId);
+    }
+
+    private String pendingAccountId() {
+        String accountId = pendingAccount.get();
+        return accountId == null ? DEFAULT_ACCOUNT : accountId;
+    }
 
-        Gmail gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, credential)
-                .setApplicationName(applicationName)
-                .build();
+    private void complete(GoogleAuthorizationCodeFlow flow, TokenResponse tokenResponse, String accountId)
+            throws IOException {
+        Credential credential = flow.createAndStoreCredential(tokenResponse, accountId);
 
-        gmailRef.set(gmail);
+        install(accountId, credential, flow);
         status.set(AuthStatus.AUTHENTICATED);
 
         // limpieza
         lastFlowRef.set(null);
         lastAuthUrl.set(null);
+        pendingAccount.set(null);
     }
 
 }
@@ -0,0 +1,70 @@
+package com.construmedicis.taxreturn.utils.auth;
+
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import io.micrometer.core.instrument.Counter;
+import org.apache.http.client.HttpClient;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transporte HTTP con pool de conexiones keep-alive para Gmail y OAuth.
+ *
+ * Un solo transporte para toda la aplicación: el trust store se carga una vez
+ * y los workers de descarga reutilizan las conexiones TLS abiertas en lugar de
+ * negociar una nueva por petición. Cada conexión TLS nueva (un handshake) se
+ * cuenta en {@code tlsHandshakes}.
+ */
+public final class PooledHttpTransports {
+
+    // Una conexión ociosa se valida antes de reutilizarla pasado este tiempo
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2_000;
+
+    private PooledHttpTransports() {
+    }
+
+    public static ApacheHttpTransport create(int maxConnections, long idleTimeoutSeconds, Counter tlsHandshakes) {
+        return create(maxConnections, idleTimeoutSeconds, tlsHandshakes, SSLContexts.createSystemDefault());
+    }
+
+    public static ApacheHttpTransport create(int maxConnections, long idleTimeoutSeconds, Counter tlsHandshakes,
+            SSLContext sslContext) {
+        SSLConnectionSocketFactory tls = new SSLConnectionSocketFactory(sslContext,
+                SSLConnectionSocketFactory.getDefaultHostnameVerifier()) {
+            @Override
+            public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                    throws IOException {
+                Socket layered = super.createLayeredSocket(socket, target, port, context);
+                tlsHandshakes.increment();
+                return layered;
+            }
+        };
+        Registry<ConnectionSocketFactory> sockets = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", tls)
+                .build();
+
+        // Todo el tráfico va a pocos hosts de Google, así que el límite por ruta es el total
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(sockets);
+        pool.setMaxTotal(Math.max(1, maxConnections));
+        pool.setDefaultMaxPerRoute(Math.max(1, maxConnections));
+        pool.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+        HttpClient client = ApacheHttpTransport.newDefaultHttpClientBuilder()
+                .setConnectionManager(pool)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+        return new ApacheHttpTransport(client);
+    }
+}
@@ -20,7 +20,8 @@ public class RootCallbackController {
     // /Callback con mayúscula)
     @GetMapping({ "/Callback", "/callback" })
     public ResponseEntity<String> rootCallback(@RequestParam(value = "code", required = false) String code,
-            @RequestParam(value = "error", required = false) String error) {
+            @RequestParam(value = "error", required = false) String error,
+            @RequestParam(value = "state", required = false) String state) {
         if (error != null) {
             return ResponseEntity.badRequest().body("Autenticación fallida: " + error);
         }
@@ -30,7 +31,7 @@ public class RootCallbackController {
         }
 
         try {
-            gmailAuthService.handleCallback(code);
+            gmailAuthService.handleCallback(code, state);
             String html = "<html><body><h3>Autenticación completada. Puedes cerrar esta ventana y volver a la aplicación.</h3></body></html>";
             return ResponseEntity.ok().header("Content-Type", "text/html").body(html);
         } catch (Exception ex) {
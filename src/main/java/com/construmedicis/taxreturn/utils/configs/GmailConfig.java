@@ -1,6 +1,11 @@
 package com.construmedicis.taxreturn.utils.configs;
 
+import com.construmedicis.taxreturn.utils.auth.PooledHttpTransports;
+import com.google.api.client.http.HttpTransport;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
@@ -31,4 +36,17 @@ public class GmailConfig {
     public String getApplicationName() {
         return applicationName;
     }
+
+    /**
+     * Transporte HTTP único para Gmail, el batch y el intercambio de tokens OAuth.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public HttpTransport gmailHttpTransport(MeterRegistry meterRegistry,
+            @Value("${gmail.http.max-connections:16}") int maxConnections,
+            @Value("${gmail.http.idle-timeout-seconds:30}") long idleTimeoutSeconds) {
+        Counter handshakes = Counter.builder("taxreturn.gmail.tls.handshakes")
+                .description("Conexiones TLS nuevas hacia Google")
+                .register(meterRegistry);
+        return PooledHttpTransports.create(maxConnections, idleTimeoutSeconds, handshakes);
+    }
 }
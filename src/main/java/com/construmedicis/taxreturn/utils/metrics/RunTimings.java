@@ -0,0 +1,84 @@
+package com.construmedicis.taxreturn.utils.metrics;
+
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tiempos de una corrida, por etapa. Cada medición va al Timer de Micrometer
+ * (acumulado entre corridas, para /actuator/prometheus) y a una muestra local
+ * de la corrida, de la que salen p50/p99 exactos para la línea de resumen del
+ * log. Seguro desde varios hilos.
+ */
+public class RunTimings {
+
+    private final String title;
+    private final Map<String, Samples> stages = new LinkedHashMap<>();
+
+    public RunTimings(String title) {
+        this.title = title;
+    }
+
+    public void record(String stage, Timer timer, long nanos) {
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+        samples(stage).add(nanos);
+    }
+
+    /** Ejemplo: {@code Conversión: parse p50=0.21 ms p99=1.40 ms n=1000 | save p50=...} */
+    public String summary() {
+        StringBuilder line = new StringBuilder(title).append(':');
+        synchronized (stages) {
+            if (stages.isEmpty()) {
+                return line.append(" sin mediciones").toString();
+            }
+            String separator = " ";
+            for (Map.Entry<String, Samples> entry : stages.entrySet()) {
+                long[] sorted = entry.getValue().sorted();
+                line.append(separator).append(entry.getKey())
+                        .append(String.format(" p50=%.2f ms p99=%.2f ms n=%d", millis(percentile(sorted, 0.50)),
+                                millis(percentile(sorted, 0.99)), sorted.length));
+                separator = " | ";
+            }
+        }
+        return line.toString();
+    }
+
+    private Samples samples(String stage) {
+        synchronized (stages) {
+            return stages.computeIfAbsent(stage, s -> new Samples());
+        }
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static final class Samples {
+        private long[] values = new long[64];
+        private int size;
+
+        synchronized void add(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
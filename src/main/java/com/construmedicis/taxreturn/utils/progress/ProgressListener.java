@@ -0,0 +1,34 @@
+package com.construmedicis.taxreturn.utils.progress;
+
+/**
+ * Recibe el avance de una extracción o conversión. Los servicios lo llaman
+ * desde sus workers, así que las implementaciones deben ser thread-safe.
+ */
+public interface ProgressListener {
+
+    ProgressListener NONE = new ProgressListener() {
+    };
+
+    /** Archivos encontrados (adjuntos en Gmail o XML en la carpeta). */
+    default void filesDiscovered(int count) {
+    }
+
+    /** Un XML leído correctamente. */
+    default void fileParsed() {
+    }
+
+    /** Archivos guardados en disco o filas escritas en el Excel. */
+    default void filesWritten(int count) {
+    }
+
+    /** Un archivo que no se pudo procesar. */
+    default void fileFailed() {
+    }
+
+    default void bytesDownloaded(long bytes) {
+    }
+
+    /** Texto corto con la etapa actual, para mostrar en la interfaz. */
+    default void stage(String description) {
+    }
+}
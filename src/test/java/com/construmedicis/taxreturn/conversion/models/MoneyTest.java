@@ -0,0 +1,71 @@
+package com.construmedicis.taxreturn.conversion.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MoneyTest {
+
+    @Test
+    void parsesDianAmountsIntoUnits() {
+        assertEquals(11_905_000L, Money.parse("1190.50").units());
+        assertEquals(96_600L, Money.parse(" 9.66\n").units());
+        assertEquals(-250_000L, Money.parse("-25").units());
+        assertEquals(5_000L, Money.parse(".5").units());
+        assertEquals(12_345_678L, Money.parse("1234.56780000").units()); // ceros de más no cuentan
+        assertEquals(Money.ZERO, Money.parse("0.00"));
+        assertEquals("1190.5", Money.parse("1190.50").toString());
+        assertEquals(11_905_000L, Money.parseUnits(new StringBuilder("1190.50")));
+    }
+
+    @Test
+    void fallsBackToBigDecimalWithoutLosingDigits() {
+        Money precise = Money.parse("0.123456");
+        assertFalse(precise.fitsInUnits());
+        assertEquals(new BigDecimal("0.123456"), precise.toBigDecimal());
+        assertEquals(1_235L, precise.units()); // redondeado a cuatro decimales
+        assertEquals(1_235L, Money.parseUnits("0.123456"));
+
+        Money huge = Money.parse("99999999999999999999.5");
+        assertFalse(huge.fitsInUnits());
+        assertEquals("99999999999999999999.5", huge.toString());
+        assertThrows(ArithmeticException.class, huge::units);
+
+        assertEquals(Money.parse("1500"), Money.parse("1.5E3"));
+        assertTrue(Money.parse("1.5E3").fitsInUnits());
+        assertThrows(NumberFormatException.class, () -> Money.parse("12,50"));
+        assertThrows(NumberFormatException.class, () -> Money.parse(""));
+        assertThrows(NumberFormatException.class, () -> Money.parse("-"));
+    }
+
+    @Test
+    void sumsExactlyWhereDoubleDrifts() {
+        Money total = Money.ZERO;
+        double drift = 0;
+        for (int i = 0; i < 1_000; i++) {
+            total = total.plus(Money.parse("0.10"));
+            drift += Double.parseDouble("0.10");
+        }
+        assertEquals(Money.parse("100"), total);
+        assertTrue(drift != 100.0);
+
+        Money max = Money.ofUnits(Long.MAX_VALUE);
+        Money beyond = max.plus(Money.ofUnits(1));
+        assertFalse(beyond.fitsInUnits());
+        assertEquals(BigDecimal.valueOf(Long.MAX_VALUE, Money.SCALE).add(new BigDecimal("0.0001")),
+                beyond.toBigDecimal());
+    }
+
+    @Test
+    void doubleValueMatchesParseDouble() {
+        for (String text : new String[] { "0.1", "9.66", "1190.50", "27.5", "-0.07", "123456789.99",
+                "0.0003", "922337203685.4775", "1.000001" }) {
+            assertEquals(Double.parseDouble(text), Money.parse(text).doubleValue(), text);
+        }
+    }
+}
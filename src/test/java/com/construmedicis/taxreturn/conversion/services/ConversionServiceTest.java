@@ -0,0 +1,562 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversionServiceTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void parallelOutputMatchesSequential() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 40; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+
+        Path sequential = TemplateWorkbooks.create(tmp.resolve("sequential.xlsx"));
+        Path parallel = Files.copy(sequential, tmp.resolve("parallel.xlsx"));
+
+        ConversionService sequentialService = new ConversionService();
+        ReflectionTestUtils.setField(sequentialService, "parallelism", 1);
+        sequentialService.convertInvoices(xmlDir.toString(), sequential.toString());
+
+        ConversionService parallelService = new ConversionService();
+        ReflectionTestUtils.setField(parallelService, "parallelism", 4);
+        parallelService.convertInvoices(xmlDir.toString(), parallel.toString());
+
+        assertEquals(zipEntries(sequential).keySet(), zipEntries(parallel).keySet());
+        for (Map.Entry<String, byte[]> entry : zipEntries(sequential).entrySet()) {
+            assertArrayEquals(entry.getValue(), zipEntries(parallel).get(entry.getKey()), entry.getKey());
+        }
+
+        try (FileInputStream in = new FileInputStream(parallel.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            XSSFSheet sheet = wb.getSheet("RETENCION 2025");
+            Row first = sheet.getRow(4);
+            assertEquals("FE00000", first.getCell(5).getStringCellValue());
+            assertEquals("TOTALES", sheet.getRow(44).getCell(0).getStringCellValue());
+            assertEquals("A3:L44", sheet.getTables().get(0).getArea().formatAsString());
+        }
+    }
+
+    @Test
+    void batchAppendMatchesRowByRowInsert() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 25; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+
+        Path rowByRow = TemplateWorkbooks.create(tmp.resolve("row-by-row.xlsx"));
+        Path batch = Files.copy(rowByRow, tmp.resolve("batch.xlsx"));
+
+        ConversionService rowByRowService = new ConversionService();
+        ReflectionTestUtils.setField(rowByRowService, "batchAppend", false);
+        rowByRowService.convertInvoices(xmlDir.toString(), rowByRow.toString());
+
+        new ConversionService().convertInvoices(xmlDir.toString(), batch.toString());
+
+        // El atributo count de sharedStrings cuenta cada escritura de "TOTALES" en el
+        // modo fila por fila; el contenido de hojas, tabla y cadenas es el mismo
+        Map<String, byte[]> expected = zipEntries(rowByRow);
+        Map<String, byte[]> actual = zipEntries(batch);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            if (entry.getKey().equals("xl/sharedStrings.xml")) {
+                assertEquals(withoutCount(entry.getValue()), withoutCount(actual.get(entry.getKey())));
+            } else {
+                assertArrayEquals(entry.getValue(), actual.get(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    void dateStyleIsCreatedOncePerWorkbook() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 30; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("styles.xlsx"));
+        int templateStyles = numCellStyles(excel);
+
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "manifestEnabled", false);
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(templateStyles + 1, numCellStyles(excel));
+
+        // Una segunda corrida reutiliza el estilo de fecha que ya está en el libro
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(templateStyles + 1, numCellStyles(excel));
+    }
+
+    @Test
+    void streamingModeWritesSameCellsAsInMemoryMode() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 60; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path inMemory = TemplateWorkbooks.create(tmp.resolve("xssf.xlsx"));
+        Path streaming = Files.copy(inMemory, tmp.resolve("sxssf.xlsx"));
+
+        new ConversionService().convertInvoices(xmlDir.toString(), inMemory.toString());
+
+        ConversionService streamingService = new ConversionService();
+        ReflectionTestUtils.setField(streamingService, "outputMode", "sxssf");
+        streamingService.convertInvoices(xmlDir.toString(), streaming.toString());
+
+        try (XSSFWorkbook expected = new XSSFWorkbook(new FileInputStream(inMemory.toFile()));
+                XSSFWorkbook actual = new XSSFWorkbook(new FileInputStream(streaming.toFile()))) {
+            XSSFSheet expectedSheet = expected.getSheet("RETENCION 2025");
+            XSSFSheet actualSheet = actual.getSheet("RETENCION 2025");
+
+            assertEquals(expectedSheet.getLastRowNum(), actualSheet.getLastRowNum());
+            for (int r = 0; r <= expectedSheet.getLastRowNum(); r++) {
+                Row expectedRow = expectedSheet.getRow(r);
+                Row actualRow = actualSheet.getRow(r);
+                assertEquals(expectedRow == null, actualRow == null, "fila " + r);
+                if (expectedRow == null) {
+                    continue;
+                }
+                for (int c = 0; c < TemplateWorkbooks.HEADERS.length; c++) {
+                    assertEquals(String.valueOf(expectedRow.getCell(c)), String.valueOf(actualRow.getCell(c)),
+                            "fila " + r + ", columna " + c);
+                }
+            }
+            assertEquals(expectedSheet.getTables().get(0).getCTTable().xmlText(),
+                    actualSheet.getTables().get(0).getCTTable().xmlText());
+            assertEquals("SUM(G4:G64)", actualSheet.getRow(64).getCell(6).getCellFormula());
+            assertEquals("SUM(H4:H64)", actualSheet.getRow(64).getCell(7).getCellFormula());
+        }
+    }
+
+    @Test
+    void streamingModeMovesRowsBelowTotalsAcrossRuns() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 5; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("firmas.xlsx"));
+        try (XSSFWorkbook wb = new XSSFWorkbook(new FileInputStream(excel.toFile()))) {
+            XSSFSheet sheet = wb.getSheet("RETENCION 2025");
+            Row signature = sheet.createRow(6);
+            signature.createCell(0).setCellValue("Elaboró");
+            signature.createCell(6).setCellFormula("G5*2");
+            sheet.addMergedRegion(CellRangeAddress.valueOf("A7:C7"));
+            try (OutputStream out = Files.newOutputStream(excel)) {
+                wb.write(out);
+            }
+        }
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "outputMode", "sxssf");
+
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        for (int i = 5; i < 8; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+
+        try (XSSFWorkbook wb = new XSSFWorkbook(new FileInputStream(excel.toFile()))) {
+            XSSFSheet sheet = wb.getSheet("RETENCION 2025");
+            assertEquals("TOTALES", sheet.getRow(12).getCell(0).getStringCellValue());
+            assertEquals("SUM(G4:G12)", sheet.getRow(12).getCell(6).getCellFormula());
+            assertEquals("Elaboró", sheet.getRow(14).getCell(0).getStringCellValue());
+            assertEquals("G13*2", sheet.getRow(14).getCell(6).getCellFormula());
+            assertEquals("A15:C15", sheet.getMergedRegion(0).formatAsString());
+            assertEquals("A3:L12", sheet.getTables().get(0).getCTTable().getRef());
+            assertEquals("FE00007", sheet.getRow(11).getCell(5).getStringCellValue());
+        }
+    }
+
+    @Test
+    void rerunInsertsOnlyNewInvoices() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 10; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("incremental.xlsx"));
+        ConversionService service = new ConversionService();
+
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(14, totalsRowIndex(excel));
+
+        // Sin cambios: no se inserta nada
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(14, totalsRowIndex(excel));
+
+        // Un XML nuevo y una copia renombrada de uno ya procesado
+        InvoiceXmlFixtures.writeInvoice(xmlDir, 10);
+        Files.copy(xmlDir.resolve("FE00003.xml"), xmlDir.resolve("copia-FE00003.xml"));
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(15, totalsRowIndex(excel));
+        assertTrue(Files.exists(tmp.resolve("incremental.xlsx.manifest")));
+    }
+
+    @Test
+    void reissuedXmlWithKnownCufeIsReportedAndNotInsertedTwice() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 3; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("corregida.xlsx"));
+        ConversionService service = new ConversionService();
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+
+        // Misma factura y CUFE, otro valor y otro archivo
+        Files.writeString(xmlDir.resolve("FE00001-corregida.xml"), InvoiceXmlFixtures.attachedDocument("FE00001",
+                "900000001", "PROVEEDOR 1 S.A.S", "2025-02-02", "2001.00", "2381.00", "26.00", "9.66"));
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(7, totalsRowIndex(excel));
+
+        ConversionManifest manifest = ConversionManifest.load(tmp.resolve("corregida.xlsx.manifest"));
+        InvoiceRecord corregida = service.parseInvoice(xmlDir.resolve("FE00001-corregida.xml").toFile());
+        assertEquals("FE00001.xml", manifest.fileForInvoice(corregida));
+        assertTrue(manifest.isUnchanged("FE00001-corregida.xml", xmlDir.resolve("FE00001-corregida.xml").toFile()));
+    }
+
+    @Test
+    void convertsSameNamedXmlFromMessageFolders() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("extracted"));
+        InvoiceXmlFixtures.writeInvoice(xmlDir, 0);
+        for (int i = 1; i <= 2; i++) {
+            Path messageDir = Files.createDirectories(xmlDir.resolve("m" + i));
+            Files.move(InvoiceXmlFixtures.writeInvoice(messageDir, i), messageDir.resolve("factura.xml"));
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("carpetas.xlsx"));
+        ConversionService service = new ConversionService();
+
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(7, totalsRowIndex(excel));
+        String manifest = Files.readString(tmp.resolve("carpetas.xlsx.manifest"));
+        assertTrue(manifest.contains("m1/factura.xml\t") && manifest.contains("m2/factura.xml\t"));
+
+        // las dos factura.xml se reconocen por su ruta: no se vuelven a leer
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        assertEquals(7, totalsRowIndex(excel));
+    }
+
+    @Test
+    void supplierRegistryWritesOneNitAndNamePerSupplier() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        String[][] spellings = { { "900123456", "FERRETERIA CENTRAL S.A.S" },
+                { "900.123.456-8", "Ferreteria  Central SAS" }, { "900123456 - 8", " ferreteria central" } };
+        for (int i = 0; i < spellings.length; i++) {
+            Files.writeString(xmlDir.resolve("FE" + i + ".xml"), InvoiceXmlFixtures.attachedDocument("FE" + i,
+                    spellings[i][0], spellings[i][1], "2025-03-0" + (i + 1), "1000.00", "1190.00", "25.00", null));
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("proveedores.xlsx"));
+        Path registry = tmp.resolve("proveedores.tsv");
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "suppliersFile", registry.toString());
+
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+
+        try (FileInputStream in = new FileInputStream(excel.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            XSSFSheet sheet = wb.getSheet("RETENCION 2025");
+            for (int r = 4; r < 4 + spellings.length; r++) {
+                assertEquals("FERRETERIA CENTRAL S.A.S", sheet.getRow(r).getCell(1).getStringCellValue());
+                assertEquals("900123456", sheet.getRow(r).getCell(2).getStringCellValue());
+            }
+        }
+        assertTrue(Files.readAllLines(registry).contains("900123456\t8\tFERRETERIA CENTRAL S.A.S"));
+    }
+
+    @Test
+    void mappingFileChoosesColumnsAndConcept() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        Files.writeString(xmlDir.resolve("FE1.xml"), InvoiceXmlFixtures.attachedDocument("FE1", "900123456",
+                "FERRETERIA", "2025-03-01", "2000000.00", "2380000.00", "50000.00", null)
+                .replace("<cac:Party>", "<cac:Party><cbc:IndustryClasificationCode>4752</cbc:IndustryClasificationCode>"));
+        Files.writeString(xmlDir.resolve("FE2.xml"), InvoiceXmlFixtures.attachedDocument("FE2", "811000000",
+                "PAPELERIA", "2025-03-02", "100000.00", "119000.00", null, null));
+        Path mapping = tmp.resolve("mapeo.properties");
+        Files.writeString(mapping, String.join("\n",
+                "sheet=RETENCION 2025",
+                "column.1=cbc:CompanyID",
+                "column.2=cbc:IndustryClasificationCode",
+                "column.3=cac:WithholdingTaxTotal/RENTA",
+                "column.8=concepto",
+                "concept.default=Compras generales (declarantes)",
+                "concept.1.ciiu=4752",
+                "concept.1.min-base=1000000",
+                "concept.1.value=Compras de materiales"), StandardCharsets.UTF_8);
+        Path excel = TemplateWorkbooks.create(tmp.resolve("mapeo.xlsx"));
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "mappingFile", mapping.toString());
+
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+
+        try (FileInputStream in = new FileInputStream(excel.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            XSSFSheet sheet = wb.getSheet("RETENCION 2025");
+            Map<String, Row> byNit = new TreeMap<>();
+            for (int r = 4; r < 6; r++) {
+                byNit.put(sheet.getRow(r).getCell(1).getStringCellValue(), sheet.getRow(r));
+            }
+            Row ferreteria = byNit.get("900123456");
+            assertEquals("4752", ferreteria.getCell(2).getStringCellValue());
+            assertEquals(50000.0, ferreteria.getCell(3).getNumericCellValue());
+            assertEquals("Compras de materiales", ferreteria.getCell(8).getStringCellValue());
+            assertEquals("Compras generales (declarantes)", byNit.get("811000000").getCell(8).getStringCellValue());
+            // columnas sin mapear quedan vacías
+            assertNull(ferreteria.getCell(4));
+        }
+    }
+
+    @Test
+    void watchModeAppendsInvoicesAsTheyArrive() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("extracted"));
+        for (int i = 0; i < 3; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("vigilado.xlsx"));
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "watchDebounceMs", 200L);
+
+        service.startWatching(xmlDir.toString(), excel.toString());
+        try {
+            // primer lote: lo que ya estaba en la carpeta
+            awaitInserted(service, 3);
+            assertEquals(7, totalsRowIndex(excel));
+
+            // llega un mensaje nuevo con un XML a medio escribir: ese se salta, el resto entra
+            Path messageDir = Files.createDirectories(xmlDir.resolve("m9"));
+            for (int i = 3; i < 8; i++) {
+                InvoiceXmlFixtures.writeInvoice(messageDir, i);
+            }
+            Files.writeString(messageDir.resolve("roto.xml"), "<AttachedDocument");
+            awaitInserted(service, 8);
+            assertEquals(12, totalsRowIndex(excel));
+        } finally {
+            assertTrue(service.stopWatching());
+        }
+        assertTrue(service.watchStatus().isEmpty());
+        assertFalse(service.stopWatching());
+    }
+
+    @Test
+    void stoppingTheWatchConvertsFilesStillWaitingForTheirBatch() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("extracted"));
+        for (int i = 0; i < 2; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("detener.xlsx"));
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "suppliersFile", tmp.resolve("proveedores.tsv").toString());
+        ReflectionTestUtils.setField(service, "watchDebounceMs", 60_000L);
+        ReflectionTestUtils.setField(service, "watchMaxDelayMs", 60_000L);
+
+        service.startWatching(xmlDir.toString(), excel.toString());
+        // el lote aún espera su debounce: detener lo convierte sin bloquearse con el servicio
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> assertTrue(service.stopWatching()));
+        assertEquals(6, totalsRowIndex(excel));
+        assertTrue(service.watchStatus().isEmpty());
+    }
+
+    @Test
+    void watchBatchWaitsWhileAnotherWriterHoldsTheWorkbook() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("extracted"));
+        InvoiceXmlFixtures.writeInvoice(xmlDir, 0);
+        Path excel = TemplateWorkbooks.create(tmp.resolve("compartido.xlsx"));
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "watchDebounceMs", 100L);
+
+        service.startWatching(xmlDir.toString(), excel.toString());
+        try {
+            awaitInserted(service, 1);
+            try (InvoiceWriter writer = service.openWriter(excel.toString())) {
+                InvoiceXmlFixtures.writeInvoice(xmlDir, 1);
+                Thread.sleep(600);
+                // el lote espera a que el pipeline cierre el Excel
+                assertEquals(1, service.watchStatus().orElseThrow().inserted());
+            }
+            awaitInserted(service, 2);
+            assertEquals(6, totalsRowIndex(excel));
+        } finally {
+            assertTrue(service.stopWatching());
+        }
+    }
+
+    @Test
+    void stagingStoreKeepsLinesAndTaxesOfInsertedInvoices() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 5; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Files.writeString(xmlDir.resolve("FE77.xml"), InvoiceXmlFixtures.detailedDocument("FE77"));
+        Path excel = TemplateWorkbooks.create(tmp.resolve("staging.xlsx"));
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "stagingEnabled", true);
+
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+        service.convertInvoices(xmlDir.toString(), excel.toString()); // sin cambios: no duplica
+
+        Path dir = StagingStore.pathFor(excel.toFile());
+        try (StagingStore store = StagingStore.open(dir)) {
+            assertEquals(6, store.rows(StagingStore.Table.INVOICES));
+            assertEquals(7, store.rows(StagingStore.Table.LINES));
+            assertEquals(14, store.rows(StagingStore.Table.TAXES));
+
+            StagingStore.Scan invoices = store.scan(StagingStore.Table.INVOICES);
+            StagingStore.LongColumn payable = invoices.money("payable");
+            long total = 0;
+            for (int row = 0; row < invoices.rows(); row++) {
+                total += payable.get(row);
+            }
+            assertEquals(Money.parse("7255"), Money.ofUnits(total)); // 1190 + ... + 1194 + 1295
+
+            // FE77 va de última (orden por nombre de archivo): sus dos líneas también
+            assertEquals("FERRETERIA CENTRAL S.A.S",
+                    store.string((int) invoices.strings("supplierName").get(5)));
+            assertEquals(LocalDate.of(2025, 3, 15).toEpochDay(), invoices.longs("issueDate").get(5));
+            StagingStore.Scan lines = store.scan(StagingStore.Table.LINES);
+            assertEquals(5, lines.longs("invoice").get(6));
+            assertEquals("Arena\nlavada", store.string((int) lines.strings("description").get(6)));
+
+            // sin commit, lo añadido se descarta al cerrar
+            try (InputStream in = Files.newInputStream(xmlDir.resolve("FE77.xml"))) {
+                store.append(new StaxInvoiceParser().parseDetail(in, "otra.xml"), "otra.xml");
+            }
+        }
+        try (StagingStore store = StagingStore.open(dir)) {
+            assertEquals(6, store.rows(StagingStore.Table.INVOICES));
+            assertEquals(StagingStore.NULL_STRING, store.stringId("otra.xml"));
+        }
+    }
+
+    @Test
+    void summarizesRetentionsByNitMonthAndConcept() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        for (int i = 0; i < 240; i++) {
+            InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+        }
+        Path excel = TemplateWorkbooks.create(tmp.resolve("resumen.xlsx"));
+        ConversionService service = new ConversionService();
+        ReflectionTestUtils.setField(service, "stagingEnabled", true);
+        service.convertInvoices(xmlDir.toString(), excel.toString());
+
+        // lo esperado, sumado directamente de los datos de las facturas (en pesos enteros
+        // salvo reteICA, que se cuenta en centavos)
+        long base = 0;
+        long fuente = 0;
+        long icaCents = 0;
+        int invoices = 0;
+        long reteRenta = 0;
+        for (int i = 0; i < 240; i++) {
+            if (i % 50 == 4 && i % 12 == 4) { // NIT 900000004, mayo de 2025
+                invoices++;
+                base += 1000 + i;
+                fuente += 25 + i % 7;
+                icaCents += i % 3 == 0 ? 0 : 966;
+            }
+            if (i % 12 == 4) {
+                reteRenta += 25 + i % 7;
+            }
+        }
+        long may = 2025 * 12L + 5;
+
+        try (StagingStore store = StagingStore.openReadOnly(StagingStore.pathFor(excel.toFile()))) {
+            RetentionSummary sequential = RetentionSummary.compute(store, 1);
+            RetentionSummary parallel = RetentionSummary.compute(store, 4, 10);
+            for (RetentionSummary summary : List.of(sequential, parallel)) {
+                assertEquals(invoices, summary.supplierTotal("900000004", may, RetentionSummary.INVOICES));
+                // sumas exactas en diezmilésimas
+                assertEquals(base * 10_000, summary.supplierTotal("900000004", may, RetentionSummary.BASE));
+                assertEquals(fuente * 10_000, summary.supplierTotal("900000004", may, RetentionSummary.RET_FUENTE));
+                assertEquals(icaCents * 100, summary.supplierTotal("900000004", may, RetentionSummary.RET_ICA));
+                assertEquals(reteRenta * 10_000, summary.conceptTotal("ReteRenta", may, RetentionSummary.AMOUNT));
+                // cada una de las 240 facturas cae en un par NIT-mes distinto
+                assertEquals(240, summary.supplierRows());
+                // ReteRenta en los 12 meses; ReteICA sólo en los meses donde i % 3 != 0
+                assertEquals(20, summary.conceptRows());
+            }
+        }
+
+        Path csv = tmp.resolve("resumen.csv");
+        service.summarize(excel.toString(), csv.toString());
+        List<String> lines = Files.readAllLines(csv);
+        assertEquals("nit,razon_social,mes,facturas,base_imponible,retefuente,reteica", lines.get(0));
+        assertEquals(241, lines.size());
+        assertTrue(lines.get(1).startsWith("900000000,PROVEEDOR 0 S.A.S,2025-01,"), lines.get(1));
+        assertTrue(Files.readAllLines(tmp.resolve("resumen-conceptos.csv")).contains(
+                "ReteRenta,2025-05,20,0.00," + reteRenta + ".00"));
+
+        Path xlsx = tmp.resolve("resumen-retenciones.xlsx");
+        service.summarize(excel.toString(), xlsx.toString());
+        try (FileInputStream in = new FileInputStream(xlsx.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            XSSFSheet sheet = wb.getSheet("RESUMEN NIT");
+            assertEquals("TOTALES", sheet.getRow(241).getCell(0).getStringCellValue());
+            assertEquals(240, sheet.getRow(241).getCell(3).getNumericCellValue());
+            assertEquals(20, wb.getSheet("RESUMEN CONCEPTO").getLastRowNum());
+        }
+    }
+
+    private static void awaitInserted(ConversionService service, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (service.watchStatus().orElseThrow().inserted() < expected) {
+            assertTrue(System.nanoTime() < deadline, "la vigilancia no insertó " + expected + " facturas");
+            Thread.sleep(50);
+        }
+    }
+
+    private static int totalsRowIndex(Path xlsx) throws Exception {
+        try (FileInputStream in = new FileInputStream(xlsx.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            return TableRowAppender.findTotalsRow(wb.getSheet("RETENCION 2025"), "TOTALES");
+        }
+    }
+
+    private static int numCellStyles(Path xlsx) throws Exception {
+        try (FileInputStream in = new FileInputStream(xlsx.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            return wb.getNumCellStyles();
+        }
+    }
+
+    private static String withoutCount(byte[] xml) {
+        return new String(xml, StandardCharsets.UTF_8).replaceFirst(" count=\"\\d+\"", "");
+    }
+
+    // Contenido de cada parte del paquete, sin las marcas de tiempo del ZIP
+    static Map<String, byte[]> zipEntries(Path xlsx) throws Exception {
+        Map<String, byte[]> entries = new TreeMap<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(xlsx))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,47 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvoiceFolderWatcherTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void failedBatchStaysPendingAndIsRetried() throws Exception {
+        Files.writeString(tmp.resolve("FE1.xml"), "<x/>");
+        AtomicInteger attempts = new AtomicInteger();
+        List<File> converted = new CopyOnWriteArrayList<>();
+        try (InvoiceFolderWatcher watcher = new InvoiceFolderWatcher(tmp, 100, 2000, 500, xmlFiles -> {
+            if (attempts.incrementAndGet() <= 2) {
+                throw new IOException("El archivo está abierto en Excel");
+            }
+            converted.addAll(xmlFiles);
+            return xmlFiles.size();
+        })) {
+            watcher.start(true);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (watcher.inserted() == 0) {
+                assertTrue(System.nanoTime() < deadline, "el lote fallido no se reintentó");
+                Thread.sleep(20);
+            }
+            assertEquals(3, attempts.get());
+            assertEquals(List.of(tmp.resolve("FE1.xml").toFile()), converted);
+            assertNull(watcher.lastError());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InvoiceMappingTest {
+
+    @Test
+    void defaultMappingKeepsTheTemplateLayout() throws Exception {
+        InvoiceMapping mapping = InvoiceMapping.load("");
+        assertEquals("RETENCION 2025", mapping.sheetName());
+        assertEquals("d/MM/yyyy", mapping.dateFormat());
+        assertEquals("Compras generales (declarantes)", mapping.concept(invoice("900123456", null, "5000")));
+    }
+
+    @Test
+    void firstMatchingRuleWins() throws Exception {
+        InvoiceMapping mapping = InvoiceMapping.compile(properties("""
+                sheet=RETENCION
+                column.1=concepto
+                concept.default=General
+                concept.1.nit=900.123.456-8, 800197268
+                concept.1.value=Proveedor
+                concept.2.ciiu=4752,4663
+                concept.2.min-base=1000
+                concept.2.max-base=5000.50
+                concept.2.value=Ferretería
+                """), "prueba");
+        assertEquals("Proveedor", mapping.concept(invoice("900123456-8", "4752", "2000")));
+        assertEquals("Ferretería", mapping.concept(invoice("811000000", "0111;4663", "1000")));
+        assertEquals("Ferretería", mapping.concept(invoice("811000000", "4752", "5000.49")));
+        // max-base es exclusivo, min-base inclusivo
+        assertEquals("General", mapping.concept(invoice("811000000", "4752", "5000.50")));
+        assertEquals("General", mapping.concept(invoice("811000000", "4752", "999.99")));
+        assertEquals("General", mapping.concept(invoice("CE 123", null, "2000")));
+    }
+
+    @Test
+    void rejectsUnknownKeysAndSources() {
+        String base = "sheet=S\nconcept.default=General\n";
+        for (String bad : new String[] { "column.1=cbc:Nada", "columna.1=cbc:ID", "column.x=cbc:ID",
+                "column.1=cbc:ID\nconcept.1.color=rojo\nconcept.1.value=X",
+                "column.1=cbc:ID\nconcept.1.nit=ABC\nconcept.1.value=X",
+                "column.1=cbc:ID\nconcept.1.nit=900123456" }) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> InvoiceMapping.compile(properties(base + bad), "prueba"), bad);
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> InvoiceMapping.compile(properties("column.1=cbc:ID\nconcept.default=G"), "prueba"));
+    }
+
+    private static Properties properties(String text) throws java.io.IOException {
+        Properties p = new Properties();
+        p.load(new StringReader(text));
+        return p;
+    }
+
+    private static InvoiceRecord invoice(String nit, String ciiu, String base) {
+        return new InvoiceRecord("PROVEEDOR", nit, "FE1", null, "2025-01-01", Money.parse(base), Money.parse(base),
+                Money.ZERO, Money.ZERO, ciiu);
+    }
+}
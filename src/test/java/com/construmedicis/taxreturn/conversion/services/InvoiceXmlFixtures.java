@@ -0,0 +1,136 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Genera AttachedDocument DIAN sintéticos (sobre + factura UBL en CDATA) para
+ * pruebas.
+ */
+public final class InvoiceXmlFixtures {
+
+    private InvoiceXmlFixtures() {
+    }
+
+    public static String attachedDocument(String invoiceId, String nit, String name, String issueDate,
+            String lineExtension, String payable, String retFuente, String retIca) {
+        StringBuilder inv = new StringBuilder();
+        inv.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"")
+                .append(" xmlns:cac=\"urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2\"")
+                .append(" xmlns:cbc=\"urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2\">")
+                .append("<cbc:UBLVersionID>UBL 2.1</cbc:UBLVersionID>")
+                .append("<cbc:ID>").append(invoiceId).append("</cbc:ID>")
+                .append("<cbc:UUID schemeName=\"CUFE-SHA384\">cufe-").append(invoiceId).append("</cbc:UUID>")
+                .append("<cbc:IssueDate>").append(issueDate).append("</cbc:IssueDate>")
+                .append("<cac:AccountingSupplierParty><cac:Party><cac:PartyTaxScheme>")
+                .append("<cbc:RegistrationName>").append(name).append("</cbc:RegistrationName>")
+                .append("<cbc:CompanyID schemeID=\"7\">").append(nit).append("</cbc:CompanyID>")
+                .append("</cac:PartyTaxScheme></cac:Party></cac:AccountingSupplierParty>");
+        if (retFuente != null) {
+            inv.append(withholding(retFuente, "06", "ReteRenta"));
+        }
+        if (retIca != null) {
+            inv.append(withholding(retIca, "07", "ReteICA"));
+        }
+        inv.append("<cac:LegalMonetaryTotal>")
+                .append("<cbc:LineExtensionAmount currencyID=\"COP\">").append(lineExtension)
+                .append("</cbc:LineExtensionAmount>")
+                .append("<cbc:PayableAmount currencyID=\"COP\">").append(payable).append("</cbc:PayableAmount>")
+                .append("</cac:LegalMonetaryTotal>")
+                .append("<cac:InvoiceLine><cbc:ID>1</cbc:ID>")
+                .append("<cbc:LineExtensionAmount currencyID=\"COP\">").append(lineExtension)
+                .append("</cbc:LineExtensionAmount></cac:InvoiceLine>")
+                .append("</Invoice>");
+        return envelope(invoiceId, inv.toString());
+    }
+
+    /**
+     * Factura con IVA en dos tarifas, retenciones de la factura y de una línea, y
+     * dos líneas con su propio IVA: para leer el detalle completo.
+     */
+    public static String detailedDocument(String invoiceId) {
+        String inv = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\""
+                + " xmlns:cac=\"urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2\""
+                + " xmlns:cbc=\"urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2\">"
+                + "<cbc:ID>" + invoiceId + "</cbc:ID>"
+                + "<cbc:UUID>cufe-" + invoiceId + "</cbc:UUID>"
+                + "<cbc:IssueDate>2025-03-15</cbc:IssueDate>"
+                + "<cac:AccountingSupplierParty><cac:Party><cac:PartyTaxScheme>"
+                + "<cbc:RegistrationName>FERRETERIA CENTRAL S.A.S</cbc:RegistrationName>"
+                + "<cbc:CompanyID>900123456</cbc:CompanyID>"
+                + "</cac:PartyTaxScheme></cac:Party></cac:AccountingSupplierParty>"
+                + "<cac:TaxTotal><cbc:TaxAmount>195.00</cbc:TaxAmount>"
+                + taxSubtotal("1000.00", "190.00", "19.00", "01", "IVA")
+                + taxSubtotal("100.00", "5.00", "5.00", "01", "IVA")
+                + "</cac:TaxTotal>"
+                + withholding("27.50", "06", "ReteRenta")
+                + "<cac:LegalMonetaryTotal>"
+                + "<cbc:LineExtensionAmount>1100.00</cbc:LineExtensionAmount>"
+                + "<cbc:PayableAmount>1295.00</cbc:PayableAmount>"
+                + "</cac:LegalMonetaryTotal>"
+                + "<cac:InvoiceLine><cbc:ID>1</cbc:ID>"
+                + "<cbc:InvoicedQuantity unitCode=\"94\">4</cbc:InvoicedQuantity>"
+                + "<cbc:LineExtensionAmount>1000.00</cbc:LineExtensionAmount>"
+                + "<cac:TaxTotal><cbc:TaxAmount>190.00</cbc:TaxAmount>"
+                + taxSubtotal("1000.00", "190.00", "19.00", "01", "IVA")
+                + "</cac:TaxTotal>"
+                + "<cac:Item><cbc:Description>Cemento gris 50 kg</cbc:Description></cac:Item>"
+                + "<cac:Price><cbc:PriceAmount>250.00</cbc:PriceAmount></cac:Price>"
+                + "</cac:InvoiceLine>"
+                + "<cac:InvoiceLine><cbc:ID>2</cbc:ID>"
+                + "<cbc:InvoicedQuantity unitCode=\"94\">2.5</cbc:InvoicedQuantity>"
+                + "<cbc:LineExtensionAmount>100.00</cbc:LineExtensionAmount>"
+                + "<cac:TaxTotal><cbc:TaxAmount>5.00</cbc:TaxAmount>"
+                + taxSubtotal("100.00", "5.00", "5.00", "01", "IVA")
+                + "</cac:TaxTotal>"
+                + withholding("1.10", "07", "ReteICA")
+                + "<cac:Item><cbc:Description>Arena\nlavada</cbc:Description></cac:Item>"
+                + "</cac:InvoiceLine>"
+                + "</Invoice>";
+        return envelope(invoiceId, inv);
+    }
+
+    private static String taxSubtotal(String taxable, String amount, String percent, String schemeId,
+            String schemeName) {
+        return "<cac:TaxSubtotal><cbc:TaxableAmount>" + taxable + "</cbc:TaxableAmount>"
+                + "<cbc:TaxAmount>" + amount + "</cbc:TaxAmount>"
+                + "<cac:TaxCategory><cbc:Percent>" + percent + "</cbc:Percent>"
+                + "<cac:TaxScheme><cbc:ID>" + schemeId + "</cbc:ID><cbc:Name>" + schemeName + "</cbc:Name>"
+                + "</cac:TaxScheme></cac:TaxCategory></cac:TaxSubtotal>";
+    }
+
+    private static String envelope(String invoiceId, String inv) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<AttachedDocument xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:AttachedDocument-2\""
+                + " xmlns:cac=\"urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2\""
+                + " xmlns:cbc=\"urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2\">"
+                + "<cbc:ID>AD-" + invoiceId + "</cbc:ID>"
+                + "<cac:Attachment><cac:ExternalReference><cbc:MimeCode>text/xml</cbc:MimeCode>"
+                + "<cbc:Description><![CDATA[" + inv + "]]></cbc:Description>"
+                + "</cac:ExternalReference></cac:Attachment>"
+                + "</AttachedDocument>";
+    }
+
+    private static String withholding(String amount, String schemeId, String schemeName) {
+        return "<cac:WithholdingTaxTotal>"
+                + "<cbc:TaxAmount currencyID=\"COP\">" + amount + "</cbc:TaxAmount>"
+                + "<cac:TaxSubtotal><cbc:TaxAmount currencyID=\"COP\">" + amount + "</cbc:TaxAmount>"
+                + "<cac:TaxCategory><cac:TaxScheme><cbc:ID>" + schemeId + "</cbc:ID>"
+                + "<cbc:Name>" + schemeName + "</cbc:Name></cac:TaxScheme></cac:TaxCategory></cac:TaxSubtotal>"
+                + "</cac:WithholdingTaxTotal>";
+    }
+
+    public static Path writeInvoice(Path dir, int i) throws IOException {
+        String id = String.format("FE%05d", i);
+        String xml = attachedDocument(id, String.valueOf(900000000 + (i % 50)), "PROVEEDOR " + (i % 50) + " S.A.S",
+                String.format("2025-%02d-%02d", 1 + (i % 12), 1 + (i % 28)),
+                (1000 + i) + ".00", (1190 + i) + ".00", (25 + i % 7) + ".00", (i % 3 == 0 ? null : "9.66"));
+        Path file = dir.resolve(id + ".xml");
+        Files.writeString(file, xml, StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,44 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LongKeyedSumsTest {
+
+    @Test
+    void growsAndMergesWithoutLosingSums() {
+        LongKeyedSums left = new LongKeyedSums(2, 4);
+        LongKeyedSums right = new LongKeyedSums(2, 4);
+        for (long k = 0; k < 5_000; k++) {
+            long key = (k << 32) | (k % 12);
+            left.add(key, 0, 1);
+            left.add(key, 1, k);
+            if (k % 2 == 0) {
+                int row = right.row(key);
+                right.addAt(row, 0, 1);
+                right.addAt(row, 1, 5_000);
+            }
+        }
+        left.merge(right);
+
+        assertEquals(5_000, left.size());
+        assertEquals(2, left.get(42L << 32 | 6, 0));
+        assertEquals(5_042, left.get(42L << 32 | 6, 1));
+        assertEquals(1, left.get(43L << 32 | 7, 0));
+        assertEquals(0, left.get(99_999L, 0));
+        assertArrayEquals(new long[] { 0, 1L << 32 | 1, 2L << 32 | 2 },
+                java.util.Arrays.copyOf(left.sortedKeys(), 3));
+    }
+
+    @Test
+    void overflowFailsInsteadOfWrappingAround() {
+        LongKeyedSums sums = new LongKeyedSums(1, 4);
+        sums.add(7, 0, Long.MAX_VALUE - 1);
+        sums.add(7, 0, 1);
+        assertThrows(ArithmeticException.class, () -> sums.add(7, 0, 1));
+        assertEquals(Long.MAX_VALUE, sums.get(7, 0));
+    }
+}
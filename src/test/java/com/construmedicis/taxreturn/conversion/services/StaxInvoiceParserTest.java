@@ -0,0 +1,102 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceDetail;
+import com.construmedicis.taxreturn.conversion.models.InvoiceLineItem;
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import com.construmedicis.taxreturn.conversion.models.TaxEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StaxInvoiceParserTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void extractsSameFieldsAsDomPath() throws Exception {
+        ConversionService stax = new ConversionService();
+        ConversionService dom = new ConversionService();
+        ReflectionTestUtils.setField(dom, "parserMode", "dom");
+
+        for (int i = 0; i < 6; i++) {
+            Path xml = InvoiceXmlFixtures.writeInvoice(tmp, i);
+            assertEquals(dom.parseInvoice(xml.toFile()), stax.parseInvoice(xml.toFile()));
+        }
+    }
+
+    @Test
+    void lineLevelWithholdingsDoNotChangeTheRowInEitherParser() throws Exception {
+        ConversionService stax = new ConversionService();
+        ConversionService dom = new ConversionService();
+        ReflectionTestUtils.setField(dom, "parserMode", "dom");
+        // FE77 trae ReteRenta en la factura y ReteICA sólo en la línea 2
+        byte[] xml = InvoiceXmlFixtures.detailedDocument("FE77").getBytes(StandardCharsets.UTF_8);
+
+        InvoiceRecord fromDom = dom.parseInvoice(new ByteArrayInputStream(xml), "FE77.xml");
+        assertEquals(fromDom, stax.parseInvoice(new ByteArrayInputStream(xml), "FE77.xml"));
+        assertEquals(Money.parse("27.5"), fromDom.retFuente());
+        assertEquals(Money.ZERO, fromDom.retIca());
+    }
+
+    @Test
+    void readsEmbeddedInvoiceFields() throws Exception {
+        Path xml = InvoiceXmlFixtures.writeInvoice(tmp, 1);
+
+        InvoiceRecord record = new StaxInvoiceParser().parse(xml.toFile());
+
+        assertEquals("FE00001", record.invoiceNumber());
+        assertEquals("900000001", record.supplierNit());
+        assertEquals("PROVEEDOR 1 S.A.S", record.supplierName());
+        assertEquals("2025-02-02", record.issueDate());
+        assertEquals(Money.parse("1191"), record.payableAmount());
+        assertEquals(Money.parse("1001"), record.lineExtensionAmount());
+        assertEquals(Money.parse("26"), record.retFuente());
+        assertEquals(Money.parse("9.66"), record.retIca());
+    }
+
+    @Test
+    void readsEveryLineAndTaxSubtotal() throws Exception {
+        StaxInvoiceParser parser = new StaxInvoiceParser();
+        byte[] xml = InvoiceXmlFixtures.detailedDocument("FE77").getBytes(StandardCharsets.UTF_8);
+
+        InvoiceDetail detail = parser.parseDetail(new ByteArrayInputStream(xml), "FE77.xml");
+
+        // la fila es la misma que la de la lectura corta (la ReteICA de la línea 2 no cuenta)
+        assertEquals(parser.parse(new ByteArrayInputStream(xml), "FE77.xml"), detail.invoice());
+        assertEquals(Money.parse("27.5"), detail.invoice().retFuente());
+        assertEquals(Money.ZERO, detail.invoice().retIca());
+
+        assertEquals(List.of(
+                new InvoiceLineItem("1", "Cemento gris 50 kg", 4.0, Money.parse("1000")),
+                new InvoiceLineItem("2", "Arena\nlavada", 2.5, Money.parse("100"))), detail.lines());
+        Money zero = Money.ZERO;
+        assertEquals(List.of(
+                new TaxEntry(-1, false, "01", "IVA", Money.parse("1000"), 19.0, Money.parse("190")),
+                new TaxEntry(-1, false, "01", "IVA", Money.parse("100"), 5.0, Money.parse("5")),
+                new TaxEntry(-1, true, "06", "ReteRenta", zero, 0.0, Money.parse("27.5")),
+                new TaxEntry(0, false, "01", "IVA", Money.parse("1000"), 19.0, Money.parse("190")),
+                new TaxEntry(1, false, "01", "IVA", Money.parse("100"), 5.0, Money.parse("5")),
+                new TaxEntry(1, true, "07", "ReteICA", zero, 0.0, Money.parse("1.1"))), detail.taxes());
+    }
+
+    @Test
+    void detailRowMatchesShortReadForFixtures() throws Exception {
+        StaxInvoiceParser parser = new StaxInvoiceParser();
+        for (int i = 0; i < 6; i++) {
+            byte[] xml = Files.readAllBytes(InvoiceXmlFixtures.writeInvoice(tmp, i));
+            InvoiceDetail detail = parser.parseDetail(new ByteArrayInputStream(xml), "f" + i);
+            assertEquals(parser.parse(new ByteArrayInputStream(xml), "f" + i), detail.invoice());
+            assertEquals(1, detail.lines().size());
+        }
+    }
+}
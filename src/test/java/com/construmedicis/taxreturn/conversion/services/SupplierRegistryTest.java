@@ -0,0 +1,72 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import com.construmedicis.taxreturn.conversion.models.InvoiceRecord;
+import com.construmedicis.taxreturn.conversion.models.Money;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class SupplierRegistryTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void computesDianCheckDigit() {
+        assertEquals(4, SupplierRegistry.checkDigit(800197268L)); // NIT de la DIAN
+        assertEquals(8, SupplierRegistry.checkDigit(900123456L));
+        assertEquals(900123456L, SupplierRegistry.baseNit(" 900.123.456 - 8 "));
+        assertEquals(-1L, SupplierRegistry.baseNit("CC-ABC"));
+    }
+
+    @Test
+    void groupsSpellingsOfTheSameSupplier() throws Exception {
+        Path file = tmp.resolve("proveedores.tsv");
+        SupplierRegistry registry = SupplierRegistry.load(file, 16);
+
+        InvoiceRecord first = registry.canonical(invoice("900.123.456-8", "  Ferreteria  central s.a.s "));
+        assertEquals("900123456", first.supplierNit());
+        assertEquals("FERRETERIA CENTRAL S.A.S", first.supplierName());
+        for (String nit : List.of("900123456", "900123456 - 8", "9001234568", "900,123,456-7")) {
+            InvoiceRecord other = registry.canonical(invoice(nit, "FERRETERÍA CENTRAL SAS"));
+            assertSame(first.supplierNit(), other.supplierNit(), nit);
+            assertSame(first.supplierName(), other.supplierName(), nit);
+        }
+        // sin NIT reconocible la factura queda como vino
+        InvoiceRecord odd = invoice("CE 123", "Extranjero");
+        assertSame(odd, registry.canonical(odd));
+        assertEquals(1, registry.size());
+
+        registry.save();
+        Files.writeString(file, Files.readString(file).replace("FERRETERIA CENTRAL S.A.S", "Ferretería Central"));
+        SupplierRegistry reloaded = SupplierRegistry.load(file, 16);
+        assertEquals("FERRETERÍA CENTRAL", reloaded.canonical(invoice("900123456-8", "X")).supplierName());
+        assertNull(reloaded.find("800197268"));
+    }
+
+    @Test
+    void gluedCheckDigitGroupsWhicheverFormArrivesFirst() throws Exception {
+        for (List<String> order : List.of(List.of("9001234568", "900123456-8"), List.of("900123456-8", "9001234568"))) {
+            SupplierRegistry registry = SupplierRegistry.load(tmp.resolve("orden-" + order.get(0) + ".tsv"), 16);
+            InvoiceRecord first = registry.canonical(invoice(order.get(0), "Ferreteria Central"));
+            InvoiceRecord second = registry.canonical(invoice(order.get(1), "Ferreteria Central"));
+            assertEquals("900123456", first.supplierNit(), order.toString());
+            assertSame(first.supplierNit(), second.supplierNit(), order.toString());
+            assertEquals(1, registry.size(), order.toString());
+        }
+        // una cédula de diez dígitos no pierde su último dígito
+        assertEquals(1012345678L, SupplierRegistry.withoutGluedCheckDigit(1012345678L));
+    }
+
+    private static InvoiceRecord invoice(String nit, String name) {
+        return new InvoiceRecord(name, nit, "FE1", null, "2025-01-01", Money.ZERO, Money.ZERO, Money.ZERO,
+                Money.ZERO, null);
+    }
+}
@@ -0,0 +1,56 @@
+package com.construmedicis.taxreturn.conversion.services;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Construye una plantilla mínima equivalente a calculadora_de_retenciones.xlsx:
+ * hoja "RETENCION 2025" con una tabla y la fila de TOTALES debajo.
+ */
+public final class TemplateWorkbooks {
+
+    static final String[] HEADERS = { "N°", "RAZON SOCIAL", "NIT", "DV", "FECHA", "FACTURA", "VALOR TOTAL",
+            "BASE IMPONIBLE", "CONCEPTO", "TIPO", "RETEICA", "RETEFUENTE" };
+
+    private TemplateWorkbooks() {
+    }
+
+    public static Path create(Path file) throws IOException {
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            XSSFSheet sheet = wb.createSheet("RETENCION 2025");
+
+            Row header = sheet.createRow(2);
+            for (int c = 0; c < HEADERS.length; c++) {
+                header.createCell(c).setCellValue(HEADERS[c]);
+            }
+
+            CellStyle dataStyle = wb.createCellStyle();
+            dataStyle.setWrapText(true);
+            Row firstData = sheet.createRow(3);
+            for (int c = 0; c < HEADERS.length; c++) {
+                firstData.createCell(c).setCellStyle(dataStyle);
+            }
+
+            sheet.createTable(new AreaReference("A3:L4", SpreadsheetVersion.EXCEL2007));
+
+            Row totals = sheet.createRow(4);
+            totals.createCell(0).setCellValue("TOTALES");
+            totals.createCell(6).setCellFormula("SUM(G4:G4)");
+            totals.createCell(7).setCellFormula("SUM(H4:H4)");
+
+            try (OutputStream out = Files.newOutputStream(file)) {
+                wb.write(out);
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,395 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import com.construmedicis.taxreturn.extraction.models.MailboxResult;
+import com.construmedicis.taxreturn.utils.auth.GmailAccount;
+import com.construmedicis.taxreturn.utils.auth.GmailAuthService;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ExtractionServiceTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void downloadsEveryPageAndRetriesThrottledAttachments() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(3)) {
+            for (int i = 0; i < 10; i++) {
+                gmail.addMessage("m" + i,
+                        new FakeGmailServer.Attachment("factura" + i + ".zip", zip("fv" + i + ".xml", "<xml/>")));
+            }
+            gmail.throttleAttachments(2);
+
+            ExtractionService service = newService(gmail);
+            service.extractInvoices("me", "label:facturas", tmp.toString());
+
+            assertEquals(4, gmail.listCalls.get()); // 10 mensajes en páginas de 3
+            assertEquals(10, gmail.messageCalls.get());
+            assertEquals(2, gmail.throttledResponses.get());
+            for (int i = 0; i < 10; i++) {
+                assertTrue(Files.exists(tmp.resolve("factura" + i + ".zip")));
+            }
+        }
+    }
+
+    @Test
+    void groupsMessageAndAttachmentCallsIntoBatches() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(100)) {
+            for (int i = 0; i < 10; i++) {
+                gmail.addMessage("m" + i,
+                        new FakeGmailServer.Attachment("fv" + i + ".zip", zip("fv" + i + ".xml", "<xml/>")),
+                        new FakeGmailServer.Attachment("fv" + i + ".pdf", new byte[] { 1, 2, 3 }));
+            }
+            gmail.throttleAttachments(1);
+
+            ExtractionService service = newService(gmail);
+            ReflectionTestUtils.setField(service, "batchSize", 4);
+            service.extractInvoices("me", "label:facturas", tmp.toString());
+
+            // bloques de 4, 4 y 2 mensajes: 3 batches de mensajes, 2 + 2 + 1 de
+            // adjuntos (dos por mensaje) y el reenvío del adjunto limitado
+            assertEquals(9, gmail.batchCalls.get());
+            assertEquals(10 + 20 + 1, gmail.batchedCalls.get());
+            assertEquals(10, gmail.messageCalls.get());
+            assertTrue(gmail.fieldsSeen.contains(ExtractionService.MESSAGE_FIELDS));
+            for (int i = 0; i < 10; i++) {
+                assertTrue(Files.exists(tmp.resolve("fv" + i + ".zip")));
+                assertEquals(3, Files.size(tmp.resolve("fv" + i + ".pdf")));
+                assertTrue(Files.exists(tmp.resolve("extracted").resolve("m" + i).resolve("fv" + i + ".xml")));
+            }
+        }
+    }
+
+    @Test
+    void syncDownloadsOnlyNewMessagesAndFallsBackWhenCheckpointExpires() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(2)) {
+            for (int i = 0; i < 5; i++) {
+                gmail.addMessage("m" + i, new FakeGmailServer.Attachment("fv" + i + ".pdf", new byte[] { 1 }));
+            }
+            ExtractionService service = newService(gmail);
+            Path checkpoint = tmp.resolve("sync.properties");
+            ReflectionTestUtils.setField(service, "checkpointFile", checkpoint.toString());
+            Path out = Files.createDirectories(tmp.resolve("out"));
+
+            // primera vez: sin checkpoint, sincronización completa
+            assertEquals(5, service.syncInvoices("me", "facturas-proveedores", out.toString()));
+            assertEquals(0, gmail.historyCalls.get());
+            assertTrue(Files.readString(checkpoint).contains("me|Label_7=105"));
+
+            // solo llegan los mensajes nuevos, por historial
+            gmail.addMessage("m5", new FakeGmailServer.Attachment("fv5.pdf", new byte[] { 1 }));
+            gmail.addMessage("m6", new FakeGmailServer.Attachment("fv6.pdf", new byte[] { 1 }));
+            int listCalls = gmail.listCalls.get();
+            assertEquals(2, service.syncInvoices("me", "Facturas Proveedores", out.toString()));
+            assertEquals(listCalls, gmail.listCalls.get());
+            assertEquals(7, gmail.messageCalls.get());
+            assertTrue(Files.exists(out.resolve("fv6.pdf")));
+
+            // sin novedades
+            assertEquals(0, service.syncInvoices("me", "facturas-proveedores", out.toString()));
+
+            // historial vencido (404): vuelve a la consulta completa
+            gmail.expireHistoryBefore(1_000);
+            assertEquals(7, service.syncInvoices("me", "facturas-proveedores", out.toString()));
+            assertTrue(gmail.listCalls.get() > listCalls);
+        }
+    }
+
+    @Test
+    void streamsLargeZipAttachmentsKeepingOnlyXmlAndPdfEntries() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(100)) {
+            byte[] bundle = zip(new String[] { "fv1.xml", "fv1.pdf", "leeme.txt" }, "<xml/>", "%PDF-1.4", "hola");
+            gmail.addMessage("m1", new FakeGmailServer.Attachment("paquete.zip", bundle),
+                    new FakeGmailServer.Attachment("nota.pdf", new byte[] { 9, 9 }),
+                    new FakeGmailServer.Attachment("firma.png", new byte[] { 1 }));
+
+            ExtractionService service = newService(gmail);
+            ReflectionTestUtils.setField(service, "streamThresholdBytes", 2L);
+            service.extractInvoices("me", "label:facturas", tmp.toString());
+
+            assertEquals(2, gmail.directAttachmentCalls.get()); // firma.png (1 byte) va por batch
+            Path extracted = tmp.resolve("extracted").resolve("m1");
+            assertEquals("<xml/>", Files.readString(extracted.resolve("fv1.xml")));
+            assertEquals("%PDF-1.4", Files.readString(extracted.resolve("fv1.pdf")));
+            assertFalse(Files.exists(extracted.resolve("leeme.txt")));
+            assertFalse(Files.exists(tmp.resolve("paquete.zip")));
+            assertEquals(2, Files.size(tmp.resolve("nota.pdf")));
+            assertTrue(Files.exists(tmp.resolve("firma.png")));
+        }
+    }
+
+    @Test
+    void retriedStreamedZipHandsEachXmlToTheSinkOnce() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(100)) {
+            // dos entradas grandes: el corte llega a mitad de la segunda
+            Random random = new Random(7);
+            byte[] uno = new byte[100_000];
+            byte[] dos = new byte[100_000];
+            random.nextBytes(uno);
+            random.nextBytes(dos);
+            byte[] bundle = zip(new String[] { "fv1.xml", "fv2.xml" },
+                    "<uno>" + Base64.getEncoder().encodeToString(uno) + "</uno>",
+                    "<dos>" + Base64.getEncoder().encodeToString(dos) + "</dos>");
+            gmail.addMessage("m1", new FakeGmailServer.Attachment("paquete.zip", bundle));
+            gmail.stallStreamedAttachments(1, 2000);
+
+            GmailAuthService auth = mock(GmailAuthService.class);
+            when(auth.getGmail()).thenReturn(gmail.gmail(300));
+            ExtractionService service = new ExtractionService(auth);
+            ReflectionTestUtils.setField(service, "initialBackoffMs", 10L);
+            ReflectionTestUtils.setField(service, "streamThresholdBytes", 2L);
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            service.extractInvoices("me", "label:facturas", tmp.toString(), ProgressListener.NONE,
+                    (name, content) -> received.add(name));
+
+            assertEquals(2, gmail.directAttachmentCalls.get()); // el primer intento se cortó
+            assertEquals(List.of("m1/fv1.xml", "m1/fv2.xml"), received);
+        }
+    }
+
+    @Test
+    void extractsZipEntriesPerMessageSkippingUnsafePathsAndOtherTypes() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(100)) {
+            gmail.addMessage("m1", new FakeGmailServer.Attachment("a.zip", zip(
+                    new String[] { "factura.xml", "factura.pdf", "leeme.txt", "../../fuera.xml", "sub/otra.xml" },
+                    "<uno/>", "%PDF", "hola", "<malo/>", "<sub/>")));
+            gmail.addMessage("m2", new FakeGmailServer.Attachment("b.zip", zip("factura.xml", "<dos/>")));
+            gmail.addMessage("m3", new FakeGmailServer.Attachment("../" + tmp.getFileName() + "-robado.pdf",
+                    new byte[] { 1 }));
+
+            ExtractionService service = newService(gmail);
+            ReflectionTestUtils.setField(service, "zipEntries", "xml");
+            service.extractInvoices("me", "label:facturas", tmp.toString());
+
+            Path extracted = tmp.resolve("extracted");
+            // el mismo nombre en dos mensajes ya no se pisa
+            assertEquals("<uno/>", Files.readString(extracted.resolve("m1").resolve("factura.xml")));
+            assertEquals("<dos/>", Files.readString(extracted.resolve("m2").resolve("factura.xml")));
+            assertEquals("<sub/>", Files.readString(extracted.resolve("m1").resolve("sub").resolve("otra.xml")));
+            assertFalse(Files.exists(extracted.resolve("m1").resolve("factura.pdf")));
+            assertFalse(Files.exists(extracted.resolve("m1").resolve("leeme.txt")));
+            assertFalse(Files.exists(tmp.resolve("fuera.xml")));
+            // el nombre del adjunto también lo pone el remitente
+            assertFalse(Files.exists(tmp.resolveSibling(tmp.getFileName() + "-robado.pdf")));
+        }
+    }
+
+    @Test
+    void entriesResolvingToTheSameFileAreExtractedOnceKeepingTheLast() throws Exception {
+        Path zipPath = tmp.resolve("dup.zip");
+        Files.write(zipPath, zip(new String[] { "factura.xml", "otra.xml", "./factura.xml" },
+                "<viejo/>", "<otra/>", "<nuevo/>"));
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            ZipEntryExtractor.Result result = new ZipEntryExtractor(ZipEntryExtractor.EntryFilter.XML, pool)
+                    .extract(zipPath, tmp.resolve("out"));
+            assertEquals(List.of("otra.xml", "./factura.xml"), result.entries());
+            assertEquals(2, result.written());
+            assertEquals("<nuevo/>", Files.readString(tmp.resolve("out").resolve("factura.xml")));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void safeResolveRejectsPathsOutsideTheTarget() {
+        Path target = tmp.resolve("extracted");
+        assertEquals(target.resolve("a").resolve("b.xml").toAbsolutePath(),
+                ZipEntryExtractor.safeResolve(target, "a/./b.xml"));
+        assertNull(ZipEntryExtractor.safeResolve(target, "../b.xml"));
+        assertNull(ZipEntryExtractor.safeResolve(target, "a/../../b.xml"));
+        assertNull(ZipEntryExtractor.safeResolve(target, "..\\..\\b.xml"));
+        assertNull(ZipEntryExtractor.safeResolve(target, "/etc/passwd"));
+        assertNull(ZipEntryExtractor.safeResolve(target, "."));
+    }
+
+    @Test
+    void readsJsonStringFieldAsStream() throws Exception {
+        String json = "{ \"size\": 3, \"note\" : \"data\", \"es\\\"c\": 1, \"data\" :\n \"AQID\" }";
+        try (JsonStringFieldInputStream in = new JsonStringFieldInputStream(
+                new java.io.ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "data")) {
+            assertEquals("AQID", new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void recordsGmailCallsAttachmentBytesAndZipEntries() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(100)) {
+            for (int i = 0; i < 3; i++) {
+                gmail.addMessage("m" + i, new FakeGmailServer.Attachment("fv" + i + ".zip",
+                        zip(new String[] { "fv" + i + ".xml", "fv" + i + ".pdf" }, "<xml/>", "%PDF")));
+            }
+            gmail.throttleAttachments(1);
+
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            GmailAuthService auth = mock(GmailAuthService.class);
+            when(auth.getGmail()).thenReturn(gmail.gmail());
+            ExtractionService service = new ExtractionService(auth, registry);
+            ReflectionTestUtils.setField(service, "initialBackoffMs", 10L);
+            service.extractInvoices("me", "label:facturas", tmp.toString());
+
+            assertEquals(1, registry.get("taxreturn.gmail.requests").tags("operation", "messages.list", "outcome", "ok")
+                    .timer().count());
+            // el adjunto limitado dentro del batch se reenvía en un segundo batch
+            assertEquals(2, registry.get("taxreturn.gmail.requests")
+                    .tags("operation", "batch attachments.get", "outcome", "ok").timer().count());
+            assertEquals(3, registry.get("taxreturn.zip.entries").tag("type", "xml").counter().count());
+            assertEquals(3, registry.get("taxreturn.zip.entries").tag("type", "pdf").counter().count());
+            assertEquals(3, registry.get("taxreturn.gmail.attachment.bytes").tag("transfer", "batch").summary()
+                    .count());
+        }
+    }
+
+    @Test
+    void rerunReadsAttachmentsFromCacheAndStoresDuplicatesOnce() throws Exception {
+        try (FakeGmailServer gmail = new FakeGmailServer(100)) {
+            byte[] shared = zip("fv-comun.xml", "<xml/>");
+            byte[] large = zip(new String[] { "fv-grande.xml", "fv-grande.pdf" }, "<xml>grande</xml>",
+                    "%PDF-1.4 " + "x".repeat(200));
+            gmail.addMessage("m1", new FakeGmailServer.Attachment("comun.zip", shared));
+            gmail.addMessage("m2", new FakeGmailServer.Attachment("comun-copia.zip", shared));
+            gmail.addMessage("m3", new FakeGmailServer.Attachment("grande.zip", large),
+                    new FakeGmailServer.Attachment("nota.pdf", new byte[] { 7 }));
+
+            ExtractionService service = newService(gmail);
+            Path cacheDir = tmp.resolve("cache");
+            ReflectionTestUtils.setField(service, "cacheDir", cacheDir.toString());
+            ReflectionTestUtils.setField(service, "streamThresholdBytes", (long) large.length);
+
+            Path first = Files.createDirectories(tmp.resolve("first"));
+            service.extractInvoices("me", "label:facturas", first.toString());
+            int batched = gmail.attachmentCalls.get();
+            int streamed = gmail.directAttachmentCalls.get();
+            assertEquals(1, streamed);
+            // el ZIP repetido en dos mensajes se guarda una sola vez
+            try (var blobs = Files.list(cacheDir.resolve("blobs"))) {
+                assertEquals(3, blobs.count());
+            }
+
+            Path second = Files.createDirectories(tmp.resolve("second"));
+            service.extractInvoices("me", "label:facturas", second.toString());
+            assertEquals(batched, gmail.attachmentCalls.get());
+            assertEquals(streamed, gmail.directAttachmentCalls.get());
+            assertTrue(Files.exists(second.resolve("comun-copia.zip")));
+            assertEquals(1, Files.size(second.resolve("nota.pdf")));
+            Path extracted = second.resolve("extracted").resolve("m3");
+            assertEquals("<xml>grande</xml>", Files.readString(extracted.resolve("fv-grande.xml")));
+            assertTrue(Files.readString(extracted.resolve("fv-grande.pdf")).startsWith("%PDF"));
+
+            // el índice sobrevive a un servicio nuevo
+            ExtractionService reopened = newService(gmail);
+            ReflectionTestUtils.setField(reopened, "cacheDir", cacheDir.toString());
+            reopened.extractInvoices("me", "label:facturas", Files.createDirectories(tmp.resolve("third")).toString());
+            assertEquals(batched, gmail.attachmentCalls.get());
+        }
+    }
+
+    @Test
+    void cacheEvictsLeastRecentlyUsedContentOverBudget() throws Exception {
+        Path dir = tmp.resolve("lru");
+        AttachmentCache cache = AttachmentCache.open(dir, 10);
+        cache.put("m1/1/4", new byte[] { 1, 1, 1, 1 });
+        cache.put("m2/1/4", new byte[] { 2, 2, 2, 2 });
+        cache.open("m1/1/4", 4).close(); // m1 pasa a ser el más reciente
+        cache.put("m3/1/4", new byte[] { 3, 3, 3, 3 });
+
+        assertEquals(8, cache.totalBytes());
+        assertNull(cache.open("m2/1/4", 4));
+        cache.save();
+
+        AttachmentCache reopened = AttachmentCache.open(dir, 10);
+        assertEquals(2, reopened.size());
+        try (var in = reopened.open("m1/1/4", 4)) {
+            assertEquals(1, in.read());
+        }
+        assertNull(reopened.open("m3/1/4", 5)); // tamaño distinto: no se usa
+    }
+
+    @Test
+    void extractsSeveralMailboxesIntoCompanyFolders() throws Exception {
+        try (FakeGmailServer alfa = new FakeGmailServer(100); FakeGmailServer beta = new FakeGmailServer(100)) {
+            for (int i = 0; i < 3; i++) {
+                alfa.addMessage("a" + i, new FakeGmailServer.Attachment("alfa" + i + ".pdf", new byte[] { 1 }));
+                beta.addMessage("b" + i, new FakeGmailServer.Attachment("beta" + i + ".pdf", new byte[] { 2 }));
+            }
+            GmailAuthService auth = mock(GmailAuthService.class);
+            when(auth.listAccounts()).thenReturn(List.of(new GmailAccount("alfa@x.co", "Alfa S.A.S."),
+                    new GmailAccount("beta@x.co", "Beta: Ltda"), new GmailAccount("gamma@x.co", "Gamma")));
+            when(auth.getGmail("alfa@x.co")).thenReturn(alfa.gmail());
+            when(auth.getGmail("beta@x.co")).thenReturn(beta.gmail());
+            ExtractionService service = new ExtractionService(auth);
+            ReflectionTestUtils.setField(service, "initialBackoffMs", 10L);
+
+            List<MailboxResult> results = service.extractMailboxes(null, "label:facturas", tmp.toString(),
+                    ProgressListener.NONE);
+
+            assertEquals(3, results.size());
+            assertEquals(3, results.get(0).messages());
+            assertEquals(3, results.get(1).messages());
+            assertTrue(Files.exists(tmp.resolve("Alfa S.A.S").resolve("alfa2.pdf")));
+            assertTrue(Files.exists(tmp.resolve("Beta_ Ltda").resolve("beta0.pdf")));
+            assertFalse(Files.exists(tmp.resolve("Alfa S.A.S").resolve("beta0.pdf")));
+            // la cuenta sin credencial falla sola, sin detener a las demás
+            assertFalse(results.get(2).succeeded());
+            assertTrue(results.get(2).error().contains("gamma@x.co"));
+        }
+    }
+
+    @Test
+    void quotaLimiterMakesLaterCallsWaitForTheDebt() {
+        QuotaRateLimiter quota = new QuotaRateLimiter(100);
+        assertEquals(0, quota.reserve(100));
+        long wait = quota.reserve(50); // medio segundo de cuota
+        assertTrue(wait > 400_000_000L && wait <= 500_000_000L, "espera " + wait);
+        assertTrue(quota.reserve(500) > 5_000_000_000L);
+    }
+
+    ExtractionService newService(FakeGmailServer gmail) {
+        GmailAuthService auth = mock(GmailAuthService.class);
+        when(auth.getGmail()).thenReturn(gmail.gmail());
+        ExtractionService service = new ExtractionService(auth);
+        ReflectionTestUtils.setField(service, "parallelism", 4);
+        ReflectionTestUtils.setField(service, "initialBackoffMs", 10L);
+        return service;
+    }
+
+    static byte[] zip(String entryName, String content) throws Exception {
+        return zip(new String[] { entryName }, content);
+    }
+
+    static byte[] zip(String[] entryNames, String... contents) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < entryNames.length; i++) {
+                zip.putNextEntry(new ZipEntry(entryNames[i]));
+                zip.write(contents[i].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,398 @@
+package com.construmedicis.taxreturn.extraction.services;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.SSLContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Servidor HTTP local que imita los endpoints de Gmail usados por la
+ * extracción: listado paginado de mensajes, mensaje, adjunto, historial,
+ * perfil, etiquetas y el endpoint batch. Sirve mensajes
+ * predefinidos y puede responder 429 a las primeras peticiones de adjuntos
+ * para probar el backoff, o cortar a medias las descargas en streaming.
+ */
+public class FakeGmailServer implements AutoCloseable {
+
+    public record Attachment(String filename, byte[] data) {
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final Map<String, List<Attachment>> messages = new LinkedHashMap<>();
+    private final int pageSize;
+
+    final AtomicInteger listCalls = new AtomicInteger();
+    final AtomicInteger messageCalls = new AtomicInteger();
+    final AtomicInteger attachmentCalls = new AtomicInteger();
+    final AtomicInteger throttledResponses = new AtomicInteger();
+    final AtomicInteger batchCalls = new AtomicInteger();
+    final AtomicInteger batchedCalls = new AtomicInteger();
+    final Set<String> fieldsSeen = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger remainingThrottles = new AtomicInteger();
+    private final AtomicInteger remainingStalls = new AtomicInteger();
+    private volatile long stallMs;
+    final AtomicInteger historyCalls = new AtomicInteger();
+    final AtomicInteger directAttachmentCalls = new AtomicInteger();
+    // Conexiones TLS aceptadas (solo en modo HTTPS): una por handshake
+    final AtomicInteger tlsConnections = new AtomicInteger();
+    private final String scheme;
+    private final Map<String, Long> addedAtHistory = new HashMap<>();
+    private final AtomicLong historyId = new AtomicLong(100);
+    private final AtomicLong oldestHistory = new AtomicLong();
+
+    public FakeGmailServer(int pageSize) throws IOException {
+        this(pageSize, null);
+    }
+
+    /** Con {@code ssl} distinto de null el servidor atiende HTTPS. */
+    FakeGmailServer(int pageSize, SSLContext ssl) throws IOException {
+        this.pageSize = pageSize;
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        if (ssl == null) {
+            this.server = HttpServer.create(address, 0);
+            this.scheme = "http";
+        } else {
+            HttpsServer https = HttpsServer.create(address, 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(ssl) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    tlsConnections.incrementAndGet();
+                    params.setSSLParameters(getSSLContext().getDefaultSSLParameters());
+                }
+            });
+            this.server = https;
+            this.scheme = "https";
+        }
+        server.createContext("/gmail/v1/users/", this::handle);
+        server.createContext("/batch", this::handleBatch);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public FakeGmailServer addMessage(String id, Attachment... attachments) {
+        messages.put(id, List.of(attachments));
+        addedAtHistory.put(id, historyId.incrementAndGet());
+        return this;
+    }
+
+    /** Simula que Gmail ya descartó el historial anterior a {@code historyId}. */
+    FakeGmailServer expireHistoryBefore(long historyId) {
+        oldestHistory.set(historyId);
+        return this;
+    }
+
+    /** Las próximas {@code n} peticiones de adjuntos responden 429. */
+    FakeGmailServer throttleAttachments(int n) {
+        remainingThrottles.set(n);
+        return this;
+    }
+
+    /**
+     * Las próximas {@code n} descargas en streaming mandan tres cuartos del
+     * adjunto y se quedan {@code ms} sin enviar el resto.
+     */
+    FakeGmailServer stallStreamedAttachments(int n, long ms) {
+        stallMs = ms;
+        remainingStalls.set(n);
+        return this;
+    }
+
+    String rootUrl() {
+        return scheme + "://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public Gmail gmail() {
+        return gmail(new NetHttpTransport());
+    }
+
+    /** Cliente con un timeout de lectura corto, para probar cortes a mitad de la respuesta. */
+    Gmail gmail(int readTimeoutMs) {
+        return new Gmail.Builder(new NetHttpTransport(), GsonFactory.getDefaultInstance(),
+                request -> request.setReadTimeout(readTimeoutMs))
+                .setRootUrl(rootUrl())
+                .setApplicationName("fake-gmail-test")
+                .build();
+    }
+
+    Gmail gmail(HttpTransport transport) {
+        return new Gmail.Builder(transport, GsonFactory.getDefaultInstance(), null)
+                .setRootUrl(rootUrl())
+                .setApplicationName("fake-gmail-test")
+                .build();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String[] segments = exchange.getRequestURI().getPath().split("/");
+        if (segments.length == 9 && segments[7].equals("attachments") && remainingThrottles.get() <= 0) {
+            streamAttachment(exchange, segments[6], segments[8]);
+            return;
+        }
+        Response response = dispatch(exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery());
+        respond(exchange, response.status(), response.body());
+    }
+
+    private record Response(int status, String body) {
+    }
+
+    private Response dispatch(String path, String rawQuery) {
+        Map<String, String> query = query(rawQuery);
+        if (query.containsKey("fields")) {
+            fieldsSeen.add(query.get("fields"));
+        }
+        String[] segments = path.substring("/gmail/v1/users/".length()).split("/");
+        // segments: me, messages, {id}, attachments, {attId}
+        try {
+            if (segments.length == 2 && segments[1].equals("profile")) {
+                return new Response(200, "{\"emailAddress\":\"facturas@example.com\",\"historyId\":\""
+                        + historyId.get() + "\"}");
+            } else if (segments.length == 2 && segments[1].equals("labels")) {
+                return new Response(200, "{\"labels\":[{\"id\":\"INBOX\",\"name\":\"INBOX\"},"
+                        + "{\"id\":\"Label_7\",\"name\":\"Facturas Proveedores\"}]}");
+            } else if (segments.length == 2 && segments[1].equals("history")) {
+                historyCalls.incrementAndGet();
+                long start = Long.parseLong(query.get("startHistoryId"));
+                if (start < oldestHistory.get()) {
+                    return new Response(404, "{\"error\":{\"code\":404,\"message\":\"Requested entity was not found.\"}}");
+                }
+                return new Response(200, historyPage(start, query.get("pageToken")));
+            } else if (segments.length == 2 && segments[1].equals("messages")) {
+                listCalls.incrementAndGet();
+                return new Response(200, listPage(query.get("pageToken")));
+            } else if (segments.length == 3 && segments[1].equals("messages")) {
+                messageCalls.incrementAndGet();
+                return new Response(200, message(segments[2]));
+            } else if (segments.length == 5 && segments[3].equals("attachments")) {
+                attachmentCalls.incrementAndGet();
+                if (remainingThrottles.getAndDecrement() > 0) {
+                    throttledResponses.incrementAndGet();
+                    return new Response(429, "{\"error\":{\"code\":429,\"message\":\"Too many requests\","
+                            + "\"errors\":[{\"reason\":\"rateLimitExceeded\"}]}}");
+                }
+                return new Response(200, attachment(segments[2], segments[4]));
+            }
+            return new Response(404, "{\"error\":{\"code\":404,\"message\":\"not found\"}}");
+        } catch (RuntimeException ex) {
+            return new Response(500, "{\"error\":{\"code\":500,\"message\":\"" + ex.getMessage() + "\"}}");
+        }
+    }
+
+    /**
+     * Atiende {@code POST /batch}: cada parte multipart/mixed trae una petición
+     * HTTP completa ("GET url HTTP/1.1"); se resuelve con {@link #dispatch} y la
+     * respuesta se devuelve en el mismo orden con su Content-ID.
+     */
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        batchCalls.incrementAndGet();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length())
+                .replace("\"", "");
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+        String responseBoundary = "batch_fake_" + batchCalls.get();
+        StringBuilder out = new StringBuilder();
+        for (String part : body.split("--" + java.util.regex.Pattern.quote(boundary))) {
+            int requestLine = part.indexOf("GET ");
+            if (requestLine < 0) {
+                continue; // preámbulo o cierre "--"
+            }
+            String contentId = header(part, "Content-ID");
+            String line = part.substring(requestLine, part.indexOf("\r\n", requestLine));
+            URI uri = URI.create(line.split(" ")[1]);
+            batchedCalls.incrementAndGet();
+            Response response = dispatch(uri.getPath(), uri.getRawQuery());
+
+            out.append("--").append(responseBoundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(contentId.replaceAll("[<>]", "")).append(">\r\n\r\n")
+                    .append("HTTP/1.1 ").append(response.status()).append(response.status() == 200 ? " OK" : " Error")
+                    .append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append(response.body()).append("\r\n");
+        }
+        out.append("--").append(responseBoundary).append("--\r\n");
+
+        byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String header(String part, String name) {
+        for (String line : part.split("\r\n")) {
+            if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return "";
+    }
+
+    private String listPage(String pageToken) {
+        List<String> ids = new ArrayList<>(messages.keySet());
+        int from = pageToken == null ? 0 : Integer.parseInt(pageToken);
+        int to = Math.min(ids.size(), from + pageSize);
+
+        StringBuilder json = new StringBuilder("{\"messages\":[");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(ids.get(i)).append("\",\"threadId\":\"t").append(ids.get(i))
+                    .append("\"}");
+        }
+        json.append(']');
+        if (to < ids.size()) {
+            json.append(",\"nextPageToken\":\"").append(to).append('"');
+        }
+        json.append(",\"resultSizeEstimate\":").append(ids.size()).append('}');
+        return json.toString();
+    }
+
+    private String historyPage(long start, String pageToken) {
+        List<String> ids = new ArrayList<>();
+        for (Map.Entry<String, Long> e : addedAtHistory.entrySet()) {
+            if (e.getValue() > start) {
+                ids.add(e.getKey());
+            }
+        }
+        ids.sort((a, b) -> Long.compare(addedAtHistory.get(a), addedAtHistory.get(b)));
+        int from = pageToken == null ? 0 : Integer.parseInt(pageToken);
+        int to = Math.min(ids.size(), from + pageSize);
+
+        StringBuilder json = new StringBuilder("{\"history\":[");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                json.append(',');
+            }
+            String id = ids.get(i);
+            json.append("{\"id\":\"").append(addedAtHistory.get(id)).append("\",\"messagesAdded\":[{\"message\":")
+                    .append("{\"id\":\"").append(id).append("\",\"labelIds\":[\"Label_7\"]}}]}");
+        }
+        json.append(']');
+        if (to < ids.size()) {
+            json.append(",\"nextPageToken\":\"").append(to).append('"');
+        }
+        json.append(",\"historyId\":\"").append(historyId.get()).append("\"}");
+        return json.toString();
+    }
+
+    String message(String id) {
+        List<Attachment> attachments = messages.get(id);
+        if (attachments == null) {
+            throw new IllegalArgumentException("mensaje desconocido " + id);
+        }
+        StringBuilder json = new StringBuilder("{\"id\":\"" + id + "\",\"payload\":{\"parts\":[");
+        json.append("{\"partId\":\"0\",\"filename\":\"\",\"mimeType\":\"text/plain\",\"body\":{\"size\":5}}");
+        for (int i = 0; i < attachments.size(); i++) {
+            Attachment a = attachments.get(i);
+            json.append(",{\"partId\":\"").append(i + 1).append("\",\"filename\":\"").append(a.filename())
+                    .append("\",\"body\":{\"attachmentId\":\"att-").append(id).append('-').append(i)
+                    .append("\",\"size\":").append(a.data().length).append("}}");
+        }
+        json.append("]}}");
+        return json.toString();
+    }
+
+    String attachment(String messageId, String attachmentId) {
+        int index = Integer.parseInt(attachmentId.substring(attachmentId.lastIndexOf('-') + 1));
+        byte[] data = messages.get(messageId).get(index).data();
+        return "{\"size\":" + data.length + ",\"data\":\"" + Base64.getUrlEncoder().encodeToString(data) + "\"}";
+    }
+
+    /**
+     * Respuesta de un adjunto pedido fuera del batch: el base64 se codifica al
+     * vuelo con transferencia chunked, para no sumar al heap del proceso el JSON
+     * completo de adjuntos grandes.
+     */
+    private void streamAttachment(HttpExchange exchange, String messageId, String attachmentId) throws IOException {
+        attachmentCalls.incrementAndGet();
+        directAttachmentCalls.incrementAndGet();
+        int index = Integer.parseInt(attachmentId.substring(attachmentId.lastIndexOf('-') + 1));
+        byte[] data = messages.get(messageId).get(index).data();
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(("{\"size\":" + data.length + ",\"data\":\"").getBytes(StandardCharsets.UTF_8));
+            OutputStream encoder = Base64.getUrlEncoder().wrap(new java.io.FilterOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    flush(); // el cierre del encoder no debe cerrar la respuesta
+                }
+            });
+            if (remainingStalls.getAndDecrement() > 0) {
+                // tres cuartos del adjunto y luego silencio
+                encoder.write(data, 0, data.length * 3 / 4);
+                encoder.flush();
+                out.flush();
+                try {
+                    Thread.sleep(stallMs);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            encoder.write(data);
+            encoder.close();
+            out.write("\"}".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+}
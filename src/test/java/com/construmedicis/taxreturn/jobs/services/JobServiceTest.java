@@ -0,0 +1,122 @@
+package com.construmedicis.taxreturn.jobs.services;
+
+import com.construmedicis.taxreturn.jobs.models.JobSnapshot;
+import com.construmedicis.taxreturn.jobs.models.JobStatus;
+import com.construmedicis.taxreturn.jobs.models.JobType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobServiceTest {
+
+    private JobService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new JobService();
+        ReflectionTestUtils.setField(service, "maxConcurrent", 1);
+        ReflectionTestUtils.setField(service, "queueCapacity", 1);
+        service.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.stop();
+    }
+
+    @Test
+    void reportsProgressAndFinalResult() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        JobSnapshot submitted = service.submit(JobType.CONVERSION, "prueba", progress -> {
+            progress.filesDiscovered(3);
+            progress.fileParsed();
+            progress.fileParsed();
+            progress.filesWritten(2);
+            progress.bytesDownloaded(1024);
+            release.await();
+            return "listo";
+        });
+
+        JobSnapshot running = waitFor(submitted.id(), s -> s.filesWritten() == 2);
+        assertEquals(JobStatus.RUNNING, running.status());
+        assertEquals(3, running.filesDiscovered());
+        assertEquals(2, running.filesParsed());
+        assertEquals(1024, running.bytesDownloaded());
+
+        release.countDown();
+        JobSnapshot done = waitFor(submitted.id(), s -> s.status().isFinished());
+        assertEquals(JobStatus.SUCCEEDED, done.status());
+        assertEquals("listo", done.message());
+    }
+
+    @Test
+    void cancelsRunningAndQueuedJobsAndRejectsWhenQueueIsFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        JobSnapshot running = service.submit(JobType.EXTRACTION, "larga", progress -> {
+            started.countDown();
+            Thread.sleep(60_000);
+            return "no debería terminar";
+        });
+        JobSnapshot queued = service.submit(JobType.CONVERSION, "en cola", progress -> "nunca corre");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertThrows(RejectedExecutionException.class,
+                () -> service.submit(JobType.CONVERSION, "sobra", progress -> "rechazado"));
+
+        assertTrue(service.cancel(queued.id()));
+        assertEquals(JobStatus.CANCELLED, service.get(queued.id()).orElseThrow().status());
+
+        assertTrue(service.cancel(running.id()));
+        assertEquals(JobStatus.CANCELLED, waitFor(running.id(), s -> s.finishedAt() != null).status());
+        assertFalse(service.cancel(running.id()));
+    }
+
+    @Test
+    void runningJobKeepsItsRealOutcomeWhenCancelArrivesLate() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        JobSnapshot saving = service.submit(JobType.CONVERSION, "guardando", progress -> {
+            started.countDown();
+            // simula el guardado del Excel, que no atiende la interrupción
+            while (release.getCount() > 0) {
+                Thread.interrupted();
+                LockSupport.parkNanos(1_000_000);
+            }
+            return "guardado";
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(service.cancel(saving.id()));
+        JobSnapshot cancelling = service.get(saving.id()).orElseThrow();
+        assertEquals(JobStatus.RUNNING, cancelling.status());
+        assertNull(cancelling.finishedAt());
+
+        release.countDown();
+        JobSnapshot done = waitFor(saving.id(), s -> s.status().isFinished());
+        assertEquals(JobStatus.SUCCEEDED, done.status());
+        assertEquals("guardado", done.message());
+    }
+
+    private JobSnapshot waitFor(String id, java.util.function.Predicate<JobSnapshot> condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        JobSnapshot snapshot = service.get(id).orElseThrow();
+        while (!condition.test(snapshot) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            snapshot = service.get(id).orElseThrow();
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,115 @@
+package com.construmedicis.taxreturn.pipeline.services;
+
+import com.construmedicis.taxreturn.conversion.services.ConversionService;
+import com.construmedicis.taxreturn.conversion.services.InvoiceXmlFixtures;
+import com.construmedicis.taxreturn.conversion.services.TemplateWorkbooks;
+import com.construmedicis.taxreturn.extraction.services.ExtractionService;
+import com.construmedicis.taxreturn.extraction.services.FakeGmailServer;
+import com.construmedicis.taxreturn.utils.auth.GmailAuthService;
+import com.construmedicis.taxreturn.utils.progress.ProgressListener;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PipelineServiceTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void insertsDownloadedInvoicesWithoutWritingXmlFiles() throws Exception {
+        Path xmlDir = Files.createDirectories(tmp.resolve("xml"));
+        try (FakeGmailServer gmail = new FakeGmailServer(5)) {
+            for (int i = 0; i < 12; i++) {
+                Path xml = InvoiceXmlFixtures.writeInvoice(xmlDir, i);
+                gmail.addMessage("m" + i,
+                        new FakeGmailServer.Attachment("fv" + i + ".zip", zip(xml, "fv" + i + ".pdf")));
+            }
+
+            GmailAuthService auth = mock(GmailAuthService.class);
+            when(auth.getGmail()).thenReturn(gmail.gmail());
+            ExtractionService extraction = new ExtractionService(auth);
+            ReflectionTestUtils.setField(extraction, "parallelism", 4);
+            // cola mínima: los workers deben esperar al escritor sin perder facturas
+            PipelineService pipeline = new PipelineService(extraction, new ConversionService());
+            ReflectionTestUtils.setField(pipeline, "queueCapacity", 1);
+
+            Path out = Files.createDirectories(tmp.resolve("out"));
+            Path excel = TemplateWorkbooks.create(tmp.resolve("pipeline.xlsx"));
+            AtomicInteger written = new AtomicInteger();
+            ProgressListener progress = new ProgressListener() {
+                @Override
+                public void filesWritten(int count) {
+                    written.addAndGet(count);
+                }
+            };
+
+            assertEquals(12, pipeline.downloadAndConvert("me", "label:facturas", out.toString(),
+                    excel.toString(), progress));
+            assertEquals(12, written.get());
+
+            // mismo contenido que la conversión clásica desde carpeta
+            Path classic = TemplateWorkbooks.create(tmp.resolve("classic.xlsx"));
+            new ConversionService().convertInvoices(xmlDir.toString(), classic.toString());
+            assertEquals(invoiceNumbers(classic), invoiceNumbers(excel));
+
+            try (var files = Files.walk(out)) {
+                assertFalse(files.anyMatch(f -> f.toString().endsWith(".xml") || f.toString().endsWith(".zip")));
+            }
+            assertTrue(Files.exists(out.resolve("extracted").resolve("m0").resolve("fv0.pdf")));
+
+            // el manifiesto evita duplicados en una segunda corrida
+            assertEquals(0, pipeline.downloadAndConvert("me", "label:facturas", out.toString(),
+                    excel.toString(), ProgressListener.NONE));
+            assertEquals(invoiceNumbers(classic), invoiceNumbers(excel));
+        }
+    }
+
+    private static Set<String> invoiceNumbers(Path excel) throws Exception {
+        Set<String> numbers = new TreeSet<>();
+        try (FileInputStream in = new FileInputStream(excel.toFile());
+                XSSFWorkbook wb = new XSSFWorkbook(in)) {
+            XSSFSheet sheet = wb.getSheet("RETENCION 2025");
+            for (int r = 4; r <= sheet.getLastRowNum(); r++) {
+                Row row = sheet.getRow(r);
+                if (row == null || row.getCell(5) == null || "TOTALES".equals(row.getCell(0).getStringCellValue())) {
+                    continue;
+                }
+                numbers.add(row.getCell(5).getStringCellValue());
+            }
+        }
+        return numbers;
+    }
+
+    private static byte[] zip(Path xml, String pdfName) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry(xml.getFileName().toString()));
+            zip.write(Files.readAllBytes(xml));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry(pdfName));
+            zip.write("%PDF-1.4".getBytes());
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,178 @@
+package com.construmedicis.taxreturn.utils.auth;
+
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AccessTokenRefresherTest {
+
+    private HttpServer server;
+    private final HttpTransport transport = new NetHttpTransport();
+    private final AtomicInteger tokenCalls = new AtomicInteger();
+    private final Set<String> validTokens = ConcurrentHashMap.newKeySet();
+    private volatile long tokenDelayMs;
+    private AccessTokenRefresher refresher;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(32));
+        // Servidor OAuth falso: cada llamada emite un token nuevo y válido por una hora
+        server.createContext("/token", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            sleep(tokenDelayMs);
+            String token = "tok-" + tokenCalls.incrementAndGet();
+            validTokens.add(token);
+            respond(exchange, 200, "{\"access_token\":\"" + token + "\",\"expires_in\":3600,\"token_type\":\"Bearer\"}");
+        });
+        // API falsa: 401 si el token no es válido
+        server.createContext("/api", exchange -> {
+            String auth = exchange.getRequestHeaders().getFirst("Authorization");
+            boolean ok = auth != null && validTokens.contains(auth.substring("Bearer ".length()));
+            respond(exchange, ok ? 200 : 401, ok ? auth : "{\"error\":\"unauthorized\"}");
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (refresher != null) {
+            refresher.close();
+        }
+        server.stop(0);
+    }
+
+    @Test
+    void renewsTokenBeforeItExpires() throws Exception {
+        validTokens.add("old");
+        refresher = newRefresher(5_000, 50);
+        refresher.install(new AccessTokenRefresher.Token("old", System.currentTimeMillis() + 1_000), grant());
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!"tok-1".equals(refresher.currentToken().accessToken()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("tok-1", refresher.currentToken().accessToken());
+
+        // El token nuevo dura una hora: las siguientes revisiones no lo renuevan
+        Thread.sleep(300);
+        assertEquals(1, tokenCalls.get());
+        assertEquals(200, get().getStatusCode());
+    }
+
+    @Test
+    void concurrentUnauthorizedRequestsShareOneRefresh() throws Exception {
+        tokenDelayMs = 200;
+        refresher = newRefresher(5_000, 3_600_000);
+        refresher.install(new AccessTokenRefresher.Token("revoked", null), grant());
+
+        ExecutorService workers = Executors.newFixedThreadPool(16);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(workers.submit(() -> {
+                    start.await();
+                    return get().getStatusCode();
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(200, result.get());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        assertEquals(1, tokenCalls.get());
+        assertEquals("tok-1", refresher.currentToken().accessToken());
+    }
+
+    @Test
+    void requestsDoNotWaitForASlowRefresh() throws Exception {
+        validTokens.add("old");
+        tokenDelayMs = 1_000;
+        refresher = newRefresher(5_000, 3_600_000);
+        AccessTokenRefresher.Token old = new AccessTokenRefresher.Token("old", System.currentTimeMillis() + 60_000);
+        refresher.install(old, grant());
+
+        CompletableFuture<AccessTokenRefresher.Token> renewal = CompletableFuture
+                .supplyAsync(() -> refresher.refresh(old).join());
+        Thread.sleep(100); // la renovación ya está esperando al servidor OAuth
+
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            assertEquals("Bearer old", get().parseAsString());
+            assertTrue((System.nanoTime() - start) / 1_000_000 < 500, "la petición esperó a la renovación");
+        }
+        assertFalse(renewal.isDone());
+
+        assertEquals("tok-1", renewal.get().accessToken());
+        assertEquals("tok-1", refresher.currentToken().accessToken());
+        assertEquals(1, tokenCalls.get());
+    }
+
+    private AccessTokenRefresher newRefresher(long refreshBeforeMs, long checkIntervalMs) {
+        return new AccessTokenRefresher(transport, GsonFactory.getDefaultInstance(), refreshBeforeMs,
+                checkIntervalMs, new AccessTokenRefresher.RefreshListener() {
+                });
+    }
+
+    private AccessTokenRefresher.RefreshGrant grant() {
+        return new AccessTokenRefresher.RefreshGrant(baseUrl() + "token",
+                new ClientParametersAuthentication("client-id", "client-secret"), "refresh-token");
+    }
+
+    private com.google.api.client.http.HttpResponse get() throws IOException {
+        HttpRequestFactory factory = transport.createRequestFactory(refresher);
+        return factory.buildGetRequest(new GenericUrl(baseUrl() + "api")).setThrowExceptionOnExecuteError(false)
+                .execute();
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}